@@ -5,8 +5,10 @@ import Blockchainj.Util.SHA256HASH;
 import Blockchainj.Util.Utils;
 import org.apache.commons.codec.binary.Hex;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -21,6 +23,9 @@ import java.util.LinkedList;
  * TX Merkle Root, used to calculate the blockhash, used to compare with the provided blockhash
  * with which the block was retrieved.
  *
+ * Header and transactions may be views into the raw block data (flyweight parsing).
+ * In UTXO-only parsing, transaction inputs keep only their outpoints.
+ *
  * Blockchainj.Bitcoin protocol serialization.
  *
  * Internal byte order is Blockchainj.Bitcoin serialization order.
@@ -28,6 +33,14 @@ import java.util.LinkedList;
  */
 
 public class Block {
+    /* Parse modes */
+    /* Header and transactions are copied out of the raw data */
+    public static final int PARSE_MODE_COPY = 0;
+    /* Header and transactions are views into the raw data */
+    public static final int PARSE_MODE_FLYWEIGHT = 1;
+    /* As flyweight, but input scripts, sequences and witnesses are skipped by length */
+    public static final int PARSE_MODE_UTXO = 2;
+
     /* Block Metadata */
     /* blockhash - SHA256 */
     private final SHA256HASH blockhash;
@@ -38,37 +51,34 @@ public class Block {
 
 
     /* Header Format */
-    private final byte[] version;
+    /* Raw data. Header fields are views into it. */
+    private final byte[] data;
+    /* Header starts at this offset. version - int32 */
+    private final int headerOffset;
     /* previous blockhash - 32 bytes SHA256 */
     private final SHA256HASH prevBlockhash;
     /* TX Merkle root hash - 32 bytes SHA256 */
     private final SHA256HASH txMerkleRoot;
-    /* time - uint32 */
-    private final byte[] time;
-    /* nBits/difficutly - uint32 */
-    private final byte[] nBits;
-    /* nonce - uint32 */
-    private final byte[] nonce;
+    /* time - uint32, nBits/difficutly - uint32, nonce - uint32 */
+    private static final int TIME_OFFSET = BitcoinParams.BLOCK_VERSION_SIZE +
+            SHA256HASH.SERIALIZED_SIZE + SHA256HASH.SERIALIZED_SIZE;
+    private static final int NBITS_OFFSET = TIME_OFFSET + BitcoinParams.BLOCK_TIME_SIZE;
+    private static final int NONCE_OFFSET = NBITS_OFFSET + BitcoinParams.BLOCK_NBITS_SIZE;
 
     /* Transactions */
-    /* txnCount - compactSize uint 1-9 bytes */
-    private final CompactSizeUInt txnCount;
     /* transactions */
     private final Transaction[] tx;
 
 
     /* Private constructor. Does not copy input. Does not validate input fully. */
-    private Block(int height, byte[] version, SHA256HASH prevBlockhash, SHA256HASH txMerkleRoot,
-                  byte[] time, byte[] nBits, byte[] nonce, Transaction[] tx)
+    private Block(int height, byte[] data, int headerOffset, SHA256HASH prevBlockhash,
+                  SHA256HASH txMerkleRoot, Transaction[] tx)
             throws BitcoinBlockException {
         this.height = height;
-        this.version = version;
+        this.data = data;
+        this.headerOffset = headerOffset;
         this.prevBlockhash = prevBlockhash;
         this.txMerkleRoot = txMerkleRoot;
-        this.time = time;
-        this.nBits = nBits;
-        this.nonce = nonce;
-        this.txnCount = new CompactSizeUInt(tx.length);
         this.tx = tx;
 
         /* Calculate blockhash */
@@ -85,7 +95,7 @@ public class Block {
 
         /* Serialized Size */
         int tempSerializedSize = BitcoinParams.BLOCK_HEADER_SIZE;
-        tempSerializedSize += txnCount.getSerializedSize();
+        tempSerializedSize += CompactSizeUInt.getSizeOf(tx.length);
         for (int i=0; i<tx.length; i++) {
             tempSerializedSize += tx[i].getSerializedSize();
         }
@@ -95,14 +105,7 @@ public class Block {
 
     /* Hash header to get blockhash */
     private SHA256HASH calcBlockhash() {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(BitcoinParams.BLOCK_HEADER_SIZE);
-        byteBuffer.put(version);
-        prevBlockhash.serialize(byteBuffer);
-        txMerkleRoot.serialize(byteBuffer);
-        byteBuffer.put(time);
-        byteBuffer.put(nBits);
-        byteBuffer.put(nonce);
-        return SHA256HASH.doDoubleSHA256(byteBuffer.array());
+        return SHA256HASH.doDoubleSHA256(data, headerOffset, BitcoinParams.BLOCK_HEADER_SIZE);
     }
 
 
@@ -161,19 +164,19 @@ public class Block {
 
     public int getHeight() { return height; }
 
-    public int getVersion() { return BitcoinParams.readINT32(version, 0); }
+    public int getVersion() { return BitcoinParams.readINT32(data, headerOffset); }
 
     public SHA256HASH getPrevBlockhash() { return prevBlockhash; }
 
     public SHA256HASH getTxMerkleRoot() { return txMerkleRoot; }
 
-    public long getTime() { return BitcoinParams.readUINT32(time, 0); }
+    public long getTime() { return BitcoinParams.readUINT32(data, headerOffset + TIME_OFFSET); }
 
-    public long getNBits() { return BitcoinParams.readUINT32(nBits, 0); }
+    public long getNBits() { return BitcoinParams.readUINT32(data, headerOffset + NBITS_OFFSET); }
 
-    public long getNonce() { return  BitcoinParams.readUINT32(nonce, 0); }
+    public long getNonce() { return BitcoinParams.readUINT32(data, headerOffset + NONCE_OFFSET); }
 
-    public int getTxnCount() { return (int)txnCount.getValue(); }
+    public int getTxnCount() { return tx.length; }
 
     public int getSerializedSize() { return serializedSize; }
 
@@ -183,6 +186,26 @@ public class Block {
 
     public Transaction[] getTx() { return Arrays.copyOf(tx, tx.length); }
 
+    /* Returns true if the raw block was retained, i.e. the block was parsed in flyweight or
+     * UTXO mode. */
+    public boolean isRawBlockRetained() {
+        return data.length - headerOffset >= serializedSize;
+    }
+
+
+    /* Writes the raw block. Only available if the raw block was retained. */
+    public void serialize(OutputStream outputStream) throws IOException, IllegalStateException {
+        if(!isRawBlockRetained()) {
+            throw new IllegalStateException("Raw block was not retained.");
+        }
+        outputStream.write(data, headerOffset, serializedSize);
+    }
+
+
+    private byte[] getHeaderBytes(int fieldOffset, int len) {
+        return Arrays.copyOfRange(data, headerOffset + fieldOffset, headerOffset + fieldOffset + len);
+    }
+
 
     /* DEBUG */
     public void print(PrintStream printStream,
@@ -191,16 +214,17 @@ public class Block {
             printStream.println("Blockhash: " + this.getBlockhash());
             printStream.println("Height: " + this.getHeight());
             printStream.println("Version: " + this.getVersion() + " -- LE: " +
-                    Hex.encodeHexString(version));
+                    Hex.encodeHexString(getHeaderBytes(0, BitcoinParams.BLOCK_VERSION_SIZE)));
             printStream.println("Previous blockhash: " + this.getPrevBlockhash());
             printStream.println("TX Merkle root: " + this.getTxMerkleRoot());
             printStream.println("Time: " + this.getTime() + " -- LE: " +
-                    Hex.encodeHexString(time));
+                    Hex.encodeHexString(getHeaderBytes(TIME_OFFSET, BitcoinParams.BLOCK_TIME_SIZE)));
             printStream.println("Nbits: " + this.getNBits() + " -- LE: " +
-                    Hex.encodeHexString(nBits));
+                    Hex.encodeHexString(getHeaderBytes(NBITS_OFFSET, BitcoinParams.BLOCK_NBITS_SIZE)));
             printStream.println("Nonce: " + this.getNonce() + " -- LE: " +
-                    Hex.encodeHexString(nonce));
-            printStream.println("Tx Count: " + this.getTxnCount() + " -- " + txnCount);
+                    Hex.encodeHexString(getHeaderBytes(NONCE_OFFSET, BitcoinParams.BLOCK_NONCE_SIZE)));
+            printStream.println("Tx Count: " + this.getTxnCount() + " -- " +
+                    Hex.encodeHexString(CompactSizeUInt.getEncoded(getTxnCount())));
             printStream.println("Block size (bytes): " + this.getSerializedSize());
         }
 
@@ -213,15 +237,40 @@ public class Block {
     }
 
 
-    /* Deserialize */
+    /* Deserialize. The header and each transaction are copied out of data. */
     public static Block deserialize(SHA256HASH blockhash, int height, byte[] data, int offset)
             throws BitcoinBlockException {
+        return deserialize(blockhash, height, data, offset, PARSE_MODE_COPY);
+    }
+
+
+    /* Deserialize using the given parse mode. In flyweight and UTXO modes the header and all
+     * transactions are views into data and the caller must not modify data afterwards. Data are
+     * then only copied when UTXs are created. */
+    public static Block deserialize(SHA256HASH blockhash, int height, byte[] data, int offset,
+                                    int parseMode)
+            throws BitcoinBlockException {
+        validateParseMode(parseMode);
+        boolean flyweight = (parseMode != PARSE_MODE_COPY);
+        /* One digest for all txids of the block in UTXO mode */
+        MessageDigest digest = (parseMode == PARSE_MODE_UTXO) ? SHA256HASH.getDigest() : null;
         int originalOffset = offset;
         boolean headerParsed = false;
         try {
             /* Deserialize header */
-            byte[] version =
-                    Utils.readBytesFromByteArray(data, offset, BitcoinParams.BLOCK_VERSION_SIZE);
+            if(offset + BitcoinParams.BLOCK_HEADER_SIZE > data.length) {
+                throw new ArrayIndexOutOfBoundsException(offset + BitcoinParams.BLOCK_HEADER_SIZE);
+            }
+            byte[] headerData;
+            int headerOffset;
+            if(flyweight) {
+                headerData = data;
+                headerOffset = offset;
+            } else {
+                headerData = Utils.readBytesFromByteArray(
+                        data, offset, BitcoinParams.BLOCK_HEADER_SIZE);
+                headerOffset = 0;
+            }
             offset += BitcoinParams.BLOCK_VERSION_SIZE;
 
             SHA256HASH prevBlockhash = SHA256HASH.deserialize(data, offset);
@@ -230,35 +279,27 @@ public class Block {
             SHA256HASH txMerkleRoot = SHA256HASH.deserialize(data, offset);
             offset += txMerkleRoot.getSerializedSize();
 
-            byte[] time =
-                    Utils.readBytesFromByteArray(data, offset, BitcoinParams.BLOCK_TIME_SIZE);
-            offset += BitcoinParams.BLOCK_TIME_SIZE;
-
-            byte[] nBits =
-                    Utils.readBytesFromByteArray(data, offset, BitcoinParams.BLOCK_NBITS_SIZE);
-            offset += BitcoinParams.BLOCK_NBITS_SIZE;
-
-            byte[] nonce =
-                    Utils.readBytesFromByteArray(data, offset, BitcoinParams.BLOCK_NONCE_SIZE);
-            offset += BitcoinParams.BLOCK_NONCE_SIZE;
+            offset += BitcoinParams.BLOCK_TIME_SIZE + BitcoinParams.BLOCK_NBITS_SIZE +
+                    BitcoinParams.BLOCK_NONCE_SIZE;
 
             headerParsed = true;
 
 
             /* Deserialize transactions */
-            CompactSizeUInt txCount = CompactSizeUInt.deserialize(data, offset);
-            offset += txCount.getSerializedSize();
+            int txCount = (int)CompactSizeUInt.getValue(data, offset);
+            offset += CompactSizeUInt.getSizeOf(data, offset);
 
-            Transaction[] tx = new Transaction[(int)txCount.getValue()];
+            Transaction[] tx = new Transaction[txCount];
             for (int i = 0; i < tx.length; i++) {
                 try {
-                    /* coinbase */
-                    if (i == 0) {
-                        tx[i] = Transaction.deserialize(blockhash, height, data, offset, true);
-                    }
-                    /* not coinbase */
-                    else {
-                        tx[i] = Transaction.deserialize(blockhash, height, data, offset, false);
+                    /* first transaction is coinbase */
+                    boolean isCoinbase = (i == 0);
+                    if (parseMode == PARSE_MODE_UTXO) {
+                        tx[i] = Transaction.deserializeUtxoOnly(
+                                blockhash, height, data, offset, isCoinbase, digest);
+                    } else {
+                        tx[i] = Transaction.deserialize(
+                                blockhash, height, data, offset, isCoinbase, flyweight);
                     }
                     offset += tx[i].getSerializedSize();
                 } catch (BitcoinBlockException e) {
@@ -277,7 +318,7 @@ public class Block {
 
             /* Make new block */
             Block block = new Block(
-                    height, version, prevBlockhash, txMerkleRoot, time, nBits, nonce, tx);
+                    height, headerData, headerOffset, prevBlockhash, txMerkleRoot, tx);
 
             /* Match with original blockhash */
             if( !block.getBlockhash().equals(blockhash) ) {
@@ -306,6 +347,14 @@ public class Block {
         }
     }
 
+    public static void validateParseMode(int parseMode) throws IllegalArgumentException {
+        if(parseMode != PARSE_MODE_COPY && parseMode != PARSE_MODE_FLYWEIGHT &&
+                parseMode != PARSE_MODE_UTXO) {
+            throw new IllegalArgumentException("Invalid parse mode " + parseMode + ".");
+        }
+    }
+
+
 //    public static void main(String[] args) {
 ////        RPCconnection rpcCon = new RPCconnection();
 ////        int height = 401824;//481824; //125552;
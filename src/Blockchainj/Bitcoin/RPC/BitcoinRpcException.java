@@ -10,6 +10,8 @@ public class BitcoinRpcException extends Exception{
     private final int responseCode;
     private String blockhash;
     private int height;
+    /* The node answered with a JSON-RPC error, e.g. a height above the tip */
+    private boolean rpcError = false;
 
 
     public BitcoinRpcException(String message) {
@@ -56,4 +58,8 @@ public class BitcoinRpcException extends Exception{
     public void setBlockhash(String blockhash) { this.blockhash = blockhash; }
 
     public void setHeight(int height) { this.height = height; }
+
+    public boolean isRpcError() { return rpcError; }
+
+    public void setRpcError(boolean rpcError) { this.rpcError = rpcError; }
 }
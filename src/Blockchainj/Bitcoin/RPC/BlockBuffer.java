@@ -16,6 +16,13 @@ public interface BlockBuffer {
     /* Returns iterator starting start height until end height */
     BlockIterator iterator(int startHeight, int endHeight);
 
+    /* Returns iterator starting start height until end height. Blocks are parsed with the
+     * given Block parse mode. */
+    BlockIterator iterator(int startHeight, int endHeight, int parseMode);
+
+    /* Last height served */
+    int getLastHeight();
+
     /* Prints blockbuffer parameters */
     void printParameters(PrintStream printStream);
 
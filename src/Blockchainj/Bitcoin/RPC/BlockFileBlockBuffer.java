@@ -0,0 +1,416 @@
+package Blockchainj.Bitcoin.RPC;
+
+import Blockchainj.Bitcoin.BitcoinBlockException;
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Bitcoin.Block;
+import Blockchainj.Util.SHA256HASH;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.*;
+
+
+/**
+ * BlockFileBlockBuffer
+ *
+ * Block buffer that reads Bitcoin Core's blocks/blk*.dat files directly through memory
+ * mapping, bypassing RPC.
+ *
+ * On first use all blk files are scanned. Each block is framed as
+ * <magic, 4bytes><size, uint32><block, size bytes>, and only the 80-byte headers are hashed.
+ * The best chain is found by following prevBlockhash links from the genesis block and taking
+ * the tip with most cumulative work. Blocks not in the best chain are ignored.
+ *
+ * If blocks/xor.dat exists (Bitcoin Core 28+), block files are de-obfuscated with its key.
+ *
+ * bitcoind should not be writing to the block files while they are read.
+ *
+ * Thread-safe.
+ *
+ */
+
+public class BlockFileBlockBuffer extends AbstractBlockBuffer {
+    /* Block file names: blk00000.dat, blk00001.dat, ... */
+    private static final String BLOCK_FILE_PREFIX = "blk";
+    private static final String BLOCK_FILE_SUFFIX = ".dat";
+    private static final String XOR_KEY_FILE = "xor.dat";
+
+    /* Block framing */
+    private static final int FRAME_HEADER_SIZE =
+            BitcoinParams.MAGIC_SIZE + BitcoinParams.UINT32_SIZE;
+
+    /* Max number of block files mapped at the same time */
+    private static final int MAX_MAPPED_FILES = 16;
+
+    /* blocks range in terms of height */
+    private final int firstHeight;
+    private final int lastHeight;
+
+    /* blocks directory */
+    private final File blocksDir;
+
+    /* Block files, in file number order. */
+    private File[] blockFiles = null;
+    /* Obfuscation key. All zero if none. */
+    private byte[] xorKey = null;
+    /* Best chain block locations indexed by height. Null until indexed. */
+    private BlockLocation[] bestChain = null;
+
+    /* Mapped block files. Least recently used are unmapped first. */
+    private final LinkedHashMap<Integer, MappedByteBuffer> mappedFiles =
+            new LinkedHashMap<Integer, MappedByteBuffer>(MAX_MAPPED_FILES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> e) {
+                    return size() > MAX_MAPPED_FILES;
+                }
+            };
+
+
+    /* Block position in the block files */
+    private static class BlockLocation {
+        private final SHA256HASH blockhash;
+        private final SHA256HASH prevBlockhash;
+        private final long nBits;
+        private final int fileIndex;
+        private final int offset;
+        private final int size;
+
+        private BlockLocation(SHA256HASH blockhash, SHA256HASH prevBlockhash, long nBits,
+                              int fileIndex, int offset, int size) {
+            this.blockhash = blockhash;
+            this.prevBlockhash = prevBlockhash;
+            this.nBits = nBits;
+            this.fileIndex = fileIndex;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+
+    /* Main constructor */
+    public BlockFileBlockBuffer(String blocksDir, int firstHeight, int lastHeight)
+            throws IllegalArgumentException {
+        super();
+
+        BlockBuffer.validateHeights(firstHeight, lastHeight);
+
+        /* set height range */
+        this.firstHeight = firstHeight;
+        this.lastHeight = lastHeight;
+
+        /* set blocks directory */
+        this.blocksDir = new File(blocksDir);
+        if(!this.blocksDir.isDirectory()) {
+            throw new IllegalArgumentException("Blocks directory " + blocksDir + " not found.");
+        }
+    }
+
+
+    /* Default constructor */
+    public BlockFileBlockBuffer(String blocksDir) {
+        this(blocksDir, MIN_HEIGHT, MAX_HEIGHT);
+    }
+
+
+    /* Scans block files and builds the best chain index. */
+    private synchronized void ensureIndexed() throws IOException {
+        if(bestChain != null) {
+            return;
+        }
+
+        /* find block files */
+        ArrayList<File> files = new ArrayList<>();
+        for(int i=0; ; i++) {
+            File file = new File(blocksDir, String.format("%s%05d%s",
+                    BLOCK_FILE_PREFIX, i, BLOCK_FILE_SUFFIX));
+            if(!file.isFile()) {
+                break;
+            }
+            files.add(file);
+        }
+        blockFiles = files.toArray(new File[0]);
+
+        /* read obfuscation key */
+        File xorKeyFile = new File(blocksDir, XOR_KEY_FILE);
+        if(xorKeyFile.isFile()) {
+            xorKey = Files.readAllBytes(xorKeyFile.toPath());
+        } else {
+            xorKey = new byte[1];
+        }
+
+        /* index all blocks by blockhash */
+        HashMap<SHA256HASH, BlockLocation> locations = new HashMap<>();
+        for(int i=0; i<blockFiles.length; i++) {
+            indexBlockFile(i, locations);
+        }
+
+        bestChain = buildBestChain(locations);
+    }
+
+
+    /* Scans the magic and size framing of one block file and hashes the block headers. */
+    private void indexBlockFile(int fileIndex, HashMap<SHA256HASH, BlockLocation> locations)
+            throws IOException {
+        MappedByteBuffer mapped = getMappedFile(fileIndex);
+        int fileSize = mapped.capacity();
+        byte[] frame = new byte[FRAME_HEADER_SIZE];
+        byte[] header = new byte[BitcoinParams.BLOCK_HEADER_SIZE];
+
+        int pos = 0;
+        while(pos + FRAME_HEADER_SIZE + BitcoinParams.BLOCK_HEADER_SIZE <= fileSize) {
+            readDeobfuscated(mapped, pos, frame, 0, FRAME_HEADER_SIZE);
+
+            /* Pre-allocated but unused space at the end of the file */
+            if(frame[0] == 0 && frame[1] == 0 && frame[2] == 0 && frame[3] == 0) {
+                break;
+            }
+
+            /* Resynchronize on invalid magic */
+            if(!BitcoinParams.isMagicValid(Arrays.copyOf(frame, BitcoinParams.MAGIC_SIZE))) {
+                pos++;
+                continue;
+            }
+
+            /* Block size */
+            long size = BitcoinParams.readUINT32(frame, BitcoinParams.MAGIC_SIZE);
+            int blockOffset = pos + FRAME_HEADER_SIZE;
+            if(size < BitcoinParams.BLOCK_HEADER_SIZE || blockOffset + size > fileSize) {
+                break;
+            }
+
+            /* Hash header */
+            readDeobfuscated(mapped, blockOffset, header, 0, BitcoinParams.BLOCK_HEADER_SIZE);
+            SHA256HASH blockhash = SHA256HASH.doDoubleSHA256(header);
+            SHA256HASH prevBlockhash =
+                    SHA256HASH.deserialize(header, BitcoinParams.BLOCK_VERSION_SIZE);
+            long nBits = BitcoinParams.readUINT32(header, BitcoinParams.BLOCK_HEADER_SIZE -
+                    BitcoinParams.BLOCK_NONCE_SIZE - BitcoinParams.BLOCK_NBITS_SIZE);
+
+            locations.putIfAbsent(blockhash, new BlockLocation(
+                    blockhash, prevBlockhash, nBits, fileIndex, blockOffset, (int)size));
+
+            pos = blockOffset + (int)size;
+        }
+    }
+
+
+    /* Follows prevBlockhash links from genesis and returns the chain with most work,
+     * indexed by height. */
+    private static BlockLocation[] buildBestChain(HashMap<SHA256HASH, BlockLocation> locations)
+            throws IOException {
+        /* children of each block */
+        HashMap<SHA256HASH, ArrayList<BlockLocation>> children = new HashMap<>();
+        BlockLocation genesis = null;
+        for(BlockLocation location : locations.values()) {
+            if(location.blockhash.equals(BitcoinParams.GENESIS_BLOCKHASH)) {
+                genesis = location;
+            }
+            children.computeIfAbsent(location.prevBlockhash, k -> new ArrayList<>())
+                    .add(location);
+        }
+        if(genesis == null) {
+            throw new IOException("Genesis block not found in block files.");
+        }
+
+        /* breadth first walk from genesis, summing work */
+        HashMap<SHA256HASH, BigInteger> chainWork = new HashMap<>();
+        HashMap<SHA256HASH, Integer> heights = new HashMap<>();
+        ArrayDeque<BlockLocation> queue = new ArrayDeque<>();
+        chainWork.put(genesis.blockhash, getWork(genesis.nBits));
+        heights.put(genesis.blockhash, BitcoinParams.GENESIS_HEIGHT);
+        queue.add(genesis);
+        BlockLocation tip = genesis;
+        while(!queue.isEmpty()) {
+            BlockLocation location = queue.removeFirst();
+            BigInteger work = chainWork.get(location.blockhash);
+            int height = heights.get(location.blockhash);
+
+            /* most work, first seen wins ties */
+            if(work.compareTo(chainWork.get(tip.blockhash)) > 0) {
+                tip = location;
+            }
+
+            ArrayList<BlockLocation> locationChildren = children.get(location.blockhash);
+            if(locationChildren != null) {
+                for(BlockLocation child : locationChildren) {
+                    chainWork.put(child.blockhash, work.add(getWork(child.nBits)));
+                    heights.put(child.blockhash, height + 1);
+                    queue.add(child);
+                }
+            }
+        }
+
+        /* walk back from tip */
+        BlockLocation[] chain = new BlockLocation[heights.get(tip.blockhash) + 1];
+        BlockLocation location = tip;
+        for(int h=chain.length-1; h>=0; h--) {
+            chain[h] = location;
+            location = locations.get(location.prevBlockhash);
+        }
+        return chain;
+    }
+
+
+    /* Block proof of work: 2^256 / (target + 1) */
+    private static BigInteger getWork(long nBits) {
+        int exponent = (int)(nBits >>> 24);
+        BigInteger mantissa = BigInteger.valueOf(nBits & 0x007FFFFFL);
+        BigInteger target = (exponent <= 3) ?
+                mantissa.shiftRight(8 * (3 - exponent)) :
+                mantissa.shiftLeft(8 * (exponent - 3));
+        return BigInteger.ONE.shiftLeft(256).divide(target.add(BigInteger.ONE));
+    }
+
+
+    /* Returns the mapped block file */
+    private MappedByteBuffer getMappedFile(int fileIndex) throws IOException {
+        synchronized (mappedFiles) {
+            MappedByteBuffer mapped = mappedFiles.get(fileIndex);
+            if(mapped == null) {
+                try (RandomAccessFile raf = new RandomAccessFile(blockFiles[fileIndex], "r");
+                     FileChannel channel = raf.getChannel()) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                mappedFiles.put(fileIndex, mapped);
+            }
+            return mapped;
+        }
+    }
+
+
+    /* Copies bytes from the mapped file and removes the obfuscation. Absolute reads, so the
+     * buffer's position is not shared between threads. */
+    private void readDeobfuscated(MappedByteBuffer mapped, int filePos, byte[] dest, int destOffset,
+                                  int len) {
+        mapped.get(filePos, dest, destOffset, len);
+        for(int i=0; i<len; i++) {
+            dest[destOffset + i] ^= xorKey[(filePos + i) % xorKey.length];
+        }
+    }
+
+
+    /* Reads the raw block at height */
+    private byte[] readRawBlock(BlockLocation location) throws IOException {
+        byte[] rawBlock = new byte[location.size];
+        readDeobfuscated(getMappedFile(location.fileIndex), location.offset,
+                rawBlock, 0, location.size);
+        return rawBlock;
+    }
+
+
+    /* Block iterator */
+    private class BlockFileBlockIterator extends AbstractBlockIterator {
+        private final int endHeight;
+        private final int parseMode;
+        private int nextHeight;
+
+        private BlockFileBlockIterator(int startHeight, int endHeight, int parseMode) {
+            super();
+            this.endHeight = endHeight;
+            this.parseMode = parseMode;
+            this.nextHeight = startHeight;
+        }
+
+        public Block next()
+                throws NoSuchElementException, BitcoinRpcException, BitcoinBlockException {
+            /* check end of range */
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            BlockLocation location = bestChain[nextHeight];
+            try {
+                /* read raw block from block file */
+                byte[] rawBlock = readRawBlock(location);
+
+                /* parse raw block and get block */
+                return Block.deserialize(location.blockhash, nextHeight, rawBlock, 0, parseMode);
+            } catch (IOException e) {
+                close();
+                BitcoinRpcException be = new BitcoinRpcException("Reading block file failed.", e);
+                be.setBlockhash(location.blockhash.toString());
+                be.setHeight(nextHeight);
+                throw be;
+            } finally {
+                /* increment height */
+                nextHeight++;
+            }
+        }
+
+
+        public boolean hasNext() {
+            return (nextHeight <= endHeight) && !isClosed();
+        }
+    }
+
+
+    @Override
+    public BlockIterator iterator(int startHeight) {
+        return iterator(startHeight, lastHeight);
+    }
+
+    @Override
+    public BlockIterator iterator(int startHeight, int endHeight) {
+        return iterator(startHeight, endHeight, Block.PARSE_MODE_FLYWEIGHT);
+    }
+
+    @Override
+    public BlockIterator iterator(int startHeight, int endHeight, int parseMode) {
+        Block.validateParseMode(parseMode);
+        if( startHeight < firstHeight ) {
+            throw new IllegalArgumentException("Start height out of range.");
+        }
+        if( endHeight < startHeight ) {
+            throw new IllegalArgumentException("End height must be >=startHeight.");
+        }
+        endHeight = (endHeight>lastHeight)?(lastHeight):endHeight;
+
+        /* index block files on first use */
+        try {
+            ensureIndexed();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        /* stop at best chain tip */
+        endHeight = Math.min(endHeight, bestChain.length - 1);
+
+        return new BlockFileBlockIterator(startHeight, endHeight, parseMode);
+    }
+
+
+    /* Closes buffer resources */
+    @Override
+    public void close() {
+        super.close();
+        synchronized (mappedFiles) {
+            mappedFiles.clear();
+        }
+    }
+
+
+    public int getFirstHeight() { return firstHeight; }
+
+    public int getLastHeight() { return lastHeight; }
+
+    /* Returns best chain height or -1 if not indexed yet */
+    public synchronized int getBestChainHeight() {
+        return (bestChain == null) ? -1 : bestChain.length - 1;
+    }
+
+
+    @Override
+    public void printParameters(PrintStream printStream) {
+        printStream.println(">BlockFileBlockBuffer");
+        printStream.println("BlockFileBlockBuffer blocks directory: " + blocksDir);
+        printStream.println("BlockFileBlockBuffer first height: " + getFirstHeight());
+        printStream.println("BlockFileBlockBuffer last height: " + getLastHeight());
+        printStream.println("BlockFileBlockBuffer best chain height: " + getBestChainHeight());
+    }
+}
@@ -0,0 +1,488 @@
+package Blockchainj.Bitcoin.RPC;
+
+import Blockchainj.Bitcoin.BitcoinBlockException;
+import Blockchainj.Bitcoin.Block;
+import Blockchainj.Util.SHA256HASH;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+
+/**
+ * CachingBlockBuffer
+ *
+ * Block buffer decorator that keeps raw blocks in a persistent on-disk cache.
+ * Heights found in the cache are read from memory mapped segment files. Missing heights are
+ * fetched from the wrapped block buffer and appended to the cache.
+ *
+ * Cache directory layout:
+ * - segment-NNNNN.dat: append-only segment files of up to SEGMENT_SIZE bytes. Each record is
+ *   <height, int32><blockhash, 32 bytes><raw size, int32><compressed size, int32>
+ *   <deflated raw block, compressed size bytes>.
+ * - index.dat: height index. Entry at height*INDEX_ENTRY_SIZE is
+ *   <segment number + 1, int32><record offset, int64>. Zero segment means not cached.
+ *
+ * The segment record is written before its index entry. Entries whose record runs past the end
+ * of their segment are ignored on open.
+ *
+ * Blocks are assumed final. Heights near the chain tip should not be cached
+ * (see BLOCKBUFFER_END_HEIGHT).
+ *
+ * Thread-safe. Closing the cache closes the wrapped block buffer.
+ *
+ */
+
+public class CachingBlockBuffer extends AbstractBlockBuffer {
+    /* Wrapped block buffer */
+    private final BlockBuffer blockBuffer;
+
+    /* Cache directory */
+    private final File cacheDir;
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".dat";
+    private static final String INDEX_FILE = "index.dat";
+
+    /* Segment files are mapped whole, so they must stay under 2GB. */
+    public static final long SEGMENT_SIZE = 1024L*1024L*1024L; //1 GiB
+
+    /* Record header: height, blockhash, raw size, compressed size */
+    private static final int RECORD_HEADER_SIZE = 4 + SHA256HASH.SERIALIZED_SIZE + 4 + 4;
+
+    /* Index entry: segment number + 1, record offset */
+    private static final int INDEX_ENTRY_SIZE = 4 + 8;
+
+    /* Compression level. Fast compression, the cache is read far more often than written. */
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    /* Segment files and their mappings. Remapped when a segment outgrows its mapping. */
+    private final ArrayList<FileChannel> segmentChannels = new ArrayList<>();
+    private final ArrayList<MappedByteBuffer> segmentMappings = new ArrayList<>();
+
+    /* In memory height index */
+    private int[] indexSegments = new int[0];
+    private long[] indexOffsets = new long[0];
+    private final FileChannel indexChannel;
+
+    /* Stats */
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+
+
+    /* Main constructor. Opens or creates the cache in cacheDir. */
+    public CachingBlockBuffer(BlockBuffer blockBuffer, String cacheDir)
+            throws IOException {
+        super();
+
+        this.blockBuffer = blockBuffer;
+
+        /* open cache directory */
+        this.cacheDir = new File(cacheDir);
+        if(!this.cacheDir.isDirectory() && !this.cacheDir.mkdirs()) {
+            throw new IOException("Creating cache directory " + cacheDir + " failed.");
+        }
+
+        /* open segments */
+        for(int i=0; ; i++) {
+            File segmentFile = getSegmentFile(i);
+            if(!segmentFile.isFile()) {
+                break;
+            }
+            openSegment(i);
+        }
+        if(segmentChannels.isEmpty()) {
+            openSegment(0);
+        }
+
+        /* load index */
+        indexChannel = new RandomAccessFile(new File(this.cacheDir, INDEX_FILE), "rw")
+                .getChannel();
+        loadIndex();
+    }
+
+
+    private File getSegmentFile(int segment) {
+        return new File(cacheDir, String.format("%s%05d%s",
+                SEGMENT_FILE_PREFIX, segment, SEGMENT_FILE_SUFFIX));
+    }
+
+
+    private void openSegment(int segment) throws IOException {
+        segmentChannels.add(new RandomAccessFile(getSegmentFile(segment), "rw").getChannel());
+        segmentMappings.add(null);
+    }
+
+
+    /* Reads index file, dropping entries whose records are not fully written. */
+    private void loadIndex() throws IOException {
+        int entries = (int)(indexChannel.size() / INDEX_ENTRY_SIZE);
+        ensureIndexCapacity(entries);
+
+        ByteBuffer buffer = ByteBuffer.allocate(entries * INDEX_ENTRY_SIZE);
+        while(buffer.hasRemaining()) {
+            if(indexChannel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+
+        for(int height=0; height<entries; height++) {
+            int segment = buffer.getInt() - 1;
+            long offset = buffer.getLong();
+            if(segment < 0 || segment >= segmentChannels.size()) {
+                continue;
+            }
+            long segmentSize = segmentChannels.get(segment).size();
+            if(offset < 0 || offset + RECORD_HEADER_SIZE > segmentSize) {
+                continue;
+            }
+            MappedByteBuffer mapping = getSegmentMapping(segment, offset + RECORD_HEADER_SIZE);
+            int compressedSize = mapping.getInt((int)offset + RECORD_HEADER_SIZE - 4);
+            if(compressedSize < 0 || offset + RECORD_HEADER_SIZE + compressedSize > segmentSize) {
+                continue;
+            }
+            indexSegments[height] = segment + 1;
+            indexOffsets[height] = offset;
+        }
+    }
+
+
+    private void ensureIndexCapacity(int capacity) {
+        if(capacity > indexSegments.length) {
+            int newCapacity = Math.max(capacity, indexSegments.length*2);
+            indexSegments = Arrays.copyOf(indexSegments, newCapacity);
+            indexOffsets = Arrays.copyOf(indexOffsets, newCapacity);
+        }
+    }
+
+
+    /* Returns true if height is cached */
+    public synchronized boolean isCached(int height) {
+        return height < indexSegments.length && indexSegments[height] != 0;
+    }
+
+
+    /* Returns the mapping of segment, covering at least minSize bytes. */
+    private synchronized MappedByteBuffer getSegmentMapping(int segment, long minSize)
+            throws IOException {
+        MappedByteBuffer mapping = segmentMappings.get(segment);
+        if(mapping == null || mapping.capacity() < minSize) {
+            FileChannel channel = segmentChannels.get(segment);
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            segmentMappings.set(segment, mapping);
+        }
+        return mapping;
+    }
+
+
+    /* Reads and inflates the cached block at height. Returns null if not cached. */
+    private Block readCachedBlock(int height, int parseMode)
+            throws IOException, BitcoinBlockException {
+        int segment;
+        long offset;
+        synchronized (this) {
+            if(!isCached(height)) {
+                return null;
+            }
+            segment = indexSegments[height] - 1;
+            offset = indexOffsets[height];
+        }
+
+        /* record header */
+        MappedByteBuffer mapping = getSegmentMapping(segment, offset + RECORD_HEADER_SIZE);
+        int pos = (int)offset;
+        int recordHeight = mapping.getInt(pos);
+        byte[] blockhashBytes = new byte[SHA256HASH.SERIALIZED_SIZE];
+        mapping.get(pos + 4, blockhashBytes);
+        int rawSize = mapping.getInt(pos + 4 + SHA256HASH.SERIALIZED_SIZE);
+        int compressedSize = mapping.getInt(pos + 4 + SHA256HASH.SERIALIZED_SIZE + 4);
+        if(recordHeight != height) {
+            throw new IOException("Cache record height " + recordHeight +
+                    " does not match index height " + height + ".");
+        }
+
+        /* inflate straight from the mapping */
+        mapping = getSegmentMapping(segment, offset + RECORD_HEADER_SIZE + compressedSize);
+        ByteBuffer compressed = mapping.slice(pos + RECORD_HEADER_SIZE, compressedSize);
+        byte[] rawBlock = new byte[rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while(n < rawSize && !inflater.finished()) {
+                int read = inflater.inflate(rawBlock, n, rawSize - n);
+                if(read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if(n != rawSize) {
+                throw new IOException("Cache record at height " + height + " is truncated.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Cache record at height " + height + " is corrupted.", e);
+        } finally {
+            inflater.end();
+        }
+
+        return Block.deserialize(new SHA256HASH(blockhashBytes), height, rawBlock, 0, parseMode);
+    }
+
+
+    /* Appends block to the current segment and indexes it. */
+    private synchronized void writeCachedBlock(Block block) throws IOException {
+        if(isCached(block.getHeight())) {
+            return;
+        }
+
+        /* compress */
+        ByteArrayOutputStream compressedStream =
+                new ByteArrayOutputStream(block.getSerializedSize());
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        try (DeflaterOutputStream deflaterStream =
+                     new DeflaterOutputStream(compressedStream, deflater)) {
+            block.serialize(deflaterStream);
+        } finally {
+            deflater.end();
+        }
+        byte[] compressed = compressedStream.toByteArray();
+
+        /* record */
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + compressed.length);
+        record.putInt(block.getHeight());
+        block.getBlockhash().serialize(record);
+        record.putInt(block.getSerializedSize());
+        record.putInt(compressed.length);
+        record.put(compressed);
+        record.flip();
+
+        /* start new segment if full */
+        int segment = segmentChannels.size() - 1;
+        FileChannel channel = segmentChannels.get(segment);
+        if(channel.size() > 0 && channel.size() + record.remaining() > SEGMENT_SIZE) {
+            segment++;
+            openSegment(segment);
+            channel = segmentChannels.get(segment);
+        }
+
+        /* append record */
+        long offset = channel.size();
+        while(record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+
+        /* append index entry */
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putInt(segment + 1);
+        entry.putLong(offset);
+        entry.flip();
+        while(entry.hasRemaining()) {
+            indexChannel.write(entry,
+                    (long)block.getHeight() * INDEX_ENTRY_SIZE + entry.position());
+        }
+
+        ensureIndexCapacity(block.getHeight() + 1);
+        indexSegments[block.getHeight()] = segment + 1;
+        indexOffsets[block.getHeight()] = offset;
+    }
+
+
+    /* Returns the last height of the run of missing heights starting at height. */
+    private synchronized int getMissingRunEnd(int height, int endHeight) {
+        endHeight = Math.min(endHeight, blockBuffer.getLastHeight());
+        int runEnd = height;
+        while(runEnd < endHeight && !isCached(runEnd + 1)) {
+            runEnd++;
+        }
+        return runEnd;
+    }
+
+
+    private synchronized void countHit() { cacheHits++; }
+
+    private synchronized void countMiss() { cacheMisses++; }
+
+
+    /* Block iterator */
+    private class CachingBlockIterator extends AbstractBlockIterator {
+        private final int endHeight;
+        private final int parseMode;
+        private int nextHeight;
+
+        /* Wrapped iterator over the current run of missing heights */
+        private BlockIterator missIterator = null;
+        private int missRunEnd = -1;
+
+        private CachingBlockIterator(int startHeight, int endHeight, int parseMode) {
+            super();
+            this.endHeight = endHeight;
+            this.parseMode = parseMode;
+            this.nextHeight = startHeight;
+        }
+
+
+        /* True if the current wrapped iterator covers nextHeight */
+        private boolean isInMissRun() {
+            return missIterator != null && nextHeight <= missRunEnd;
+        }
+
+
+        /* Opens a wrapped iterator for the missing heights starting at nextHeight, closing the
+         * previous one. The raw block is needed for the cache, so copy mode is fetched as
+         * flyweight. */
+        private BlockIterator getMissIterator() {
+            if(!isInMissRun()) {
+                closeMissIterator();
+                missRunEnd = getMissingRunEnd(nextHeight, endHeight);
+                int fetchParseMode = (parseMode == Block.PARSE_MODE_COPY) ?
+                        Block.PARSE_MODE_FLYWEIGHT : parseMode;
+                missIterator = blockBuffer.iterator(nextHeight, missRunEnd, fetchParseMode);
+            }
+            return missIterator;
+        }
+
+
+        /* Stops the wrapped iterator's fetches */
+        private void closeMissIterator() {
+            if(missIterator instanceof AbstractBlockIterator) {
+                ((AbstractBlockIterator) missIterator).close();
+            }
+            missIterator = null;
+        }
+
+
+        @Override
+        protected synchronized void close() {
+            super.close();
+            closeMissIterator();
+        }
+
+
+        public Block next()
+                throws NoSuchElementException, BitcoinRpcException, BitcoinBlockException {
+            /* check end of range */
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                /* cache hit */
+                Block block = readCachedBlock(nextHeight, parseMode);
+                if(block != null) {
+                    countHit();
+                    return block;
+                }
+
+                /* cache miss */
+                countMiss();
+                block = getMissIterator().next();
+                writeCachedBlock(block);
+                if(parseMode == Block.PARSE_MODE_COPY) {
+                    ByteArrayOutputStream rawBlock =
+                            new ByteArrayOutputStream(block.getSerializedSize());
+                    block.serialize(rawBlock);
+                    block = Block.deserialize(block.getBlockhash(), block.getHeight(),
+                            rawBlock.toByteArray(), 0, parseMode);
+                }
+                return block;
+            } catch (IOException e) {
+                close();
+                BitcoinRpcException be = new BitcoinRpcException("Block cache failed.", e);
+                be.setHeight(nextHeight);
+                throw be;
+            } finally {
+                /* increment height */
+                nextHeight++;
+            }
+        }
+
+
+        /* Does not open a wrapped iterator */
+        public boolean hasNext() {
+            if(nextHeight > endHeight || isClosed()) {
+                return false;
+            }
+            if(isCached(nextHeight)) {
+                return true;
+            }
+            if(isInMissRun()) {
+                return missIterator.hasNext();
+            }
+            return nextHeight <= blockBuffer.getLastHeight();
+        }
+    }
+
+
+    @Override
+    public BlockIterator iterator(int startHeight) {
+        return iterator(startHeight, MAX_HEIGHT);
+    }
+
+    @Override
+    public BlockIterator iterator(int startHeight, int endHeight) {
+        return iterator(startHeight, endHeight, Block.PARSE_MODE_FLYWEIGHT);
+    }
+
+    @Override
+    public BlockIterator iterator(int startHeight, int endHeight, int parseMode) {
+        Block.validateParseMode(parseMode);
+        BlockBuffer.validateHeights(startHeight, endHeight);
+        return new CachingBlockIterator(startHeight, endHeight, parseMode);
+    }
+
+
+    /* Closes cache files and the wrapped block buffer */
+    @Override
+    public synchronized void close() {
+        super.close();
+        blockBuffer.close();
+        try {
+            for(FileChannel channel : segmentChannels) {
+                channel.force(true);
+                channel.close();
+            }
+            indexChannel.force(true);
+            indexChannel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for(int i=0; i<segmentMappings.size(); i++) {
+            segmentMappings.set(i, null);
+        }
+    }
+
+
+    public BlockBuffer getWrappedBlockBuffer() { return blockBuffer; }
+
+    /* Heights past the wrapped block buffer's last height are served only if cached */
+    public int getLastHeight() { return blockBuffer.getLastHeight(); }
+
+    public synchronized long getCacheHits() { return cacheHits; }
+
+    public synchronized long getCacheMisses() { return cacheMisses; }
+
+    public synchronized int getSegmentCount() { return segmentChannels.size(); }
+
+
+    @Override
+    public void printParameters(PrintStream printStream) {
+        printStream.println(">CachingBlockBuffer");
+        printStream.println("CachingBlockBuffer cache directory: " + cacheDir);
+        printStream.println("CachingBlockBuffer segments: " + getSegmentCount());
+        printStream.println("CachingBlockBuffer hits: " + getCacheHits());
+        printStream.println("CachingBlockBuffer misses: " + getCacheMisses());
+        blockBuffer.printParameters(printStream);
+    }
+}
@@ -2,9 +2,12 @@ package Blockchainj.Bitcoin.RPC;
 
 import Blockchainj.Bitcoin.BitcoinBlockException;
 import Blockchainj.Bitcoin.Block;
+import Blockchainj.Bitcoin.Transaction;
 import Blockchainj.Util.SHA256HASH;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.*;
 
@@ -14,7 +17,16 @@ import java.util.concurrent.*;
  *
  * Multithread block buffer. Uses one ThreadPoolExcecutor to manage the threads.
  *
- * Will create up to coreThreads+1. But the producer thread will mostly sleep.
+ * Will create up to maxThreads+1. But the producer thread will mostly sleep.
+ *
+ * Prefetch depth is adaptive. Blocks are prefetched as long as the estimated in-memory
+ * footprint of the buffered blocks stays within the byte budget and the buffered blocks are
+ * less than the buffer size. Early tiny blocks get a deep prefetch window and large recent
+ * blocks a shallow one.
+ *
+ * The worker count starts at coreThreads and is adjusted between 1 and maxThreads, from the
+ * measured fetch time per block against the consumer's time per block. Stalls of the consumer
+ * add a worker, otherwise a full byte budget stops adding workers.
  *
  * RPCconnection must be thread-safe and have a limit on concurrent HTTP connections
  * because this class does not have any way of adjusting that.
@@ -22,14 +34,40 @@ import java.util.concurrent.*;
  */
 
 public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
-    /* Core and max thread count. */
+    /* Core thread count. The initial worker count. */
     public static final int DEFAULT_CORE_THREADS = Runtime.getRuntime().availableProcessors();
     private final int CORE_THREADS;
 
+    /* Max thread count. The worker count never exceeds it. */
+    private static final int MAX_THREADS_FACTOR = 2;
+    private final int MAX_THREADS;
+
     /* Buffer size. The max number of blocks queued in the buffer. */
-    public static final int DEFAULT_BUFFER_SIZE = 16;
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
     private final int BUFFER_SIZE;
 
+    /* Byte budget. The max estimated in-memory footprint of the blocks queued in the buffer.
+     * At least one block is always queued. */
+    public static final long DEFAULT_BUFFER_BYTES = 256L*1024*1024; //256 MiB
+    private final long BUFFER_BYTES;
+
+    /* Batch size. The number of blockhashes and blocks a worker requests with one batch
+     * request. */
+    public static final int DEFAULT_BATCH_SIZE = 1;
+    private final int BATCH_SIZE;
+
+    /* Footprint estimation. Object overhead per transaction and per transaction input or
+     * output, on top of the serialized size. Initial estimate for blocks not fetched yet. */
+    private static final int TX_FOOTPRINT_OVERHEAD = 160;
+    private static final int TXIO_FOOTPRINT_OVERHEAD = 96;
+    private static final long INITIAL_BLOCK_FOOTPRINT = 64*1024; //64 KiB
+
+    /* Worker adjustment. Period in submitted blocks, weight of new samples in the moving
+     * averages and headroom over the calculated worker count. */
+    private static final int ADJUST_PERIOD = 32;
+    private static final double EWMA_WEIGHT = 0.1;
+    private static final double WORKER_HEADROOM = 1.25;
+
     /* Blocking queue timeout.
      * Since futures are immediately submitted there should be any major waiting timing
      * waiting for it. */
@@ -45,10 +83,14 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
     /* RPC connection */
     private final RPCconnection RPC_CON;
 
+    /* Latest iterator. Its buffer stats are exposed. */
+    private volatile ConcurrentBlockBufferBlockIterator latestIterator = null;
+
 
     /* Main constructor. */
     public ConcurrentBlockBuffer(int firstHeight, int lastHeight, RPCconnection rpcCon,
-                                 int bufferSize, int coreThreads)
+                                 int bufferSize, int coreThreads, int batchSize,
+                                 long bufferBytes)
             throws IllegalArgumentException {
         super();
 
@@ -65,11 +107,26 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
             this.BUFFER_SIZE = bufferSize;
         }
 
+        /* set byte budget */
+        if(bufferBytes <= 0) {
+            throw new IllegalArgumentException("Buffer bytes must be >0.");
+        } else {
+            this.BUFFER_BYTES = bufferBytes;
+        }
+
         /* set core threads */
         if(coreThreads < 1) {
             throw new IllegalArgumentException("Core threads must be >=1.");
         } else {
             this.CORE_THREADS = coreThreads;
+            this.MAX_THREADS = coreThreads * MAX_THREADS_FACTOR;
+        }
+
+        /* set batch size */
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be >=1.");
+        } else {
+            this.BATCH_SIZE = batchSize;
         }
 
         /* set rpc connection */
@@ -80,10 +137,43 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
     }
 
 
+    /* Constructor with default byte budget. */
+    public ConcurrentBlockBuffer(int firstHeight, int lastHeight, RPCconnection rpcCon,
+                                 int bufferSize, int coreThreads, int batchSize)
+            throws IllegalArgumentException {
+        this(firstHeight, lastHeight, rpcCon, bufferSize, coreThreads, batchSize,
+                DEFAULT_BUFFER_BYTES);
+    }
+
+
+    /* Constructor without batching. */
+    public ConcurrentBlockBuffer(int firstHeight, int lastHeight, RPCconnection rpcCon,
+                                 int bufferSize, int coreThreads)
+            throws IllegalArgumentException {
+        this(firstHeight, lastHeight, rpcCon, bufferSize, coreThreads, DEFAULT_BATCH_SIZE);
+    }
+
+
     /* Default constructor */
     public ConcurrentBlockBuffer(RPCconnection rpcCon)
             throws IllegalArgumentException {
-        this(MIN_HEIGHT, MAX_HEIGHT, rpcCon, DEFAULT_BUFFER_SIZE, DEFAULT_CORE_THREADS);
+        this(MIN_HEIGHT, MAX_HEIGHT, rpcCon, DEFAULT_BUFFER_SIZE, DEFAULT_CORE_THREADS,
+                DEFAULT_BATCH_SIZE);
+    }
+
+
+    /* Estimated in-memory footprint of a block. Serialized size plus object overhead of
+     * transactions, inputs and outputs. */
+    public static long estimateFootprint(Block block) {
+        long footprint = block.getSerializedSize();
+        int txioCount = 0;
+        for(int i=0; i<block.getTxnCount(); i++) {
+            Transaction tx = block.getTxByIndex(i);
+            txioCount += tx.getTxInCount() + tx.getTxOutCount();
+        }
+        footprint += (long)block.getTxnCount() * TX_FOOTPRINT_OVERHEAD;
+        footprint += (long)txioCount * TXIO_FOOTPRINT_OVERHEAD;
+        return footprint;
     }
 
 
@@ -91,25 +181,124 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
     private class ConcurrentBlockBufferBlockIterator extends AbstractBlockIterator {
         private final int startHeight;
         private final int endHeight;
+        private final int parseMode;
         private int nextHeight;
 
-        /* Actual block buffer */
+        /* Actual block buffer. Never holds more than bufferSize futures since
+         * the producer reserves them first. */
         private final ArrayBlockingQueue<Future<Block>> futureBlockQueue =
                 new ArrayBlockingQueue<>(BUFFER_SIZE);
 
+        /* Buffer accounting. Blocks submitted and not yet consumed, with their footprint.
+         * Footprint is estimated until the block is fetched. Guarded by budgetLock. */
+        private final Object budgetLock = new Object();
+        private int bufferedBlocks = 0;
+        private long bufferedBytes = 0;
+        private double blockFootprintAvg = INITIAL_BLOCK_FOOTPRINT;
+        private boolean budgetFull = false;
+
+        /* Moving averages in millis per block. Fetch time of one worker and consumer time
+         * between next() calls. Guarded by budgetLock. */
+        private double fetchMillisAvg = -1;
+        private double consumeMillisAvg = -1;
+
+        /* Stats */
+        private volatile int workerCount = CORE_THREADS;
+        private volatile long stallCount = 0;
+        private volatile long stallMillis = 0;
+        private volatile long lastStallMillis = 0;
+        private long lastNextEnd = -1;
+
         /* Producer thread */
         private final Producer producer = new Producer();
 
 
-        private ConcurrentBlockBufferBlockIterator(int startHeight, int endHeight) {
+        private ConcurrentBlockBufferBlockIterator(int startHeight, int endHeight, int parseMode) {
             super();
             this.startHeight = startHeight;
             this.endHeight = endHeight;
+            this.parseMode = parseMode;
             nextHeight = startHeight;
             producer.start();
         }
 
 
+        /* Reserves buffer space for count blocks. Waits while the buffer is full, unless
+         * it is empty. Returns the reserved footprint per block. */
+        private long reserve(int count) throws InterruptedException {
+            synchronized (budgetLock) {
+                for(;;) {
+                    long perBlock = (long)blockFootprintAvg;
+                    boolean fits = (bufferedBlocks + count <= BUFFER_SIZE) &&
+                            (bufferedBytes + count * perBlock <= BUFFER_BYTES);
+                    if(fits || bufferedBlocks == 0) {
+                        bufferedBlocks += count;
+                        bufferedBytes += count * perBlock;
+                        return perBlock;
+                    }
+                    budgetFull = true;
+                    budgetLock.wait();
+                }
+            }
+        }
+
+
+        /* Replaces the reserved footprint of a fetched block with its actual footprint.
+         * Failed blocks have zero footprint and negative fetch time. */
+        private void settle(long reserved, long footprint, long fetchMillisPerBlock) {
+            synchronized (budgetLock) {
+                bufferedBytes += footprint - reserved;
+                if(fetchMillisPerBlock >= 0) {
+                    blockFootprintAvg += EWMA_WEIGHT * (footprint - blockFootprintAvg);
+                    fetchMillisAvg = (fetchMillisAvg < 0) ? fetchMillisPerBlock :
+                            fetchMillisAvg + EWMA_WEIGHT * (fetchMillisPerBlock - fetchMillisAvg);
+                }
+                budgetLock.notifyAll();
+            }
+        }
+
+
+        /* Releases buffer space of a consumed block. */
+        private void release(long footprint, long consumeMillis) {
+            synchronized (budgetLock) {
+                bufferedBlocks--;
+                bufferedBytes -= footprint;
+                if(consumeMillis >= 0) {
+                    consumeMillisAvg = (consumeMillisAvg < 0) ? consumeMillis :
+                            consumeMillisAvg + EWMA_WEIGHT * (consumeMillis - consumeMillisAvg);
+                }
+                budgetLock.notifyAll();
+            }
+        }
+
+
+        /* Returns the worker count that keeps up with the consumer. */
+        private int calcWorkerCount(long stallsSinceLastAdjust) {
+            int current = workerCount;
+            int target;
+            boolean wasBudgetFull;
+            synchronized (budgetLock) {
+                wasBudgetFull = budgetFull;
+                budgetFull = false;
+                if(fetchMillisAvg < 0 || consumeMillisAvg < 0) {
+                    return current;
+                }
+                /* Workers needed so that fetch throughput matches consumer throughput */
+                double consumeMillis = Math.max(consumeMillisAvg, 0.01);
+                target = (int)Math.ceil(WORKER_HEADROOM * fetchMillisAvg / consumeMillis);
+            }
+
+            if(stallsSinceLastAdjust > 0) {
+                /* Consumer waited. Add a worker. */
+                target = Math.max(target, current + 1);
+            } else if(wasBudgetFull) {
+                /* Memory bound. More workers would only wait for the budget. */
+                target = Math.min(target, current);
+            }
+            return Math.max(1, Math.min(MAX_THREADS, target));
+        }
+
+
         /* Producer thread. */
         private class Producer extends Thread {
             private Exception e;
@@ -119,7 +308,7 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
                 try {
                     /* Unbounded blocking queue for thread pool excecutor.
                      * The producer (this thread), will never submit more than
-                     * bufferSize threads at a time. */
+                     * the buffer allows at a time. */
                     LinkedBlockingQueue<Runnable> blockingQueue = new LinkedBlockingQueue<>();
 
                     /* Init thread pool. As long as Unbounded queue is used,
@@ -127,20 +316,51 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
                     threadPoolExecutor = new ThreadPoolExecutor(CORE_THREADS, CORE_THREADS,
                             THREAD_TIMEOUT, TIMEOUT_UNIT, blockingQueue);
 
+                    int submittedSinceLastAdjust = 0;
+                    long stallsAtLastAdjust = 0;
+
                     /* Get all blocks */
-                    for(int h=startHeight; h<=endHeight; h++) {
+                    for(int h=startHeight; h<=endHeight; h+=BATCH_SIZE) {
                         if(isInterrupted()) {
                             throw new InterruptedException();
                         }
 
-                        /* Prepare thread */
-                        Worker worker = new Worker(h);
+                        int count = Math.min(BATCH_SIZE, endHeight - h + 1);
+
+                        /* Wait for buffer space */
+                        long reserved = reserve(count);
+
+                        if(count == 1) {
+                            /* Prepare thread */
+                            Worker worker = new Worker(h, reserved);
 
-                        /* Submit new task */
-                        Future<Block> future = threadPoolExecutor.submit(worker);
+                            /* Submit new task */
+                            Future<Block> future = threadPoolExecutor.submit(worker);
 
-                        /* Put future in queue. This will block is queue is full. */
-                        futureBlockQueue.put(future);
+                            /* Put future in queue. Space was reserved. */
+                            futureBlockQueue.put(future);
+                        } else {
+                            /* Prepare thread with one future per height */
+                            BatchWorker batchWorker = new BatchWorker(h, count, reserved);
+
+                            /* Submit new task */
+                            threadPoolExecutor.submit(batchWorker);
+
+                            /* Put futures in queue in height order. Space was reserved. */
+                            for(int i=0; i<count; i++) {
+                                futureBlockQueue.put(batchWorker.futures.get(i));
+                            }
+                        }
+
+                        /* Adjust worker count */
+                        submittedSinceLastAdjust += count;
+                        if(submittedSinceLastAdjust >= ADJUST_PERIOD) {
+                            long stalls = stallCount;
+                            int target = calcWorkerCount(stalls - stallsAtLastAdjust);
+                            setPoolSize(threadPoolExecutor, target);
+                            submittedSinceLastAdjust = 0;
+                            stallsAtLastAdjust = stalls;
+                        }
                     }
                 } catch (Exception e) {
                     this.e = e;
@@ -153,6 +373,18 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
                     }
                 }
             }
+
+            /* Core size must not exceed max size at any point. */
+            private void setPoolSize(ThreadPoolExecutor threadPoolExecutor, int size) {
+                if(size > threadPoolExecutor.getMaximumPoolSize()) {
+                    threadPoolExecutor.setMaximumPoolSize(size);
+                    threadPoolExecutor.setCorePoolSize(size);
+                } else if(size < threadPoolExecutor.getCorePoolSize()) {
+                    threadPoolExecutor.setCorePoolSize(size);
+                    threadPoolExecutor.setMaximumPoolSize(size);
+                }
+                workerCount = size;
+            }
         }
 
 
@@ -160,12 +392,18 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
          * Creates a new Block from the request response. */
         private class Worker implements Callable<Block> {
             private final int height;
+            private final long reserved;
 
-            public Worker(int height) { this.height = height; }
+            public Worker(int height, long reserved) {
+                this.height = height;
+                this.reserved = reserved;
+            }
 
             @Override
             public Block call() throws BitcoinRpcException, BitcoinBlockException {
                 SHA256HASH blockhash = null;
+                long start = System.currentTimeMillis();
+                long footprint = 0;
                 try {
                     /* get blockhash for height */
                     blockhash = SHA256HASH.getReverseHash(RPC_CON.getBlockhashByHeight(height));
@@ -174,7 +412,9 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
                     byte[] rawBlock = RPC_CON.getRawBlockByBlockhash(blockhash.toString());
 
                     /* get block from raw block */
-                    return Block.deserialize(blockhash, height, rawBlock, 0);
+                    Block block = Block.deserialize(blockhash, height, rawBlock, 0, parseMode);
+                    footprint = estimateFootprint(block);
+                    return block;
 
                 } catch (BitcoinRpcException e) {
                     if (blockhash != null) {
@@ -182,6 +422,84 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
                     }
                     e.setHeight(height);
                     throw e;
+                } finally {
+                    /* failed blocks hold no memory */
+                    settle(reserved, footprint,
+                            (footprint > 0) ? (System.currentTimeMillis() - start) : -1);
+                }
+            }
+        }
+
+
+        /* Requests the blockhashes for a range of heights with one batch request. Requests the
+         * blocks for these blockhashes with one batch request. Completes one future per height.
+         *
+         * The whole batch fails if any height is above the node's best height, so then the
+         * blockhashes are requested one by one. Heights up to the first failure are served, the
+         * rest fail with that height's error, as with single block workers. */
+        private class BatchWorker implements Runnable {
+            private final int firstHeight;
+            private final long reserved;
+            private final List<CompletableFuture<Block>> futures;
+
+            public BatchWorker(int firstHeight, int count, long reserved) {
+                this.firstHeight = firstHeight;
+                this.reserved = reserved;
+                this.futures = new ArrayList<>(count);
+                for(int i=0; i<count; i++) {
+                    futures.add(new CompletableFuture<>());
+                }
+            }
+
+            @Override
+            public void run() {
+                int i = 0;
+                long start = System.currentTimeMillis();
+                try {
+                    /* get blockhashes for heights, up to the first failing height */
+                    byte[][] blockhashBytes =
+                            RPC_CON.getAvailableBlockhashesByHeights(firstHeight, futures.size());
+
+                    int count = blockhashBytes.length;
+                    SHA256HASH[] blockhashes = new SHA256HASH[count];
+                    String[] blockhashStrings = new String[count];
+                    for(int j=0; j<count; j++) {
+                        blockhashes[j] = SHA256HASH.getReverseHash(blockhashBytes[j]);
+                        blockhashStrings[j] = blockhashes[j].toString();
+                    }
+
+                    /* get raw blocks for blockhashes */
+                    byte[][] rawBlocks = RPC_CON.getRawBlocksByBlockhashes(blockhashStrings);
+
+                    /* get blocks from raw blocks */
+                    long fetchMillisPerBlock =
+                            (System.currentTimeMillis() - start) / Math.max(count, 1);
+                    for(; i<count; i++) {
+                        Block block = Block.deserialize(
+                                blockhashes[i], firstHeight + i, rawBlocks[i], 0, parseMode);
+                        rawBlocks[i] = null;
+                        settle(reserved, estimateFootprint(block), fetchMillisPerBlock);
+                        futures.get(i).complete(block);
+                    }
+
+                    /* Heights from the first failing one */
+                    if(count < futures.size()) {
+                        throw new BitcoinRpcException("No blockhash for height " +
+                                (firstHeight + count) + ".");
+                    }
+                } catch (BitcoinRpcException e) {
+                    e.setHeight(firstHeight + i);
+                    completeExceptionally(i, e);
+                } catch (Exception e) {
+                    completeExceptionally(i, e);
+                }
+            }
+
+            /* Fails all futures starting at index. Failed blocks hold no memory. */
+            private void completeExceptionally(int index, Exception e) {
+                for(int j=index; j<futures.size(); j++) {
+                    settle(reserved, 0, -1);
+                    futures.get(j).completeExceptionally(e);
                 }
             }
         }
@@ -201,12 +519,20 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
                 throw new NoSuchElementException();
             }
 
+            /* Consumer time since last call */
+            long nextStart = System.currentTimeMillis();
+            long consumeMillis = (lastNextEnd < 0) ? -1 : (nextStart - lastNextEnd);
+            boolean stalled = false;
+            long footprint = 0;
+
             try {
                 /* Poll without waiting if queue has something to offer */
                 Future<Block> future = futureBlockQueue.poll();
 
                 /* If queue was empty check if producer thread is still alive */
                 if(future == null) {
+                    stalled = true;
+
                     /* If thread is alive poll with timeout */
                     if(producer.isAlive()) {
                         future = futureBlockQueue.poll(BLOCKING_QUEUE_TIMEOUT, TIMEOUT_UNIT);
@@ -224,6 +550,8 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
                             throw new TimeoutException();
                         }
                     }
+                } else if(!future.isDone()) {
+                    stalled = true;
                 }
 
                 /* Wait for future to join and get the return value. */
@@ -233,6 +561,7 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
                 } catch (ExecutionException e) {
                     throw (Exception) e.getCause();
                 }
+                footprint = estimateFootprint(block);
 
                 /* Verify height continuity */
                 if(nextHeight != block.getHeight()) {
@@ -247,6 +576,17 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
                 close();
                 throw new NoSuchElementException(e.toString());
             } finally {
+                /* Update stats and release buffer space */
+                lastNextEnd = System.currentTimeMillis();
+                if(stalled) {
+                    lastStallMillis = lastNextEnd - nextStart;
+                    stallMillis += lastStallMillis;
+                    stallCount++;
+                } else {
+                    lastStallMillis = 0;
+                }
+                release(footprint, consumeMillis);
+
                 /* Increament next height */
                 nextHeight++;
             }
@@ -265,11 +605,19 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
             throw new IllegalArgumentException("Start height out of range.");
         }
 
-        return new ConcurrentBlockBufferBlockIterator(startHeight, lastHeight);
+        latestIterator = new ConcurrentBlockBufferBlockIterator(
+                startHeight, lastHeight, Block.PARSE_MODE_FLYWEIGHT);
+        return latestIterator;
     }
 
     @Override
     public BlockIterator iterator(int startHeight, int endHeight) {
+        return iterator(startHeight, endHeight, Block.PARSE_MODE_FLYWEIGHT);
+    }
+
+    @Override
+    public BlockIterator iterator(int startHeight, int endHeight, int parseMode) {
+        Block.validateParseMode(parseMode);
         if( startHeight < firstHeight ) {
             throw new IllegalArgumentException("Start height out of range.");
         }
@@ -278,7 +626,8 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
         }
         endHeight = (endHeight>lastHeight)?(lastHeight):endHeight;
 
-        return new ConcurrentBlockBufferBlockIterator(startHeight, endHeight);
+        latestIterator = new ConcurrentBlockBufferBlockIterator(startHeight, endHeight, parseMode);
+        return latestIterator;
     }
 
 
@@ -294,13 +643,59 @@ public class ConcurrentBlockBuffer extends AbstractBlockBuffer {
     public int getLastHeight() { return lastHeight; }
 
 
+    /* Buffer stats of the latest iterator. Zero if no iterator was created. */
+    public int getQueuedBlocks() {
+        ConcurrentBlockBufferBlockIterator it = latestIterator;
+        if(it == null) {
+            return 0;
+        }
+        synchronized (it.budgetLock) {
+            return it.bufferedBlocks;
+        }
+    }
+
+    public long getQueuedBytes() {
+        ConcurrentBlockBufferBlockIterator it = latestIterator;
+        if(it == null) {
+            return 0;
+        }
+        synchronized (it.budgetLock) {
+            return it.bufferedBytes;
+        }
+    }
+
+    public int getWorkerCount() {
+        ConcurrentBlockBufferBlockIterator it = latestIterator;
+        return (it == null) ? 0 : it.workerCount;
+    }
+
+    public long getStallCount() {
+        ConcurrentBlockBufferBlockIterator it = latestIterator;
+        return (it == null) ? 0 : it.stallCount;
+    }
+
+    public long getStallMillis() {
+        ConcurrentBlockBufferBlockIterator it = latestIterator;
+        return (it == null) ? 0 : it.stallMillis;
+    }
+
+    /* Time the last next() call waited for its block */
+    public long getLastStallMillis() {
+        ConcurrentBlockBufferBlockIterator it = latestIterator;
+        return (it == null) ? 0 : it.lastStallMillis;
+    }
+
+
     @Override
     public void printParameters(PrintStream printStream) {
         printStream.println(">ConcurrentBlockBuffer");
         printStream.println("ConcurrentBlockBuffer first height: " + getFirstHeight());
         printStream.println("ConcurrentBlockBuffer last height: " + getLastHeight());
         printStream.println("ConcurrentBlockBuffer thread number: " + CORE_THREADS);
+        printStream.println("ConcurrentBlockBuffer max thread number: " + MAX_THREADS);
         printStream.println("ConcurrentBlockBuffer buffer size: " + BUFFER_SIZE);
+        printStream.println("ConcurrentBlockBuffer buffer bytes: " + BUFFER_BYTES);
+        printStream.println("ConcurrentBlockBuffer batch size: " + BATCH_SIZE);
         RPC_CON.printParameters(printStream);
     }
 
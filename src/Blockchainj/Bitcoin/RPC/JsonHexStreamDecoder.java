@@ -0,0 +1,217 @@
+package Blockchainj.Bitcoin.RPC;
+
+import org.apache.commons.codec.DecoderException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * JsonHexStreamDecoder
+ *
+ * Scans a JSON-RPC response stream (single or batch) for "result" fields and hex-decodes
+ * their string values straight into byte arrays, without building the response as a String.
+ *
+ * Only the "result" and "id" keys are recognized. Escaped quotes inside string values can not produce a
+ * false match because they are always preceded by a backslash.
+ *
+ * Not thread-safe. One decoder per response stream.
+ *
+ */
+
+public class JsonHexStreamDecoder {
+    /* Keys to look for */
+    private static final byte[] RESULT_KEY = "\"result\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ID_KEY = "\"id\"".getBytes(StandardCharsets.US_ASCII);
+
+    /* Read buffer */
+    private static final int BUFFER_SIZE = 64*1024; //64 KiB
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+
+    /* Initial output size when no size hint is given. Doubled as needed. */
+    private static final int DEFAULT_SIZE_HINT = 16*1024; //16 KiB
+
+    /* Hex digit lookup table. -1 for non hex characters. */
+    private static final byte[] HEX_DIGITS = new byte[128];
+    static {
+        Arrays.fill(HEX_DIGITS, (byte)-1);
+        for(int i=0; i<10; i++) {
+            HEX_DIGITS['0' + i] = (byte)i;
+        }
+        for(int i=0; i<6; i++) {
+            HEX_DIGITS['a' + i] = (byte)(10 + i);
+            HEX_DIGITS['A' + i] = (byte)(10 + i);
+        }
+    }
+
+    /* Response stream */
+    private final InputStream inputStream;
+    private long bytesRead = 0;
+
+
+    public JsonHexStreamDecoder(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+
+    /* Reads next byte. Returns -1 at end of stream. */
+    private int read() throws IOException {
+        if(pos == limit) {
+            limit = inputStream.read(buffer, 0, buffer.length);
+            pos = 0;
+            if(limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+            bytesRead += limit;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+
+    /* Reads next byte. Throws EOFException at end of stream. */
+    private int readNonEOF() throws IOException {
+        int c = read();
+        if(c == -1) {
+            throw new EOFException("Unexpected end of JSON response.");
+        }
+        return c;
+    }
+
+
+    /* Reads next non whitespace byte. */
+    private int readNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = readNonEOF();
+        } while (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+        return c;
+    }
+
+
+    /* Returns the number of bytes consumed from the stream so far. */
+    public long getConsumedBytes() { return bytesRead - (limit - pos); }
+
+
+    /* Scans the stream up to and including the next "result" key.
+     * Returns false if end of stream was reached. */
+    public boolean skipToResult() throws IOException {
+        return skipToKey(RESULT_KEY);
+    }
+
+
+    /* Scans the stream up to and including the next "id" key.
+     * Returns false if end of stream was reached. */
+    public boolean skipToId() throws IOException {
+        return skipToKey(ID_KEY);
+    }
+
+
+    /* Scans the stream up to and including the given quoted key. */
+    private boolean skipToKey(byte[] key) throws IOException {
+        int matched = 0;
+        int c;
+        while( (c = read()) != -1 ) {
+            if(c == key[matched]) {
+                matched++;
+                if(matched == key.length) {
+                    return true;
+                }
+            } else {
+                /* The only self-overlap of a quoted key is its leading quote */
+                matched = (c == key[0]) ? 1 : 0;
+            }
+        }
+        return false;
+    }
+
+
+    /* Reads the value following a key as a non-negative integer. The value may be quoted. */
+    public long readIntegerValue() throws IOException, DecoderException {
+        /* key-value separator */
+        if(readNonWhitespace() != ':') {
+            throw new DecoderException("Expected ':' after key.");
+        }
+
+        /* optional quote */
+        int c = readNonWhitespace();
+        boolean quoted = (c == '"');
+        if(quoted) {
+            c = readNonEOF();
+        }
+
+        /* digits */
+        if(c < '0' || c > '9') {
+            throw new DecoderException("Expected integer value.");
+        }
+        long value = 0;
+        while(c >= '0' && c <= '9') {
+            value = value*10 + (c - '0');
+            c = readNonEOF();
+        }
+
+        if(quoted && c != '"') {
+            throw new DecoderException("Expected closing quote of integer value.");
+        }
+        return value;
+    }
+
+
+    /* Reads the value following a "result" key and hex-decodes it.
+     * sizeHint is the expected number of decoded bytes, or <=0 if unknown. If the hint is
+     * exact, the returned array is the one allocated up front. Otherwise the output grows
+     * geometrically from the hint, or from DEFAULT_SIZE_HINT, and is trimmed.
+     * Returns null if value is JSON null. */
+    public byte[] readHexValue(int sizeHint) throws IOException, DecoderException {
+        /* key-value separator */
+        if(readNonWhitespace() != ':') {
+            throw new DecoderException("Expected ':' after result key.");
+        }
+
+        /* value */
+        int c = readNonWhitespace();
+        if(c == 'n') {
+            if(readNonEOF() == 'u' && readNonEOF() == 'l' && readNonEOF() == 'l') {
+                return null;
+            }
+            throw new DecoderException("Invalid JSON value for result key.");
+        }
+        if(c != '"') {
+            throw new DecoderException("Expected hex string value for result key.");
+        }
+
+        /* decode hex pairs until closing quote */
+        byte[] out = new byte[(sizeHint > 0) ? sizeHint : DEFAULT_SIZE_HINT];
+        int n = 0;
+        for(;;) {
+            int hi = readNonEOF();
+            if(hi == '"') {
+                break;
+            }
+            int lo = readNonEOF();
+            int digitHi = (hi < 128) ? HEX_DIGITS[hi] : -1;
+            int digitLo = (lo < 128) ? HEX_DIGITS[lo] : -1;
+            if(digitHi < 0 || digitLo < 0) {
+                throw new DecoderException("Illegal hexadecimal character at byte " +
+                        (getConsumedBytes()-2) + ".");
+            }
+
+            if(n == out.length) {
+                out = Arrays.copyOf(out, out.length*2);
+            }
+            out[n++] = (byte)((digitHi << 4) | digitLo);
+        }
+
+        /* trim if the hint was too large */
+        if(n == out.length) {
+            return out;
+        } else {
+            return Arrays.copyOf(out, n);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package Blockchainj.Bitcoin.RPC;
+
+
+import Blockchainj.Util.SHA256HASH;
+import Blockchainj.Util.Utils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+
+
+/**
+ * Performs binary REST requests over a HTTP connection with the bitcoind server.
+ *
+ * Blocks and blockhashes are fetched from the REST interface (bitcoind -rest) as raw binary,
+ * with no hex encoding or JSON wrapping:
+ *   /rest/block/<hash>.bin
+ *   /rest/blockhashbyheight/<height>.bin
+ *
+ * The REST interface is served on the RPC port. Queries that have no REST binary equivalent
+ * fall back to JSON-RPC.
+ *
+ * Can be used wherever an RPCconnection is expected. Return values have the same byte order.
+ *
+ * Thread-safe.
+ *
+ */
+
+
+public class RESTconnection extends RPCconnection {
+    /* REST paths */
+    private static final String REST_BLOCK_PATH = "/rest/block/";
+    private static final String REST_BLOCKHASH_BY_HEIGHT_PATH = "/rest/blockhashbyheight/";
+    private static final String REST_BINARY_SUFFIX = ".bin";
+
+
+    /* Main constructor. If maxConcurrentRequests is <0 then requests are not limited. */
+    public RESTconnection(String rpcip, String rpcport, String rpcuser, String rpcpassword,
+                          int maxConcurrentRequests) {
+        super(rpcip, rpcport, rpcuser, rpcpassword, maxConcurrentRequests);
+    }
+
+
+    /* Constructor with default max concurrent requests. */
+    public RESTconnection(String rpcip, String rpcport, String rpcuser, String rpcpassword) {
+        super(rpcip, rpcport, rpcuser, rpcpassword);
+    }
+
+
+    /* Defualt RPC info constructor. */
+    public RESTconnection() {
+        super();
+    }
+
+
+    /* Performs a REST GET request and returns the binary response if response code was 200. */
+    protected byte[] doRestQuery(String path) throws BitcoinRpcException {
+        HttpRequest request = HttpRequest.newBuilder(getRpcURI().resolve(path))
+                .timeout(Duration.ofMillis(timeoutMillis))
+                .header("Accept", "application/octet-stream")
+                .GET()
+                .build();
+
+        /* Read binary response. Pre-size from Content-Length if present. */
+        RPCresponse response = doRequest(request);
+        try (InputStream inputStream = response.inputStream) {
+            if(response.contentLength >= 0 && response.contentLength <= Integer.MAX_VALUE) {
+                byte[] data = new byte[(int)response.contentLength];
+                IOUtils.readFully(inputStream, data);
+                return data;
+            } else {
+                return IOUtils.toByteArray(inputStream);
+            }
+        } catch (IOException e) {
+            throw new BitcoinRpcException("HttpClient exception.", e);
+        }
+    }
+
+
+    /* Query method. Returns the blockhash with the same byte order as RPCconnection. */
+    @Override
+    public byte[] getBlockhashByHeight(int height) throws BitcoinRpcException {
+        byte[] blockhash = doRestQuery(
+                REST_BLOCKHASH_BY_HEIGHT_PATH + Integer.toString(height) + REST_BINARY_SUFFIX);
+
+        if(blockhash.length != SHA256HASH.HASH_SIZE) {
+            throw new BitcoinRpcException("Invalid blockhash length in REST response.");
+        }
+
+        /* REST returns serialization byte order */
+        return Utils.reverseBytes(blockhash);
+    }
+
+
+    /* Query method */
+    @Override
+    public byte[] getRawBlockByBlockhash(String blockhash) throws BitcoinRpcException {
+        return doRestQuery(REST_BLOCK_PATH + blockhash + REST_BINARY_SUFFIX);
+    }
+
+
+    /* Batch query method. REST has no batch requests; blockhashes are fetched one by one. */
+    @Override
+    public byte[][] getBlockhashesByHeights(int firstHeight, int count)
+            throws BitcoinRpcException {
+        byte[][] blockhashes = new byte[count][];
+        for(int i=0; i<count; i++) {
+            blockhashes[i] = getBlockhashByHeight(firstHeight + i);
+        }
+        return blockhashes;
+    }
+
+
+    /* Batch query method. REST has no batch requests; blocks are fetched one by one. */
+    @Override
+    public byte[][] getRawBlocksByBlockhashes(String[] blockhashes) throws BitcoinRpcException {
+        byte[][] rawBlocks = new byte[blockhashes.length][];
+        for(int i=0; i<blockhashes.length; i++) {
+            rawBlocks[i] = getRawBlockByBlockhash(blockhashes[i]);
+        }
+        return rawBlocks;
+    }
+
+
+    @Override
+    public void printParameters(PrintStream printStream) {
+        super.printParameters(printStream);
+        printStream.println("RPC Connection uses REST for blocks and blockhashes: true");
+    }
+
+
+//    public static void main(String[] args){
+//        RESTconnection o = new RESTconnection();
+//
+//        try {
+//            System.out.println(o.getBlockhashByHeightString(0));
+//            System.out.println(o.getRawBlockByBlockhashString(RPCconnection.genesisHash));
+//        } catch (BitcoinRpcException e) {
+//            throw new RuntimeException(e);
+//        }
+//    }
+}
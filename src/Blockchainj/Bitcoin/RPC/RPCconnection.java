@@ -2,13 +2,21 @@ package Blockchainj.Bitcoin.RPC;
 
 
 import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Util.SHA256HASH;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
 import java.io.*;
 import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -16,6 +24,14 @@ import java.util.regex.Pattern;
 /**
  * Perfoms RPC-JSON requests over a HTTP connection with the bitcoind server.
  *
+ * Requests go through one java.net.http.HttpClient using HTTP/1.1 keep-alive, so connections
+ * are pooled and reused between requests. The client never pipelines, so each connection
+ * carries one request at a time. The number of concurrent requests, and therefore of open
+ * connections, is capped by a fair semaphore. A permit is held until the response body has
+ * been read and closed.
+ *
+ * Pool wait time (time spent waiting for a permit) is measured.
+ *
  * Thread-safe.
  *
  */
@@ -25,14 +41,23 @@ public class RPCconnection {
     /* JSON-RPC variables */
     private final String rpcAuth;
     private final String rpcAddr;
-    private final URL rpcURL;
+    private final URI rpcURI;
     protected final long timeoutMillis = 10000; //10 seconds
 
+    /* HTTP client. Keeps a pool of keep-alive connections. */
+    private final HttpClient httpClient;
+
     /* JSON parsing variables */
     private final static Pattern SHA256ResultPat =
             Pattern.compile("(\\\"result\\\"\\s*:\\s*\\\")([0-9a-fA-F]{64})");
-    private final static Pattern rawBlockResultPat =
-            Pattern.compile("(\\\"result\\\"\\s*:\\s*\\\")([0-9a-fA-F]+)(\\\")");
+    /* Bytes of a getblock response after the "result" key that are not hex digits:
+     * <:"> before the value and <","error":null,"id":"1"}\n> after it. Used only as a hint. */
+    private final static int RAW_BLOCK_RESPONSE_OVERHEAD =
+            ":\"".length() + "\",\"error\":null,\"id\":\"1\"}\n".length();
+    /* JSON-RPC error reply, bitcoind sends it with a non 200 response code */
+    private final static Pattern errorReplyPat =
+            Pattern.compile("\\\"error\\\"\\s*:\\s*\\{");
+
     private final static Pattern heightResultPat =
             Pattern.compile("(\\\"result\\\"\\s*:\\s*)([0-9]+)([^0-9]*,)");
 
@@ -46,22 +71,28 @@ public class RPCconnection {
     public static final String genesisHash = BitcoinParams.GENESIS_BLOCKHASH.toString();
     public static final String secondHash = BitcoinParams.SECOND_BLOCKHASH.toString();
 
-    /* Semaphore for limiting concurrent requests */
+    /* Semaphore for limiting concurrent requests. Null if unlimited (<0). */
     private final Semaphore semaphore;
     private final int maxConcurrentRequests;
     public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 1;
 
+    /* Pool wait metrics */
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong poolWaitNanosTotal = new AtomicLong(0);
+    private final AtomicLong poolWaitNanosMax = new AtomicLong(0);
 
 
-    /* Main constructor. */
-    public RPCconnection(String rpcip, String rpcport, String rpcuser, String rpcpassword) {
+
+    /* Main constructor. If maxConcurrentRequests is <0 then requests are not limited. */
+    public RPCconnection(String rpcip, String rpcport, String rpcuser, String rpcpassword,
+                         int maxConcurrentRequests) {
         /* Init rpc address -- http://127.0.0.1:8332 */
         rpcAddr = "http://" + rpcip + ":" + rpcport;
 
-        /* create URL */
+        /* create URI */
         try {
-            rpcURL = new URL(rpcAddr);
-        } catch (MalformedURLException e) {
+            rpcURI = new URI(rpcAddr);
+        } catch (URISyntaxException e) {
             throw new RuntimeException(e);
         }
 
@@ -70,14 +101,28 @@ public class RPCconnection {
         rpcAuth = Base64.getEncoder().encodeToString(tempAuth.getBytes());
 
         /* set semaphore */
-        if(DEFAULT_MAX_CONCURRENT_REQUESTS < 0) {
+        if(maxConcurrentRequests == 0) {
+            throw new IllegalArgumentException("Max concurrent requests must be !=0.");
+        } else if(maxConcurrentRequests < 0) {
             semaphore = null;
             this.maxConcurrentRequests = -1;
         } else {
             /* fair (FIFO) semaphore */
-            semaphore = new Semaphore(DEFAULT_MAX_CONCURRENT_REQUESTS, true);
-            this.maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+            semaphore = new Semaphore(maxConcurrentRequests, true);
+            this.maxConcurrentRequests = maxConcurrentRequests;
         }
+
+        /* create HTTP/1.1 client */
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(timeoutMillis))
+                .build();
+    }
+
+
+    /* Constructor with default max concurrent requests. */
+    public RPCconnection(String rpcip, String rpcport, String rpcuser, String rpcpassword) {
+        this(rpcip, rpcport, rpcuser, rpcpassword, DEFAULT_MAX_CONCURRENT_REQUESTS);
     }
 
 
@@ -87,56 +132,130 @@ public class RPCconnection {
     }
 
 
-    /* Performs a JSON-RPC request and returns respond if response code was 200. */
-    protected BufferedReader doQuery(String params) throws BitcoinRpcException {
-        HttpURLConnection rpcCon;
+    /* HTTP response body. Closing the stream releases the request's permit. */
+    protected static class RPCresponse {
+        public final InputStream inputStream;
+        /* -1 if unknown */
+        public final long contentLength;
 
-        try {
-            /* Get permit from semaphore */
-            if(semaphore != null) {
-                semaphore.acquire();
+        private RPCresponse(InputStream inputStream, long contentLength) {
+            this.inputStream = inputStream;
+            this.contentLength = contentLength;
+        }
+    }
+
+
+    /* Input stream that releases a permit exactly once when closed. */
+    private class PermitInputStream extends FilterInputStream {
+        private boolean released = false;
+
+        private PermitInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                synchronized (this) {
+                    if(!released) {
+                        released = true;
+                        releasePermit();
+                    }
+                }
             }
+        }
+    }
 
-            /* Create connection. Supposed to be thread-safe. */
-            rpcCon = (HttpURLConnection) rpcURL.openConnection();
 
-            /* set header */
-            rpcCon.setRequestMethod("POST");
-            rpcCon.setRequestProperty("Content-Type", "application/json");
-            rpcCon.setRequestProperty("Accept", "application/json");
-            rpcCon.setRequestProperty("Authorization", "Basic " + rpcAuth);
+    /* Waits for a permit and records the wait time */
+    private void acquirePermit() throws InterruptedException {
+        long start = System.nanoTime();
+        if(semaphore != null) {
+            semaphore.acquire();
+        }
+        long waitNanos = System.nanoTime() - start;
 
-            /* Set timeouts */
-            rpcCon.setConnectTimeout((int)timeoutMillis);
-            rpcCon.setReadTimeout((int)timeoutMillis);
+        requestCount.incrementAndGet();
+        poolWaitNanosTotal.addAndGet(waitNanos);
+        poolWaitNanosMax.accumulateAndGet(waitNanos, Math::max);
+    }
 
-            /* send post request */
-            rpcCon.setDoOutput(true);
-            DataOutputStream wr = new DataOutputStream(rpcCon.getOutputStream());
-            wr.writeBytes(params);
-            wr.flush();
-            wr.close();
+
+    private void releasePermit() {
+        if(semaphore != null) {
+            semaphore.release();
+        }
+    }
+
+
+    /* Sends request and returns response body if response code was 200.
+     * The caller reads and closes the response stream. */
+    protected RPCresponse doRequest(HttpRequest request) throws BitcoinRpcException {
+        boolean permitHandedOver = false;
+        try {
+            /* Get permit from semaphore */
+            acquirePermit();
+
+            /* send request */
+            HttpResponse<InputStream> response =
+                    httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
 
             /* get response code */
-            int responseCode = rpcCon.getResponseCode();
-            if (responseCode == 200) {
-                return new BufferedReader(new InputStreamReader(rpcCon.getInputStream()));
-                //return IOUtils.toByteArray(rpcCon.getInputStream());
-            }
-            else {
-                throw new BitcoinRpcException("Response code not 200.", responseCode);
+            int responseCode = response.statusCode();
+            if (responseCode != 200) {
+                /* read and close body so the connection can be reused */
+                String body;
+                try (InputStream bodyStream = response.body()) {
+                    body = new String(bodyStream.readAllBytes());
+                }
+                BitcoinRpcException e =
+                        new BitcoinRpcException("Response code not 200.", responseCode);
+                e.setRpcError(errorReplyPat.matcher(body).find());
+                throw e;
             }
+
+            /* hand permit over to response stream */
+            long contentLength =
+                    response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            RPCresponse rpcResponse =
+                    new RPCresponse(new PermitInputStream(response.body()), contentLength);
+            permitHandedOver = true;
+            return rpcResponse;
         } catch (IOException | InterruptedException e) {
-            throw new BitcoinRpcException("HttpURLConnction exception.", e);
+            throw new BitcoinRpcException("HttpClient exception.", e);
         } finally {
-            /* Release permit */
-            if(semaphore != null) {
-                semaphore.release();
+            /* Release permit if not handed over */
+            if(!permitHandedOver) {
+                releasePermit();
             }
         }
     }
 
 
+    /* Performs a JSON-RPC request and returns respond if response code was 200.
+     * The caller closes the reader. */
+    protected BufferedReader doQuery(String params) throws BitcoinRpcException {
+        return new BufferedReader(new InputStreamReader(doQueryStream(params).inputStream));
+    }
+
+
+    /* Performs a JSON-RPC request and returns the response if response code was 200.
+     * The caller reads and closes the response stream. */
+    protected RPCresponse doQueryStream(String params) throws BitcoinRpcException {
+        HttpRequest request = HttpRequest.newBuilder(rpcURI)
+                .timeout(Duration.ofMillis(timeoutMillis))
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                .header("Authorization", "Basic " + rpcAuth)
+                .POST(HttpRequest.BodyPublishers.ofString(params))
+                .build();
+
+        return doRequest(request);
+    }
+
+
     /* Query method */
     public String getBlockhashByHeightString(int height) throws BitcoinRpcException {
         return Hex.encodeHexString(getBlockhashByHeight(height));
@@ -149,11 +268,9 @@ public class RPCconnection {
                         Integer.toString(height) + "]}";
 
         /* Do request and get response. Will throw BitcoinRpcException if it fails. */
-        BufferedReader resp = doQuery(jsonParams);
-
         /* Read the one line JSON response. */
         String jsonResp;
-        try {
+        try (BufferedReader resp = doQuery(jsonParams)) {
             jsonResp = resp.readLine();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -187,29 +304,82 @@ public class RPCconnection {
                         blockhash + "\", 0]}";
 
         /* Do request and get response. Will throw BitcoinRpcException if it fails. */
-        BufferedReader resp = doQuery(jsonParams);
+        RPCresponse response = doQueryStream(jsonParams);
 
-        /* Read the one line JSON response. */
-        String jsonResp;
-        try {
-            jsonResp = resp.readLine();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        /* Stream the JSON response and hex-decode the raw block */
+        return getRawBlockFromJsonResponse(response);
+    }
+
+
+    /* Batch query method. Returns the blockhashes for heights
+     * [firstHeight, firstHeight+count) with one JSON-RPC batch request. Same byte order as
+     * getBlockhashByHeight. */
+    public byte[][] getBlockhashesByHeights(int firstHeight, int count)
+            throws BitcoinRpcException {
+        /* Prepare JSON batch request parameters. Request ids are batch indices. */
+        StringBuilder jsonParams = new StringBuilder("[");
+        for(int i=0; i<count; i++) {
+            if(i > 0) {
+                jsonParams.append(",");
+            }
+            jsonParams.append("{\"jsonrpc\": \"1.0\", \"id\":").append(i)
+                    .append(", \"method\":\"getblockhash\", \"params\":[")
+                    .append(firstHeight + i).append("]}");
         }
+        jsonParams.append("]");
 
-        /* Parse the JSON response and get the raw block */
-        String rawblock;
+        /* Do request and get response. Will throw BitcoinRpcException if it fails. */
+        RPCresponse response = doQueryStream(jsonParams.toString());
+
+        /* Stream the JSON response and hex-decode the blockhashes */
+        return getBatchHexResultsFromJsonResponse(response, count, SHA256HASH.HASH_SIZE);
+    }
+
+
+    /* getBlockhashesByHeights() that, if the batch fails, retries one height at a time and
+     * stops at the first height that fails, such as one past the chain tip. Returns the
+     * blockhashes before that height, fewer than count then. Throws the first height's
+     * exception if it fails. */
+    public byte[][] getAvailableBlockhashesByHeights(int firstHeight, int count)
+            throws BitcoinRpcException {
         try {
-            rawblock = getRawBlockFromJsonResponse(jsonResp);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
+            return getBlockhashesByHeights(firstHeight, count);
+        } catch (BitcoinRpcException e) {
+            List<byte[]> found = new ArrayList<>(count);
+            try {
+                while(found.size() < count) {
+                    found.add(getBlockhashByHeight(firstHeight + found.size()));
+                }
+            } catch (BitcoinRpcException e2) {
+                if(found.isEmpty()) {
+                    throw e2;
+                }
+            }
+            return found.toArray(new byte[0][]);
         }
+    }
 
-        try {
-            return Hex.decodeHex(rawblock);
-        } catch (DecoderException e) {
-            throw new BitcoinRpcException("Hex decoder failed.", e);
+
+    /* Batch query method. Returns the raw blocks for the given blockhashes with one JSON-RPC
+     * batch request. */
+    public byte[][] getRawBlocksByBlockhashes(String[] blockhashes) throws BitcoinRpcException {
+        /* Prepare JSON batch request parameters. Request ids are batch indices. */
+        StringBuilder jsonParams = new StringBuilder("[");
+        for(int i=0; i<blockhashes.length; i++) {
+            if(i > 0) {
+                jsonParams.append(",");
+            }
+            jsonParams.append("{\"jsonrpc\": \"1.0\", \"id\":").append(i)
+                    .append(", \"method\":\"getblock\", \"params\":[\"")
+                    .append(blockhashes[i]).append("\", 0]}");
         }
+        jsonParams.append("]");
+
+        /* Do request and get response. Will throw BitcoinRpcException if it fails. */
+        RPCresponse response = doQueryStream(jsonParams.toString());
+
+        /* Stream the JSON response and hex-decode the raw blocks */
+        return getBatchHexResultsFromJsonResponse(response, blockhashes.length, -1);
     }
 
 
@@ -225,11 +395,9 @@ public class RPCconnection {
                         "\"params\":[]}";
 
         /* Do request and get response. Will throw BitcoinRpcException if it fails. */
-        BufferedReader resp = doQuery(jsonParams);
-
         /* Read the one line JSON response. */
         String jsonResp;
-        try {
+        try (BufferedReader resp = doQuery(jsonParams)) {
             jsonResp = resp.readLine();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -259,11 +427,9 @@ public class RPCconnection {
                         "\"params\":[]}";
 
         /* Do request and get response. Will throw BitcoinRpcException if it fails. */
-        BufferedReader resp = doQuery(jsonParams);
-
         /* Read the one line JSON response. */
         String jsonResp;
-        try {
+        try (BufferedReader resp = doQuery(jsonParams)) {
             jsonResp = resp.readLine();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -295,16 +461,96 @@ public class RPCconnection {
     }
 
 
-    /* Parsing method */
-    private String getRawBlockFromJsonResponse(String jsonResponse)
-            throws IllegalArgumentException {
-        /* make matcher for raw data */
-        Matcher match = rawBlockResultPat.matcher(jsonResponse);
-        if(match.find()) {
-            return match.group(2).toLowerCase();
+    /* Parsing method. Scans the response stream for the result and hex-decodes it directly.
+     * Content-Length is used to pre-size the raw block. */
+    private byte[] getRawBlockFromJsonResponse(RPCresponse response)
+            throws BitcoinRpcException {
+        long contentLength = response.contentLength;
+        try (InputStream inputStream = response.inputStream) {
+            JsonHexStreamDecoder decoder = new JsonHexStreamDecoder(inputStream);
+
+            /* find result */
+            if(!decoder.skipToResult()) {
+                throw new BitcoinRpcException("Raw block data not found in Json response.");
+            }
+
+            /* size hint. Remaining bytes minus quotes, separator and expected suffix */
+            int sizeHint = -1;
+            if(contentLength > 0) {
+                long remaining = contentLength - decoder.getConsumedBytes() -
+                        RAW_BLOCK_RESPONSE_OVERHEAD;
+                if(remaining > 0 && remaining/2 < Integer.MAX_VALUE) {
+                    sizeHint = (int)(remaining/2);
+                }
+            }
+
+            /* decode, null result comes with a JSON-RPC error */
+            byte[] rawBlock = decoder.readHexValue(sizeHint);
+            if(rawBlock == null) {
+                BitcoinRpcException e =
+                        new BitcoinRpcException("Raw block data not found in Json response.");
+                e.setRpcError(true);
+                throw e;
+            }
+            return rawBlock;
+        } catch (IOException e) {
+            throw new BitcoinRpcException("HttpClient exception.", e);
+        } catch (DecoderException e) {
+            throw new BitcoinRpcException("Hex decoder failed.", e);
         }
-        else {
-            throw new IllegalArgumentException("Raw block data not found in Json response.");
+    }
+
+
+    /* Parsing method. Scans a batch response stream and hex-decodes each element's result into
+     * the slot given by its id. Assumes each element lists result before id, as bitcoind does.
+     * sizeHint is the expected size of each result, or <=0 if unknown. If unknown, each result
+     * is hinted the remaining Content-Length shared by the remaining results. */
+    private byte[][] getBatchHexResultsFromJsonResponse(RPCresponse response, int count,
+                                                         int sizeHint)
+            throws BitcoinRpcException {
+        byte[][] results = new byte[count][];
+        try (InputStream inputStream = response.inputStream) {
+            JsonHexStreamDecoder decoder = new JsonHexStreamDecoder(inputStream);
+
+            for(int i=0; i<count; i++) {
+                /* find and decode result */
+                if(!decoder.skipToResult()) {
+                    throw new BitcoinRpcException("Batch response has " + i + " results but " +
+                            count + " were requested.");
+                }
+                int resultSizeHint = sizeHint;
+                if(resultSizeHint <= 0 && response.contentLength > 0) {
+                    long remaining = (response.contentLength - decoder.getConsumedBytes()) / 2;
+                    if(remaining > 0) {
+                        resultSizeHint = (int)Math.min(remaining / (count - i),
+                                Integer.MAX_VALUE - 8);
+                    }
+                }
+                byte[] result = decoder.readHexValue(resultSizeHint);
+                if(result == null) {
+                    /* null result comes with a JSON-RPC error */
+                    BitcoinRpcException e =
+                            new BitcoinRpcException("Batch response element has no result.");
+                    e.setRpcError(true);
+                    throw e;
+                }
+
+                /* find id */
+                if(!decoder.skipToId()) {
+                    throw new BitcoinRpcException("Batch response element has no id.");
+                }
+                long id = decoder.readIntegerValue();
+                if(id >= count || results[(int)id] != null) {
+                    throw new BitcoinRpcException("Unexpected id " + id + " in batch response.");
+                }
+                results[(int)id] = result;
+            }
+
+            return results;
+        } catch (IOException e) {
+            throw new BitcoinRpcException("HttpClient exception.", e);
+        } catch (DecoderException e) {
+            throw new BitcoinRpcException("Hex decoder failed.", e);
         }
     }
 
@@ -327,6 +573,22 @@ public class RPCconnection {
         return rpcAddr;
     }
 
+    protected String getRpcAuth() { return rpcAuth; }
+
+    protected URI getRpcURI() { return rpcURI; }
+
+    public int getMaxConcurrentRequests() { return maxConcurrentRequests; }
+
+    /* Pool wait metrics */
+    public long getRequestCount() { return requestCount.get(); }
+
+    public double getAvgPoolWaitMillis() {
+        long count = requestCount.get();
+        return (count == 0) ? 0 : (poolWaitNanosTotal.get() / (double)count) / 1000000.0;
+    }
+
+    public double getMaxPoolWaitMillis() { return poolWaitNanosMax.get() / 1000000.0; }
+
     public long getTimeoutMillis() { return timeoutMillis; }
 
 
@@ -334,8 +596,16 @@ public class RPCconnection {
         printStream.println(">RPC Connection parameters:");
         printStream.println("RPC Connection rpcAuth: " + rpcAuth);
         printStream.println("RPC Connection rpcAddr: " + rpcAddr);
-        printStream.println("RPC Connection rpcUrl: " + rpcURL.getHost());
+        printStream.println("RPC Connection rpcUrl: " + rpcURI.getHost());
         printStream.println("RPC Connection max concurrent requests: " + maxConcurrentRequests);
+        printPoolStats(printStream);
+    }
+
+
+    public void printPoolStats(PrintStream printStream) {
+        printStream.println("RPC Connection requests: " + getRequestCount());
+        printStream.println("RPC Connection avg pool wait (ms): " + getAvgPoolWaitMillis());
+        printStream.println("RPC Connection max pool wait (ms): " + getMaxPoolWaitMillis());
     }
 
 
@@ -1,182 +1,426 @@
 package Blockchainj.Bitcoin.RPC;
 
-//import Blockchainj.Bitcoin.RPC.BitcoinRpcException;
-//import Blockchainj.Bitcoin.RPC.RPCconnection;
-//
-//import java.io.BufferedReader;
-//import java.io.PrintStream;
-//import java.net.SocketTimeoutException;
-//import java.util.Iterator;
-//import java.util.LinkedList;
-//import java.util.concurrent.LinkedBlockingQueue;
-//import java.util.concurrent.TimeUnit;
-//import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-//TODO: Test
-//TODO: Put innactive in list and periodically test for connection.
-//TODO: Handle different heights? Easy solution is to get minimum height?
-
-//TODO: Blockbuffer time is around 2-3 hours for all blocks. This is not that important
-@Deprecated
-public class RPCconnectionMulti {//extends RPCconnection {
-//    private final LinkedList<RPCconnection> rpCconnections = new LinkedList<>();
-//    private final LinkedBlockingQueue<RPCconnection> rpcConQueue = new LinkedBlockingQueue<>();
-//    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
-//
-//
-//    public RPCconnectionMulti() {
-//        super();
-//    }
-//
-//
-//    /* Add new rpcConnection */
-//    public void addConnection(RPCconnection rpCconnection) {
-//        lock.writeLock().lock();
-//        try {
-//            rpCconnections.add(rpCconnection);
-//            putConnectionInBlockingqueue(rpCconnection);
-//        } finally {
-//            lock.writeLock().unlock();
-//        }
-//    }
-//
-//
-//    /* Returns active connections count */
-//    public int getActiveConnections() {
-//        lock.writeLock().lock();
-//        try {
-//            return rpCconnections.size();
-//        } finally {
-//            lock.writeLock().unlock();
-//        }
-//    }
-//
-//
-//    @Override
-//    protected BufferedReader doQuery(String params) throws BitcoinRpcException {
-//        /* Look for active connections */
-//        if(getActiveConnections() <= 0) {
-//            throw new BitcoinRpcException("No active connections.");
-//        }
-//
-//        /* Get an active connection */
-//        RPCconnection rpCconnection;
-//        try {
-//            rpCconnection = rpcConQueue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
-//        } catch (InterruptedException e) {
-//            throw new BitcoinRpcException("Waiting for active connection timeout");
-//        }
-//
-//        /* Perform query */
-//        BufferedReader output;
-//        try {
-//            output = rpCconnection.doQuery(params);
-//        } catch (BitcoinRpcException e) {
-//            if(e.getCause() != null) {
-//                if(e.getCause() instanceof SocketTimeoutException) {
-//                    /* Remove from active connections */
-//                    removeConnection(rpCconnection);
-//
-//                    /* Try again */
-//                    return doQuery(params);
-//                }
-//            }
-//
-//            throw e;
-//        }
-//
-//        /* Put connection back in queue */
-//        putConnectionInBlockingqueue(rpCconnection);
-//
-//        return output;
-//    }
-//
-//
-//    private void removeConnection(RPCconnection rpCconnection) {
-//        /* Remove connection */
-//        lock.writeLock().lock();
-//        try {
-//            rpCconnections.remove(rpCconnection);
-//        } finally {
-//            lock.writeLock().unlock();
-//        }
-//    }
-//
-//
-//    private void putConnectionInBlockingqueue(RPCconnection rpCconnection) {
-//        //noinspection EmptyCatchBlock
-//        try {
-//            rpcConQueue.put(rpCconnection);
-//        } catch (InterruptedException e) { }
-//    }
-//
-//
-//    @Override
-//    public String getRpcAddr() {
-//        lock.writeLock().lock();
-//        try {
-//            String out = null;
-//
-//            Iterator<RPCconnection> it = rpCconnections.iterator();
-//            while(it.hasNext()) {
-//                if(out == null) {
-//                    out = it.next().getRpcAddr();
-//                } else {
-//                    //noinspection StringConcatenationInLoop
-//                    out = out + ", " + it.next().getRpcAddr();
-//                }
-//            }
-//
-//            return out;
-//        } finally {
-//            lock.writeLock().unlock();
-//        }
-//    }
-//
-//
-//    @Override
-//    public void printParameters(PrintStream printStream) {
-//        printStream.println(">RPC Connection parameters:");
-//        printStream.println("Active connections: " + getActiveConnections());
-//
-//        lock.writeLock().lock();
-//        try {
-//            Iterator<RPCconnection> it = rpCconnections.iterator();
-//            while(it.hasNext()) {
-//                it.next().printParameters(printStream);
-//            }
-//        } finally {
-//            lock.writeLock().unlock();
-//        }
-
-
-//    private static RPCconnection[] testConnections(RPCconnection[] rpCconnections) {
-//        final long timeoutMillis = 3000; //3 seconds
-//
-//        /* Test connections */
-//        for(int i=0; i<rpCconnections.length; i++) {
-//            RPCconnection rpcCon = rpCconnections[i];
-//
-//            Thread thread = (new Thread() {
-//                @Override
-//                public void run() {
-//                    try {
-//                        rpcCon.getBestBlockhash();
-//                    } catch (BitcoinRpcException e) {
-//                        this.interrupt();
-//                    }
-//                }
-//            });
-//
-//            thread.start();
-//
-//            try {
-//                thread.join(timeoutMillis);
-//            } catch (InterruptedException e) {
-//                rpCconnections[i] = null;
-//            }
-//        }
-//
-//        return rpCconnections;
-//    }
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * RPCconnectionMulti
+ *
+ * Spreads requests across several bitcoind nodes, each with its own RPCconnection.
+ *
+ * - Balancing: each request goes to the healthy node with the least outstanding requests.
+ * - Health: a node that fails a request is marked unhealthy and skipped. It is tried again
+ *   after RETRY_INTERVAL_MILLIS. A failed request is retried on another node. JSON-RPC error
+ *   replies, such as a height above the tip, are passed through and do not mark the node. If
+ *   all nodes are unhealthy, the one that failed longest ago is used.
+ * - Hedging: if a getblock request takes longer than the p95 of recent getblock latencies, a
+ *   duplicate request is sent to another node and the first answer is taken. The slower
+ *   request is left to finish and its answer is dropped. Batch getblock requests are hedged
+ *   after the per block p95, at least MIN_HEDGE_DELAY_MILLIS, times the batch size. Hedged requests run on at most
+ *   MAX_HEDGE_THREADS threads, requests that find them all busy are not hedged.
+ *
+ * All nodes must serve the same chain. Pool stats are those of the nodes' connections.
+ *
+ * Thread-safe.
+ *
+ */
+
+public class RPCconnectionMulti extends RPCconnection {
+    /* Nodes */
+    private final Node[] nodes;
+
+    /* Unhealthy nodes are tried again after this interval */
+    private static final long RETRY_INTERVAL_MILLIS = 30*1000; //30 seconds
+
+    /* Hedging */
+    private final boolean hedging;
+    /* Latencies of recent getblock requests in a ring buffer */
+    private static final int LATENCY_TRAIL_LEN = 256;
+    /* No hedging until this many latencies have been recorded */
+    private static final int LATENCY_MIN_SAMPLES = 32;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    /* Lower bound of the hedge delay, so fast nodes do not get every request twice */
+    private static final long MIN_HEDGE_DELAY_MILLIS = 10;
+    private final long[] latencyTrail = new long[LATENCY_TRAIL_LEN];
+    private int latencyCount = 0;
+    private int latencyNext = 0;
+    private volatile long hedgeDelayMillis = -1;
+    private final AtomicInteger hedgedRequests = new AtomicInteger(0);
+    private final AtomicInteger hedgesWon = new AtomicInteger(0);
+
+    /* Threads for hedged requests */
+    private static final int MAX_HEDGE_THREADS = 64;
+    private static final long HEDGE_THREAD_TIMEOUT_SECONDS = 60;
+    private final ThreadPoolExecutor hedgeExecutor;
+
+
+    /* A node and its health */
+    private static class Node {
+        private final RPCconnection rpcCon;
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+        private volatile boolean healthy = true;
+        private volatile long lastFailureMillis = 0;
+        private final AtomicInteger failures = new AtomicInteger(0);
+
+        private Node(RPCconnection rpcCon) {
+            this.rpcCon = rpcCon;
+        }
+
+        /* Unhealthy nodes become available again after the retry interval */
+        private boolean isAvailable(long nowMillis) {
+            return healthy || (nowMillis - lastFailureMillis) >= RETRY_INTERVAL_MILLIS;
+        }
+
+        private void markSuccess() {
+            healthy = true;
+        }
+
+        private void markFailure() {
+            healthy = false;
+            lastFailureMillis = System.currentTimeMillis();
+            failures.incrementAndGet();
+        }
+    }
+
+
+    /* A request against one node */
+    private interface NodeQuery<T> {
+        T query(RPCconnection rpcCon) throws BitcoinRpcException;
+    }
+
+
+    /* Main constructor */
+    public RPCconnectionMulti(RPCconnection[] rpcConnections, boolean hedging) {
+        super();
+
+        if(rpcConnections.length < 1) {
+            throw new IllegalArgumentException("At least one RPC connection is needed.");
+        }
+
+        nodes = new Node[rpcConnections.length];
+        for(int i=0; i<nodes.length; i++) {
+            nodes[i] = new Node(rpcConnections[i]);
+        }
+
+        this.hedging = hedging && (nodes.length > 1);
+        if(this.hedging) {
+            /* No queue, a request either gets a thread or is rejected */
+            hedgeExecutor = new ThreadPoolExecutor(MAX_HEDGE_THREADS, MAX_HEDGE_THREADS,
+                    HEDGE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    r -> {
+                        Thread thread = new Thread(r, "RPCconnectionMulti-hedge");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            hedgeExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            hedgeExecutor = null;
+        }
+    }
+
+
+    /* Returns the available node with the least outstanding requests, other than exclude.
+     * Returns null if there is none. */
+    private Node pickNode(Node exclude) {
+        long now = System.currentTimeMillis();
+        Node best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        for(Node node : nodes) {
+            if(node == exclude || !node.isAvailable(now)) {
+                continue;
+            }
+            int outstanding = node.outstanding.get();
+            if(outstanding < bestOutstanding) {
+                best = node;
+                bestOutstanding = outstanding;
+            }
+        }
+        return best;
+    }
+
+
+    /* pickNode() without exclusion. If no node is available, returns the one whose last
+     * failure is oldest. */
+    private Node pickAnyNode() {
+        Node best = pickNode(null);
+        if(best != null) {
+            return best;
+        }
+        for(Node node : nodes) {
+            if(best == null || node.lastFailureMillis < best.lastFailureMillis) {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+
+    /* Performs query on given node and tracks its health. JSON-RPC error replies do not
+     * mark the node. */
+    private <T> T queryNode(Node node, NodeQuery<T> nodeQuery) throws BitcoinRpcException {
+        node.outstanding.incrementAndGet();
+        try {
+            T result = nodeQuery.query(node.rpcCon);
+            node.markSuccess();
+            return result;
+        } catch (BitcoinRpcException e) {
+            if(e.isRpcError()) {
+                node.markSuccess();
+            } else {
+                node.markFailure();
+            }
+            throw e;
+        } finally {
+            node.outstanding.decrementAndGet();
+        }
+    }
+
+
+    /* Performs query on the least loaded node. Retries on other nodes if it fails, but not
+     * on JSON-RPC error replies, which all nodes would give. */
+    private <T> T query(NodeQuery<T> nodeQuery) throws BitcoinRpcException {
+        BitcoinRpcException lastException = null;
+        for(int attempt=0; attempt<nodes.length; attempt++) {
+            try {
+                return queryNode(pickAnyNode(), nodeQuery);
+            } catch (BitcoinRpcException e) {
+                if(e.isRpcError()) {
+                    throw e;
+                }
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+
+    /* Performs query of blockCount blocks and sends a duplicate to another node if the first
+     * one is slower than the hedge delay times blockCount. Returns the first answer. */
+    private <T> T queryHedged(NodeQuery<T> nodeQuery, int blockCount)
+            throws BitcoinRpcException {
+        long delay = hedgeDelayMillis * blockCount;
+        Node primaryNode = pickNode(null);
+        if(!hedging || delay < 0 || primaryNode == null) {
+            return query(nodeQuery);
+        }
+
+        /* First answer wins. Fails only when all requests failed. */
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        if(!submitHedged(primaryNode, nodeQuery, result, pending, false)) {
+            /* All hedge threads busy */
+            return query(nodeQuery);
+        }
+
+        try {
+            try {
+                return result.get(delay, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                /* Primary is slow. Send duplicate to another node. */
+                Node hedgeNode = pickNode(primaryNode);
+                if(hedgeNode != null) {
+                    pending.incrementAndGet();
+                    if(submitHedged(hedgeNode, nodeQuery, result, pending, true)) {
+                        hedgedRequests.incrementAndGet();
+                    } else {
+                        pending.decrementAndGet();
+                    }
+                }
+                return result.get();
+            }
+        } catch (ExecutionException e) {
+            /* JSON-RPC error reply, the rest would give it too */
+            if( (e.getCause() instanceof BitcoinRpcException) &&
+                    ((BitcoinRpcException) e.getCause()).isRpcError() ) {
+                throw (BitcoinRpcException) e.getCause();
+            }
+
+            /* All sent requests failed. Their nodes are now unhealthy. Try the rest. */
+            return query(nodeQuery);
+        } catch (InterruptedException e) {
+            throw new BitcoinRpcException("Hedged request interrupted.", e);
+        }
+    }
+
+
+    /* Returns false if all hedge threads are busy */
+    private <T> boolean submitHedged(Node node, NodeQuery<T> nodeQuery,
+                                     CompletableFuture<T> result, AtomicInteger pending,
+                                     boolean isHedge) {
+        try {
+            hedgeExecutor.execute(() -> {
+                try {
+                    T answer = queryNode(node, nodeQuery);
+                    if(result.complete(answer) && isHedge) {
+                        hedgesWon.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    if(pending.decrementAndGet() == 0) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+
+    /* Records a per block getblock latency and updates the hedge delay, nearest rank p95 */
+    private synchronized void recordLatency(long latencyMillis) {
+        latencyTrail[latencyNext] = latencyMillis;
+        latencyNext = (latencyNext + 1) % LATENCY_TRAIL_LEN;
+        if(latencyCount < LATENCY_TRAIL_LEN) {
+            latencyCount++;
+        }
+
+        if(latencyCount >= LATENCY_MIN_SAMPLES) {
+            long[] sorted = Arrays.copyOf(latencyTrail, latencyCount);
+            Arrays.sort(sorted);
+            int rank = (int)Math.ceil(HEDGE_PERCENTILE * latencyCount);
+            hedgeDelayMillis = Math.max(sorted[Math.max(rank, 1) - 1], MIN_HEDGE_DELAY_MILLIS);
+        }
+    }
+
+
+    /* Query methods */
+    @Override
+    public byte[] getBlockhashByHeight(int height) throws BitcoinRpcException {
+        return query(rpcCon -> rpcCon.getBlockhashByHeight(height));
+    }
+
+    @Override
+    public byte[] getRawBlockByBlockhash(String blockhash) throws BitcoinRpcException {
+        long start = System.currentTimeMillis();
+        byte[] rawBlock = queryHedged(rpcCon -> rpcCon.getRawBlockByBlockhash(blockhash), 1);
+        recordLatency(System.currentTimeMillis() - start);
+        return rawBlock;
+    }
+
+    @Override
+    public byte[][] getBlockhashesByHeights(int firstHeight, int count)
+            throws BitcoinRpcException {
+        return query(rpcCon -> rpcCon.getBlockhashesByHeights(firstHeight, count));
+    }
+
+    @Override
+    public byte[][] getRawBlocksByBlockhashes(String[] blockhashes) throws BitcoinRpcException {
+        if(blockhashes.length == 0) {
+            return new byte[0][];
+        }
+        long start = System.currentTimeMillis();
+        byte[][] rawBlocks = queryHedged(
+                rpcCon -> rpcCon.getRawBlocksByBlockhashes(blockhashes), blockhashes.length);
+        recordLatency((System.currentTimeMillis() - start) / blockhashes.length);
+        return rawBlocks;
+    }
+
+    @Override
+    public byte[] getBestBlockhash() throws BitcoinRpcException {
+        return query(RPCconnection::getBestBlockhash);
+    }
+
+    @Override
+    public int getBlockCount() throws BitcoinRpcException {
+        return query(RPCconnection::getBlockCount);
+    }
+
+
+    /* Returns healthy nodes count */
+    public int getHealthyConnections() {
+        int count = 0;
+        for(Node node : nodes) {
+            if(node.healthy) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getHedgeDelayMillis() { return hedgeDelayMillis; }
+
+
+    /* Pool stats of all nodes' connections. -1 if any node is unlimited. */
+    @Override
+    public int getMaxConcurrentRequests() {
+        int sum = 0;
+        for(Node node : nodes) {
+            int max = node.rpcCon.getMaxConcurrentRequests();
+            if(max < 0) {
+                return -1;
+            }
+            sum += max;
+        }
+        return sum;
+    }
+
+    @Override
+    public long getRequestCount() {
+        long sum = 0;
+        for(Node node : nodes) {
+            sum += node.rpcCon.getRequestCount();
+        }
+        return sum;
+    }
+
+    @Override
+    public double getAvgPoolWaitMillis() {
+        long count = 0;
+        double totalMillis = 0;
+        for(Node node : nodes) {
+            long nodeCount = node.rpcCon.getRequestCount();
+            count += nodeCount;
+            totalMillis += node.rpcCon.getAvgPoolWaitMillis() * nodeCount;
+        }
+        return (count == 0) ? 0 : totalMillis / count;
+    }
+
+    @Override
+    public double getMaxPoolWaitMillis() {
+        double max = 0;
+        for(Node node : nodes) {
+            max = Math.max(max, node.rpcCon.getMaxPoolWaitMillis());
+        }
+        return max;
+    }
+
+
+    @Override
+    public String getRpcAddr() {
+        ArrayList<String> addrs = new ArrayList<>(nodes.length);
+        for(Node node : nodes) {
+            addrs.add(node.rpcCon.getRpcAddr());
+        }
+        return String.join(", ", addrs);
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        long max = 0;
+        for(Node node : nodes) {
+            max = Math.max(max, node.rpcCon.getTimeoutMillis());
+        }
+        return max;
+    }
+
+
+    @Override
+    public void printParameters(PrintStream printStream) {
+        printStream.println(">RPC Connection Multi parameters:");
+        printStream.println("RPC Connection Multi nodes: " + nodes.length);
+        printStream.println("RPC Connection Multi healthy nodes: " + getHealthyConnections());
+        printStream.println("RPC Connection Multi hedging: " + hedging);
+        printStream.println("RPC Connection Multi hedge delay (ms): " + hedgeDelayMillis);
+        printStream.println("RPC Connection Multi hedged requests: " + hedgedRequests.get());
+        printStream.println("RPC Connection Multi hedges won: " + hedgesWon.get());
+        for(Node node : nodes) {
+            printStream.println("RPC Connection Multi node failures: " + node.failures.get());
+            node.rpcCon.printParameters(printStream);
+        }
+    }
 }
@@ -17,8 +17,13 @@ public class SimpleBlockBuffer extends AbstractBlockBuffer {
     /* RPC connection */
     private final RPCconnection rpcCon;
 
+    /* Batch size. The number of blockhashes and blocks requested with one batch request. */
+    public static final int DEFAULT_BATCH_SIZE = 1;
+    private final int BATCH_SIZE;
+
     /* main constructor */
-    public SimpleBlockBuffer(int firstHeight, int lastHeight, RPCconnection rpcCon)
+    public SimpleBlockBuffer(int firstHeight, int lastHeight, RPCconnection rpcCon,
+                             int batchSize)
             throws IllegalArgumentException {
         super();
 
@@ -28,11 +33,25 @@ public class SimpleBlockBuffer extends AbstractBlockBuffer {
         this.firstHeight = firstHeight;
         this.lastHeight = lastHeight;
 
+        /* set batch size */
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be >=1.");
+        } else {
+            this.BATCH_SIZE = batchSize;
+        }
+
         /* set rpc connection */
         this.rpcCon = rpcCon;
     }
 
 
+    /* Constructor without batching */
+    public SimpleBlockBuffer(int firstHeight, int lastHeight, RPCconnection rpcCon)
+            throws IllegalArgumentException {
+        this(firstHeight, lastHeight, rpcCon, DEFAULT_BATCH_SIZE);
+    }
+
+
     /* Default constructor */
     public SimpleBlockBuffer(RPCconnection rpcCon) {
         this(MIN_HEIGHT, MAX_HEIGHT, rpcCon);
@@ -43,12 +62,19 @@ public class SimpleBlockBuffer extends AbstractBlockBuffer {
     private class SimpleBlockBufferBlockIterator extends AbstractBlockIterator {
         private final int startHeight;
         private final int endHeight;
+        private final int parseMode;
         private int nextHeight;
 
-        private SimpleBlockBufferBlockIterator(int startHeight, int endHeight) {
+        /* Current batch */
+        private SHA256HASH[] batchBlockhashes = new SHA256HASH[0];
+        private byte[][] batchRawBlocks = new byte[0][];
+        private int batchIndex = 0;
+
+        private SimpleBlockBufferBlockIterator(int startHeight, int endHeight, int parseMode) {
             super();
             this.startHeight = startHeight;
             this.endHeight = endHeight;
+            this.parseMode = parseMode;
             this.nextHeight = startHeight;
         }
 
@@ -61,14 +87,19 @@ public class SimpleBlockBuffer extends AbstractBlockBuffer {
 
             SHA256HASH blockhash = BitcoinParams.ZERO_BLOCKHASH;
             try {
-                /* get blockhash for next height */
-                blockhash = SHA256HASH.getReverseHash(rpcCon.getBlockhashByHeight(nextHeight));
+                /* get next batch of blockhashes and raw blocks if current one is consumed */
+                if(batchIndex >= batchRawBlocks.length) {
+                    fetchBatch();
+                }
 
-                /* get raw block using blockhash */
-                byte[] rawBlock = rpcCon.getRawBlockByBlockhash(blockhash.toString());
+                /* get blockhash and raw block for next height */
+                blockhash = batchBlockhashes[batchIndex];
+                byte[] rawBlock = batchRawBlocks[batchIndex];
+                batchRawBlocks[batchIndex] = null;
+                batchIndex++;
 
                 /* parse raw block and get block */
-                return Block.deserialize(blockhash, nextHeight, rawBlock, 0);
+                return Block.deserialize(blockhash, nextHeight, rawBlock, 0, parseMode);
             } catch (BitcoinRpcException e) {
                 e.setBlockhash(blockhash.toString());
                 e.setHeight(nextHeight);
@@ -81,6 +112,42 @@ public class SimpleBlockBuffer extends AbstractBlockBuffer {
         }
 
 
+        /* Fetches blockhashes and raw blocks starting at next height. */
+        private void fetchBatch() throws BitcoinRpcException {
+            int count = Math.min(BATCH_SIZE, endHeight - nextHeight + 1);
+            SHA256HASH[] blockhashes;
+            byte[][] rawBlocks;
+
+            if(count == 1) {
+                blockhashes = new SHA256HASH[1];
+                /* get blockhash for next height */
+                blockhashes[0] = SHA256HASH.getReverseHash(rpcCon.getBlockhashByHeight(nextHeight));
+
+                /* get raw block using blockhash */
+                rawBlocks = new byte[][] {rpcCon.getRawBlockByBlockhash(blockhashes[0].toString())};
+            } else {
+                /* get blockhashes with one batch request. Heights from the first failing one
+                 * are left to the next batch, which throws at that height. */
+                byte[][] blockhashBytes =
+                        rpcCon.getAvailableBlockhashesByHeights(nextHeight, count);
+                count = blockhashBytes.length;
+                blockhashes = new SHA256HASH[count];
+                String[] blockhashStrings = new String[count];
+                for(int i=0; i<count; i++) {
+                    blockhashes[i] = SHA256HASH.getReverseHash(blockhashBytes[i]);
+                    blockhashStrings[i] = blockhashes[i].toString();
+                }
+
+                /* get raw blocks with one batch request */
+                rawBlocks = rpcCon.getRawBlocksByBlockhashes(blockhashStrings);
+            }
+
+            batchBlockhashes = blockhashes;
+            batchRawBlocks = rawBlocks;
+            batchIndex = 0;
+        }
+
+
         public boolean hasNext() {
             return (nextHeight <= endHeight) && !isClosed();
         }
@@ -93,11 +160,18 @@ public class SimpleBlockBuffer extends AbstractBlockBuffer {
             throw new IllegalArgumentException("Start height out of range.");
         }
 
-        return new SimpleBlockBufferBlockIterator(startHeight, lastHeight);
+        return new SimpleBlockBufferBlockIterator(
+                startHeight, lastHeight, Block.PARSE_MODE_FLYWEIGHT);
     }
 
     @Override
     public BlockIterator iterator(int startHeight, int endHeight) {
+        return iterator(startHeight, endHeight, Block.PARSE_MODE_FLYWEIGHT);
+    }
+
+    @Override
+    public BlockIterator iterator(int startHeight, int endHeight, int parseMode) {
+        Block.validateParseMode(parseMode);
         if( startHeight < firstHeight ) {
             throw new IllegalArgumentException("Start height out of range.");
         }
@@ -106,7 +180,7 @@ public class SimpleBlockBuffer extends AbstractBlockBuffer {
         }
         endHeight = (endHeight>lastHeight)?(lastHeight):endHeight;
 
-        return new SimpleBlockBufferBlockIterator(startHeight, endHeight);
+        return new SimpleBlockBufferBlockIterator(startHeight, endHeight, parseMode);
     }
 
 
@@ -124,6 +198,7 @@ public class SimpleBlockBuffer extends AbstractBlockBuffer {
         printStream.println(">SimpleBlockBuffer");
         printStream.println("SimpleBlockBuffer first height: " + getFirstHeight());
         printStream.println("SimpleBlockBuffer last height: " + getLastHeight());
+        printStream.println("SimpleBlockBuffer batch size: " + BATCH_SIZE);
         rpcCon.printParameters(printStream);
     }
 
@@ -21,6 +21,9 @@ import java.util.Arrays;
  * in the Blockchainj.Bitcoin and(union) Prototype Protocol.
  * To be used  alongside a Transaction Object (Transaction, STX).
  *
+ * Script and sequence may be views into the raw block data (flyweight parsing), or may not
+ * be retained at all (UTXO-only parsing), in which case only the outpoint is available.
+ *
  * Blockchainj.Bitcoin serialization.
  * Serialization format:
  * <prevTxid, 32bytes><prevOutIndex, 4bytes><scriptBytes, compactSizeUint><script, >0 bytes>
@@ -35,28 +38,42 @@ public class TXI {
     /* Previous outIndex - uin32 */
     protected final int prevOutIndex;
 
+    /* Backing data. Script and sequence are views into it and are only copied on request.
+     * Null if script and sequence were skipped. */
+    protected final byte[] data;
+
     /* Script - >1 bytes */
-    protected final byte[] script;
+    protected final int scriptOffset;
+    protected final int scriptLen;
 
     /* Sequence number - uint32 */
-    protected final byte[] sequence;
+    protected final int sequenceOffset;
 
     /* Serialized size bytes */
     protected final int serializedSize;
 
 
-    /* Private constructor. Assumes valid inputs. */
-    private TXI(SHA256HASH prevTxid, byte[] prevOutIndexBytes, byte[] script, byte[] sequence) {
+    /* Private constructor. Assumes valid inputs. Does not copy data. */
+    private TXI(SHA256HASH prevTxid, int prevOutIndex, byte[] data, int scriptOffset,
+                int scriptLen, int sequenceOffset) {
         this.prevTxid = prevTxid;
-        this.prevOutIndex = (int) BitcoinParams.readUINT32(prevOutIndexBytes, 0);
-        this.script = script;
-        this.sequence = sequence;
+        this.prevOutIndex = prevOutIndex;
+        this.data = data;
+        this.scriptOffset = scriptOffset;
+        this.scriptLen = scriptLen;
+        this.sequenceOffset = sequenceOffset;
         this.serializedSize =
                 prevTxid.getSerializedSize() +
-                prevOutIndexBytes.length +
-                CompactSizeUInt.getSizeOf(script.length) +
-                script.length +
-                sequence.length;
+                BitcoinParams.TRANSACTION_OUT_INDEX_SIZE +
+                CompactSizeUInt.getSizeOf(scriptLen) +
+                scriptLen +
+                BitcoinParams.TRANSACTION_SEQUENCE_SIZE;
+    }
+
+
+    /* Outpoint only. Script and sequence are not retained. */
+    public TXI(SHA256HASH prevTxid, int prevOutIndex) {
+        this(prevTxid, prevOutIndex, null, -1, 0, -1);
     }
 
 
@@ -64,19 +81,22 @@ public class TXI {
     public TXI(TXI txi) {
         prevTxid = txi.prevTxid;
         prevOutIndex = txi.prevOutIndex;
-        script = txi.script;
-        sequence = txi.sequence;
+        data = txi.data;
+        scriptOffset = txi.scriptOffset;
+        scriptLen = txi.scriptLen;
+        sequenceOffset = txi.sequenceOffset;
         serializedSize = txi.serializedSize;
     }
 
 
     /* Blockchainj.Bitcoin serialization. */
     public void serialize(OutputStream outputStream) throws IOException {
+        checkRetained();
         prevTxid.serialize(outputStream);
         BitcoinParams.UINT32ToOutputStream(prevOutIndex, outputStream);
-        (new CompactSizeUInt(script.length)).serialize(outputStream);
-        outputStream.write(script);
-        outputStream.write(sequence);
+        (new CompactSizeUInt(scriptLen)).serialize(outputStream);
+        outputStream.write(data, scriptOffset, scriptLen);
+        outputStream.write(data, sequenceOffset, BitcoinParams.TRANSACTION_SEQUENCE_SIZE);
     }
 
 
@@ -87,47 +107,78 @@ public class TXI {
         SHA256HASH prevTxid = SHA256HASH.deserialize(inputStream);
 
         /* read prevOutIndex */
-        byte[] prevOutIndexBytes = Utils.readBytesFromInputStream(
-                inputStream, BitcoinParams.TRANSACTION_OUT_INDEX_SIZE);
+        int prevOutIndex = (int) BitcoinParams.readUINT32(inputStream);
 
         /* read scriptBytes */
-        CompactSizeUInt scriptBytes = CompactSizeUInt.deserialize(inputStream);
-
-        /* read script */
-        byte[] script = Utils.readBytesFromInputStream(inputStream, (int)scriptBytes.getValue());
+        int scriptLen = (int) CompactSizeUInt.deserialize(inputStream).getValue();
 
-        /* read sequence */
-        byte[] sequence = Utils.readBytesFromInputStream(
-                inputStream, BitcoinParams.TRANSACTION_SEQUENCE_SIZE);
+        /* read script and sequence into one array */
+        byte[] data = Utils.readBytesFromInputStream(
+                inputStream, scriptLen + BitcoinParams.TRANSACTION_SEQUENCE_SIZE);
 
-        return new TXI(prevTxid, prevOutIndexBytes, script, sequence);
+        return new TXI(prevTxid, prevOutIndex, data, 0, scriptLen, scriptLen);
     }
 
 
-    /* Blockchainj.Bitcoin deserialization. */
+    /* Blockchainj.Bitcoin deserialization. Copies script and sequence. */
     public static TXI deserialize(byte[] data, int offset) {
+        return deserialize(data, offset, false);
+    }
+
+
+    /* Blockchainj.Bitcoin deserialization.
+     * If flyweight is true, script and sequence are left as views into data and the caller
+     * must not modify data afterwards. Else they are copied into a new array. */
+    public static TXI deserialize(byte[] data, int offset, boolean flyweight) {
         /* read prevTxid */
         SHA256HASH prevTxid = SHA256HASH.deserialize(data, offset);
         offset += prevTxid.getSerializedSize();
 
         /* read prevOutIndex */
-        byte[] prevOutIndexBytes = Utils.readBytesFromByteArray(
-                data, offset, BitcoinParams.TRANSACTION_OUT_INDEX_SIZE);
+        int prevOutIndex = (int) BitcoinParams.readUINT32(data, offset);
         offset += BitcoinParams.TRANSACTION_OUT_INDEX_SIZE;
 
         /* read scriptBytes */
-        CompactSizeUInt scriptBytes = CompactSizeUInt.deserialize(data, offset);
-        offset += scriptBytes.getSerializedSize();
+        int scriptLen = (int) CompactSizeUInt.getValue(data, offset);
+        offset += CompactSizeUInt.getSizeOf(data, offset);
+
+        /* script and sequence */
+        int sequenceOffset = offset + scriptLen;
+        if(sequenceOffset + BitcoinParams.TRANSACTION_SEQUENCE_SIZE > data.length) {
+            throw new ArrayIndexOutOfBoundsException(
+                    sequenceOffset + BitcoinParams.TRANSACTION_SEQUENCE_SIZE);
+        }
 
-        /* read script */
-        byte[] script = Utils.readBytesFromByteArray(data, offset, (int)scriptBytes.getValue());
-        offset += (int)scriptBytes.getValue();
+        if(flyweight) {
+            return new TXI(prevTxid, prevOutIndex, data, offset, scriptLen, sequenceOffset);
+        } else {
+            byte[] scriptAndSequence = Utils.readBytesFromByteArray(
+                    data, offset, scriptLen + BitcoinParams.TRANSACTION_SEQUENCE_SIZE);
+            return new TXI(prevTxid, prevOutIndex, scriptAndSequence, 0, scriptLen, scriptLen);
+        }
+    }
 
-        /* read sequence */
-        byte[] sequence = Utils.readBytesFromByteArray(
-                data, offset, BitcoinParams.TRANSACTION_SEQUENCE_SIZE);
 
-        return new TXI(prevTxid, prevOutIndexBytes, script, sequence);
+    /* Blockchainj.Bitcoin deserialization of the outpoint only.
+     * Script and sequence are skipped by length and not retained. */
+    public static TXI deserializeOutpoint(byte[] data, int offset) {
+        /* read prevTxid */
+        SHA256HASH prevTxid = SHA256HASH.deserialize(data, offset);
+        offset += prevTxid.getSerializedSize();
+
+        /* read prevOutIndex */
+        int prevOutIndex = (int) BitcoinParams.readUINT32(data, offset);
+        offset += BitcoinParams.TRANSACTION_OUT_INDEX_SIZE;
+
+        /* read scriptBytes and skip script and sequence */
+        int scriptLen = (int) CompactSizeUInt.getValue(data, offset);
+        offset += CompactSizeUInt.getSizeOf(data, offset);
+        if(offset + scriptLen + BitcoinParams.TRANSACTION_SEQUENCE_SIZE > data.length) {
+            throw new ArrayIndexOutOfBoundsException(
+                    offset + scriptLen + BitcoinParams.TRANSACTION_SEQUENCE_SIZE);
+        }
+
+        return new TXI(prevTxid, prevOutIndex, null, -1, scriptLen, -1);
     }
 
 
@@ -158,16 +209,30 @@ public class TXI {
 
     public int getPrevOutIndex() { return prevOutIndex; }
 
-    public int getScriptLen() { return script.length; }
+    public int getScriptLen() { return scriptLen; }
 
-    public String getScriptString() { return Hex.encodeHexString(script); }
+    public String getScriptString() { return Hex.encodeHexString(getScript()); }
 
-    public byte[] getScript() { return Arrays.copyOf(script, script.length); }
+    public boolean isScriptRetained() { return data != null; }
 
-    public long getSequence() { return BitcoinParams.readUINT32(sequence, 0); }
+    public byte[] getScript() {
+        checkRetained();
+        return Arrays.copyOfRange(data, scriptOffset, scriptOffset + scriptLen);
+    }
+
+    public long getSequence() {
+        checkRetained();
+        return BitcoinParams.readUINT32(data, sequenceOffset);
+    }
 
     public int getSerializedSize() { return serializedSize; }
 
+    private void checkRetained() throws IllegalStateException {
+        if(data == null) {
+            throw new IllegalStateException("Script and sequence were not retained.");
+        }
+    }
+
 
     /* DEBUG ONLY */
     public void print(PrintStream printStream) {
@@ -176,9 +241,11 @@ public class TXI {
                 Hex.encodeHexString(BitcoinParams.getUINT32(getPrevOutIndex())));
         printStream.println("Script length: " + getScriptLen() + " -- " +
                 (new CompactSizeUInt(getScriptLen()).getValueBytes()) );
-        printStream.println("Script: " + getScriptString());
-        printStream.println("Sequence: " + getSequence() + " -- LE: " +
-                Hex.encodeHexString(sequence));
+        if(isScriptRetained()) {
+            printStream.println("Script: " + getScriptString());
+            printStream.println("Sequence: " + getSequence() + " -- LE: " +
+                    Hex.encodeHexString(BitcoinParams.getUINT32(getSequence())));
+        }
         printStream.println("Serialized size: " + getSerializedSize());
     }
 }
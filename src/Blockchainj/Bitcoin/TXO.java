@@ -16,6 +16,8 @@ import java.util.Arrays;
  * A Bitcoin transaction output. The minimal data needed to represent a transaction output
  * in the Bitcoin Protocol.
  *
+ * Value and script may be views into the raw block data (flyweight parsing).
+ *
  * Serialization:
  * <value, 8bytes><scriptBytes, compactSizeUInt><script, bytes>
  *
@@ -23,14 +25,19 @@ import java.util.Arrays;
 
 public class TXO {
     /* Blockchainj.Bitcoin and Prototype Protocol. */
-    protected final byte[] value;
-    protected final byte[] script;
-
-
-    /* Private constructor. Assumes valid inputs. */
-    protected TXO(byte[] value, byte[] script) {
-        this.value = value;
-        this.script = script;
+    /* Backing data. Value and script are views into it and are only copied on request. */
+    protected final byte[] data;
+    protected final int valueOffset;
+    protected final int scriptOffset;
+    protected final int scriptLen;
+
+
+    /* Protected constructor. Assumes valid inputs. Does not copy data. */
+    protected TXO(byte[] data, int valueOffset, int scriptOffset, int scriptLen) {
+        this.data = data;
+        this.valueOffset = valueOffset;
+        this.scriptOffset = scriptOffset;
+        this.scriptLen = scriptLen;
     }
 
 //    /* Shallow copy constructor. */
@@ -40,29 +47,35 @@ public class TXO {
 //    }
 
 
-    public long getValue() { return BitcoinParams.readINT64(value, 0); }
+    public long getValue() { return BitcoinParams.readINT64(data, valueOffset); }
 
-    public byte[] getValueBytes() { return Arrays.copyOf(value, value.length); }
+    public byte[] getValueBytes() {
+        return Arrays.copyOfRange(
+                data, valueOffset, valueOffset + BitcoinParams.TRANSACTION_VALUE_SIZE);
+    }
 
-    public int getScriptLen() { return script.length; }
+    public int getScriptLen() { return scriptLen; }
 
-    public byte[] getScriptLenBytes() { return CompactSizeUInt.getEncoded(script.length); }
+    public byte[] getScriptLenBytes() { return CompactSizeUInt.getEncoded(scriptLen); }
 
-    public String getScriptString() { return Hex.encodeHexString(script); }
+    public String getScriptString() { return Hex.encodeHexString(getScript()); }
 
-    public byte[] getScript() { return Arrays.copyOf(script, script.length); }
+    public byte[] getScript() {
+        return Arrays.copyOfRange(data, scriptOffset, scriptOffset + scriptLen);
+    }
 
     /* Bitcoin protocol */
     public int getSerializedSize() {
-        return value.length
-                + CompactSizeUInt.getSizeOf(script.length)
-                + script.length;
+        return BitcoinParams.TRANSACTION_VALUE_SIZE
+                + CompactSizeUInt.getSizeOf(scriptLen)
+                + scriptLen;
     }
 
 
     /* DEBUG */
     public void print(PrintStream printStream) {
-        printStream.println("Value: " + getValue() + " -- LE: 0x" + Hex.encodeHexString(value));
+        printStream.println("Value: " + getValue() + " -- LE: 0x" +
+                Hex.encodeHexString(getValueBytes()));
         printStream.println("Script length: " + getScriptLen() + " -- 0x" +
                 Hex.encodeHexString(getScriptLenBytes()));
         printStream.println("Script: " + getScriptString());
@@ -8,6 +8,7 @@ import Blockchainj.Util.Utils;
 import org.apache.commons.codec.binary.Hex;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -41,55 +42,54 @@ public class Transaction {
     private final boolean isCoinbase;
 
     /* Transaction data */
-    /* Transaction version - uint32 */
-    private final byte[] version;
-    /* Witness marker and flag */
-    private final byte[] witMarkerFlag;
+    /* Raw data. Header fields, inputs, outputs and witnesses are views into it. */
+    private final byte[] data;
+    /* Transaction version - uint32. Transaction starts at this offset. */
+    private final int offset;
+    /* Witness marker and flag follow version if present */
     private final boolean hasWitnesses;
-    /* tx_in count - compactSize uint 1-9 bytes */
-    private final CompactSizeUInt txInCount;
+    /* tx_in count - compactSize uint 1-9 bytes. Start of inputs and outputs. */
+    private final int txInOffset;
     /* tx_in */
     private final TransactionInput[] txIn;
-    /* tx_out count - compactSize uint 1-9 bytes */
-    private final CompactSizeUInt txOutCount;
     /* tx_out */
     private final TransactionOutput[] txOut;
-    /* witnesses raw data - >=0 bytes */
-    private final byte[] witnesses;
+    /* witnesses raw data - >=0 bytes. End of inputs and outputs. */
+    private final int witnessesOffset;
     /* lock_time - uint32 */
-    private final byte[] lockTime;
+    private final int lockTimeOffset;
 
 
-    /* Private constructor. Does not copy input. Does not validate input fully. */
-    private Transaction(SHA256HASH blockhash, int height, boolean isCoinbase, byte[] version,
-                        byte[] witMarkerFlag, TransactionInput[] txIn, TransactionOutput[] txOut,
-                        byte[] witnesses, byte[] lockTime) throws BitcoinBlockException {
+    /* Private constructor. Does not copy input. Does not validate input fully.
+     * Inputs and outputs must be views into data, laid out between txInOffset and
+     * witnessesOffset. */
+    private Transaction(SHA256HASH blockhash, int height, boolean isCoinbase, byte[] data,
+                        int offset, boolean hasWitnesses, int txInOffset,
+                        TransactionInput[] txIn, TransactionOutput[] txOut,
+                        int witnessesOffset, int lockTimeOffset, MessageDigest digest)
+            throws BitcoinBlockException {
         this.blockhash = blockhash;
         this.height = height;
         this.isCoinbase = isCoinbase;
-        this.version = version;
-        if(witMarkerFlag != null) {
-            this.hasWitnesses = true;
-            this.witMarkerFlag = witMarkerFlag;
-            this.witnesses = witnesses;
-        }
-        else {
-            this.hasWitnesses = false;
-            this.witMarkerFlag = null;
-            this.witnesses = null;
-        }
-        this.lockTime = lockTime;
-        this.txInCount = new CompactSizeUInt(txIn.length);
+        this.data = data;
+        this.offset = offset;
+        this.hasWitnesses = hasWitnesses;
+        this.txInOffset = txInOffset;
         this.txIn = txIn;
-        this.txOutCount = new CompactSizeUInt(txOut.length);
         this.txOut = txOut;
+        this.witnessesOffset = witnessesOffset;
+        this.lockTimeOffset = lockTimeOffset;
 
         /* Calculate txid */
-        try {
-            this.txid = calcTxid();
-        } catch (IOException e) {
-            throw new BitcoinBlockException("Failed to calculate txid.", blockhash.toString(),
-                    height, e);
+        if(digest != null) {
+            this.txid = calcTxid(digest);
+        } else {
+            try {
+                this.txid = calcTxid();
+            } catch (IOException e) {
+                throw new BitcoinBlockException("Failed to calculate txid.", blockhash.toString(),
+                        height, e);
+            }
         }
 
         /* Set txid to all transaction inputs and outputs */
@@ -101,8 +101,10 @@ public class Transaction {
         }
 
         /* Serialized size */
-        int tempSize = version.length + txInCount.getSerializedSize() +
-                txOutCount.getSerializedSize() + lockTime.length;
+        int tempSize = BitcoinParams.TRANSACTION_VERSION_SIZE +
+                CompactSizeUInt.getSizeOf(txIn.length) +
+                CompactSizeUInt.getSizeOf(txOut.length) +
+                BitcoinParams.TRANSACTION_LOCKTIME_SIZE;
         for(int i=0; i<txIn.length; i++) {
             tempSize += txIn[i].getSerializedSize();
         }
@@ -111,7 +113,9 @@ public class Transaction {
         }
         serializedSizeNoWitnesses = tempSize;
         if(this.hasWitnesses) {
-            serializedSize = serializedSizeNoWitnesses + witMarkerFlag.length + witnesses.length;
+            serializedSize = serializedSizeNoWitnesses +
+                    BitcoinParams.TRANSACTION_WIT_MARKER_FLAG_SIZE +
+                    (lockTimeOffset - witnessesOffset);
         }
         else {
             serializedSize = serializedSizeNoWitnesses;
@@ -121,34 +125,25 @@ public class Transaction {
 
     /* Hashes transaction to get txid */
     public SHA256HASH calcTxid() throws IOException {
-        /* Txid is calculated without witnesses */
+        /* Txid is calculated without witnesses. Inputs and outputs are contiguous in data. */
         SHA256OutputStream sha256OutputStream = SHA256HASH.getOutputStream();
-        sha256OutputStream.write(version);
-        txInCount.serialize(sha256OutputStream);
-        for(int i=0; i<txIn.length; i++) {
-            txIn[i].serialize(sha256OutputStream);
-        }
-        txOutCount.serialize(sha256OutputStream);
-        for(int i=0; i<txOut.length; i++) {
-            txOut[i].serialize(sha256OutputStream);
-        }
-        sha256OutputStream.write(lockTime);
+        sha256OutputStream.write(data, offset, BitcoinParams.TRANSACTION_VERSION_SIZE);
+        sha256OutputStream.write(data, txInOffset, witnessesOffset - txInOffset);
+        sha256OutputStream.write(data, lockTimeOffset, BitcoinParams.TRANSACTION_LOCKTIME_SIZE);
 
         /* Return double SHA256 */
         return sha256OutputStream.getDigest().getHashOfHash();
-//        /* Txid is calculated without witnesses */
-//        ByteBuffer txData = ByteBuffer.allocate(txSizeNoWitnesses);
-//        txData.put(version);
-//        txData.put(txInCount);
-//        for(int i=0; i<txIn.length; i++) {
-//            txIn[i].getRawTxInData(txData);
-//        }
-//        txData.put(txOutCount);
-//        for(int i=0; i<txOut.length; i++) {
-//            txOut[i].getRawTxOutData(txData);
-//        }
-//        txData.put(lockTime);
-//        return Utils.SHA256.digest(Utils.SHA256.digest(txData.array()));
+    }
+
+
+    /* Hashes transaction to get txid using the given digest. The digest is reset on return,
+     * so one digest can be reused for all transactions of a block. */
+    private SHA256HASH calcTxid(MessageDigest digest) {
+        digest.update(data, offset, BitcoinParams.TRANSACTION_VERSION_SIZE);
+        digest.update(data, txInOffset, witnessesOffset - txInOffset);
+        digest.update(data, lockTimeOffset, BitcoinParams.TRANSACTION_LOCKTIME_SIZE);
+        byte[] hashDigest1 = digest.digest();
+        return new SHA256HASH(digest.digest(hashDigest1));
     }
 
 
@@ -179,27 +174,38 @@ public class Transaction {
     public SHA256HASH getTxid() { return txid; }
 
     public long getVersion() {
-        return BitcoinParams.readUINT32(version, 0);
+        return BitcoinParams.readUINT32(data, offset);
     }
 
-    public byte[] getVersionBytes() { return Arrays.copyOf(version, version.length); }
+    public byte[] getVersionBytes() {
+        return Arrays.copyOfRange(data, offset, offset + BitcoinParams.TRANSACTION_VERSION_SIZE);
+    }
 
     public boolean hasWitnesses() { return hasWitnesses; }
 
-    public byte[] getWitMarkerFlag() { return Arrays.copyOf(witMarkerFlag, witMarkerFlag.length); }
+    public byte[] getWitMarkerFlag() {
+        if(!hasWitnesses) {
+            return null;
+        }
+        int witMarkerFlagOffset = offset + BitcoinParams.TRANSACTION_VERSION_SIZE;
+        return Arrays.copyOfRange(data, witMarkerFlagOffset,
+                witMarkerFlagOffset + BitcoinParams.TRANSACTION_WIT_MARKER_FLAG_SIZE);
+    }
 
-    private byte[] getWitnesses() { return Arrays.copyOf(witnesses, witnesses.length); }
+    private byte[] getWitnesses() {
+        return Arrays.copyOfRange(data, witnessesOffset, lockTimeOffset);
+    }
 
     public int getTxInCount() {
-        return (int)txInCount.getValue();
+        return txIn.length;
     }
 
     public int getTxOutCount() {
-        return (int)txOutCount.getValue();
+        return txOut.length;
     }
 
     public long getLockTime() {
-        return BitcoinParams.readUINT32(lockTime, 0);
+        return BitcoinParams.readUINT32(data, lockTimeOffset);
     }
 
     public boolean isCoinbase() { return isCoinbase; }
@@ -220,12 +226,14 @@ public class Transaction {
             printStream.println("Txid:" + this.getTxid());
             printStream.println("isCoinbase: " + this.isCoinbase());
             printStream.println("Version: " + this.getVersion() + " -- LE: " +
-                    Hex.encodeHexString(version));
+                    Hex.encodeHexString(getVersionBytes()));
             printStream.println("Has witnesses: " + this.hasWitnesses());
-            printStream.println("TxInCount:" + this.getTxInCount() + " -- " + txInCount.toString());
-            printStream.println("TxOutCount:" + this.getTxOutCount() + " -- " + txOutCount);
+            printStream.println("TxInCount:" + this.getTxInCount() + " -- " +
+                    Hex.encodeHexString(CompactSizeUInt.getEncoded(getTxInCount())));
+            printStream.println("TxOutCount:" + this.getTxOutCount() + " -- " +
+                    Hex.encodeHexString(CompactSizeUInt.getEncoded(getTxOutCount())));
             printStream.println("Locktime: " + this.getLockTime() + " -- LE: " +
-                    Hex.encodeHexString(lockTime));
+                    Hex.encodeHexString(BitcoinParams.getUINT32(getLockTime())));
             printStream.println("Tx size (with witnesses): " + this.getSerializedSize());
             printStream.println("Tx size (no witnesses): " + this.getSerializedSizeNoWitnesses());
         }
@@ -243,10 +251,107 @@ public class Transaction {
     }
 
 
-    /* Deserialize */
+    /* Deserialize. The returned transaction is backed by its own copy of the data. */
     public static Transaction deserialize(SHA256HASH blockhash, int height, byte[] data,
                                           int offset, boolean isCoinbase)
         throws BitcoinBlockException {
+        return deserialize(blockhash, height, data, offset, isCoinbase, false);
+    }
+
+
+    /* Deserialize. If flyweight is true, the transaction, its inputs and its outputs are views
+     * into data and the caller must not modify data afterwards. Else the transaction's bytes
+     * are copied once and the views are made into the copy, the transaction is parsed once. */
+    public static Transaction deserialize(SHA256HASH blockhash, int height, byte[] data,
+                                          int offset, boolean isCoinbase, boolean flyweight)
+        throws BitcoinBlockException {
+        if(flyweight) {
+            return deserializeFlyweight(blockhash, height, data, offset, isCoinbase, false, null);
+        }
+
+        /* Length first, without parsing. If it can not be read, parsing in place throws the
+         * matching exception. */
+        int serializedSize;
+        try {
+            serializedSize = scanSerializedSize(data, offset);
+        } catch (IndexOutOfBoundsException e) {
+            serializedSize = -1;
+        }
+        if(serializedSize < 0 || serializedSize > data.length - offset) {
+            return deserializeFlyweight(blockhash, height, data, offset, isCoinbase, false, null);
+        }
+
+        byte[] txData = Utils.readBytesFromByteArray(data, offset, serializedSize);
+        return deserializeFlyweight(blockhash, height, txData, 0, isCoinbase, false, null);
+    }
+
+
+    /* Serialized size of the transaction at offset, from its length fields only. */
+    private static int scanSerializedSize(byte[] data, int offset) {
+        int originalOffset = offset;
+
+        /* Version and witness marker and flag */
+        offset += BitcoinParams.TRANSACTION_VERSION_SIZE;
+        boolean hasWitness = (data[offset] == BitcoinParams.TRANSACTION_WIT_MARKER_FLAG[0] &&
+                data[offset + 1] == BitcoinParams.TRANSACTION_WIT_MARKER_FLAG[1]);
+        if(hasWitness) {
+            offset += BitcoinParams.TRANSACTION_WIT_MARKER_FLAG_SIZE;
+        }
+
+        /* txIn: outpoint, script, sequence */
+        long txInCount = CompactSizeUInt.getValue(data, offset);
+        offset += CompactSizeUInt.getSizeOf(data, offset);
+        for(long i=0; i<txInCount; i++) {
+            offset += SHA256HASH.HASH_SIZE + BitcoinParams.TRANSACTION_OUT_INDEX_SIZE;
+            offset += (int) CompactSizeUInt.getValue(data, offset) +
+                    CompactSizeUInt.getSizeOf(data, offset);
+            offset += BitcoinParams.TRANSACTION_SEQUENCE_SIZE;
+        }
+
+        /* txOut: value, script */
+        long txOutCount = CompactSizeUInt.getValue(data, offset);
+        offset += CompactSizeUInt.getSizeOf(data, offset);
+        for(long i=0; i<txOutCount; i++) {
+            offset += BitcoinParams.TRANSACTION_VALUE_SIZE;
+            offset += (int) CompactSizeUInt.getValue(data, offset) +
+                    CompactSizeUInt.getSizeOf(data, offset);
+        }
+
+        /* Witnesses, one per txIn */
+        if(hasWitness) {
+            for(long i=0; i<txInCount; i++) {
+                long stackItemsCount = CompactSizeUInt.getValue(data, offset);
+                offset += CompactSizeUInt.getSizeOf(data, offset);
+                for(long j=0; j<stackItemsCount; j++) {
+                    offset += (int) CompactSizeUInt.getValue(data, offset) +
+                            CompactSizeUInt.getSizeOf(data, offset);
+                }
+            }
+        }
+
+        offset += BitcoinParams.TRANSACTION_LOCKTIME_SIZE;
+        return offset - originalOffset;
+    }
+
+
+    /* Deserialize only what is relevant to the UTXO set. Outputs are views into data.
+     * Input scripts, sequences and witnesses are skipped by length and not retained; only the
+     * outpoints of inputs are kept. The txid is still hashed over the non-witness serialization.
+     * The digest is used for hashing and may be shared by all transactions of a block. */
+    public static Transaction deserializeUtxoOnly(SHA256HASH blockhash, int height, byte[] data,
+                                                  int offset, boolean isCoinbase,
+                                                  MessageDigest digest)
+            throws BitcoinBlockException {
+        return deserializeFlyweight(blockhash, height, data, offset, isCoinbase, true, digest);
+    }
+
+
+    /* Deserialize as views into data. If utxoOnly is true, inputs keep their outpoint only.
+     * If digest is null, a new one is used. */
+    private static Transaction deserializeFlyweight(SHA256HASH blockhash, int height, byte[] data,
+                                                    int offset, boolean isCoinbase,
+                                                    boolean utxoOnly, MessageDigest digest)
+        throws BitcoinBlockException {
         int originalOffset = offset;
         boolean headerParsed = false;
         boolean txInParsed = false;
@@ -254,84 +359,80 @@ public class Transaction {
         boolean witnessesParsed = false;
         try {
             /* Deserialize header */
-            byte[] version = Utils.readBytesFromByteArray(
-                    data, offset, BitcoinParams.TRANSACTION_VERSION_SIZE);
             offset += BitcoinParams.TRANSACTION_VERSION_SIZE;
 
             /* look for witness marker and witness flag */
-            byte[] witMarkerFlag = Utils.readBytesFromByteArray(
-                    data, offset, BitcoinParams.TRANSACTION_WIT_MARKER_FLAG_SIZE);
             boolean hasWitness;
-            if (Arrays.equals(witMarkerFlag, BitcoinParams.TRANSACTION_WIT_MARKER_FLAG)) {
+            if (data[offset] == BitcoinParams.TRANSACTION_WIT_MARKER_FLAG[0] &&
+                    data[offset + 1] == BitcoinParams.TRANSACTION_WIT_MARKER_FLAG[1]) {
                 hasWitness = true;
                 offset += BitcoinParams.TRANSACTION_WIT_MARKER_FLAG_SIZE;
             } else {
                 hasWitness = false;
-                witMarkerFlag = null;
             }
             headerParsed = true;
 
             /* Deserialize txIn */
-            CompactSizeUInt txInCount = CompactSizeUInt.deserialize(data, offset);
-            offset += txInCount.getSerializedSize();
+            int txInOffset = offset;
+            int txInCount = (int) CompactSizeUInt.getValue(data, offset);
+            offset += CompactSizeUInt.getSizeOf(data, offset);
 
-            TransactionInput[] txIn = new TransactionInput[(int) txInCount.getValue()];
+            TransactionInput[] txIn = new TransactionInput[txInCount];
             for (int i = 0; i < txIn.length; i++) {
-                txIn[i] = TransactionInput.deserialize(blockhash, height, data, offset, isCoinbase);
+                if(utxoOnly) {
+                    txIn[i] = TransactionInput.deserializeOutpoint(
+                            blockhash, height, data, offset, isCoinbase);
+                } else {
+                    txIn[i] = TransactionInput.deserialize(
+                            blockhash, height, data, offset, isCoinbase, true);
+                }
                 offset += txIn[i].getSerializedSize();
             }
             txInParsed = true;
 
             /* Deserialize txOut */
-            CompactSizeUInt txOutCount = CompactSizeUInt.deserialize(data, offset);
-            offset += txOutCount.getSerializedSize();
+            int txOutCount = (int) CompactSizeUInt.getValue(data, offset);
+            offset += CompactSizeUInt.getSizeOf(data, offset);
 
-            TransactionOutput[] txOut = new TransactionOutput[(int) txOutCount.getValue()];
+            TransactionOutput[] txOut = new TransactionOutput[txOutCount];
             for (int i = 0; i < txOut.length; i++) {
                 txOut[i] = TransactionOutput.deserialize(
-                        blockhash, height, data, offset, isCoinbase, i);
+                        blockhash, height, data, offset, isCoinbase, i, true);
                 offset += txOut[i].getSerializedSize();
             }
             txOutParsed = true;
 
-            /* Deserialize witnesses if any */
-            byte[] witnesses = null;
+            /* Skip witnesses if any */
+            int witnessesOffset = offset;
             if (hasWitness) {
-                /* count witnesses bytes */
-                int offset2 = offset;
-
                 /* there is one witness field per transaction input */
-                for (int i = 0; i < txInCount.getValue(); i++) {
+                for (int i = 0; i < txInCount; i++) {
                     /* read number of stack items */
-                    CompactSizeUInt stackItemsCount = CompactSizeUInt.deserialize(data, offset2);
-                    offset2 += stackItemsCount.getSerializedSize();
+                    long stackItemsCount = CompactSizeUInt.getValue(data, offset);
+                    offset += CompactSizeUInt.getSizeOf(data, offset);
 
                     /* read stack items */
-                    for (int j = 0; j < stackItemsCount.getValue(); j++) {
+                    for (long j = 0; j < stackItemsCount; j++) {
                         /* read stack item byte length and skip it */
-                        CompactSizeUInt stackItemBytes = CompactSizeUInt.deserialize(data, offset2);
-                        offset2 += stackItemBytes.getSerializedSize();
-                        offset2 += (int) stackItemBytes.getValue();
+                        int stackItemBytes = (int) CompactSizeUInt.getValue(data, offset);
+                        offset += CompactSizeUInt.getSizeOf(data, offset);
+                        offset += stackItemBytes;
                     }
                 }
-
-                /* witnesses bytes */
-                int witnessesBytes = offset2 - offset;
-
-                /* create witnesses byte array and copy data */
-                witnesses = Utils.readBytesFromByteArray(data, offset, witnessesBytes);
-                offset += witnessesBytes;
             }
             witnessesParsed = true;
 
             /* Deserialize locktime */
-            byte[] locktime = Utils.readBytesFromByteArray(
-                    data, offset, BitcoinParams.TRANSACTION_LOCKTIME_SIZE);
+            int lockTimeOffset = offset;
             offset += BitcoinParams.TRANSACTION_LOCKTIME_SIZE;
+            if (offset > data.length) {
+                throw new ArrayIndexOutOfBoundsException(offset);
+            }
 
             /* Make new transaction */
-            Transaction transaction = new Transaction(blockhash, height, isCoinbase, version,
-                    witMarkerFlag, txIn, txOut, witnesses, locktime);
+            Transaction transaction = new Transaction(blockhash, height, isCoinbase, data,
+                    originalOffset, hasWitness, txInOffset, txIn, txOut,
+                    witnessesOffset, lockTimeOffset, digest);
 
             /* Match offset with serialized size */
             if( (offset-originalOffset) != transaction.getSerializedSize() ) {
@@ -71,13 +71,23 @@ public class TransactionInput extends TXI {
     }
 
 
-    /* Blockchainj.Bitcoin deserialization. */
+    /* Blockchainj.Bitcoin deserialization. Copies script and sequence. */
     public static TransactionInput deserialize(SHA256HASH blockhash, int height, byte[] data,
                                                int offset, boolean isCoinbase)
             throws BitcoinBlockException {
+        return deserialize(blockhash, height, data, offset, isCoinbase, false);
+    }
+
+
+    /* Blockchainj.Bitcoin deserialization.
+     * If flyweight is true, script and sequence are left as views into data. */
+    public static TransactionInput deserialize(SHA256HASH blockhash, int height, byte[] data,
+                                               int offset, boolean isCoinbase,
+                                               boolean flyweight)
+            throws BitcoinBlockException {
         try {
             /* Deserialize transaction input */
-            TXI txi = TXI.deserialize(data, offset);
+            TXI txi = TXI.deserialize(data, offset, flyweight);
 
             /* Make new transaction input */
             return new TransactionInput(blockhash, height, txi, isCoinbase);
@@ -88,4 +98,22 @@ public class TransactionInput extends TXI {
             throw be;
         }
     }
+
+
+    /* Blockchainj.Bitcoin deserialization of the outpoint only. Script and sequence are
+     * skipped and not retained. */
+    public static TransactionInput deserializeOutpoint(SHA256HASH blockhash, int height,
+                                                       byte[] data, int offset,
+                                                       boolean isCoinbase)
+            throws BitcoinBlockException {
+        try {
+            return new TransactionInput(
+                    blockhash, height, TXI.deserializeOutpoint(data, offset), isCoinbase);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            BitcoinBlockException be = new BitcoinBlockException(
+                    "Parsing transaction input failed.", blockhash.toString(), height, e);
+            be.setOffset(offset);
+            throw be;
+        }
+    }
 }
@@ -39,8 +39,9 @@ public class TransactionOutput extends TXO {
 
     /* Private constructor. Does not copy input. Does not validate input fully. */
     private TransactionOutput(SHA256HASH blockhash, int height, boolean isCoinbase,
-                              int outIndex, byte[] value, byte[] script) {
-        super(value, script);
+                              int outIndex, byte[] data, int valueOffset, int scriptOffset,
+                              int scriptLen) {
+        super(data, valueOffset, scriptOffset, scriptLen);
         this.blockhash = blockhash;
         this.height = height;
         this.isCoinbase = isCoinbase;
@@ -86,31 +87,52 @@ public class TransactionOutput extends TXO {
 
     /* Bitcoin serialization */
     public void serialize(OutputStream outputStream) throws IOException {
-        outputStream.write(value);
-        new CompactSizeUInt(script.length).serialize(outputStream);
-        outputStream.write(script);
+        outputStream.write(data, valueOffset, BitcoinParams.TRANSACTION_VALUE_SIZE);
+        new CompactSizeUInt(scriptLen).serialize(outputStream);
+        outputStream.write(data, scriptOffset, scriptLen);
     }
 
 
+    /* Deserialize. Copies value and script. */
     public static TransactionOutput deserialize(SHA256HASH blockhash, int height, byte[] data,
                                          int offset, boolean isCoinbase, int outIndex)
             throws BitcoinBlockException {
+        return deserialize(blockhash, height, data, offset, isCoinbase, outIndex, false);
+    }
+
+
+    /* Deserialize. If flyweight is true, value and script are left as views into data. */
+    public static TransactionOutput deserialize(SHA256HASH blockhash, int height, byte[] data,
+                                                int offset, boolean isCoinbase, int outIndex,
+                                                boolean flyweight)
+            throws BitcoinBlockException {
         try {
             /* Deserialize transaction output */
-            /* read value */
-            byte[] value = Utils.readBytesFromByteArray(
-                    data, offset, BitcoinParams.TRANSACTION_VALUE_SIZE);
+            /* value */
+            int valueOffset = offset;
             offset += BitcoinParams.TRANSACTION_VALUE_SIZE;
 
             /* read script bytes */
-            CompactSizeUInt scriptBytes = CompactSizeUInt.deserialize(data, offset);
-            offset += scriptBytes.getSerializedSize();
-
-            /* read script */
-            byte[] script = Utils.readBytesFromByteArray(data, offset, (int)scriptBytes.getValue());
+            int scriptLen = (int) CompactSizeUInt.getValue(data, offset);
+            offset += CompactSizeUInt.getSizeOf(data, offset);
+
+            /* script */
+            int scriptOffset = offset;
+            if(scriptOffset + scriptLen > data.length) {
+                throw new ArrayIndexOutOfBoundsException(scriptOffset + scriptLen);
+            }
+
+            /* Copy value and script into one array if not flyweight */
+            if(!flyweight) {
+                int len = scriptOffset + scriptLen - valueOffset;
+                data = Utils.readBytesFromByteArray(data, valueOffset, len);
+                scriptOffset -= valueOffset;
+                valueOffset = 0;
+            }
 
             /* Make new transaction output */
-            return new TransactionOutput(blockhash, height, isCoinbase, outIndex, value, script);
+            return new TransactionOutput(blockhash, height, isCoinbase, outIndex,
+                    data, valueOffset, scriptOffset, scriptLen);
         } catch (ArrayIndexOutOfBoundsException e) {
             BitcoinBlockException be = new BitcoinBlockException(
                     "Parsing transaction output failed.", blockhash.toString(), height, e);
@@ -3,9 +3,13 @@ package Blockchainj.Blockchain;
 import Blockchainj.Bitcoin.*;
 import Blockchainj.Bitcoin.RPC.BitcoinRpcException;
 import Blockchainj.Bitcoin.RPC.BlockBuffer;
+import Blockchainj.Bitcoin.RPC.CachingBlockBuffer;
+import Blockchainj.Bitcoin.RPC.ConcurrentBlockBuffer;
 import Blockchainj.Blockchain.UtxoSet.AbstractUtxoSet;
 import Blockchainj.Blockchain.UtxoSet.BitcoinUtxoSetException;
 import Blockchainj.Blockchain.UtxoSet.UtxoSet;
+import Blockchainj.Blockchain.UtxoSet.UtxoSetDeltaBuffer;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoSetDelta;
 import Blockchainj.Util.SHA256HASH;
 
 import java.io.IOException;
@@ -17,6 +21,7 @@ import java.util.NoSuchElementException;
  * Blockchainj.Blockchain
  *
  * Gets blocks in order and builds UtxoSet.
+ * Alternatively gets UtxoSetDeltas in order and rebuilds UtxoSet without parsing blocks.
  *
  * This class holds exclusive write access to the AbstractUtxoSet.
  *
@@ -26,12 +31,19 @@ public class Blockchain {
     /* Utxo set */
     private final UtxoSet utxoSet;
 
-    /* BlockBuffer producer. */
+    /* BlockBuffer producer. Null if UtxoSetDeltaBuffer is used. */
     private final BlockBuffer blockBuffer;
     private BlockBuffer.BlockIterator blockIterator;
+    /* The ConcurrentBlockBuffer fetching for blockBuffer, for its stats. Null if none. */
+    private final ConcurrentBlockBuffer concurrentBlockBuffer;
+
+    /* UtxoSetDeltaBuffer producer. Null if BlockBuffer is used. */
+    private final UtxoSetDeltaBuffer utxoSetDeltaBuffer;
+    private UtxoSetDeltaBuffer.UtxoSetDeltaIterator utxoSetDeltaIterator;
 
     /* Last processed block and utxo set chagnes */
     private Block latestBlock = null;
+    private UtxoSetDelta latestUtxoSetDelta = null;
 
     /* Closed marker */
     private volatile boolean closed = false;
@@ -49,20 +61,56 @@ public class Blockchain {
     private Thread shutdownHookThread = null;
 
 
-    /* New blockchain constructor. If blockchainTimer is null, then timing is inactive. */
+    /* New blockchain constructor. If blockchainTimer is null, then timing is inactive.
+     * Blocks are parsed with UTXO-only parse mode. */
     public Blockchain(UtxoSet utxoSet, BlockBuffer blockBuffer) {
+        this(utxoSet, blockBuffer, Block.PARSE_MODE_UTXO);
+    }
+
+
+    /* New blockchain constructor with given Block parse mode. */
+    public Blockchain(UtxoSet utxoSet, BlockBuffer blockBuffer, int parseMode) {
         this.utxoSet = utxoSet;
         this.blockBuffer = blockBuffer;
+        this.concurrentBlockBuffer = findConcurrentBlockBuffer(blockBuffer);
+        this.utxoSetDeltaBuffer = null;
 
         /* Get unbounded blockbuffer iterator */
         int bestHeight = utxoSet.getBestHeight();
         if(bestHeight == AbstractUtxoSet.UNDEFINED_HEIGHT) {
-            blockIterator = blockBuffer.iterator(0);
+            blockIterator = blockBuffer.iterator(0, BlockBuffer.MAX_HEIGHT, parseMode);
         } else {
-            blockIterator = blockBuffer.iterator(bestHeight+1);
+            blockIterator = blockBuffer.iterator(bestHeight+1, BlockBuffer.MAX_HEIGHT, parseMode);
+        }
+    }
+
+    /* Returns the ConcurrentBlockBuffer blockBuffer is or wraps, or null */
+    private static ConcurrentBlockBuffer findConcurrentBlockBuffer(BlockBuffer blockBuffer) {
+        while(blockBuffer instanceof CachingBlockBuffer) {
+            blockBuffer = ((CachingBlockBuffer) blockBuffer).getWrappedBlockBuffer();
         }
+        return (blockBuffer instanceof ConcurrentBlockBuffer) ?
+                (ConcurrentBlockBuffer) blockBuffer : null;
     }
 
+
+    /* Rebuild blockchain constructor. Commits UtxoSetDeltas instead of blocks. */
+    public Blockchain(UtxoSet utxoSet, UtxoSetDeltaBuffer utxoSetDeltaBuffer) throws IOException {
+        this.utxoSet = utxoSet;
+        this.blockBuffer = null;
+        this.concurrentBlockBuffer = null;
+        this.utxoSetDeltaBuffer = utxoSetDeltaBuffer;
+
+        /* Get unbounded delta iterator */
+        int bestHeight = utxoSet.getBestHeight();
+        if(bestHeight == AbstractUtxoSet.UNDEFINED_HEIGHT) {
+            utxoSetDeltaIterator = utxoSetDeltaBuffer.iterator(0);
+        } else {
+            utxoSetDeltaIterator = utxoSetDeltaBuffer.iterator(bestHeight+1);
+        }
+    }
+
+
     /* Set methods */
     public synchronized void setPRINT_STREAM(PrintStream PRINT_STREAM) {
         this.PRINT_STREAM = PRINT_STREAM;
@@ -112,11 +160,26 @@ public class Blockchain {
                 blockchainTimer.startTimerForStage(BlockchainTimer.blockBuffer);
             }
 
+            /* Rebuild from utxo set delta */
+            if(utxoSetDeltaIterator != null) {
+                return doDeltaCycle();
+            }
+
             /* get next block */
             latestBlock = blockIterator.next();
 
+            /* TIMER. Block buffer stalls and fill level. */
+            if(activeTimer && (concurrentBlockBuffer != null)) {
+                blockchainTimer.setBlockBufferStats(concurrentBlockBuffer.getLastStallMillis(),
+                        concurrentBlockBuffer.getQueuedBlocks(),
+                        concurrentBlockBuffer.getQueuedBytes(),
+                        concurrentBlockBuffer.getWorkerCount(),
+                        concurrentBlockBuffer.getStallCount());
+            }
+
             /* check if it follows the blockchain */
-            if( !checkNextBlock(latestBlock) ) {
+            if( !checkNext(latestBlock.getBlockhash(), latestBlock.getPrevBlockhash(),
+                    latestBlock.getHeight()) ) {
                 throw new BitcoinBlockException("Block does not follow blockchain.",
                         latestBlock.getBlockhash().toString(), latestBlock.getHeight());
             }
@@ -157,23 +220,72 @@ public class Blockchain {
 
 
 
+    /* doCycle() for utxo set deltas. Called by doCycle() after timer round has started. */
+    private boolean doDeltaCycle() throws IOException, BitcoinUtxoSetException,
+            BitcoinBlockException {
+        /* get next delta */
+        UtxoSetDelta delta = utxoSetDeltaIterator.next();
+
+        /* check if it follows the blockchain */
+        if( !checkNext(delta.getBlockhash(), delta.getPrevBlockhash(), delta.getHeight()) ) {
+            throw new BitcoinBlockException("Utxo set delta does not follow blockchain.",
+                    delta.getBlockhash().toString(), delta.getHeight());
+        }
+
+        /* TIMER */
+        if(activeTimer) {
+            blockchainTimer.endTimerForStage1startTimerForStage2(
+                    BlockchainTimer.blockBuffer, BlockchainTimer.commitBlock);
+        }
+
+        /* Route delta to the utxo set's shards and commit */
+        utxoSet.commitUtxoSetChanges(delta.toUtxoSetChanges(
+                getShardNum(), utxoSet.getShardFactory().getUtxFactory()));
+        latestUtxoSetDelta = delta;
+
+        /* TIMER */
+        if(activeTimer) {
+            blockchainTimer.endTimerForStage(BlockchainTimer.commitBlock);
+            blockchainTimer.endRound();
+        }
+
+        /* print progress */
+        if( (PRINT_STREAM != null) && (delta.getHeight()%PRINT_PERIOD ==0 ) ) {
+            print(PRINT_STREAM);
+
+            /* print two lines vertical space */
+            PRINT_STREAM.print("\n\n");
+        }
+
+        return true;
+    }
+
+
+    /* Internal shard number of utxo set. Utxo sets without shards take any. */
+    private int getShardNum() {
+        if(utxoSet instanceof AbstractUtxoSet) {
+            return ((AbstractUtxoSet) utxoSet).getShardNum();
+        } else {
+            return 1;
+        }
+    }
+
+
     /* Check if this block follows the previous one. */
-    private boolean checkNextBlock(Block block) {
+    private boolean checkNext(SHA256HASH blockhash, SHA256HASH prevBlockhash, int height) {
         /* Check for genesis block */
-        SHA256HASH blockhash = block.getBlockhash();
         if( blockhash.equals(BitcoinParams.GENESIS_BLOCKHASH) ) {
             return true;
         }
 
         /* Check blockhashes */
-        SHA256HASH prevBlockhash = block.getPrevBlockhash();
         SHA256HASH utxoBlockhash = utxoSet.getBestBlockhash();
         if( !utxoBlockhash.equals(prevBlockhash) ) {
             return false;
         }
 
         /* Check heights */
-        int prevHeight = block.getHeight() - 1;
+        int prevHeight = height - 1;
         int utxoHeight = utxoSet.getBestHeight();
         //noinspection RedundantIfStatement
         if( prevHeight != utxoHeight ) {
@@ -258,6 +370,12 @@ public class Blockchain {
             printStream.println("Latest block height: " + latestBlock.getHeight());
             printStream.println("Latest block blockhash: " + latestBlock.getBlockhash());
         }
+        if(latestUtxoSetDelta != null) {
+            printStream.println("Latest utxo set delta height: " +
+                    latestUtxoSetDelta.getHeight());
+            printStream.println("Latest utxo set delta blockhash: " +
+                    latestUtxoSetDelta.getBlockhash());
+        }
         if(activeTimer) {
             blockchainTimer.print(printStream, true, true, true);
         }
@@ -282,7 +400,12 @@ public class Blockchain {
         printStream.println("Blockchainj.Blockchain do print: " + (PRINT_STREAM!=null));
         printStream.println("Blockchainj.Blockchain print period: " + PRINT_PERIOD);
         utxoSet.printParameters(printStream);
-        blockBuffer.printParameters(printStream);
+        if(blockBuffer != null) {
+            blockBuffer.printParameters(printStream);
+        }
+        if(utxoSetDeltaBuffer != null) {
+            utxoSetDeltaBuffer.printParameters(printStream);
+        }
     }
 
 
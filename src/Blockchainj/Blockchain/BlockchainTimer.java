@@ -3,6 +3,8 @@ package Blockchainj.Blockchain;
 
 import Blockchainj.Util.Timer;
 
+import java.io.PrintStream;
+
 /** BlockchainTimer
  *
  *  This class times the stages of building the blockchain.
@@ -12,13 +14,18 @@ import Blockchainj.Util.Timer;
  *
  *  A Round represents the complete cycle of a block's processing.
  *
+ *  BlockBufferStall is the part of BlockBuffer spent waiting for a block that was not
+ *  prefetched yet. Along with it the fill level of the block buffer is kept, if the block
+ *  buffer reports it.
+ *
  */
 
 public class BlockchainTimer extends Timer {
     /* Times */
     public static final int blockBuffer = 0;
     public static final int commitBlock = 1;
-    private static final int blockchainTimerLabelCount = 2;
+    public static final int blockBufferStall = 2;
+    private static final int blockchainTimerLabelCount = 3;
 
     /* Times names */
     public static final String totalLabelB = "Total Blockchain Time";
@@ -26,8 +33,15 @@ public class BlockchainTimer extends Timer {
     static {
         timeLabelsB[blockBuffer] = "BlockBuffer";
         timeLabelsB[commitBlock] = "CommitChanges";
+        timeLabelsB[blockBufferStall] = "BlockBufferStall";
     }
 
+    /* Block buffer fill level and workers at the last round */
+    private int bufferedBlocks = 0;
+    private long bufferedBytes = 0;
+    private int bufferWorkers = 0;
+    private long bufferStalls = 0;
+
     public BlockchainTimer(boolean active) {
         super(timeLabelsB, totalLabelB, active);
 
@@ -43,4 +57,29 @@ public class BlockchainTimer extends Timer {
     public BlockchainTimer() {
         this(true);
     }
+
+
+    /* Sets the block buffer stall time of the current round and the block buffer stats. */
+    public void setBlockBufferStats(long stallMillis, int bufferedBlocks, long bufferedBytes,
+                                    int bufferWorkers, long bufferStalls) {
+        if(!isActive())
+            return;
+        currentRoundTimes[blockBufferStall] = stallMillis;
+        this.bufferedBlocks = bufferedBlocks;
+        this.bufferedBytes = bufferedBytes;
+        this.bufferWorkers = bufferWorkers;
+        this.bufferStalls = bufferStalls;
+    }
+
+
+    @Override
+    public void print(PrintStream printStream, boolean doLastTimes, boolean doMovingSum,
+                      boolean doCumulativeTimes) {
+        super.print(printStream, doLastTimes, doMovingSum, doCumulativeTimes);
+        if(!isActive())
+            return;
+        printStream.println("BlockBuffer queued blocks: " + bufferedBlocks +
+                ", queued bytes: " + bufferedBytes + ", workers: " + bufferWorkers +
+                ", stalls: " + bufferStalls);
+    }
 }
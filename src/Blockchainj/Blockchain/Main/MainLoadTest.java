@@ -0,0 +1,76 @@
+package Blockchainj.Blockchain.Main;
+
+import Blockchainj.Blockchain.Server.BlockchainServer;
+import Blockchainj.Blockchain.Server.LoadTest;
+import Blockchainj.Blockchain.UtxoSet.UtxoSetIO;
+
+import java.io.PrintStream;
+
+/**
+ *  MainLoadTest
+ *
+ *  This class runs a load test against a Prototype Protocol server and writes its report.
+ *  Starts a server on a pre-built or synthetic utxo set first, if set.
+ *  Uses UserParams to configure parameters.
+ */
+
+public class MainLoadTest {
+
+    public static void main(String[] args) {
+        /* Using UserParams for parameters */
+        UserParams.loadOrWriteUserParams(args);
+
+        /* Set Shard and UTX Types */
+        UserParams.setShardAndUtxTypes();
+
+        /* Set print stream */
+        PrintStream printStream = UserParams.PRINT_STREAM;
+
+        UtxoSetIO utxoSetIO = null;
+        BlockchainServer blockchainServer = null;
+        try {
+            if(UserParams.getBool("LOAD_TEST_START_SERVER")) {
+                /* Pre-built or synthetic utxo set */
+                if(UserParams.getString("LOAD_TEST_PATH_UTXO_SET").trim().isEmpty()) {
+                    utxoSetIO = UserParams.BLOCKCHAIN_SERVER_getNewUtxoSetIO();
+                } else {
+                    printStream.println("Opening or generating synthetic utxo set...");
+                    utxoSetIO = UserParams.LOAD_TEST_getNewSyntheticUtxoSetIO();
+                }
+                utxoSetIO.print(printStream);
+
+                /* Start server */
+                printStream.println("Starting server...");
+                blockchainServer = UserParams.BLOCKCHAIN_SERVER_getNewBlockchainServer(utxoSetIO);
+                blockchainServer.start();
+            }
+
+            /* Run test */
+            LoadTest loadTest = UserParams.LOAD_TEST_getNewLoadTest();
+            printStream.println("Running load test...");
+            loadTest.run();
+            loadTest.print(printStream);
+
+            /* Write report */
+            String reportFile = UserParams.getString("LOAD_TEST_REPORT_FILE").trim();
+            if(!reportFile.isEmpty()) {
+                loadTest.writeReport(reportFile, UserParams.getString("LOAD_TEST_LABEL"));
+                printStream.println("Report written to " + reportFile);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            /* Close server and utxo set */
+            try {
+                if(blockchainServer != null) {
+                    blockchainServer.close();
+                }
+                if(utxoSetIO != null) {
+                    utxoSetIO.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
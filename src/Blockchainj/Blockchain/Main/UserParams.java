@@ -1,19 +1,26 @@
 package Blockchainj.Blockchain.Main;
 
 import Blockchainj.Bitcoin.RPC.BlockBuffer;
+import Blockchainj.Bitcoin.RPC.BlockFileBlockBuffer;
+import Blockchainj.Bitcoin.RPC.CachingBlockBuffer;
 import Blockchainj.Bitcoin.RPC.ConcurrentBlockBuffer;
+import Blockchainj.Bitcoin.RPC.RESTconnection;
 import Blockchainj.Bitcoin.RPC.RPCconnection;
+import Blockchainj.Bitcoin.RPC.RPCconnectionMulti;
 import Blockchainj.Bitcoin.RPC.SimpleBlockBuffer;
 import Blockchainj.Blockchain.Blockchain;
 import Blockchainj.Blockchain.Server.BlockchainServer;
+import Blockchainj.Blockchain.Server.LoadTest;
 import Blockchainj.Blockchain.Statistics.StatisticsBlocks;
 import Blockchainj.Blockchain.Statistics.StatisticsUtxoSet;
 import Blockchainj.Blockchain.UtxoSet.*;
 import Blockchainj.Blockchain.UtxoSet.Shard.ShardSortedMapUtxs;
 import Blockchainj.Blockchain.UtxoSet.UTXOS.*;
+import Blockchainj.Util.AsyncLog;
 import org.apache.commons.cli.*;
 
 import java.io.*;
+import java.net.UnknownHostException;
 import java.nio.file.Paths;
 import java.util.*;
 
@@ -37,20 +44,35 @@ public class UserParams {
         DEFAULT_PARAMETERS.put("RPC_PORT", getStr("8332"));
         DEFAULT_PARAMETERS.put("RPC_USER", getStr("user"));
         DEFAULT_PARAMETERS.put("RPC_PASSWORD", getStr("user"));
+        /* Fetch blocks and blockhashes through the binary REST interface (bitcoind -rest) */
+        DEFAULT_PARAMETERS.put("RPC_USE_REST", getStr(false));
+        /* Max concurrent requests, and pooled keep-alive connections. -1 for unlimited. */
+        DEFAULT_PARAMETERS.put("RPC_MAX_CONCURRENT_REQUESTS", getStr(4));
 
-//        TODO comma seperated multiple rpcs
-//        DEFAULT_PARAMETERS.put("RPC_IP_MULTI", getStr("127.0.0.1"));
-//        DEFAULT_PARAMETERS.put("RPC_PORT_MULTI", getStr("8332"));
-//        DEFAULT_PARAMETERS.put("RPC_USER_MULTI", getStr("user"));
-//        DEFAULT_PARAMETERS.put("RPC_PASSWORD_MULTI", getStr("user"));
+        /* Comma seperated ip:port list of additional nodes. Requests are balanced over
+         * RPC_IP:RPC_PORT and these nodes, with the same user and password. */
+        DEFAULT_PARAMETERS.put("RPC_MULTI_NODES", getStr(""));
+        /* Send duplicate getblock requests to another node when slower than p95 */
+        DEFAULT_PARAMETERS.put("RPC_MULTI_HEDGING", getStr(true));
 
 
 
         /** BlockBuffer parameters */
         DEFAULT_PARAMETERS.put("BLOCKBUFFER_CONCURRENT", getStr(true));
         DEFAULT_PARAMETERS.put("BLOCKBUFFER_THREADS", getStr(4));
-        DEFAULT_PARAMETERS.put("BLOCKBUFFER_SIZE", getStr(64));
+        /* Max number of blocks prefetched */
+        DEFAULT_PARAMETERS.put("BLOCKBUFFER_SIZE", getStr(1024));
+        /* Max estimated memory of blocks prefetched, in MiB */
+        DEFAULT_PARAMETERS.put("BLOCKBUFFER_BYTES_MB", getStr(256));
+        /* Number of blockhashes and blocks per JSON-RPC batch request */
+        DEFAULT_PARAMETERS.put("BLOCKBUFFER_BATCH_SIZE", getStr(8));
         DEFAULT_PARAMETERS.put("BLOCKBUFFER_END_HEIGHT", getStr(527742));
+        /* Read blocks from bitcoind's blocks/blk*.dat files instead of RPC. Empty for RPC.
+         * bitcoind should not be running. */
+        DEFAULT_PARAMETERS.put("BLOCKBUFFER_BLOCKS_DIR", getStr(""));
+        /* Persistent raw block cache directory. Reruns read cached blocks from disk.
+         * Empty for no cache. */
+        DEFAULT_PARAMETERS.put("BLOCKBUFFER_CACHE_DIR", getStr(""));
         //TODO DEFAULT_PARAMETERS.put("BLOCKBUFFER_STAY_BEHIND_BLOCKS", getStr(12));
 
 
@@ -81,6 +103,10 @@ public class UserParams {
         /* Period to do a suggestive call to the garbage collector. */
         DEFAULT_PARAMETERS.put("UTXO_SET_GARBAGE_COLLECTOR_PERIOD", getStr(10000));
 
+        /* Force the utxo set log to the disk every this many commits. 0 leaves it to the
+         * operating system until the utxo set closes. */
+        DEFAULT_PARAMETERS.put("UTXO_SET_LOG_SYNC_PERIOD", getStr(0));
+
         /* Activate utxo set timer */
         DEFAULT_PARAMETERS.put("UTXO_SET_ACTIVE_TIMER", getStr(true));
 
@@ -98,6 +124,11 @@ public class UserParams {
         /* Activate blockchain timer */
         DEFAULT_PARAMETERS.put("BLOCKCHAIN_ACTIVE_TIMER", getStr(true));
 
+        /* Export each committed block's utxo set changes to this file. Empty for no export. */
+        DEFAULT_PARAMETERS.put("BLOCKCHAIN_UTXO_SET_DELTA_EXPORT_FILE", getStr(""));
+        /* Rebuild from this utxo set delta file instead of blocks. Empty to use blocks. */
+        DEFAULT_PARAMETERS.put("BLOCKCHAIN_UTXO_SET_DELTA_SOURCE_FILE", getStr(""));
+
 
 
         /** BlockchainServer parameters */
@@ -106,8 +137,26 @@ public class UserParams {
         DEFAULT_PARAMETERS.put("SERVER_UTXO_SET_DO_MERKLE_TREE_CHECKSUM_ON_INIT", getStr(true));
         DEFAULT_PARAMETERS.put("SERVER_IP", getStr("127.0.0.1"));
         DEFAULT_PARAMETERS.put("SERVER_PORT", getStr(8334));
+        /* Max clients connected at the same time */
+        DEFAULT_PARAMETERS.put("SERVER_MAX_CONNECTIONS", getStr(512));
+        /* Threads parsing requests and computing responses */
+        DEFAULT_PARAMETERS.put("SERVER_HANDLER_THREADS", getStr(4));
+        /* Encoded bestshard and bestmrkltree responses cache, in MiB. 0 for no cache. */
+        DEFAULT_PARAMETERS.put("SERVER_RESPONSE_CACHE_MB", getStr(256));
+        /* Stream bestshard and bestshardchk responses from shard image files */
+        DEFAULT_PARAMETERS.put("SERVER_DO_SHARD_IMAGES", getStr(true));
+        DEFAULT_PARAMETERS.put("SERVER_PATH_SHARD_IMAGES",
+                getStr("/home/asdf/blockchainj_files/server_shard_images"));
+        /* Keep each committed block's shard changes in this file for "sharddelta" requests.
+         * Records older than SHARD_DELTA_MAX_BLOCKS are compacted away, see ShardDeltaStore.
+         * Empty to not serve shard deltas. */
+        DEFAULT_PARAMETERS.put("SERVER_SHARD_DELTA_FILE", getStr(""));
         DEFAULT_PARAMETERS.put("SERVER_LOG_PATH",
                 getStr("/home/asdf/blockchainj_files/server_logs"));
+        /* Server log level: DEBUG, INFO, WARN or ERROR */
+        DEFAULT_PARAMETERS.put("SERVER_LOG_LEVEL", getStr("INFO"));
+        /* Server log file is rotated at this size, in MiB. 0 for no rotation. */
+        DEFAULT_PARAMETERS.put("SERVER_LOG_MAX_FILE_MB", getStr(64));
 
 
         /** StatisticsBlocks parameters */
@@ -128,6 +177,34 @@ public class UserParams {
         DEFAULT_PARAMETERS.put("STAT_UTXOSET_THREAD_NUM", getStr(4));
 
 
+        /** LoadTest parameters */
+        /* Start a server on SERVER_IP and SERVER_PORT for the test. Else test a running one. */
+        DEFAULT_PARAMETERS.put("LOAD_TEST_START_SERVER", getStr(true));
+        /* Started server's utxo set. Empty for SERVER_PATH_UTXO_SET, else a synthetic utxo set
+         * is opened, or created with LOAD_TEST_SYNTHETIC_* if it does not exist. */
+        DEFAULT_PARAMETERS.put("LOAD_TEST_PATH_UTXO_SET",
+                getStr("/home/asdf/blockchainj_files/load_test/utxo_set"));
+        DEFAULT_PARAMETERS.put("LOAD_TEST_SYNTHETIC_BLOCKS", getStr(1000));
+        DEFAULT_PARAMETERS.put("LOAD_TEST_SYNTHETIC_TXS_PER_BLOCK", getStr(500));
+        DEFAULT_PARAMETERS.put("LOAD_TEST_SYNTHETIC_OUTPUTS_PER_TX", getStr(2));
+        /* Request mix, <request type>[:<list count>]=<weight>,... */
+        DEFAULT_PARAMETERS.put("LOAD_TEST_MIX",
+                getStr("bestheight=40,bestshard:2=30,bestmrkltree=10,blockhash:5=20"));
+        DEFAULT_PARAMETERS.put("LOAD_TEST_CLIENTS", getStr(16));
+        /* 1 opens a connection per request, 2 pipelines over one connection per client */
+        DEFAULT_PARAMETERS.put("LOAD_TEST_PROTOCOL_VERSION", getStr(2));
+        /* Requests per second arriving regardless of responses. 0 for closed loop. */
+        DEFAULT_PARAMETERS.put("LOAD_TEST_OPEN_LOOP_RATE", getStr(0));
+        DEFAULT_PARAMETERS.put("LOAD_TEST_WARMUP_SECONDS", getStr(5));
+        DEFAULT_PARAMETERS.put("LOAD_TEST_DURATION_SECONDS", getStr(30));
+        /* Tab delimited report, rows are appended. Empty for no report. */
+        DEFAULT_PARAMETERS.put("LOAD_TEST_REPORT_FILE",
+                getStr("/home/asdf/blockchainj_files/load_test/report.log"));
+        /* Label of the report rows, e.g. the server version */
+        DEFAULT_PARAMETERS.put("LOAD_TEST_LABEL", getStr("default"));
+        DEFAULT_PARAMETERS.put("LOAD_TEST_SEED", getStr(1));
+
+
         Iterator<String> it = DEFAULT_PARAMETERS.keySet().iterator();
         while(it.hasNext()) {
             String key = it.next();
@@ -268,30 +345,91 @@ public class UserParams {
 
     /** RPCconnection */
     public static RPCconnection getNewRPCconnection() {
+        /* Additional nodes */
+        String multiNodes = UserParams.getString("RPC_MULTI_NODES").trim();
+        if(multiNodes.isEmpty()) {
+            return getNewRPCconnection(
+                    UserParams.getString("RPC_IP"), UserParams.getString("RPC_PORT"));
+        }
+
+        /* Create new multi node RPC connection */
+        String[] nodes = multiNodes.split(",");
+        RPCconnection[] rpcConnections = new RPCconnection[nodes.length + 1];
+        rpcConnections[0] = getNewRPCconnection(
+                UserParams.getString("RPC_IP"), UserParams.getString("RPC_PORT"));
+        for(int i=0; i<nodes.length; i++) {
+            String[] ipPort = nodes[i].trim().split(":");
+            if(ipPort.length != 2) {
+                throw new IllegalArgumentException("Invalid RPC_MULTI_NODES entry " + nodes[i]);
+            }
+            rpcConnections[i+1] = getNewRPCconnection(ipPort[0], ipPort[1]);
+        }
+        return new RPCconnectionMulti(rpcConnections, UserParams.getBool("RPC_MULTI_HEDGING"));
+    }
+
+
+    private static RPCconnection getNewRPCconnection(String ip, String port) {
+        /* Create new REST connection */
+        if(UserParams.getBool("RPC_USE_REST")) {
+            return new RESTconnection(
+                    ip,
+                    port,
+                    UserParams.getString("RPC_USER"),
+                    UserParams.getString("RPC_PASSWORD"),
+                    UserParams.getInt("RPC_MAX_CONCURRENT_REQUESTS"));
+        }
+
         /* Create new RPC connection */
         return new RPCconnection(
-                UserParams.getString("RPC_IP"),
-                UserParams.getString("RPC_PORT"),
+                ip,
+                port,
                 UserParams.getString("RPC_USER"),
-                UserParams.getString("RPC_PASSWORD"));
+                UserParams.getString("RPC_PASSWORD"),
+                UserParams.getInt("RPC_MAX_CONCURRENT_REQUESTS"));
     }
 
 
     /** BlockBuffer */
     public static BlockBuffer getNewBlockBuffer(RPCconnection rpcCon) {
+        BlockBuffer blockBuffer = getNewUncachedBlockBuffer(rpcCon);
+
+        String cacheDir = UserParams.getString("BLOCKBUFFER_CACHE_DIR").trim();
+        if(!cacheDir.isEmpty()) {
+            try {
+                return new CachingBlockBuffer(blockBuffer, cacheDir);
+            } catch (IOException e) {
+                blockBuffer.close();
+                throw new RuntimeException(e);
+            }
+        } else {
+            return blockBuffer;
+        }
+    }
+
+
+    private static BlockBuffer getNewUncachedBlockBuffer(RPCconnection rpcCon) {
         //TODO UserParams.getInt("BLOCKBUFFER_STAY_BEHIND_BLOCKS")
-        if(UserParams.getBool("BLOCKBUFFER_CONCURRENT")) {
+        String blocksDir = UserParams.getString("BLOCKBUFFER_BLOCKS_DIR").trim();
+        if(!blocksDir.isEmpty()) {
+            return new BlockFileBlockBuffer(
+                    blocksDir,
+                    0,
+                    UserParams.getInt("BLOCKBUFFER_END_HEIGHT"));
+        } else if(UserParams.getBool("BLOCKBUFFER_CONCURRENT")) {
             return new ConcurrentBlockBuffer(
                     0,
                     UserParams.getInt("BLOCKBUFFER_END_HEIGHT"),
                     rpcCon,
                     UserParams.getInt("BLOCKBUFFER_SIZE"),
-                    UserParams.getInt("BLOCKBUFFER_THREADS"));
+                    UserParams.getInt("BLOCKBUFFER_THREADS"),
+                    UserParams.getInt("BLOCKBUFFER_BATCH_SIZE"),
+                    UserParams.getInt("BLOCKBUFFER_BYTES_MB") * 1024L * 1024L);
         } else {
             return new SimpleBlockBuffer(
                     0,
                     UserParams.getInt("BLOCKBUFFER_END_HEIGHT"),
-                    rpcCon);
+                    rpcCon,
+                    UserParams.getInt("BLOCKBUFFER_BATCH_SIZE"));
         }
     }
 
@@ -382,6 +520,9 @@ public class UserParams {
             abstractUtxoSet.setGARBAGE_COLLECTOR_CALL_PERIOD(
                     UserParams.getInt("UTXO_SET_GARBAGE_COLLECTOR_PERIOD"));
 
+            abstractUtxoSet.setUTXO_SET_LOG_SYNC_PERIOD(
+                    UserParams.getInt("UTXO_SET_LOG_SYNC_PERIOD"));
+
             abstractUtxoSet.setActiveTimer(UserParams.getBool("UTXO_SET_ACTIVE_TIMER"));
         }
     }
@@ -406,9 +547,27 @@ public class UserParams {
 
 
     /** Blockchain */
-    public static Blockchain BLOCKCHAIN_getNewBlockchain(UtxoSet utxoSet, BlockBuffer blockBuffer) {
+    public static Blockchain BLOCKCHAIN_getNewBlockchain(UtxoSet utxoSet, BlockBuffer blockBuffer)
+            throws IOException {
+        /* Export utxo set changes */
+        String exportFile = UserParams.getString("BLOCKCHAIN_UTXO_SET_DELTA_EXPORT_FILE").trim();
+        if(!exportFile.isEmpty()) {
+            if(!(utxoSet instanceof AbstractUtxoSet)) {
+                throw new IllegalArgumentException(
+                        "Utxo set delta export needs a sharded utxo set.");
+            }
+            ((AbstractUtxoSet) utxoSet).setUtxoSetDeltaWriter(
+                    new UtxoSetDeltaWriter(Paths.get(exportFile)));
+        }
+
+        /* Blocks or utxo set deltas */
         Blockchain blockchain;
-        blockchain = new Blockchain(utxoSet, blockBuffer);
+        String sourceFile = UserParams.getString("BLOCKCHAIN_UTXO_SET_DELTA_SOURCE_FILE").trim();
+        if(!sourceFile.isEmpty()) {
+            blockchain = new Blockchain(utxoSet, new UtxoSetDeltaBuffer(Paths.get(sourceFile)));
+        } else {
+            blockchain = new Blockchain(utxoSet, blockBuffer);
+        }
         blockchain.setPRINT_STREAM((UserParams.getBool("BLOCKCHAIN_DO_PRINT"))?
                 UserParams.PRINT_STREAM:null);
         blockchain.setPRINT_PERIOD(UserParams.getInt("BLOCKCHAIN_PRINT_PERIOD"));
@@ -440,11 +599,30 @@ public class UserParams {
             throws IOException {
         BlockchainServer blockchainServer;
 
+        /* Keep shard changes for shard deltas */
+        String shardDeltaFile = UserParams.getString("SERVER_SHARD_DELTA_FILE").trim();
+        if(!shardDeltaFile.isEmpty()) {
+            if(!(utxoSet instanceof AbstractUtxoSet)) {
+                throw new IllegalArgumentException("Shard deltas need a sharded utxo set.");
+            }
+            ((AbstractUtxoSet) utxoSet).setShardDeltaStore(
+                    new ShardDeltaStore(Paths.get(shardDeltaFile)));
+        }
+
         blockchainServer = new BlockchainServer(
                 UserParams.getString("SERVER_IP"),
                 UserParams.getInt("SERVER_PORT"),
+                BlockchainServer.DEFAULT_BACKLOG,
+                UserParams.getInt("SERVER_MAX_CONNECTIONS"),
+                UserParams.getInt("SERVER_HANDLER_THREADS"),
+                UserParams.getInt("SERVER_RESPONSE_CACHE_MB") * 1024L * 1024L,
+                UserParams.getBool("SERVER_DO_SHARD_IMAGES")?
+                        UserParams.getString("SERVER_PATH_SHARD_IMAGES"):null,
                 utxoSet,
-                UserParams.getString("SERVER_LOG_PATH"));
+                UserParams.getString("SERVER_LOG_PATH"),
+                BlockchainServer.getNewServerLog(
+                        AsyncLog.parseLevel(UserParams.getString("SERVER_LOG_LEVEL")),
+                        UserParams.getInt("SERVER_LOG_MAX_FILE_MB") * 1024L * 1024L));
 
         return blockchainServer;
     }
@@ -498,6 +676,45 @@ public class UserParams {
 
 
 
+    /** LoadTest */
+    public static LoadTest LOAD_TEST_getNewLoadTest() throws UnknownHostException {
+        return new LoadTest(
+                UserParams.getString("SERVER_IP"),
+                UserParams.getInt("SERVER_PORT"),
+                UserParams.getString("LOAD_TEST_MIX"),
+                UserParams.getInt("LOAD_TEST_CLIENTS"),
+                UserParams.getInt("LOAD_TEST_PROTOCOL_VERSION"),
+                Double.parseDouble(UserParams.getString("LOAD_TEST_OPEN_LOOP_RATE")),
+                UserParams.getInt("LOAD_TEST_WARMUP_SECONDS"),
+                UserParams.getInt("LOAD_TEST_DURATION_SECONDS"),
+                Long.parseLong(UserParams.getString("LOAD_TEST_SEED")));
+    }
+
+    /* Opens the synthetic utxo set, or creates it and generates its blocks */
+    public static UtxoSetIO LOAD_TEST_getNewSyntheticUtxoSetIO()
+            throws BitcoinUtxoSetException, IOException {
+        String path = UserParams.getString("LOAD_TEST_PATH_UTXO_SET");
+        if(new File(path).exists()) {
+            return new UtxoSetIO(path,
+                    UserParams.getBool("UTXO_SET_DO_MERKLE_TREE_CHECKSUM_ON_INIT"));
+        }
+
+        UtxoSetIO utxoSetIO = new UtxoSetIO(path,
+                UserParams.getInt("UTXO_SET_INTERNAL_SHARD_NUM"));
+        setUtxoSetParameters(utxoSetIO);
+        /* Server serves the merkle tree */
+        utxoSetIO.setHASH_SHARDS_AND_REBUILD_MERKLE_TREE_ON_COMMIT(true);
+        UtxoSetGenerator utxoSetGenerator = new UtxoSetGenerator(utxoSetIO,
+                UserParams.getInt("LOAD_TEST_SYNTHETIC_TXS_PER_BLOCK"),
+                UserParams.getInt("LOAD_TEST_SYNTHETIC_OUTPUTS_PER_TX"),
+                Long.parseLong(UserParams.getString("LOAD_TEST_SEED")));
+        utxoSetGenerator.commitBlocks(UserParams.getInt("LOAD_TEST_SYNTHETIC_BLOCKS"),
+                UserParams.PRINT_STREAM, 100);
+        return utxoSetIO;
+    }
+
+
+
 
 
 
@@ -37,6 +37,16 @@ public class ProtocolParams {
 
 
     /** Message **/
+    /* Protocol versions. Version 1 is one request per connection, without handshake.
+     * Version 2 connections start with a "protoversion" handshake. */
+    public static final int UNDEFINED_PROTOCOL_VERSION = 0;
+    public static final int PROTOCOL_VERSION_1 = 1;
+    public static final int PROTOCOL_VERSION_2 = 2;
+    public static final int PROTOCOL_VERSION = PROTOCOL_VERSION_2;
+
+    /* Version 2: max requests in flight per connection */
+    public static final int MAX_PIPELINED_REQUESTS = 64;
+
     /* Message: Request type size - char[12] ASCII */
     public static final int REQUEST_TYPE_SIZE = 12;
 
@@ -47,6 +57,13 @@ public class ProtocolParams {
     public static final int REQUEST_TYPE_LIST_MIN_COUNT = 0;
     public static final int REQUEST_TYPE_LIST_MAX_COUNT = 10;
 
+    /* Message: Request type list of element length max for chunked responses.
+     * Fits a request in the server's 4 KiB request buffer. */
+    public static final int REQUEST_TYPE_CHUNKED_LIST_MAX_COUNT = 1000;
+
+    /* Message: Request type outpoint list max length. Outpoints are 36 bytes each. */
+    public static final int REQUEST_TYPE_OUTPOINT_LIST_MAX_COUNT = 4000;
+
     /* Message: GetCustom message command bytes */
     public static final byte[] MESSAGE_CMD_GETCUSTOM = {
             (byte)0x67, (byte)0x65, (byte)0x74, (byte)0x63, (byte)0x75, (byte)0x73, (byte)0x74,
@@ -57,6 +74,21 @@ public class ProtocolParams {
             (byte)0x64, (byte)0x61, (byte)0x74, (byte)0x61, (byte)0x63, (byte)0x75, (byte)0x73,
             (byte)0x74, (byte)0x6f, (byte)0x6d, (byte)0x00, (byte)0x00};
 
+    /* Message: ProtoVersion message command bytes, "protoversion" */
+    public static final byte[] MESSAGE_CMD_PROTOVERSION = {
+            (byte)0x70, (byte)0x72, (byte)0x6f, (byte)0x74, (byte)0x6f, (byte)0x76, (byte)0x65,
+            (byte)0x72, (byte)0x73, (byte)0x69, (byte)0x6f, (byte)0x6e};
+
+    /* Message: RequestId message command bytes, "requestid" */
+    public static final byte[] MESSAGE_CMD_REQUESTID = {
+            (byte)0x72, (byte)0x65, (byte)0x71, (byte)0x75, (byte)0x65, (byte)0x73, (byte)0x74,
+            (byte)0x69, (byte)0x64, (byte)0x00, (byte)0x00, (byte)0x00};
+
+    /* Message: DataChunk message command bytes, "datachunk" */
+    public static final byte[] MESSAGE_CMD_DATACHUNK = {
+            (byte)0x64, (byte)0x61, (byte)0x74, (byte)0x61, (byte)0x63, (byte)0x68, (byte)0x75,
+            (byte)0x6e, (byte)0x6b, (byte)0x00, (byte)0x00, (byte)0x00};
+
 
     /* Message: Request/Response type bytes, "bestheight" */
     public static final byte[] MESSAGE_TYPE_BESTHEIGHT = {
@@ -103,6 +135,35 @@ public class ProtocolParams {
             (byte)0x62, (byte)0x65, (byte)0x73, (byte)0x74, (byte)0x73, (byte)0x68, (byte)0x61,
             (byte)0x72, (byte)0x64, (byte)0x00, (byte)0x00, (byte)0x00};
 
+    /* Message: Request type bytes, "bestshardchk".
+     * Same as "bestshard", but the response is a sequence of "datachunk" messages. */
+    public static final byte[] MESSAGE_TYPE_BESTSHARDCHK = {
+            (byte)0x62, (byte)0x65, (byte)0x73, (byte)0x74, (byte)0x73, (byte)0x68, (byte)0x61,
+            (byte)0x72, (byte)0x64, (byte)0x63, (byte)0x68, (byte)0x6b};
+
+    /* Message: Request/Response type bytes, "shardproof".
+     * Same as "bestshard", followed by the Merkle multi proof of the shards. Shard indices are
+     * of the "bestshardnum" shard number, the leaves of the "bestmrkltree". */
+    public static final byte[] MESSAGE_TYPE_SHARDPROOF = {
+            (byte)0x73, (byte)0x68, (byte)0x61, (byte)0x72, (byte)0x64, (byte)0x70, (byte)0x72,
+            (byte)0x6f, (byte)0x6f, (byte)0x66, (byte)0x00, (byte)0x00};
+
+    /* Message: Request/Response type bytes, "sharddelta".
+     * Net changes of a shard from a height to the best height, followed by the Merkle multi
+     * proof of the shard at the best height. */
+    public static final byte[] MESSAGE_TYPE_SHARDDELTA = {
+            (byte)0x73, (byte)0x68, (byte)0x61, (byte)0x72, (byte)0x64, (byte)0x64, (byte)0x65,
+            (byte)0x6c, (byte)0x74, (byte)0x61, (byte)0x00, (byte)0x00};
+
+    /* Message: Request/Response type bytes, "getutxos".
+     * Looks up a list of outpoints. The response has one UtxoLookup per outpoint. */
+    public static final byte[] MESSAGE_TYPE_GETUTXOS = {
+            (byte)0x67, (byte)0x65, (byte)0x74, (byte)0x75, (byte)0x74, (byte)0x78, (byte)0x6f,
+            (byte)0x73, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00};
+
+    /* Message: "sharddelta" max blocks between from height and best height */
+    public static final int SHARD_DELTA_MAX_BLOCKS = 2016;
+
     /* Messsage: Request type array */
     public static final byte[][] MESSAGE_TYPES = {
             MESSAGE_TYPE_BESTHEIGHT,
@@ -113,7 +174,11 @@ public class ProtocolParams {
             MESSAGE_TYPE_BESTMRKLTREE,
             MESSAGE_TYPE_BESTSHARDNUM,
             MESSAGE_TYPE_SHARDNUM,
-            MESSAGE_TYPE_BESTSHARD
+            MESSAGE_TYPE_BESTSHARD,
+            MESSAGE_TYPE_BESTSHARDCHK,
+            MESSAGE_TYPE_SHARDPROOF,
+            MESSAGE_TYPE_SHARDDELTA,
+            MESSAGE_TYPE_GETUTXOS
     };
 
     /* Message: Request type cases for GetCustom */
@@ -127,6 +192,10 @@ public class ProtocolParams {
             1, // MESSAGE_TYPE_BESTSHARDNUM, case 1, no list
             2, // MESSAGE_TYPE_SHARDNUM, case 2, height list
             3, // MESSAGE_TYPE_BESTSHARD, case 3, index list
+            3, // MESSAGE_TYPE_BESTSHARDCHK, case 3, index list
+            3, // MESSAGE_TYPE_SHARDPROOF, case 3, index list
+            3, // MESSAGE_TYPE_SHARDDELTA, case 3, index and from height
+            4, // MESSAGE_TYPE_GETUTXOS, case 4, outpoint list
     };
 
     /* Message: Request type cases for DataCustom */
@@ -140,6 +209,10 @@ public class ProtocolParams {
             2, // MESSAGE_TYPE_BESTSHARDNUM, case 2, index list
             2, // MESSAGE_TYPE_SHARDNUM, case 2, index list
             5, // MESSAGE_TYPE_BESTSHARD, case 5, ShardList
+            5, // MESSAGE_TYPE_BESTSHARDCHK, case 5, ShardList, not used by "datachunk"
+            6, // MESSAGE_TYPE_SHARDPROOF, case 6, ShardList and MerkleMultiProof
+            7, // MESSAGE_TYPE_SHARDDELTA, case 7, ShardDelta and MerkleMultiProof
+            8, // MESSAGE_TYPE_GETUTXOS, case 8, UtxoLookup list
     };
 
     /* Message: Request type min/max list count for DataCustom */
@@ -153,6 +226,10 @@ public class ProtocolParams {
             {0,0}, // MESSAGE_TYPE_BESTSHARDNUM
             {REQUEST_TYPE_LIST_MIN_COUNT, REQUEST_TYPE_LIST_MAX_COUNT}, // MESSAGE_TYPE_SHARDNUM
             {REQUEST_TYPE_LIST_MIN_COUNT, REQUEST_TYPE_LIST_MAX_COUNT}, // MESSAGE_TYPE_BESTSHARD
+            {REQUEST_TYPE_LIST_MIN_COUNT, REQUEST_TYPE_CHUNKED_LIST_MAX_COUNT}, // BESTSHARDCHK
+            {1, REQUEST_TYPE_LIST_MAX_COUNT}, // MESSAGE_TYPE_SHARDPROOF
+            {2,2}, // MESSAGE_TYPE_SHARDDELTA
+            {1, REQUEST_TYPE_OUTPOINT_LIST_MAX_COUNT}, // MESSAGE_TYPE_GETUTXOS
     };
 
     /* Message: Request type min/max list count for DataCustom */
@@ -166,6 +243,10 @@ public class ProtocolParams {
             {1,1}, // MESSAGE_TYPE_BESTSHARDNUM
             {REQUEST_TYPE_LIST_MIN_COUNT, REQUEST_TYPE_LIST_MAX_COUNT}, // MESSAGE_TYPE_SHARDNUM
             {REQUEST_TYPE_LIST_MIN_COUNT, REQUEST_TYPE_LIST_MAX_COUNT}, // MESSAGE_TYPE_BESTSHARD
+            {REQUEST_TYPE_LIST_MIN_COUNT, REQUEST_TYPE_CHUNKED_LIST_MAX_COUNT}, // BESTSHARDCHK
+            {1, REQUEST_TYPE_LIST_MAX_COUNT}, // MESSAGE_TYPE_SHARDPROOF
+            {1,1}, // MESSAGE_TYPE_SHARDDELTA
+            {1, REQUEST_TYPE_OUTPOINT_LIST_MAX_COUNT}, // MESSAGE_TYPE_GETUTXOS
     };
 
 
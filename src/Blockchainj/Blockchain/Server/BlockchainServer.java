@@ -1,14 +1,30 @@
 package Blockchainj.Blockchain.Server;
 
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Bitcoin.TXI;
 import Blockchainj.Blockchain.ProtocolParams;
 import Blockchainj.Blockchain.UtxoSet.*;
 import Blockchainj.Blockchain.UtxoSet.Shard.Shard;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.ShardDelta;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoLookup;
+import Blockchainj.Util.AsyncLog;
+import Blockchainj.Util.MerkleMultiProof;
 import Blockchainj.Util.MerkleTree;
 import Blockchainj.Util.SHA256HASH;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
 
 /**
  * BlockchainServer
@@ -17,6 +33,30 @@ import java.nio.file.Paths;
  *
  * This class requires read access to a AbstractUtxoSet.
  *
+ * Clients are served concurrently. This thread runs a non-blocking selector loop that accepts
+ * clients, reads requests and writes responses. Complete requests are parsed and responded
+ * to by a pool of handler threads, so a slow client reading a large response does not hold
+ * back any other client.
+ *
+ * Each client gets a read buffer from a bounded pool. Connections beyond max connections are
+ * closed right away.
+ *
+ * Protocol version 1 and 2 clients are served on the same port. A version 1 connection
+ * carries one request and one response. A connection that starts with a "protoversion"
+ * message is a version 2 connection, see MessageProtoVersion. It stays open for any number of
+ * requests framed by "requestid" messages. Up to MAX_PIPELINED_REQUESTS requests per
+ * connection are handled at the same time, and each response is written as soon as it is
+ * ready, so responses may be out of request order. Reading stops while the limit is reached.
+ * Idle version 2 connections are closed after IDLE_TIMEOUT.
+ *
+ * "bestshard" and "bestmrkltree" responses are kept fully encoded in a ResponseCache, which
+ * the utxo set invalidates on each commit by the shards the block modified.
+ *
+ * With a ShardImageStore, "bestshard" and "bestshardchk" responses are instead sent from
+ * shard image files with FileChannel.transferTo, so heap use does not grow with response
+ * size. "bestshardchk" responses are a sequence of "datachunk" messages and may be larger
+ * than the max payload length.
+ *
  * Requests:
  * - Get Utxo Set Merkle tree root for any height.
  * - Get Utxo Set Merkle tree root for best height along with height.
@@ -37,8 +77,47 @@ public class BlockchainServer extends Thread {
     /* Listeing port */
     public static final int DEFAULT_PORT = 8334;
 
-    /* Max clients that can connect */
-    public static final int DEFAULT_BACKLOG = 16;
+    /* Pending connections queue length */
+    public static final int DEFAULT_BACKLOG = 256;
+
+    /* Max clients connected at the same time */
+    public static final int DEFAULT_MAX_CONNECTIONS = 512;
+    private final int maxConnections;
+
+    /* Handler threads */
+    public static final int DEFAULT_HANDLER_THREADS = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService handlerPool;
+
+    /* Parallel "getutxos" shard lookups. Separate from handler threads, which wait on them. */
+    private final ExecutorService lookupPool;
+
+    /* Client read buffer size. Requests are small, larger requests are rejected. */
+    private static final int CLIENT_BUFFER_SIZE = 4*1024; //4 KiB
+    /* Read buffers grow up to this size for outpoint lists. Grown buffers are not pooled. */
+    private static final int MAX_CLIENT_BUFFER_SIZE = 256*1024; //256 KiB
+
+    /* Time a client has to send a complete request. Same as reading the header and the
+     * payload from a blocking socket. */
+    private static final long READ_TIMEOUT = 2*2000; //4 seconds
+    /* Time a version 2 client may stay connected without requests in flight */
+    private static final long IDLE_TIMEOUT = 60*1000; //60 seconds
+    private static final long SELECT_TIMEOUT = 500;
+
+    /* Response cache size. 0 for no cache. */
+    public static final long DEFAULT_RESPONSE_CACHE_BYTES = 256L*1024L*1024L; //256 MiB
+    private final ResponseCache responseCache;
+
+    /* Request type indices of cached responses */
+    private static final int BESTMRKLTREE_TYPE_INDEX =
+            ProtocolParams.calcRequestTypeIndex(ProtocolParams.MESSAGE_TYPE_BESTMRKLTREE);
+    private static final int BESTSHARD_TYPE_INDEX =
+            ProtocolParams.calcRequestTypeIndex(ProtocolParams.MESSAGE_TYPE_BESTSHARD);
+
+    /* Shard images for streamed responses. Null for no images. */
+    private final ShardImageStore shardImageStore;
+
+    /* Read buffer size for hashing image regions */
+    private static final int HASH_BUFFER_SIZE = 64*1024; //64 KiB
 
     /* IP to bind */
     public static final String DEFAULT_BINDADDR = "127.0.0.1";
@@ -46,41 +125,111 @@ public class BlockchainServer extends Thread {
     /* AbstractUtxoSet. Read only access */
     private final UtxoSet utxoSet;
 
-    /* Server Socket */
-    private ServerSocket serverSocket;
+    /* Server socket channel and selector */
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+
+    /* Client read buffers. Never more than max connections. */
+    private final ArrayBlockingQueue<ByteBuffer> bufferPool;
+
+    /* Connected clients. Selector thread only. */
+    private final HashSet<ClientConnection> connections = new HashSet<>();
+
+    /* Clients with a response ready to be written */
+    private final ConcurrentLinkedQueue<ClientConnection> responseQueue =
+            new ConcurrentLinkedQueue<>();
 
     /* Closed marker */
     private volatile boolean closed = false;
 
-    /* Server log filename and file */
+    /* Server log filename and file. Written asynchronously. */
     public static final String LOG_FILENAME = "blockchainServer.log";
-    private final File logFile;
+    private final Path logFile;
+    private final AsyncLog serverLog;
 
 
-    /* Constructor */
-    public BlockchainServer(String bindAddr, int port, int backlog, UtxoSet utxoSet, String logPath)
+    /* Constructor. Null shardImagePath for no shard images. */
+    public BlockchainServer(String bindAddr, int port, int backlog, int maxConnections,
+                            int handlerThreads, long responseCacheBytes, String shardImagePath,
+                            UtxoSet utxoSet, String logPath, AsyncLog serverLog)
             throws IOException {
         if(utxoSet == null) {
             throw new NullPointerException("AbstractUtxoSet cannot be null.");
         }
+        if(maxConnections < 1) {
+            throw new IllegalArgumentException("Max connections must be >=1.");
+        }
+        if(handlerThreads < 1) {
+            throw new IllegalArgumentException("Handler threads must be >=1.");
+        }
 
         /* Set utxo set */
         this.utxoSet = utxoSet;
 
         /* Log file */
-        logFile = Paths.get(logPath, LOG_FILENAME).toFile();
-        if (!logFile.exists()) {
-            logFile.getParentFile().mkdirs();
-            logFile.createNewFile();
+        logFile = Paths.get(logPath, LOG_FILENAME);
+        if (!logFile.toFile().exists()) {
+            logFile.toFile().getParentFile().mkdirs();
+            logFile.toFile().createNewFile();
+        }
+        this.serverLog = serverLog;
+
+        /* Client limits */
+        this.maxConnections = maxConnections;
+        bufferPool = new ArrayBlockingQueue<>(maxConnections);
+
+        /* Response cache. Needs commit notifications. */
+        if((responseCacheBytes > 0) && (utxoSet instanceof AbstractUtxoSet)) {
+            responseCache = new ResponseCache(responseCacheBytes);
+            ((AbstractUtxoSet) utxoSet).addCommitListener(responseCache);
+        } else {
+            responseCache = null;
+        }
+
+        /* Shard images. Needs commit notifications. */
+        if((shardImagePath != null) && (utxoSet instanceof AbstractUtxoSet)) {
+            shardImageStore = new ShardImageStore((AbstractUtxoSet) utxoSet, shardImagePath);
+            ((AbstractUtxoSet) utxoSet).addCommitListener(shardImageStore);
+        } else {
+            shardImageStore = null;
         }
 
         /* Make new server socket */
         try {
-            serverSocket = new ServerSocket(port, backlog, InetAddress.getByName(bindAddr));
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(InetAddress.getByName(bindAddr), port),
+                    backlog);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
-            writeToLog(e.getMessage());
+            writeToLog(AsyncLog.LEVEL_ERROR, e.getMessage());
+            removeCommitListeners();
+            serverLog.close();
             throw e;
         }
+
+        handlerPool = Executors.newFixedThreadPool(handlerThreads);
+        lookupPool = Executors.newFixedThreadPool(handlerThreads);
+    }
+
+
+    /* Constructor with default response cache and no shard images */
+    public BlockchainServer(String bindAddr, int port, int backlog, int maxConnections,
+                            int handlerThreads, UtxoSet utxoSet, String logPath,
+                            AsyncLog serverLog)
+            throws IOException {
+        this(bindAddr, port, backlog, maxConnections, handlerThreads,
+                DEFAULT_RESPONSE_CACHE_BYTES, null, utxoSet, logPath, serverLog);
+    }
+
+
+    /* Constructor with default client limits */
+    public BlockchainServer(String bindAddr, int port, int backlog, UtxoSet utxoSet, String logPath)
+            throws IOException {
+        this(bindAddr, port, backlog, DEFAULT_MAX_CONNECTIONS, DEFAULT_HANDLER_THREADS,
+                utxoSet, logPath, getNewServerLog(AsyncLog.LEVEL_INFO,
+                        AsyncLog.DEFAULT_MAX_FILE_SIZE));
     }
 
 
@@ -97,10 +246,18 @@ public class BlockchainServer extends Thread {
     }
 
 
+    /* New server log with given level and max log file size */
+    public static AsyncLog getNewServerLog(int level, long maxFileSize) {
+        return new AsyncLog(AsyncLog.DEFAULT_CAPACITY, level, maxFileSize,
+                AsyncLog.DEFAULT_MAX_BACKUPS, "BlockchainServerLog");
+    }
+
+
     /* Close server */
     public synchronized void close() throws IOException {
-        serverSocket.close();
         closed = true;
+        serverChannel.close();
+        selector.wakeup();
     }
 
 
@@ -125,77 +282,210 @@ public class BlockchainServer extends Thread {
     }
 
 
-    /* Accept one client at a time.
-     *  - Read up to 1 Blockchainj.Bitcoin Message request.
-     *  - Respond to the request.
-     *  - End connection. */
+    /* Client connection. Owned by the selector thread. Handler threads only add to completed
+     * and set closeRequested. */
+    private class ClientConnection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String name;
+        private final long acceptTime;
+        private long lastActive;
+
+        /* Protocol version. Unknown until the first message is read. */
+        private int version = ProtocolParams.UNDEFINED_PROTOCOL_VERSION;
+
+        /* Request bytes. Request size is known once the header is read. */
+        private ByteBuffer readBuffer;
+        private int requestSize = -1;
+
+        /* Set if the request could not be read */
+        private IOException readFailure = null;
+
+        /* Version 2: requests handed to handler threads and not yet responded */
+        private int inFlight = 0;
+
+        /* Client closed its side */
+        private boolean inputClosed = false;
+
+        /* Response parts being written */
+        private final ArrayDeque<ResponseSegment> writeSegments = new ArrayDeque<>();
+
+        /* Responses made by handler threads, not yet taken by the selector thread */
+        private final ConcurrentLinkedQueue<ArrayDeque<ResponseSegment>> completed =
+                new ConcurrentLinkedQueue<>();
+
+        /* Close once completed responses are written. Set before adding to responseQueue. */
+        private volatile boolean closeRequested = false;
+
+        private ClientConnection(SocketChannel channel, ByteBuffer readBuffer)
+                throws IOException {
+            this.channel = channel;
+            this.readBuffer = readBuffer;
+            this.name = channel.socket().toString();
+            this.acceptTime = System.currentTimeMillis();
+            this.lastActive = acceptTime;
+            channel.configureBlocking(false);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        /* Request as read from the socket */
+        private InputStream getRequestInputStream() {
+            return new ByteArrayInputStream(readBuffer.array(), 0, readBuffer.position());
+        }
+    }
+
+
+    /* Part of a response, written by the selector thread */
+    private interface ResponseSegment extends Closeable {
+        /* Writes as much as the channel takes. Returns true when done. */
+        boolean write(WritableByteChannel channel) throws IOException;
+
+        /* Bytes left to write */
+        long length();
+    }
+
+
+    /* Response bytes in memory */
+    private static class BufferSegment implements ResponseSegment {
+        private final ByteBuffer buffer;
+
+        private BufferSegment(ByteBuffer buffer) { this.buffer = buffer; }
+
+        public boolean write(WritableByteChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        public long length() { return buffer.remaining(); }
+
+        public void close() {}
+    }
+
+
+    /* Region of a shard image file. Closes the image when closed. */
+    private static class FileSegment implements ResponseSegment {
+        private final ShardImageStore.ShardImage image;
+        private long position;
+        private final long end;
+
+        private FileSegment(ShardImageStore.ShardImage image, long position, long count) {
+            this.image = image;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        public boolean write(WritableByteChannel channel) throws IOException {
+            while(position < end) {
+                long written = image.getChannel().transferTo(position, end - position, channel);
+                if(written <= 0) {
+                    return false;
+                }
+                position += written;
+            }
+            return true;
+        }
+
+        public long length() { return end - position; }
+
+        public void close() throws IOException { image.close(); }
+    }
+
+
+    /* Selector loop.
+     *  - Accept clients up to max connections.
+     *  - Read 1 Blockchainj.Bitcoin Message request per version 1 client, or the handshake
+     *    and any number of framed requests per version 2 client.
+     *  - Hand complete requests to the handler threads.
+     *  - Write the responses and end version 1 connections. */
     @Override
     public void run() {
         /* Terminal error handler. */
         try {
             /* Main loop. */
-            //noinspection InfiniteLoopStatement
             while (!isClosed()) {
-                /* Accept new client */
-                Socket socket = serverSocket.accept();
-                writeToLog("New Client: \n" + socket.toString());
-
-                /* Handle client */
-                try {
-                    Message message;
-                    Message response;
-                    boolean readMessage = false;
+                selector.select(SELECT_TIMEOUT);
 
+                /* Responses computed by handler threads */
+                ClientConnection response;
+                while((response = responseQueue.poll()) != null) {
                     try {
-                        /* Read Message */
-                        writeToLog("Reading message...");
-                        message = Message.deserializeFromSocket(socket.getInputStream());
-                        writeToLog("Read message:: " + message.toString());
-                        readMessage = true;
-
-                        /* Make response */
-                        writeToLog("Computing response...");
-                        response = doResponse(message);
-                        writeToLog("Response Computed.");
-                    } catch (IOException | IllegalArgumentException e) {
-                        /* Make error response */
-                        if(!readMessage) {
-                            writeToLog("Failed to read message. " + e.toString());
-                        } else {
-                            writeToLog("Failed to compute response based on message."
-                                    + e.toString());
+                        takeResponses(response);
+                    } catch (IOException e) {
+                        /* Log error */
+                        writeToLog(AsyncLog.LEVEL_WARN,
+                                "Failed to handle client. " + e.toString());
+                        closeClient(response);
+                    }
+                }
+
+                /* Ready channels */
+                Iterator<SelectionKey> itKeys = selector.selectedKeys().iterator();
+                while(itKeys.hasNext()) {
+                    SelectionKey key = itKeys.next();
+                    itKeys.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+
+                    if(key.isAcceptable()) {
+                        acceptClients();
+                    } else {
+                        ClientConnection client = (ClientConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                readClient(client);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                writeClient(client);
+                            }
+                        } catch (IOException e) {
+                            /* Log error */
+                            writeToLog(AsyncLog.LEVEL_WARN,
+                                    "Failed to handle client. " + e.toString());
+                            closeClient(client);
                         }
-                        writeToLog("Computing error response...");
-                        response = doResponse(e);
-                        writeToLog("Error response computed.");
                     }
+                }
 
-                    /* Send response message */
-                    writeToLog("Sending response message::" + response.toString());
-                    response.serializeToSocket(socket.getOutputStream());
-                    writeToLog("Response message sent.");
-                } catch (IOException e) {
-                    /* Log error */
-                    writeToLog("Failed to handle client. " + e.toString());
-                } finally {
-                    /* Close client */
-                    writeToLog("Closing connection...");
-                    socket.close();
-                    writeToLog("Closed Client:" + socket.toString() + "\n\n");
+                /* Clients that did not send a complete request in time, idle version 2
+                 * clients */
+                long now = System.currentTimeMillis();
+                for(ClientConnection client : connections.toArray(new ClientConnection[0])) {
+                    if((client.version == ProtocolParams.UNDEFINED_PROTOCOL_VERSION) &&
+                            (now - client.acceptTime > READ_TIMEOUT)) {
+                        failRead(client, new IOException("Failed to read " +
+                                missingBytes(client) + "."));
+                    } else if((client.version == ProtocolParams.PROTOCOL_VERSION_2) &&
+                            (client.inFlight == 0) && client.writeSegments.isEmpty() &&
+                            (now - client.lastActive > IDLE_TIMEOUT)) {
+                        writeToLog(AsyncLog.LEVEL_INFO, "Idle client.");
+                        closeClient(client);
+                    }
                 }
             }
         } catch (Exception e) {
             /* Handle server errors */
-            try {
-                writeToLog(e.getMessage());
-            } catch (IOException e2) {
-                throw new RuntimeException(e);
-            }
+            writeToLog(AsyncLog.LEVEL_ERROR, e.getMessage());
         } finally {
             /* Close server */
             try {
-                serverSocket.close();
-                writeToLog("Closing server.\n");
+                handlerPool.shutdownNow();
+                lookupPool.shutdownNow();
+                removeCommitListeners();
+                if(shardImageStore != null) {
+                    shardImageStore.close();
+                }
+                for(ClientConnection client : new HashSet<>(connections)) {
+                    closeClient(client);
+                }
+                ClientConnection response;
+                while((response = responseQueue.poll()) != null) {
+                    closeCompleted(response);
+                }
+                serverChannel.close();
+                selector.close();
+                writeToLog(AsyncLog.LEVEL_INFO, "Closing server.\n");
+                serverLog.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -203,11 +493,713 @@ public class BlockchainServer extends Thread {
     }
 
 
-    /* Print string to log file */
-    private void writeToLog(String msg) throws IOException {
-        PrintWriter pr = new PrintWriter(new FileOutputStream(logFile, true), true);
-        pr.println(msg);
-        pr.close();
+    /* Accepts pending clients. Clients over max connections are closed. */
+    private void acceptClients() throws IOException {
+        SocketChannel channel;
+        while((channel = serverChannel.accept()) != null) {
+            if(connections.size() >= maxConnections) {
+                writeToLog(AsyncLog.LEVEL_WARN, "Max connections reached. Rejected client: \n" +
+                        channel.socket().toString());
+                channel.close();
+                continue;
+            }
+
+            ByteBuffer readBuffer = bufferPool.poll();
+            if(readBuffer == null) {
+                readBuffer = ByteBuffer.allocate(CLIENT_BUFFER_SIZE);
+            }
+            readBuffer.clear();
+
+            /* Responses are written in segments, do not wait for acks in between */
+            channel.socket().setTcpNoDelay(true);
+
+            ClientConnection client = new ClientConnection(channel, readBuffer);
+            connections.add(client);
+            writeToLog(AsyncLog.LEVEL_INFO, "New Client: \n" + client.name);
+        }
+    }
+
+
+    /* Reads available request bytes. Hands requests to handler threads when complete. */
+    private void readClient(ClientConnection client) throws IOException {
+        int bytesRead = client.channel.read(client.readBuffer);
+        if(bytesRead > 0) {
+            client.lastActive = System.currentTimeMillis();
+        }
+
+        /* Version 2 requests */
+        if(client.version == ProtocolParams.PROTOCOL_VERSION_2) {
+            if(bytesRead < 0) {
+                client.inputClosed = true;
+            }
+            readRequests(client);
+            if(!closeIfDone(client)) {
+                updateInterest(client);
+            }
+            return;
+        }
+
+        /* Request size from header */
+        if((client.requestSize < 0) && (client.readBuffer.position() >= Message.HEADER_SIZE)) {
+            long payloadLength = BitcoinParams.readUINT32(client.readBuffer.array(),
+                    BitcoinParams.MAGIC_SIZE + BitcoinParams.COMMAND_SIZE);
+            if(Message.HEADER_SIZE + payloadLength > MAX_CLIENT_BUFFER_SIZE) {
+                failRead(client, new IOException("Request exceeds " +
+                        MAX_CLIENT_BUFFER_SIZE + " bytes."));
+                return;
+            }
+            if(Message.HEADER_SIZE + payloadLength > client.readBuffer.capacity()) {
+                growReadBuffer(client, Message.HEADER_SIZE + (int)payloadLength);
+            }
+            client.requestSize = Message.HEADER_SIZE + (int)payloadLength;
+        }
+
+        if((client.requestSize >= 0) && (client.readBuffer.position() >= client.requestSize)) {
+            /* Complete request. A "protoversion" message starts a handshake. */
+            if(isCommand(client.readBuffer, 0, ProtocolParams.MESSAGE_CMD_PROTOVERSION) &&
+                    doHandshake(client)) {
+                return;
+            }
+            client.version = ProtocolParams.PROTOCOL_VERSION_1;
+            client.readBuffer.position(client.requestSize);
+            client.key.interestOps(0);
+            handlerPool.execute(() -> handleClient(client));
+        } else if(bytesRead < 0) {
+            /* Client closed before sending a complete request */
+            failRead(client, new IOException("Failed to read " + missingBytes(client) + "."));
+        }
+    }
+
+
+    /* True if the message at offset has the given command */
+    private static boolean isCommand(ByteBuffer buffer, int offset, byte[] command) {
+        byte[] array = buffer.array();
+        int cmdOffset = offset + BitcoinParams.MAGIC_SIZE;
+        for(int i=0; i<BitcoinParams.COMMAND_SIZE; i++) {
+            if(array[cmdOffset + i] != command[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /* Answers a "protoversion" message with the agreed version. Below version 2 the connection
+     * is closed after the answer. Returns false if the message is invalid, so it is handled
+     * as a version 1 request. */
+    private boolean doHandshake(ClientConnection client) throws IOException {
+        MessageProtoVersion request;
+        try {
+            request = new MessageProtoVersion(Message.deserializeFromSocket(
+                    new ByteArrayInputStream(client.readBuffer.array(), 0, client.requestSize)));
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+
+        int version = Math.min(request.getVersion(), ProtocolParams.PROTOCOL_VERSION);
+        writeToLog(AsyncLog.LEVEL_DEBUG, "Handshake: " + request.toString());
+        client.writeSegments.add(new BufferSegment(ByteBuffer.wrap(encodeMessage(
+                MessageProtoVersion.getMessageProtoVersion(version,
+                        ProtocolParams.MAX_PIPELINED_REQUESTS)))));
+
+        if(version < ProtocolParams.PROTOCOL_VERSION_2) {
+            client.version = ProtocolParams.PROTOCOL_VERSION_1;
+            client.closeRequested = true;
+            client.key.interestOps(SelectionKey.OP_WRITE);
+            return true;
+        }
+
+        /* Keep any pipelined bytes after the handshake */
+        client.version = ProtocolParams.PROTOCOL_VERSION_2;
+        client.readBuffer.limit(client.readBuffer.position());
+        client.readBuffer.position(client.requestSize);
+        client.readBuffer.compact();
+        readRequests(client);
+        updateInterest(client);
+        return true;
+    }
+
+
+    /* Version 2. Hands complete framed requests to handler threads, up to
+     * MAX_PIPELINED_REQUESTS in flight. Incomplete bytes stay in the read buffer. */
+    private void readRequests(ClientConnection client) throws IOException {
+        ByteBuffer buffer = client.readBuffer;
+        int end = buffer.position();
+        int offset = 0;
+
+        while((client.inFlight < ProtocolParams.MAX_PIPELINED_REQUESTS) &&
+                (end - offset >= MessageRequestId.SERIALIZED_SIZE)) {
+            /* Frame */
+            if(!isCommand(buffer, offset, ProtocolParams.MESSAGE_CMD_REQUESTID)) {
+                throw new IOException("Expected requestid message.");
+            }
+            MessageRequestId frame;
+            try {
+                frame = new MessageRequestId(Message.deserializeFromSocket(new ByteArrayInputStream(
+                        buffer.array(), offset, MessageRequestId.SERIALIZED_SIZE)));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
+            }
+            if(frame.getLength() > MAX_CLIENT_BUFFER_SIZE - MessageRequestId.SERIALIZED_SIZE) {
+                throw new IOException("Request exceeds " + MAX_CLIENT_BUFFER_SIZE + " bytes.");
+            }
+            int frameSize = MessageRequestId.SERIALIZED_SIZE + (int)frame.getLength();
+            if(frameSize > buffer.capacity()) {
+                /* Pending bytes to the buffer start, then grow */
+                buffer.limit(end);
+                buffer.position(offset);
+                buffer.compact();
+                end -= offset;
+                offset = 0;
+                growReadBuffer(client, frameSize);
+                buffer = client.readBuffer;
+            }
+
+            /* Request */
+            int requestOffset = offset + MessageRequestId.SERIALIZED_SIZE;
+            if(end - requestOffset < frame.getLength()) {
+                break;
+            }
+            byte[] request = Arrays.copyOfRange(buffer.array(), requestOffset,
+                    requestOffset + (int)frame.getLength());
+            offset = requestOffset + (int)frame.getLength();
+
+            client.inFlight++;
+            long requestId = frame.getRequestId();
+            handlerPool.execute(() -> handleRequest(client, requestId, request));
+        }
+
+        /* Drop handed requests */
+        buffer.limit(end);
+        buffer.position(offset);
+        buffer.compact();
+    }
+
+
+    /* Read interest while more requests are accepted, write interest while there are response
+     * bytes to write. */
+    private static void updateInterest(ClientConnection client) {
+        int ops = 0;
+        if(!client.writeSegments.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if((client.version == ProtocolParams.PROTOCOL_VERSION_2) && !client.inputClosed &&
+                (client.inFlight < ProtocolParams.MAX_PIPELINED_REQUESTS)) {
+            ops |= SelectionKey.OP_READ;
+        }
+        client.key.interestOps(ops);
+    }
+
+
+    /* Takes responses made by handler threads for writing. */
+    private void takeResponses(ClientConnection client) throws IOException {
+        /* Read before taking, so that no response added before the request is missed */
+        boolean close = client.closeRequested;
+
+        if(!connections.contains(client)) {
+            closeCompleted(client);
+            return;
+        }
+
+        ArrayDeque<ResponseSegment> segments;
+        while((segments = client.completed.poll()) != null) {
+            client.writeSegments.addAll(segments);
+            if(client.version == ProtocolParams.PROTOCOL_VERSION_2) {
+                client.inFlight--;
+            }
+        }
+
+        if(close && client.writeSegments.isEmpty()) {
+            closeClient(client);
+            return;
+        }
+
+        /* Requests waiting for a free slot */
+        if(client.version == ProtocolParams.PROTOCOL_VERSION_2) {
+            readRequests(client);
+        }
+        if(!closeIfDone(client)) {
+            updateInterest(client);
+        }
+    }
+
+
+    /* Closes a version 2 client that closed its side once all its responses are written.
+     * Returns true if closed. */
+    private boolean closeIfDone(ClientConnection client) throws IOException {
+        if(client.inputClosed && (client.inFlight == 0) && client.writeSegments.isEmpty()) {
+            closeClient(client);
+            return true;
+        }
+        return false;
+    }
+
+
+    /* Missing bytes of the header or the payload, whichever is being read */
+    private static int missingBytes(ClientConnection client) {
+        if(client.requestSize < 0) {
+            return Message.HEADER_SIZE;
+        } else {
+            return client.requestSize - Message.HEADER_SIZE;
+        }
+    }
+
+
+    /* Responds with error response to a request that could not be read. */
+    private void failRead(ClientConnection client, IOException e) {
+        client.version = ProtocolParams.PROTOCOL_VERSION_1;
+        client.readFailure = e;
+        client.key.interestOps(0);
+        handlerPool.execute(() -> handleClient(client));
+    }
+
+
+    /* Writes available response bytes. Ends version 1 connections when the response is
+     * sent. */
+    private void writeClient(ClientConnection client) throws IOException {
+        while(!client.writeSegments.isEmpty()) {
+            ResponseSegment segment = client.writeSegments.peek();
+            if(!segment.write(client.channel)) {
+                return;
+            }
+            client.writeSegments.poll().close();
+        }
+        client.lastActive = System.currentTimeMillis();
+        writeToLog(AsyncLog.LEVEL_DEBUG, "Response message sent.");
+
+        if(client.closeRequested) {
+            closeClient(client);
+        } else if(!closeIfDone(client)) {
+            updateInterest(client);
+        }
+    }
+
+
+    /* Replaces the client's read buffer with a larger one, keeping the bytes read so far.
+     * The pooled buffer goes back to the pool. */
+    private void growReadBuffer(ClientConnection client, int size) {
+        ByteBuffer larger = ByteBuffer.allocate(size);
+        client.readBuffer.flip();
+        larger.put(client.readBuffer);
+        if(client.readBuffer.capacity() == CLIENT_BUFFER_SIZE) {
+            client.readBuffer.clear();
+            bufferPool.offer(client.readBuffer);
+        }
+        client.readBuffer = larger;
+    }
+
+
+    /* Closes client and returns its read buffer to the pool. */
+    private void closeClient(ClientConnection client) throws IOException {
+        if(!connections.remove(client)) {
+            return;
+        }
+        writeToLog(AsyncLog.LEVEL_DEBUG, "Closing connection...");
+        client.key.cancel();
+        client.channel.close();
+        if(client.readBuffer.capacity() == CLIENT_BUFFER_SIZE) {
+            bufferPool.offer(client.readBuffer);
+        }
+        client.readBuffer = null;
+        closeSegments(client.writeSegments);
+        closeCompleted(client);
+        writeToLog(AsyncLog.LEVEL_INFO, "Closed Client:" + client.name + "\n\n");
+    }
+
+
+    /* Closes responses of a closed client */
+    private static void closeCompleted(ClientConnection client) {
+        ArrayDeque<ResponseSegment> segments;
+        while((segments = client.completed.poll()) != null) {
+            closeSegments(segments);
+        }
+    }
+
+
+    /* Closes unsent response parts */
+    private static void closeSegments(ArrayDeque<ResponseSegment> segments) {
+        for(ResponseSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                /* Nothing to do */
+            }
+        }
+        segments.clear();
+    }
+
+
+    private void removeCommitListeners() {
+        if(responseCache != null) {
+            ((AbstractUtxoSet) utxoSet).removeCommitListener(responseCache);
+        }
+        if(shardImageStore != null) {
+            ((AbstractUtxoSet) utxoSet).removeCommitListener(shardImageStore);
+        }
+    }
+
+
+    /* Handler thread, version 1.
+     *  - Make the response.
+     *  - Pass the response to the selector thread, which closes the connection after it. */
+    private void handleClient(ClientConnection client) {
+        ArrayDeque<ResponseSegment> segments =
+                makeResponse(client.readFailure, client.getRequestInputStream());
+
+        /* Null: connection is closed without response */
+        if(segments != null) {
+            client.completed.add(segments);
+        }
+        client.closeRequested = true;
+
+        /* Back to selector thread */
+        responseQueue.add(client);
+        selector.wakeup();
+    }
+
+
+    /* Handler thread, version 2.
+     *  - Make the response, a reject if there is none.
+     *  - Prefix the "requestid" frame.
+     *  - Pass the response to the selector thread. */
+    private void handleRequest(ClientConnection client, long requestId, byte[] request) {
+        ArrayDeque<ResponseSegment> segments =
+                makeResponse(null, new ByteArrayInputStream(request));
+
+        try {
+            if(segments == null) {
+                segments = doStreamedReject(new IOException("Failed to make response."));
+            }
+
+            long length = 0;
+            for(ResponseSegment segment : segments) {
+                length += segment.length();
+            }
+            segments.addFirst(new BufferSegment(ByteBuffer.wrap(encodeMessage(
+                    MessageRequestId.getMessageRequestId(requestId, length)))));
+            client.completed.add(segments);
+        } catch (IOException | RuntimeException e) {
+            /* Log error, connection is closed */
+            writeToLog(AsyncLog.LEVEL_WARN, "Failed to handle client. " + e.toString());
+            if(segments != null) {
+                closeSegments(segments);
+            }
+            client.closeRequested = true;
+        }
+
+        /* Back to selector thread */
+        responseQueue.add(client);
+        selector.wakeup();
+    }
+
+
+    /* Handler thread.
+     *  - Parse the request.
+     *  - Make the response.
+     * Returns null if no response could be made. */
+    private ArrayDeque<ResponseSegment> makeResponse(IOException readFailure, InputStream input) {
+        try {
+            Message message;
+            Message response = null;
+            byte[] cachedResponse = null;
+            ArrayDeque<ResponseSegment> segments = null;
+            boolean readMessage = false;
+
+            try {
+                /* Read Message */
+                writeToLog(AsyncLog.LEVEL_DEBUG, "Reading message...");
+                if(readFailure != null) {
+                    throw readFailure;
+                }
+                message = Message.deserializeFromSocket(input);
+                writeToLog(AsyncLog.LEVEL_DEBUG, "Read message:: " + message.toString());
+                readMessage = true;
+
+                /* Make response, from shard images or cache if possible */
+                writeToLog(AsyncLog.LEVEL_DEBUG, "Computing response...");
+                segments = doStreamedResponse(message);
+                if(segments == null) {
+                    cachedResponse = doCachedResponse(message);
+                }
+                if((segments == null) && (cachedResponse == null)) {
+                    response = doResponse(message);
+                }
+                writeToLog(AsyncLog.LEVEL_DEBUG, "Response Computed.");
+            } catch (IOException | IllegalArgumentException e) {
+                /* Make error response */
+                if(!readMessage) {
+                    writeToLog(AsyncLog.LEVEL_WARN, "Failed to read message. " + e.toString());
+                } else {
+                    writeToLog(AsyncLog.LEVEL_WARN,
+                            "Failed to compute response based on message."
+                            + e.toString());
+                }
+                writeToLog(AsyncLog.LEVEL_DEBUG, "Computing error response...");
+                response = doResponse(e);
+                writeToLog(AsyncLog.LEVEL_DEBUG, "Error response computed.");
+            }
+
+            /* Serialize response message */
+            if(segments != null) {
+                writeToLog(AsyncLog.LEVEL_DEBUG, "Sending streamed response message.");
+            } else if(cachedResponse != null) {
+                writeToLog(AsyncLog.LEVEL_DEBUG, "Sending cached response message.");
+                segments = new ArrayDeque<>(2);
+                segments.add(new BufferSegment(ByteBuffer.wrap(cachedResponse).asReadOnlyBuffer()));
+            } else {
+                writeToLog(AsyncLog.LEVEL_DEBUG,
+                        "Sending response message::" + response.toString());
+                segments = new ArrayDeque<>(2);
+                segments.add(new BufferSegment(ByteBuffer.wrap(encodeMessage(response))));
+            }
+            return segments;
+        } catch (IOException | RuntimeException e) {
+            /* Log error */
+            writeToLog(AsyncLog.LEVEL_WARN, "Failed to handle client. " + e.toString());
+            return null;
+        }
+    }
+
+
+    /* Serialize message to byte array */
+    private static byte[] encodeMessage(Message message) throws IOException {
+        ByteArrayOutputStream messageBytes =
+                new ByteArrayOutputStream(message.getSerializedSize());
+        message.serializeToSocket(messageBytes);
+        return messageBytes.toByteArray();
+    }
+
+
+    /* Encoded response of a cacheable request, or null.
+     * On any error returns null, so that doResponse() makes the usual error response. */
+    private byte[] doCachedResponse(Message message) {
+        if((responseCache == null) || !MessageGetCustom.isGetCustom(message)) {
+            return null;
+        }
+
+        try {
+            MessageGetCustom request = new MessageGetCustom(message);
+            if(request.isRequestType(ProtocolParams.MESSAGE_TYPE_BESTMRKLTREE)) {
+                return doCachedBestmrkltree();
+            }
+            else if(request.isRequestType(ProtocolParams.MESSAGE_TYPE_BESTSHARD)) {
+                return doCachedBestshard(request);
+            }
+            else {
+                return null;
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+
+    /* Cached 'bestmrkltree' response */
+    private byte[] doCachedBestmrkltree() throws IOException {
+        /* Epoch before any read */
+        long epoch = responseCache.getEpoch();
+        int shardNum = ((AbstractUtxoSet) utxoSet).getInternalBestShardNum();
+
+        byte[] response = responseCache.get(
+                BESTMRKLTREE_TYPE_INDEX, shardNum, ProtocolParams.UNDEFINED_SHARD_INDEX);
+        if(response == null) {
+            int height = utxoSet.getBestHeight();
+            response = encodeMessage(doBestmrkltree());
+            responseCache.put(epoch, BESTMRKLTREE_TYPE_INDEX, shardNum,
+                    ProtocolParams.UNDEFINED_SHARD_INDEX, response, height);
+        }
+        return response;
+    }
+
+
+    /* Cached 'bestshard' response. Each shard is cached as a single shard response.
+     * Responses with several shards are assembled from them. */
+    private byte[] doCachedBestshard(MessageGetCustom request) throws IOException {
+        /* Epoch before any read */
+        long epoch = responseCache.getEpoch();
+        int shardNum = ((AbstractUtxoSet) utxoSet).getInternalBestShardNum();
+        int height = utxoSet.getBestHeight();
+
+        /* Single shard responses */
+        byte[][] shardResponses = new byte[request.getListElementCount()][];
+        for(int i=0; i<shardResponses.length; i++) {
+            int shardIndex = request.getInt32ListByIndex(i);
+            byte[] shardResponse = responseCache.get(BESTSHARD_TYPE_INDEX, shardNum, shardIndex);
+            if(shardResponse == null) {
+                Shard[] shardList = { utxoSet.getShard(shardNum, shardIndex) };
+                shardResponse = encodeMessage(MessageDataCustom.getMessageDataCustom(
+                        ProtocolParams.MESSAGE_TYPE_BESTSHARD, shardList));
+                responseCache.put(epoch, BESTSHARD_TYPE_INDEX, shardNum, shardIndex,
+                        shardResponse, height);
+            }
+            shardResponses[i] = shardResponse;
+        }
+
+        if(shardResponses.length == 1) {
+            return shardResponses[0];
+        }
+
+        /* Copy shard elements into one payload */
+        int elementOffset = Message.HEADER_SIZE + ProtocolParams.REQUEST_TYPE_SIZE +
+                ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(ProtocolParams.MESSAGE_TYPE_BESTSHARD);
+        BitcoinParams.UINT32ToOutputStream(shardResponses.length, payload);
+        for(byte[] shardResponse : shardResponses) {
+            payload.write(shardResponse, elementOffset, shardResponse.length - elementOffset);
+        }
+        return encodeMessage(new Message(BitcoinParams.MAGIC_MAIN,
+                ProtocolParams.MESSAGE_CMD_DATACUSTOM, payload.toByteArray()));
+    }
+
+
+    /* Response of a 'bestshard' or 'bestshardchk' request from shard images, or null.
+     * 'bestshard' errors return null, so that doResponse() makes the usual error response. */
+    private ArrayDeque<ResponseSegment> doStreamedResponse(Message message) throws IOException {
+        if((shardImageStore == null) || !MessageGetCustom.isGetCustom(message)) {
+            return null;
+        }
+
+        MessageGetCustom request;
+        try {
+            request = new MessageGetCustom(message);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        boolean chunked = request.isRequestType(ProtocolParams.MESSAGE_TYPE_BESTSHARDCHK);
+        if(!chunked && !request.isRequestType(ProtocolParams.MESSAGE_TYPE_BESTSHARD)) {
+            return null;
+        }
+
+        /* Shard images, in request order */
+        ShardImageStore.ShardImage[] images =
+                new ShardImageStore.ShardImage[request.getListElementCount()];
+        try {
+            for(int i=0; i<images.length; i++) {
+                images[i] = shardImageStore.acquire(request.getInt32ListByIndex(i));
+            }
+        } catch (IOException | RuntimeException e) {
+            closeImages(images);
+            if(!chunked) {
+                return null;
+            }
+
+            /* Reject before any chunk */
+            writeToLog(AsyncLog.LEVEL_WARN, "Failed to compute response." + e.toString());
+            return doStreamedReject((e instanceof IllegalArgumentException) ?
+                    e : new IllegalArgumentException(e));
+        }
+
+        ArrayDeque<ResponseSegment> segments = new ArrayDeque<>();
+        if(chunked) {
+            /* All "datachunk" messages of each shard */
+            for(ShardImageStore.ShardImage image : images) {
+                segments.add(new FileSegment(
+                        image, image.getChunksOffset(), image.getChunksLength()));
+            }
+            return segments;
+        }
+
+        /* One "bestshard" message, same limit as MessageDataCustom */
+        long payloadLength = ProtocolParams.REQUEST_TYPE_SIZE +
+                ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE;
+        for(ShardImageStore.ShardImage image : images) {
+            payloadLength += image.getShardSize();
+        }
+        if(payloadLength > BitcoinParams.MAX_PAYLOAD_LENGTH) {
+            closeImages(images);
+            IllegalArgumentException e =
+                    new IllegalArgumentException("Payload length exceeded max length.");
+            writeToLog(AsyncLog.LEVEL_WARN, "Failed to compute response." + e.toString());
+            return doStreamedReject(e);
+        }
+
+        if(images.length == 1) {
+            /* The precomputed message */
+            segments.add(new FileSegment(images[0], 0, images[0].getMessageLength()));
+        } else {
+            /* Header over several images */
+            try {
+                segments.add(doStreamedBestshardHeader(images, payloadLength));
+            } catch (IOException | RuntimeException e) {
+                closeImages(images);
+                throw e;
+            }
+            for(ShardImageStore.ShardImage image : images) {
+                segments.add(new FileSegment(image, image.getShardOffset(),
+                        image.getShardSize()));
+            }
+        }
+        return segments;
+    }
+
+
+    private ArrayDeque<ResponseSegment> doStreamedReject(Exception e) throws IOException {
+        ArrayDeque<ResponseSegment> segments = new ArrayDeque<>(1);
+        segments.add(new BufferSegment(ByteBuffer.wrap(encodeMessage(doResponse(e)))));
+        return segments;
+    }
+
+
+    private static void closeImages(ShardImageStore.ShardImage[] images) throws IOException {
+        for(ShardImageStore.ShardImage image : images) {
+            if(image != null) {
+                image.close();
+            }
+        }
+    }
+
+
+    /* Header, request type and count of a "bestshard" message over several images.
+     * Hashes the shard regions of the images. */
+    private static ResponseSegment doStreamedBestshardHeader(
+            ShardImageStore.ShardImage[] images, long payloadLength) throws IOException {
+        byte[] prefix = new byte[ProtocolParams.REQUEST_TYPE_SIZE +
+                ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE];
+        System.arraycopy(ProtocolParams.MESSAGE_TYPE_BESTSHARD, 0, prefix, 0,
+                ProtocolParams.REQUEST_TYPE_SIZE);
+        BitcoinParams.UINT32ToByteArray(images.length, prefix, ProtocolParams.REQUEST_TYPE_SIZE);
+
+        /* Checksum */
+        MessageDigest digest = SHA256HASH.getDigest();
+        digest.update(prefix);
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        for(ShardImageStore.ShardImage image : images) {
+            long position = image.getShardOffset();
+            long end = position + image.getShardSize();
+            while(position < end) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), end - position));
+                int read = image.getChannel().read(buffer, position);
+                if(read < 0) {
+                    throw new EOFException();
+                }
+                digest.update(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+        byte[] checksum = Arrays.copyOf(digest.digest(digest.digest()),
+                BitcoinParams.PAYLOAD_CHECKSUM_SIZE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(
+                Message.HEADER_SIZE + prefix.length);
+        header.write(BitcoinParams.MAGIC_MAIN);
+        header.write(ProtocolParams.MESSAGE_CMD_DATACUSTOM);
+        BitcoinParams.UINT32ToOutputStream(payloadLength, header);
+        header.write(checksum);
+        header.write(prefix);
+        return new BufferSegment(ByteBuffer.wrap(header.toByteArray()));
+    }
+
+
+    public ResponseCache getResponseCache() { return responseCache; }
+
+    public ShardImageStore getShardImageStore() { return shardImageStore; }
+
+
+    /* Print string to log file. Never blocks. */
+    private void writeToLog(int level, String msg) {
+        serverLog.log(logFile, level, msg);
     }
 
 
@@ -215,7 +1207,7 @@ public class BlockchainServer extends Thread {
     private Message doResponse(Message message) throws IOException {
         /* Expecting GetCustom message. */
         if(!MessageGetCustom.isGetCustom(message)) {
-            writeToLog("Read message is not 'getcustom' message.");
+            writeToLog(AsyncLog.LEVEL_WARN, "Read message is not 'getcustom' message.");
             return MessageReject.getRejectMessage(message.getCommand(), (byte)0x01,
                     "Expected getcustom message".getBytes(), null);
         }
@@ -227,7 +1219,8 @@ public class BlockchainServer extends Thread {
             /* Parse message */
             messageGetCustom = new MessageGetCustom(message);
             messageParsed = true;
-            writeToLog("Read message parsed successfully to 'getcustom' message: "
+            writeToLog(AsyncLog.LEVEL_DEBUG,
+                    "Read message parsed successfully to 'getcustom' message: "
                     + messageGetCustom.toString());
 
             /* Compute response */
@@ -258,22 +1251,33 @@ public class BlockchainServer extends Thread {
             else if (messageGetCustom.isRequestType(ProtocolParams.MESSAGE_TYPE_BESTSHARD)) {
                 response = doBestshard(messageGetCustom);
             }
+            else if (messageGetCustom.isRequestType(ProtocolParams.MESSAGE_TYPE_SHARDPROOF)) {
+                response = doShardproof(messageGetCustom);
+            }
+            else if (messageGetCustom.isRequestType(ProtocolParams.MESSAGE_TYPE_SHARDDELTA)) {
+                response = doSharddelta(messageGetCustom);
+            }
+            else if (messageGetCustom.isRequestType(ProtocolParams.MESSAGE_TYPE_GETUTXOS)) {
+                response = doGetutxos(messageGetCustom);
+            }
             else {
                 throw new IllegalArgumentException("Request type '" +
                         messageGetCustom.getRequestTypeString() + "' not found.");
             }
 
-            writeToLog("Respone computed succesfully to 'datacustom' message: " +
+            writeToLog(AsyncLog.LEVEL_DEBUG,
+                    "Respone computed succesfully to 'datacustom' message: " +
                     response.toString());
 
             return response;
         } catch (IllegalArgumentException e) {
             if (!messageParsed) {
-                writeToLog("Read message did not parsed successfully to 'getcustom' message: "
+                writeToLog(AsyncLog.LEVEL_WARN,
+                        "Read message did not parsed successfully to 'getcustom' message: "
                         + e.toString());
                 return doResponse(e);
             } else {
-                writeToLog("Failed to compute response." + e.toString());
+                writeToLog(AsyncLog.LEVEL_WARN, "Failed to compute response." + e.toString());
                 return doResponse(e);
             }
         }
@@ -320,7 +1324,7 @@ public class BlockchainServer extends Thread {
         for(int i=0; i<hashList.length; i++) {
             try {
                 hashList[i] = utxoSet.getBlockhash(request.getInt32ListByIndex(i));
-            } catch (IllegalArgumentException e) {
+            } catch (IllegalArgumentException | NoSuchElementException e) {
                 hashList[i] = SHA256HASH.getZeroHash();
             }
         }
@@ -462,4 +1466,94 @@ public class BlockchainServer extends Thread {
         return response;
     }
 
-}
\ No newline at end of file
+
+    /* Computes 'shardproof' response. Shards and proof are read from the same state.
+     * The request has no shard number. Shard indices are of the internal shard number, the one
+     * 'bestshardnum' returns, since the merkle tree only has leaves for internal shards. */
+    private MessageDataCustom doShardproof(MessageGetCustom request) {
+        if(!(utxoSet instanceof AbstractUtxoSet)) {
+            throw new IllegalArgumentException("Request type not supported.");
+        }
+
+        int[] shardIndices = new int[request.getListElementCount()];
+        for(int i=0; i<shardIndices.length; i++) {
+            shardIndices[i] = request.getInt32ListByIndex(i);
+        }
+        Shard[] shardList = new Shard[shardIndices.length];
+
+        try {
+            UtxoSetState state =
+                    ((AbstractUtxoSet) utxoSet).getInternalBestShards(shardIndices, shardList);
+            MerkleMultiProof proof = state.getMerkleTree().getMultiProof(shardIndices);
+
+            return MessageDataCustom.getMessageDataCustom(
+                    ProtocolParams.MESSAGE_TYPE_SHARDPROOF, shardList, proof);
+        } catch (IOException e) {
+            /* Invalidate the whole message */
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+
+    /* Computes 'sharddelta' response. Delta and proof are for the same state. The shard index
+     * is of the internal shard number, as in 'shardproof'. */
+    private MessageDataCustom doSharddelta(MessageGetCustom request) {
+        if(!(utxoSet instanceof AbstractUtxoSet)) {
+            throw new IllegalArgumentException("Request type not supported.");
+        }
+        AbstractUtxoSet abstractUtxoSet = (AbstractUtxoSet) utxoSet;
+        ShardDeltaStore shardDeltaStore = abstractUtxoSet.getShardDeltaStore();
+        if(shardDeltaStore == null) {
+            throw new IllegalArgumentException("Shard deltas not kept.");
+        }
+
+        int shardIndex = request.getInt32ListByIndex(0);
+        int fromHeight = request.getInt32ListByIndex(1);
+        UtxoSetState state = abstractUtxoSet.getState();
+        if(fromHeight > state.getHeight() ||
+                state.getHeight() - fromHeight > ProtocolParams.SHARD_DELTA_MAX_BLOCKS) {
+            throw new IllegalArgumentException("From height out of range.");
+        }
+        if(shardIndex < 0 || shardIndex >= state.getShardNum()) {
+            throw new IllegalArgumentException("Shard index out of range.");
+        }
+
+        try {
+            ShardDelta shardDelta = shardDeltaStore.getShardDelta(shardIndex, fromHeight,
+                    state.getHeight(), state.getBlockhash(),
+                    abstractUtxoSet.getShardFactory().getUtxFactory());
+            MerkleMultiProof proof = state.getMerkleTree().getMultiProof(new int[] {shardIndex});
+
+            return MessageDataCustom.getMessageDataCustom(
+                    ProtocolParams.MESSAGE_TYPE_SHARDDELTA, shardDelta, proof);
+        } catch (IOException | BitcoinUtxoSetException e) {
+            /* Invalidate the whole message */
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+
+    /* Computes 'getutxos' response. Outpoints are looked up per shard, in parallel. */
+    private MessageDataCustom doGetutxos(MessageGetCustom request) {
+        if(!(utxoSet instanceof AbstractUtxoSet)) {
+            throw new IllegalArgumentException("Request type not supported.");
+        }
+
+        TXI[] outpoints = new TXI[request.getListElementCount()];
+        for(int i=0; i<outpoints.length; i++) {
+            outpoints[i] = request.getOutpointListByIndex(i);
+        }
+        UtxoLookup[] results = new UtxoLookup[outpoints.length];
+
+        try {
+            ((AbstractUtxoSet) utxoSet).getInternalBestUtxoLookups(outpoints, results, lookupPool);
+
+            return MessageDataCustom.getMessageDataCustom(
+                    ProtocolParams.MESSAGE_TYPE_GETUTXOS, results);
+        } catch (IOException e) {
+            /* Invalidate the whole message */
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+}
@@ -1,18 +1,31 @@
 package Blockchainj.Blockchain.Server;
 
 import Blockchainj.Blockchain.Main.UserParams;
+import Blockchainj.Blockchain.ProtocolParams;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.cli.*;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Client - Simple request client.
  *
  * Does Prototype Protocol requests to the server and retrieves the responses.
  *
+ * "bestshardchk" responses are read chunk by chunk, so they are never held in memory whole.
+ *
+ * Requests are done over a new connection each, protocol version 1, or pipelined over one
+ * MultiplexedConnection, protocol version 2. ClientPool keeps a pool of the latter for
+ * asynchronous use.
+ *
  */
 
 public class Client {
@@ -81,6 +94,335 @@ public class Client {
 
 
 
+    /* Receives the chunks of a chunked response, in order */
+    public interface ChunkHandler {
+        void onChunk(MessageDataChunk chunk) throws IOException;
+    }
+
+
+    /* Checks that chunks follow request order */
+    private static class ChunkSequence {
+        private final MessageGetCustom request;
+        private int shard = 0;
+        private long offset = 0;
+
+        private ChunkSequence(MessageGetCustom request) { this.request = request; }
+
+        /* Next chunk of the response */
+        private MessageDataChunk next(Message message) throws IOException {
+            MessageDataChunk chunk = new MessageDataChunk(message);
+            if(isDone() || (chunk.getShardIndex() != request.getInt32ListByIndex(shard)) ||
+                    (chunk.getOffset() != offset)) {
+                throw new IOException("Unexpected chunk: " + chunk.toString());
+            }
+
+            offset += chunk.getDataLength();
+            if(chunk.isLastChunk()) {
+                shard++;
+                offset = 0;
+            }
+            return chunk;
+        }
+
+        /* True when all shards were received */
+        private boolean isDone() { return shard == request.getListElementCount(); }
+    }
+
+
+    /* Perform a 'bestshardchk' request. Returns null when all shards were received, else the
+     * message that ended the response. */
+    public Message doChunkedRequest(MessageGetCustom message, ChunkHandler chunkHandler,
+                                    boolean doOutput)
+            throws IOException, IllegalArgumentException {
+        if(doOutput) {
+            System.out.println("Connecting...");
+        }
+        Socket socket = new Socket(serverAddr, serverPort);
+
+        //noinspection TryFinallyCanBeTryWithResources
+        try {
+            message.serializeToSocket(socket.getOutputStream());
+            if(doOutput) {
+                System.out.println("Message sent. Waiting for chunks...");
+            }
+
+            InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+            ChunkSequence sequence = new ChunkSequence(message);
+            while(!sequence.isDone()) {
+                Message response = Message.deserializeFromSocket(inputStream);
+                if(!MessageDataChunk.isDataChunk(response)) {
+                    return response;
+                }
+                chunkHandler.onChunk(sequence.next(response));
+            }
+            if(doOutput) {
+                System.out.println("All chunks recieved.");
+            }
+            return null;
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    /* Opens a protocol version 2 connection. Throws IOException if the server does not
+     * support version 2. */
+    public MultiplexedConnection openMultiplexedConnection() throws IOException {
+        return new MultiplexedConnection(new Socket(serverAddr, serverPort));
+    }
+
+
+    /**
+     * MultiplexedConnection - Protocol version 2 connection.
+     *
+     * Requests are pipelined over one connection, up to the server's max pipelined requests,
+     * and completed as their responses arrive, in any order. A reader thread reads the
+     * responses. Chunk handlers are called on the reader thread.
+     *
+     * Thread-safe. Closing fails the requests in flight.
+     */
+    public static class MultiplexedConnection implements Closeable {
+        private final Socket socket;
+        private final OutputStream outputStream;
+        private final InputStream inputStream;
+
+        /* Agreed version and server limit */
+        private final int version;
+        private final int maxPipelinedRequests;
+
+        /* Free request slots */
+        private final Semaphore slots;
+
+        /* Requests in flight, by request id */
+        private final ConcurrentHashMap<Long, PendingRequest> pending =
+                new ConcurrentHashMap<>();
+        private final AtomicLong nextRequestId = new AtomicLong(0);
+
+        /* Set once, when the connection fails or is closed */
+        private volatile IOException failure = null;
+
+        /* Time the server has to answer the handshake, milliseconds */
+        private static final int HANDSHAKE_TIMEOUT = 2000;
+
+
+        /* Request in flight */
+        private static class PendingRequest {
+            private final CompletableFuture<Message> future = new CompletableFuture<>();
+            private final ChunkSequence chunkSequence;
+            private final ChunkHandler chunkHandler;
+
+            private PendingRequest(MessageGetCustom request, ChunkHandler chunkHandler) {
+                this.chunkSequence = (chunkHandler == null)?null:new ChunkSequence(request);
+                this.chunkHandler = chunkHandler;
+            }
+        }
+
+
+        /* Constructor. Does the handshake and starts the reader thread. */
+        private MultiplexedConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            try {
+                socket.setTcpNoDelay(true);
+                outputStream = new BufferedOutputStream(socket.getOutputStream());
+                inputStream = new BufferedInputStream(socket.getInputStream());
+
+                /* Handshake */
+                MessageProtoVersion.getMessageProtoVersion(ProtocolParams.PROTOCOL_VERSION, 0)
+                        .serializeToSocket(outputStream);
+                outputStream.flush();
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+                Message response = Message.deserializeBlocking(inputStream);
+                socket.setSoTimeout(0);
+                if(!MessageProtoVersion.isProtoVersion(response)) {
+                    throw new IOException("Server does not support protocol version " +
+                            ProtocolParams.PROTOCOL_VERSION_2 + ".");
+                }
+                MessageProtoVersion protoVersion = new MessageProtoVersion(response);
+                if((protoVersion.getVersion() < ProtocolParams.PROTOCOL_VERSION_2) ||
+                        (protoVersion.getMaxPipelinedRequests() < 1)) {
+                    throw new IOException("Server agreed to protocol version " +
+                            protoVersion.getVersion() + ".");
+                }
+                version = protoVersion.getVersion();
+                maxPipelinedRequests = protoVersion.getMaxPipelinedRequests();
+            } catch (IOException | IllegalArgumentException e) {
+                socket.close();
+                throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+            }
+            slots = new Semaphore(maxPipelinedRequests);
+
+            Thread reader = new Thread(this::readResponses, "MultiplexedConnectionReader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+
+        /* Sends the request. The future completes with the response message. */
+        public CompletableFuture<Message> submit(MessageGetCustom request)
+                throws IOException, InterruptedException {
+            return submit(request, null);
+        }
+
+
+        /* Sends a 'bestshardchk' request. The future completes with null when all shards
+         * were received, else with the message that ended the response. */
+        public CompletableFuture<Message> submitChunked(MessageGetCustom request,
+                                                        ChunkHandler chunkHandler)
+                throws IOException, InterruptedException {
+            if(chunkHandler == null) {
+                throw new NullPointerException("Chunk handler cannot be null.");
+            }
+            return submit(request, chunkHandler);
+        }
+
+
+        private CompletableFuture<Message> submit(MessageGetCustom request,
+                                                  ChunkHandler chunkHandler)
+                throws IOException, InterruptedException {
+            /* Wait for a free slot */
+            slots.acquire();
+            if(failure != null) {
+                slots.release();
+                throw failure;
+            }
+
+            long requestId = nextRequestId.getAndIncrement() & 0xFFFFFFFFL;
+            PendingRequest pendingRequest = new PendingRequest(request, chunkHandler);
+            pending.put(requestId, pendingRequest);
+
+            try {
+                synchronized (outputStream) {
+                    MessageRequestId.getMessageRequestId(requestId, request.getSerializedSize())
+                            .serializeToSocket(outputStream);
+                    request.serializeToSocket(outputStream);
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+
+            /* The reader may have failed before the request was added */
+            IOException failure = this.failure;
+            if((failure != null) && (pending.remove(requestId) != null)) {
+                pendingRequest.future.completeExceptionally(failure);
+            }
+            return pendingRequest.future;
+        }
+
+
+        /* Reader thread. Completes requests as their responses arrive. */
+        private void readResponses() {
+            try {
+                //noinspection InfiniteLoopStatement
+                while(true) {
+                    MessageRequestId frame =
+                            new MessageRequestId(Message.deserializeBlocking(inputStream));
+                    PendingRequest pendingRequest = pending.remove(frame.getRequestId());
+                    if(pendingRequest == null) {
+                        throw new IOException("Unknown request id: " + frame.getRequestId());
+                    }
+
+                    long remaining = frame.getLength();
+                    Message result = null;
+                    Exception handlerFailure = null;
+                    while(remaining > 0) {
+                        Message message = Message.deserializeBlocking(inputStream);
+                        remaining -= message.getSerializedSize();
+
+                        if((pendingRequest.chunkHandler == null) ||
+                                !MessageDataChunk.isDataChunk(message)) {
+                            result = message;
+                        } else {
+                            MessageDataChunk chunk = pendingRequest.chunkSequence.next(message);
+                            if(handlerFailure == null) {
+                                try {
+                                    pendingRequest.chunkHandler.onChunk(chunk);
+                                } catch (IOException | RuntimeException e) {
+                                    /* Rest of the response is skipped */
+                                    handlerFailure = e;
+                                }
+                            }
+                        }
+                    }
+                    if(remaining != 0) {
+                        throw new IOException("Response does not match its length.");
+                    }
+
+                    if(handlerFailure != null) {
+                        pendingRequest.future.completeExceptionally(handlerFailure);
+                    } else if((pendingRequest.chunkHandler == null) && (result == null)) {
+                        pendingRequest.future.completeExceptionally(
+                                new IOException("Empty response."));
+                    } else if((pendingRequest.chunkHandler != null) && (result == null) &&
+                            !pendingRequest.chunkSequence.isDone()) {
+                        pendingRequest.future.completeExceptionally(
+                                new IOException("Missing chunks."));
+                    } else {
+                        pendingRequest.future.complete(result);
+                    }
+                    slots.release();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                fail((e instanceof IOException) ? (IOException) e : new IOException(e));
+            }
+        }
+
+
+        /* Fails all requests in flight and closes the socket */
+        private synchronized void fail(IOException e) {
+            if(failure != null) {
+                return;
+            }
+            failure = e;
+            try {
+                socket.close();
+            } catch (IOException e2) {
+                /* Nothing to do */
+            }
+            for(Long requestId : pending.keySet()) {
+                PendingRequest pendingRequest = pending.remove(requestId);
+                if(pendingRequest != null) {
+                    pendingRequest.future.completeExceptionally(e);
+                }
+            }
+
+            /* Wake up waiting submitters */
+            slots.release(maxPipelinedRequests);
+        }
+
+
+        /* Get methods */
+        public int getVersion() { return version; }
+
+        public int getMaxPipelinedRequests() { return maxPipelinedRequests; }
+
+        public int getPendingRequestCount() { return pending.size(); }
+
+        public boolean isClosed() { return failure != null; }
+
+
+        @Override
+        public void close() {
+            fail(new IOException("Connection closed."));
+        }
+    }
+
+
+    /* Waits for a multiplexed response. */
+    public static Message getResponse(CompletableFuture<Message> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+
     /* Perform a one time request. */
     public static void main(String[] args) {
         String hline = new String(new char[25]).replace("\0", "=");
@@ -93,6 +435,8 @@ public class Client {
         options.addOption("prev", "previewResponse", false, "Print response preview.");
         options.addOption("raw", "rawResponse", false, "Print raw response data bytes.");
         options.addOption("full", "fullResponse", false, "Print full readble response.");
+        options.addOption("v2", "protocolVersion2", false,
+                "Use a protocol version 2 connection.");
         Option port = new Option("p", "port", true, "Server port. Default is: " +
                 UserParams.getInt("SERVER_PORT"));
         Option host = new Option("h", "host", true, "Server ip. Default is: " +
@@ -123,6 +467,7 @@ public class Client {
         boolean doPreviewOutput = cmd.hasOption("prev");
         boolean doCompleteRawOutput = cmd.hasOption("raw");
         boolean doCompleteReadableOutput = cmd.hasOption("full");
+        boolean doVersion2 = cmd.hasOption("v2");
         if(!(doProgressOutput | doPreviewOutput | doCompleteRawOutput | doCompleteReadableOutput)) {
             doProgressOutput = true;
             doPreviewOutput = true;
@@ -180,14 +525,70 @@ public class Client {
         }
 
 
+        /* Chunked request, print chunks as they come */
+        if(message.isRequestType(ProtocolParams.MESSAGE_TYPE_BESTSHARDCHK)) {
+            if(doProgressOutput) {
+                printStream.println("\n" + hline);
+            }
+            final boolean doChunkOutput = doMessageOutput;
+            final boolean doRawChunkOutput = doCompleteRawOutput;
+            ChunkHandler chunkHandler = chunk -> {
+                if(doChunkOutput) {
+                    printStream.println(chunk.toString());
+                }
+                if(doRawChunkOutput) {
+                    ByteArrayOutputStream data =
+                            new ByteArrayOutputStream(chunk.getDataLength());
+                    chunk.writeData(data);
+                    printStream.println(Hex.encodeHexString(data.toByteArray()));
+                }
+                if(chunk.isLastChunk()) {
+                    printStream.println("Shard " + chunk.getShardIndex() + " received, " +
+                            chunk.getShardSize() + " bytes.");
+                }
+            };
+            Message end;
+            try {
+                if(doVersion2) {
+                    try (MultiplexedConnection connection = client.openMultiplexedConnection()) {
+                        end = getResponse(connection.submitChunked(message, chunkHandler));
+                    }
+                } else {
+                    end = client.doChunkedRequest(message, chunkHandler, doProgressOutput);
+                }
+            } catch (IllegalArgumentException | IOException | InterruptedException e) {
+                throw new RuntimeException("Internal error.", e);
+            }
+            if(end != null) {
+                if(MessageReject.isReject(end)) {
+                    throw new RuntimeException("Server responded with error: " +
+                            new MessageReject(end).toStringReject());
+                }
+                throw new RuntimeException("Server responded with unknown message: " +
+                        end.toString());
+            }
+            return;
+        }
+
+
         /* Do request and get response */
         if(doProgressOutput) {
             printStream.println("\n" + hline);
         }
         Message response;
         try {
-            response = client.doRequest(message, doProgressOutput);
-        } catch (IllegalArgumentException | IOException e) {
+            if(doVersion2) {
+                try (MultiplexedConnection connection = client.openMultiplexedConnection()) {
+                    if(doProgressOutput) {
+                        printStream.println("Connected, protocol version " +
+                                connection.getVersion() + ".");
+                    }
+                    response = getResponse(connection.submit(message));
+                }
+            } else {
+                response = client.doRequest(message, doProgressOutput);
+            }
+        } catch (IllegalArgumentException | IOException | InterruptedException e) {
             throw new RuntimeException("Internal error.", e);
         }
 
@@ -0,0 +1,531 @@
+package Blockchainj.Blockchain.Server;
+
+import Blockchainj.Bitcoin.TXI;
+import Blockchainj.Blockchain.Main.UserParams;
+import Blockchainj.Blockchain.ProtocolParams;
+import Blockchainj.Blockchain.UtxoSet.Shard.Shard;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoLookup;
+import Blockchainj.Util.LatencyHistogram;
+import Blockchainj.Util.MerkleTree;
+import Blockchainj.Util.SHA256HASH;
+import org.apache.commons.cli.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * ClientPool - Asynchronous pooled request client.
+ *
+ * Keeps up to poolSize protocol version 2 connections to the server and spreads requests over
+ * them, round robin. Calls return futures completed by the connections' reader threads, so no
+ * thread waits per request. A call blocks only while opening a connection or while all
+ * pipelined slots of its connection are taken. Failed connections are replaced on next use.
+ *
+ * Height, shard index and outpoint lists longer than the server's max list count are split
+ * into requests of at most max count, done in parallel over the pool, and their results are
+ * joined in request order. Each part is a separate request and may be answered from a
+ * different best state. "shardproof" lists are not split, the proof is for the whole list.
+ *
+ * Futures of rejected requests complete exceptionally with a RejectException.
+ *
+ * Requests, errors, bytes and latencies are counted, see Metrics.
+ *
+ * main() does one request repeatedly with a fixed number of requests in flight and prints the
+ * metrics, for benchmarking.
+ *
+ * Thread-safe.
+ *
+ */
+
+public class ClientPool implements Closeable {
+    /* Server */
+    private final Client client;
+
+    /* Connections, opened on first use */
+    private final Client.MultiplexedConnection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger(0);
+    private volatile boolean closed = false;
+
+    /* Metrics */
+    private final Metrics metrics = new Metrics();
+
+
+    /* Constructor */
+    public ClientPool(String serverIP, int serverPort, int poolSize) throws UnknownHostException {
+        if(poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1.");
+        }
+        this.client = new Client(serverIP, serverPort);
+        this.connections = new Client.MultiplexedConnection[poolSize];
+    }
+
+
+    /* Server rejected the request */
+    public static class RejectException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final MessageReject reject;
+
+        public RejectException(MessageReject reject) {
+            super("Server responded with error: " + reject.toStringReject());
+            this.reject = reject;
+        }
+
+        public MessageReject getReject() { return reject; }
+    }
+
+
+    /**
+     * Metrics
+     *
+     * Counts of the pool's requests since creation or last reset. Bytes are message bytes,
+     * request id frames excluded. Latency is from the call to the future's completion.
+     */
+    public static class Metrics {
+        private final AtomicLong requests = new AtomicLong(0);
+        private final AtomicLong errors = new AtomicLong(0);
+        private final AtomicLong rejects = new AtomicLong(0);
+        private final AtomicLong bytesSent = new AtomicLong(0);
+        private final AtomicLong bytesReceived = new AtomicLong(0);
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Metrics() { }
+
+        /* Counts a completed request. Response may be null, error null on success. */
+        void record(long latencyNanos, Message response, Throwable error) {
+            requests.incrementAndGet();
+            latency.record(latencyNanos);
+            if(error != null) {
+                errors.incrementAndGet();
+            } else if(response != null) {
+                bytesReceived.addAndGet(response.getSerializedSize());
+                if(MessageReject.isReject(response)) {
+                    rejects.incrementAndGet();
+                }
+            }
+        }
+
+        void addBytesSent(long bytes) { bytesSent.addAndGet(bytes); }
+
+        void addBytesReceived(long bytes) { bytesReceived.addAndGet(bytes); }
+
+        /* Completed requests, including errors and rejects */
+        public long getRequests() { return requests.get(); }
+
+        /* Failed requests, rejects excluded */
+        public long getErrors() { return errors.get(); }
+
+        public long getRejects() { return rejects.get(); }
+
+        public long getBytesSent() { return bytesSent.get(); }
+
+        public long getBytesReceived() { return bytesReceived.get(); }
+
+        public LatencyHistogram getLatency() { return latency; }
+
+        public void reset() {
+            requests.set(0);
+            errors.set(0);
+            rejects.set(0);
+            bytesSent.set(0);
+            bytesReceived.set(0);
+            latency.reset();
+        }
+
+        public void print(PrintStream printStream) {
+            printStream.println("Requests: " + getRequests());
+            printStream.println("Errors: " + getErrors());
+            printStream.println("Rejects: " + getRejects());
+            printStream.println("Bytes sent: " + getBytesSent());
+            printStream.println("Bytes received: " + getBytesReceived());
+            latency.print(printStream);
+        }
+    }
+
+
+    /* Connection of the next request. Opens or replaces it if needed. The connection is
+     * opened outside the lock, so a slow connect does not block requests on other slots. */
+    private Client.MultiplexedConnection nextConnection() throws IOException {
+        if(closed) {
+            throw new IOException("Client pool closed.");
+        }
+
+        int i = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+        synchronized (connections) {
+            Client.MultiplexedConnection connection = connections[i];
+            if(connection != null && !connection.isClosed()) {
+                return connection;
+            }
+        }
+
+        Client.MultiplexedConnection opened = client.openMultiplexedConnection();
+        synchronized (connections) {
+            /* Pool closed meanwhile */
+            if(closed) {
+                opened.close();
+                throw new IOException("Client pool closed.");
+            }
+
+            /* Another request opened the slot's connection meanwhile */
+            Client.MultiplexedConnection connection = connections[i];
+            if(connection != null && !connection.isClosed()) {
+                opened.close();
+                return connection;
+            }
+
+            connections[i] = opened;
+            return opened;
+        }
+    }
+
+
+    /* Does the request. The future completes with the response message, data or reject. */
+    public CompletableFuture<Message> request(MessageGetCustom request) {
+        return submit(request, null);
+    }
+
+
+    /* Does the request. The future completes with the data message, or exceptionally with a
+     * RejectException. */
+    public CompletableFuture<MessageDataCustom> requestData(MessageGetCustom request) {
+        return request(request).thenApply(ClientPool::toDataCustom);
+    }
+
+
+    /* Does a 'bestshardchk' request. Chunks are handed to chunkHandler in order on the
+     * connection's reader thread. The future completes with null when all shards were
+     * received. */
+    public CompletableFuture<Void> requestChunked(MessageGetCustom request,
+                                                  Client.ChunkHandler chunkHandler) {
+        if(chunkHandler == null) {
+            throw new NullPointerException("Chunk handler cannot be null.");
+        }
+        return submit(request, chunkHandler).thenApply(end -> {
+            if(end != null) {
+                toDataCustom(end);
+                throw new CompletionException(
+                        new IOException("Server responded with unknown message: " + end));
+            }
+            return null;
+        });
+    }
+
+
+    private CompletableFuture<Message> submit(MessageGetCustom request,
+                                              Client.ChunkHandler chunkHandler) {
+        long start = System.nanoTime();
+        CompletableFuture<Message> future;
+        try {
+            Client.MultiplexedConnection connection = nextConnection();
+            if(chunkHandler == null) {
+                future = connection.submit(request);
+            } else {
+                /* Count chunk bytes as they come */
+                future = connection.submitChunked(request, chunk -> {
+                    metrics.addBytesReceived(chunk.getSerializedSize());
+                    chunkHandler.onChunk(chunk);
+                });
+            }
+            metrics.addBytesSent(request.getSerializedSize());
+        } catch (IOException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future = new CompletableFuture<>();
+            future.completeExceptionally(new InterruptedIOException());
+        }
+
+        return future.whenComplete((response, e) ->
+                metrics.record(System.nanoTime() - start, response, e));
+    }
+
+
+    /* Response to data message. Throws CompletionException of RejectException on reject. */
+    private static MessageDataCustom toDataCustom(Message response) {
+        try {
+            if(MessageReject.isReject(response)) {
+                throw new RejectException(new MessageReject(response));
+            }
+            if(!MessageDataCustom.isDataCustom(response)) {
+                throw new IOException("Server responded with unknown message: " + response);
+            }
+            return new MessageDataCustom(response);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+
+    /* Elements of a data message, in order */
+    @SuppressWarnings("unchecked")
+    private static <T> T[] getElements(MessageDataCustom data, IntFunction<T[]> newArray) {
+        T[] elements = newArray.apply(data.getElementListCount());
+        for(int i=0; i<elements.length; i++) {
+            elements[i] = (T) data.getElementByIndex(i);
+        }
+        return elements;
+    }
+
+
+    /* Single element of a data message */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> requestElement(byte[] requestType) {
+        return requestData(MessageGetCustom.getMessageGetCustom(requestType, (int[]) null))
+                .thenApply(data -> (T) data.getElementByIndex(0));
+    }
+
+
+    /* Does the int32 list request in parts of at most the request type's max list count, in
+     * parallel. Joins the parts' elements in request order. */
+    private <T> CompletableFuture<T[]> requestSplit(byte[] requestType, int[] int32List,
+                                                    IntFunction<T[]> newArray) {
+        int maxCount = ProtocolParams.calcGetCustomElementListMaxCount(
+                ProtocolParams.calcRequestTypeIndex(requestType));
+        int parts = Math.max(1, (int) Math.ceil((double) int32List.length / maxCount));
+
+        List<CompletableFuture<T[]>> futures = new ArrayList<>(parts);
+        for(int i=0; i<parts; i++) {
+            int[] part = Arrays.copyOfRange(int32List, i*maxCount,
+                    Math.min(int32List.length, (i+1)*maxCount));
+            futures.add(requestData(MessageGetCustom.getMessageGetCustom(requestType, part))
+                    .thenApply(data -> getElements(data, newArray)));
+        }
+        return joinParts(futures, newArray);
+    }
+
+
+    /* Outpoint list version of requestSplit() */
+    private <T> CompletableFuture<T[]> requestSplit(byte[] requestType, TXI[] outpointList,
+                                                    IntFunction<T[]> newArray) {
+        int maxCount = ProtocolParams.calcGetCustomElementListMaxCount(
+                ProtocolParams.calcRequestTypeIndex(requestType));
+        int parts = Math.max(1, (int) Math.ceil((double) outpointList.length / maxCount));
+
+        List<CompletableFuture<T[]>> futures = new ArrayList<>(parts);
+        for(int i=0; i<parts; i++) {
+            TXI[] part = Arrays.copyOfRange(outpointList, i*maxCount,
+                    Math.min(outpointList.length, (i+1)*maxCount));
+            futures.add(requestData(MessageGetCustom.getMessageGetCustom(requestType, part))
+                    .thenApply(data -> getElements(data, newArray)));
+        }
+        return joinParts(futures, newArray);
+    }
+
+
+    private static <T> CompletableFuture<T[]> joinParts(List<CompletableFuture<T[]>> futures,
+                                                        IntFunction<T[]> newArray) {
+        if(futures.size() == 1) {
+            return futures.get(0);
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            int count = 0;
+            for(CompletableFuture<T[]> future : futures) {
+                count += future.join().length;
+            }
+            T[] elements = newArray.apply(count);
+            int offset = 0;
+            for(CompletableFuture<T[]> future : futures) {
+                T[] part = future.join();
+                System.arraycopy(part, 0, elements, offset, part.length);
+                offset += part.length;
+            }
+            return elements;
+        });
+    }
+
+
+    /* "bestheight" */
+    public CompletableFuture<Integer> getBestHeight() {
+        return requestElement(ProtocolParams.MESSAGE_TYPE_BESTHEIGHT);
+    }
+
+    /* "bestblkhash" */
+    public CompletableFuture<SHA256HASH> getBestBlockhash() {
+        return requestElement(ProtocolParams.MESSAGE_TYPE_BESTBLKHASH);
+    }
+
+    /* "blockhash", any number of heights */
+    public CompletableFuture<SHA256HASH[]> getBlockhashes(int... heights) {
+        return requestSplit(ProtocolParams.MESSAGE_TYPE_BLOCKHASH, heights, SHA256HASH[]::new);
+    }
+
+    /* "bestmrklroot" */
+    public CompletableFuture<SHA256HASH> getBestMerkleRoot() {
+        return requestElement(ProtocolParams.MESSAGE_TYPE_BESTMRKLROOT);
+    }
+
+    /* "merkleroot", any number of heights */
+    public CompletableFuture<SHA256HASH[]> getMerkleRoots(int... heights) {
+        return requestSplit(ProtocolParams.MESSAGE_TYPE_MERKLEROOT, heights, SHA256HASH[]::new);
+    }
+
+    /* "bestmrkltree" */
+    public CompletableFuture<MerkleTree> getBestMerkleTree() {
+        return requestElement(ProtocolParams.MESSAGE_TYPE_BESTMRKLTREE);
+    }
+
+    /* "bestshardnum" */
+    public CompletableFuture<Integer> getBestShardNum() {
+        return requestElement(ProtocolParams.MESSAGE_TYPE_BESTSHARDNUM);
+    }
+
+    /* "shardnum", any number of heights */
+    public CompletableFuture<Integer[]> getShardNums(int... heights) {
+        return requestSplit(ProtocolParams.MESSAGE_TYPE_SHARDNUM, heights, Integer[]::new);
+    }
+
+    /* "bestshard", any number of shard indices */
+    public CompletableFuture<Shard[]> getBestShards(int... shardIndices) {
+        return requestSplit(ProtocolParams.MESSAGE_TYPE_BESTSHARD, shardIndices, Shard[]::new);
+    }
+
+    /* "bestshardchk", any number of shard indices. Parts are received in parallel, calls to
+     * chunkHandler are serialized. The chunks of a shard are in order, shards of different
+     * parts may interleave. */
+    public CompletableFuture<Void> getBestShardsChunked(Client.ChunkHandler chunkHandler,
+                                                       int... shardIndices) {
+        int maxCount = ProtocolParams.calcGetCustomElementListMaxCount(
+                ProtocolParams.calcRequestTypeIndex(ProtocolParams.MESSAGE_TYPE_BESTSHARDCHK));
+        int parts = Math.max(1, (int) Math.ceil((double) shardIndices.length / maxCount));
+        Client.ChunkHandler serialized = chunk -> {
+            synchronized (chunkHandler) {
+                chunkHandler.onChunk(chunk);
+            }
+        };
+
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[parts];
+        for(int i=0; i<parts; i++) {
+            int[] part = Arrays.copyOfRange(shardIndices, i*maxCount,
+                    Math.min(shardIndices.length, (i+1)*maxCount));
+            futures[i] = requestChunked(MessageGetCustom.getMessageGetCustom(
+                    ProtocolParams.MESSAGE_TYPE_BESTSHARDCHK, part), serialized);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /* "shardproof", up to the max list count of shard indices. Verify with
+     * MessageDataCustom.calcShardProofRoot(). */
+    public CompletableFuture<MessageDataCustom> getShardProof(int... shardIndices) {
+        return requestData(MessageGetCustom.getMessageGetCustom(
+                ProtocolParams.MESSAGE_TYPE_SHARDPROOF, shardIndices));
+    }
+
+    /* "sharddelta". Apply with MessageDataCustom.applyShardDelta(). */
+    public CompletableFuture<MessageDataCustom> getShardDelta(int shardIndex, int fromHeight) {
+        return requestData(MessageGetCustom.getMessageGetCustom(
+                ProtocolParams.MESSAGE_TYPE_SHARDDELTA, new int[] {shardIndex, fromHeight}));
+    }
+
+    /* "getutxos", any number of outpoints */
+    public CompletableFuture<UtxoLookup[]> getUtxos(TXI... outpoints) {
+        return requestSplit(ProtocolParams.MESSAGE_TYPE_GETUTXOS, outpoints, UtxoLookup[]::new);
+    }
+
+
+    /* Get methods */
+    public Metrics getMetrics() { return metrics; }
+
+    public int getPoolSize() { return connections.length; }
+
+
+    /* Closes all connections. Requests in flight fail. */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (connections) {
+            for(int i=0; i<connections.length; i++) {
+                if(connections[i] != null) {
+                    connections[i].close();
+                    connections[i] = null;
+                }
+            }
+        }
+    }
+
+
+    /* Load mode. Does the request repeatedly, with a fixed number of requests in flight, for
+     * a given time. Prints the metrics. */
+    public static void main(String[] args) {
+        PrintStream printStream = System.out;
+
+        /* User options */
+        Options options = new Options();
+        options.addOption("p", "port", true, "Server port. Default is: " +
+                UserParams.getInt("SERVER_PORT"));
+        options.addOption("h", "host", true, "Server ip. Default is: " +
+                UserParams.getString("SERVER_IP"));
+        options.addOption("c", "connections", true, "Pool size. Default is: 4");
+        options.addOption("i", "inFlight", true, "Requests in flight. Default is: 64");
+        options.addOption("d", "duration", true, "Seconds to run. Default is: 10");
+        Option request = new Option("r", "request", true, "Request. Use:\n" +
+                MessageGetCustom.requestFormat());
+        request.setRequired(true);
+        request.setArgs(20);
+        request.setOptionalArg(true);
+        options.addOption(request);
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+        MessageGetCustom message;
+        try {
+            cmd = parser.parse(options, args);
+            message = MessageGetCustom.getMessageGetCustom(cmd.getOptionValues("r"), 0);
+        } catch (ParseException | IllegalArgumentException e) {
+            printStream.println(e.getMessage());
+            formatter.printHelp("ClientPool", options);
+            System.exit(1);
+            return;
+        }
+
+        /* Set parameters */
+        String serverIP = cmd.getOptionValue("h", UserParams.getString("SERVER_IP"));
+        int serverPort = Integer.parseInt(cmd.getOptionValue("p",
+                String.valueOf(UserParams.getInt("SERVER_PORT"))));
+        int poolSize = Integer.parseInt(cmd.getOptionValue("c", "4"));
+        int inFlight = Integer.parseInt(cmd.getOptionValue("i", "64"));
+        long durationNanos = Long.parseLong(cmd.getOptionValue("d", "10")) * 1000000000L;
+        boolean chunked = message.isRequestType(ProtocolParams.MESSAGE_TYPE_BESTSHARDCHK);
+
+        try (ClientPool clientPool = new ClientPool(serverIP, serverPort, poolSize)) {
+            printStream.println("Running '" + message.getRequestTypeString() + "' with " +
+                    poolSize + " connections, " + inFlight + " requests in flight...");
+
+            /* Closed loop. A new request starts when one completes. */
+            Semaphore permits = new Semaphore(inFlight);
+            long start = System.nanoTime();
+            while(System.nanoTime() - start < durationNanos) {
+                permits.acquire();
+                CompletableFuture<?> future = chunked ?
+                        clientPool.requestChunked(message, chunk -> { }) :
+                        clientPool.request(message);
+                future.whenComplete((r, e) -> permits.release());
+            }
+            permits.acquire(inFlight);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            /* Print results */
+            Metrics metrics = clientPool.getMetrics();
+            printStream.println(">ClientPool");
+            metrics.print(printStream);
+            printStream.println(String.format("Requests/s: %.1f",
+                    metrics.getRequests() / seconds));
+            printStream.println(String.format("Received MiB/s: %.3f",
+                    metrics.getBytesReceived() / seconds / (1024*1024)));
+        } catch (UnknownHostException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package Blockchainj.Blockchain.Server;
+
+import Blockchainj.Blockchain.ProtocolParams;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadTest - Load generator for a BlockchainServer.
+ *
+ * Runs virtual clients against a server with a weighted mix of requests, e.g.
+ * "bestheight=40,bestshard:2=30,bestmrkltree=10,blockhash:5=20". Each entry is
+ * <request type>[:<list count>]=<weight>. Heights and shard indices of the lists are random,
+ * up to the server's best height and shard count at start. "bestshardchk" responses are read
+ * chunk by chunk. "sharddelta" and "getutxos" are not supported.
+ *
+ * Closed loop: each client does one request at a time and starts the next when it completes.
+ * Protocol version 1 clients open a connection per request, version 2 clients keep one
+ * MultiplexedConnection each.
+ *
+ * Open loop: requests arrive at a fixed mean rate, exponential inter-arrival times, and are
+ * spread over the clients' version 2 connections. Latency is from the scheduled arrival, so a
+ * server that falls behind shows in the latencies, not in fewer requests.
+ *
+ * Requests starting in the warmup period are not counted. Counts, bytes and latencies are kept
+ * per mix entry, see ClientPool.Metrics.
+ *
+ * The report is a tab delimited file with a row per mix entry and a row for all, appended
+ * with a label so runs against different server versions can be compared.
+ *
+ */
+
+public class LoadTest {
+    /* Server */
+    private final InetAddress serverAddr;
+    private final String serverIP;
+    private final int serverPort;
+
+    /* Load */
+    private final MixEntry[] mix;
+    private final int totalWeight;
+    private final int clients;
+    private final int protocolVersion;
+    private final double openLoopRate;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final long seed;
+
+    /* Protocol version 1 socket timeout, milliseconds */
+    private static final int V1_TIMEOUT = 30000;
+
+    /* Time to wait for requests in flight after the run, milliseconds */
+    private static final long DRAIN_TIMEOUT = 30000;
+
+    /* Server state at start */
+    private int bestHeight = ProtocolParams.UNDEFINED_HEIGHT;
+    private int shardNum = ProtocolParams.UNDEFINED_SHARD_NUM;
+
+    /* Run measurements */
+    private final ClientPool.Metrics allMetrics = new ClientPool.Metrics();
+    private double measuredSeconds = 0;
+    private volatile long measureStart;
+    private volatile long measureEnd;
+
+
+    /* Request mix entry */
+    private static class MixEntry {
+        private final String name;
+        private final byte[] requestType;
+        private final int listCount;
+        private final int weight;
+        private final boolean heightList;
+        private final boolean chunked;
+        private final ClientPool.Metrics metrics = new ClientPool.Metrics();
+
+        private MixEntry(String name, byte[] requestType, int listCount, int weight,
+                         boolean heightList, boolean chunked) {
+            this.name = name;
+            this.requestType = requestType;
+            this.listCount = listCount;
+            this.weight = weight;
+            this.heightList = heightList;
+            this.chunked = chunked;
+        }
+
+        /* Name with list count, as in the mix */
+        private String getLabel() {
+            return (listCount == 0) ? name : name + ":" + listCount;
+        }
+    }
+
+
+    /* Constructor. openLoopRate in requests per second, 0 for closed loop. */
+    public LoadTest(String serverIP, int serverPort, String mix, int clients,
+                    int protocolVersion, double openLoopRate, int warmupSeconds,
+                    int durationSeconds, long seed)
+            throws IllegalArgumentException, UnknownHostException {
+        if(clients < 1) {
+            throw new IllegalArgumentException("Clients must be at least 1.");
+        }
+        if(protocolVersion != ProtocolParams.PROTOCOL_VERSION_1 &&
+                protocolVersion != ProtocolParams.PROTOCOL_VERSION_2) {
+            throw new IllegalArgumentException("Unknown protocol version " + protocolVersion);
+        }
+        if(openLoopRate < 0) {
+            throw new IllegalArgumentException("Open loop rate cannot be negative.");
+        }
+        if(openLoopRate > 0 && protocolVersion != ProtocolParams.PROTOCOL_VERSION_2) {
+            throw new IllegalArgumentException("Open loop needs protocol version 2.");
+        }
+        if(warmupSeconds < 0 || durationSeconds < 1) {
+            throw new IllegalArgumentException("Invalid warmup or duration.");
+        }
+
+        this.serverAddr = InetAddress.getByName(serverIP);
+        this.serverIP = serverIP;
+        this.serverPort = serverPort;
+        this.mix = parseMix(mix);
+        int totalWeight = 0;
+        for(MixEntry entry : this.mix) {
+            totalWeight += entry.weight;
+        }
+        this.totalWeight = totalWeight;
+        this.clients = clients;
+        this.protocolVersion = protocolVersion;
+        this.openLoopRate = openLoopRate;
+        this.warmupNanos = warmupSeconds * 1000000000L;
+        this.durationNanos = durationSeconds * 1000000000L;
+        this.seed = seed;
+    }
+
+
+    /* Parses <request type>[:<list count>]=<weight>,... */
+    private static MixEntry[] parseMix(String mix) throws IllegalArgumentException {
+        ArrayList<MixEntry> entries = new ArrayList<>();
+        for(String entryString : mix.split(",")) {
+            entryString = entryString.trim();
+            if(entryString.isEmpty()) {
+                continue;
+            }
+
+            try {
+                /* Weight */
+                int equals = entryString.lastIndexOf('=');
+                if(equals < 0) {
+                    throw new IllegalArgumentException("Missing weight.");
+                }
+                int weight = Integer.parseInt(entryString.substring(equals + 1).trim());
+                if(weight < 1) {
+                    throw new IllegalArgumentException("Weight must be at least 1.");
+                }
+
+                /* Request type and list count */
+                String name = entryString.substring(0, equals).trim();
+                int listCount = -1;
+                int colon = name.indexOf(':');
+                if(colon >= 0) {
+                    listCount = Integer.parseInt(name.substring(colon + 1).trim());
+                    name = name.substring(0, colon).trim();
+                }
+                byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+                if(nameBytes.length > ProtocolParams.REQUEST_TYPE_SIZE) {
+                    throw new IllegalArgumentException("Unknown request type.");
+                }
+                byte[] requestType = new byte[ProtocolParams.REQUEST_TYPE_SIZE];
+                System.arraycopy(nameBytes, 0, requestType, 0, nameBytes.length);
+                int typeIndex = ProtocolParams.calcRequestTypeIndex(requestType);
+                int typeCase = ProtocolParams.calcGetCustomRequestTypeCase(typeIndex);
+
+                /* No list, height list or shard index list */
+                if(ProtocolParams.isRequestTypeEqual(requestType,
+                        ProtocolParams.MESSAGE_TYPE_SHARDDELTA) || typeCase == 4) {
+                    throw new IllegalArgumentException("Request type not supported.");
+                }
+                if(typeCase == 1) {
+                    if(listCount > 0) {
+                        throw new IllegalArgumentException("Request type has no list.");
+                    }
+                    listCount = 0;
+                } else {
+                    if(listCount < 0) {
+                        listCount = 1;
+                    }
+                    if(listCount < 1 || listCount >
+                            ProtocolParams.calcGetCustomElementListMaxCount(typeIndex)) {
+                        throw new IllegalArgumentException("Invalid list count.");
+                    }
+                }
+
+                entries.add(new MixEntry(name, requestType, listCount, weight, typeCase == 2,
+                        ProtocolParams.isRequestTypeEqual(requestType,
+                                ProtocolParams.MESSAGE_TYPE_BESTSHARDCHK)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Invalid mix entry '" + entryString + "': " + e.getMessage(), e);
+            }
+        }
+
+        if(entries.isEmpty()) {
+            throw new IllegalArgumentException("Empty request mix.");
+        }
+        return entries.toArray(new MixEntry[0]);
+    }
+
+
+    /* Runs the test. Blocks for warmup and duration. */
+    public void run() throws IOException, InterruptedException {
+        /* Server state, for the random lists */
+        try (ClientPool clientPool = new ClientPool(serverIP, serverPort, 1)) {
+            bestHeight = clientPool.getBestHeight().get();
+            shardNum = clientPool.getBestMerkleTree().get().getNumLeaves();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to get server state.", e.getCause());
+        }
+        for(MixEntry entry : mix) {
+            if(entry.heightList && bestHeight < 0) {
+                throw new IOException("Server has no blocks for '" + entry.name + "'.");
+            }
+        }
+
+        /* Reset measurements */
+        for(MixEntry entry : mix) {
+            entry.metrics.reset();
+        }
+        allMetrics.reset();
+
+        long start = System.nanoTime();
+        measureStart = start + warmupNanos;
+        measureEnd = measureStart + durationNanos;
+
+        if(openLoopRate > 0) {
+            runOpenLoop(start);
+        } else {
+            runClosedLoop();
+        }
+
+        measuredSeconds = durationNanos / 1e9;
+    }
+
+
+    /* One thread per client, one request at a time */
+    private void runClosedLoop() throws InterruptedException {
+        Thread[] threads = new Thread[clients];
+        for(int i=0; i<clients; i++) {
+            Random random = new Random(seed + i);
+            threads[i] = new Thread(() -> runClosedLoopClient(random), "LoadTest-client-" + i);
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+
+    private void runClosedLoopClient(Random random) {
+        ClientPool clientPool = null;
+        try {
+            if(protocolVersion == ProtocolParams.PROTOCOL_VERSION_2) {
+                clientPool = new ClientPool(serverIP, serverPort, 1);
+            }
+
+            long start;
+            while((start = System.nanoTime()) < measureEnd) {
+                MixEntry entry = nextEntry(random);
+                MessageGetCustom request = newRequest(entry, random);
+                AtomicLong chunkBytes = new AtomicLong(0);
+                Message response = null;
+                Throwable error = null;
+                try {
+                    if(clientPool != null) {
+                        response = submit(clientPool, entry, request, chunkBytes).get();
+                    } else {
+                        response = doV1Request(entry, request, chunkBytes);
+                    }
+                } catch (ExecutionException e) {
+                    error = e.getCause();
+                } catch (IOException | IllegalArgumentException e) {
+                    error = e;
+                }
+                record(entry, request, start, System.nanoTime(), response, error,
+                        chunkBytes.get());
+            }
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if(clientPool != null) {
+                clientPool.close();
+            }
+        }
+    }
+
+
+    /* Scheduled arrivals over one pool of clients connections */
+    private void runOpenLoop(long start) throws IOException, InterruptedException {
+        Random random = new Random(seed);
+        AtomicLong inFlight = new AtomicLong(0);
+        double meanInterval = 1e9 / openLoopRate;
+
+        try (ClientPool clientPool = new ClientPool(serverIP, serverPort, clients)) {
+            long scheduled = start;
+            for(;;) {
+                /* Exponential inter-arrival time */
+                scheduled += (long) (-Math.log(1.0 - random.nextDouble()) * meanInterval);
+                if(scheduled >= measureEnd) {
+                    break;
+                }
+                long wait = scheduled - System.nanoTime();
+                if(wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                if(Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                MixEntry entry = nextEntry(random);
+                MessageGetCustom request = newRequest(entry, random);
+                AtomicLong chunkBytes = new AtomicLong(0);
+                long arrival = scheduled;
+                inFlight.incrementAndGet();
+                submit(clientPool, entry, request, chunkBytes).whenComplete((response, e) -> {
+                    record(entry, request, arrival, System.nanoTime(), response,
+                            (e instanceof CompletionException) ? e.getCause() : e,
+                            chunkBytes.get());
+                    inFlight.decrementAndGet();
+                });
+            }
+
+            /* Wait for requests in flight */
+            long drainStart = System.currentTimeMillis();
+            while(inFlight.get() > 0 &&
+                    System.currentTimeMillis() - drainStart < DRAIN_TIMEOUT) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+
+    /* Does the request over the pool. Chunk bytes are added to chunkBytes. The future
+     * completes with null when all chunks were received. */
+    private static CompletableFuture<Message> submit(ClientPool clientPool, MixEntry entry,
+                                                     MessageGetCustom request,
+                                                     AtomicLong chunkBytes) {
+        if(entry.chunked) {
+            return clientPool.requestChunked(request,
+                    chunk -> chunkBytes.addAndGet(chunk.getSerializedSize()))
+                    .thenApply(end -> null);
+        } else {
+            return clientPool.request(request).thenApply(LoadTest::checkResponse);
+        }
+    }
+
+
+    /* Does the request over a new protocol version 1 connection */
+    private Message doV1Request(MixEntry entry, MessageGetCustom request,
+                                AtomicLong chunkBytes) throws IOException {
+        try (Socket socket = new Socket(serverAddr, serverPort)) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(V1_TIMEOUT);
+            request.serializeToSocket(socket.getOutputStream());
+
+            InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+            if(!entry.chunked) {
+                return checkResponse(Message.deserializeBlocking(inputStream));
+            }
+
+            /* Chunks until the last chunk of each shard */
+            int shards = 0;
+            while(shards < request.getListElementCount()) {
+                Message message = Message.deserializeBlocking(inputStream);
+                if(!MessageDataChunk.isDataChunk(message)) {
+                    return checkResponse(message);
+                }
+                chunkBytes.addAndGet(message.getSerializedSize());
+                if(new MessageDataChunk(message).isLastChunk()) {
+                    shards++;
+                }
+            }
+            return null;
+        }
+    }
+
+
+    /* Response must be data or reject */
+    private static Message checkResponse(Message response) {
+        if(!MessageDataCustom.isDataCustom(response) && !MessageReject.isReject(response)) {
+            throw new CompletionException(
+                    new IOException("Server responded with unknown message: " + response));
+        }
+        return response;
+    }
+
+
+    /* Counts a completed request that started at start, if in the measured period */
+    private void record(MixEntry entry, MessageGetCustom request, long start, long end,
+                        Message response, Throwable error, long chunkBytes) {
+        if(start < measureStart || start >= measureEnd) {
+            return;
+        }
+
+        /* Chunked rejects complete exceptionally */
+        if(error instanceof ClientPool.RejectException) {
+            response = ((ClientPool.RejectException) error).getReject();
+            error = null;
+        }
+
+        for(ClientPool.Metrics metrics :
+                new ClientPool.Metrics[] {entry.metrics, allMetrics}) {
+            metrics.addBytesSent(request.getSerializedSize());
+            metrics.addBytesReceived(chunkBytes);
+            metrics.record(end - start, response, error);
+        }
+    }
+
+
+    /* Weighted random mix entry */
+    private MixEntry nextEntry(Random random) {
+        int r = random.nextInt(totalWeight);
+        for(MixEntry entry : mix) {
+            r -= entry.weight;
+            if(r < 0) {
+                return entry;
+            }
+        }
+        return mix[mix.length - 1];
+    }
+
+
+    /* Request of entry with a random list */
+    private MessageGetCustom newRequest(MixEntry entry, Random random) {
+        if(entry.listCount == 0) {
+            return MessageGetCustom.getMessageGetCustom(entry.requestType, (int[]) null);
+        }
+
+        int[] list = new int[entry.listCount];
+        for(int i=0; i<list.length; i++) {
+            list[i] = entry.heightList ? random.nextInt(bestHeight + 1) : random.nextInt(shardNum);
+        }
+        return MessageGetCustom.getMessageGetCustom(entry.requestType, list);
+    }
+
+
+    /* Appends a row per mix entry and a row for all to the tab delimited report file. Writes
+     * the header first if the file is new. */
+    public void writeReport(String path, String label) throws IOException {
+        Path reportPath = Paths.get(path);
+        if(reportPath.getParent() != null) {
+            Files.createDirectories(reportPath.getParent());
+        }
+        boolean writeHeader = !Files.exists(reportPath) || Files.size(reportPath) == 0;
+
+        try (PrintStream printStream = new PrintStream(new BufferedOutputStream(
+                Files.newOutputStream(reportPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND)), false, "US-ASCII")) {
+            if(writeHeader) {
+                printStream.println(REPORT_HEADER);
+            }
+            for(MixEntry entry : mix) {
+                printReportRow(printStream, label, entry.getLabel(),
+                        openLoopRate * entry.weight / totalWeight, entry.metrics);
+            }
+            printReportRow(printStream, label, "all", openLoopRate, allMetrics);
+        }
+    }
+
+
+    /* Report columns */
+    private static final String REPORT_HEADER = "label\trequest\tloop\tprotocol\tclients\t" +
+            "target_rate\tduration_s\trequests\terrors\trejects\tthroughput_rps\t" +
+            "bytes_sent\tbytes_received\tbytes_per_s\tmean_ms\tp50_ms\tp99_ms\tp999_ms\t" +
+            "max_ms";
+
+    private void printReportRow(PrintStream printStream, String label, String request,
+                                double targetRate, ClientPool.Metrics metrics) {
+        double seconds = (measuredSeconds > 0) ? measuredSeconds : 1;
+        printStream.println(label + "\t" + request + "\t" +
+                ((openLoopRate > 0) ? "open" : "closed") + "\t" +
+                protocolVersion + "\t" +
+                clients + "\t" +
+                String.format("%.1f", targetRate) + "\t" +
+                String.format("%.1f", measuredSeconds) + "\t" +
+                metrics.getRequests() + "\t" +
+                metrics.getErrors() + "\t" +
+                metrics.getRejects() + "\t" +
+                String.format("%.1f", metrics.getRequests() / seconds) + "\t" +
+                metrics.getBytesSent() + "\t" +
+                metrics.getBytesReceived() + "\t" +
+                String.format("%.1f", metrics.getBytesReceived() / seconds) + "\t" +
+                toMillis(metrics.getLatency().getMean()) + "\t" +
+                toMillis(metrics.getLatency().getValueAtPercentile(50)) + "\t" +
+                toMillis(metrics.getLatency().getValueAtPercentile(99)) + "\t" +
+                toMillis(metrics.getLatency().getValueAtPercentile(99.9)) + "\t" +
+                toMillis(metrics.getLatency().getMax()));
+    }
+
+    private static String toMillis(double nanos) { return String.format("%.3f", nanos / 1e6); }
+
+
+    /* Get methods */
+    public int getBestHeight() { return bestHeight; }
+
+    public int getShardNum() { return shardNum; }
+
+    /* Measurements of all requests of the last run */
+    public ClientPool.Metrics getMetrics() { return allMetrics; }
+
+
+    public void print(PrintStream printStream) {
+        double seconds = (measuredSeconds > 0) ? measuredSeconds : 1;
+        printStream.println(">LoadTest");
+        printStream.println("Server: " + serverIP + ":" + serverPort);
+        printStream.println("Best height: " + bestHeight + ", shards: " + shardNum);
+        printStream.println("Loop: " + ((openLoopRate > 0) ?
+                String.format("open, %.1f requests/s", openLoopRate) : "closed") +
+                ", protocol version: " + protocolVersion + ", clients: " + clients);
+        for(MixEntry entry : mix) {
+            printStream.println(">" + entry.getLabel() + ", weight " + entry.weight);
+            entry.metrics.print(printStream);
+        }
+        printStream.println(">all");
+        allMetrics.print(printStream);
+        printStream.println(String.format("Requests/s: %.1f", allMetrics.getRequests() / seconds));
+        printStream.println(String.format("Received MiB/s: %.3f",
+                allMetrics.getBytesReceived() / seconds / (1024*1024)));
+    }
+}
@@ -156,6 +156,22 @@ public class Message {
     }
 
 
+    /* Deserialize message. Blocks until the whole message is read, for threads that only
+     * read the socket. */
+    public static Message deserializeBlocking(InputStream inputStream) throws IOException {
+        Message headerMessage = deserializeHeader(
+                Utils.readBytesFromInputStreamFully(inputStream, HEADER_SIZE));
+        if((headerMessage.payloadLength < 0) ||
+                (headerMessage.payloadLength > BitcoinParams.MAX_PAYLOAD_LENGTH)) {
+            throw new IOException("Invalid payload length.");
+        }
+        byte[] payload = Utils.readBytesFromInputStreamFully(
+                inputStream, headerMessage.payloadLength);
+
+        return checkMessage(headerMessage, payload);
+    }
+
+
     /* Deserialize with from socket option. */
     public static Message deserialize(InputStream inputStream, boolean fromSocket)
             throws IOException {
@@ -180,6 +196,13 @@ public class Message {
             payload = Utils.readBytesFromInputStream(inputStream, headerMessage.payloadLength);
         }
 
+        return checkMessage(headerMessage, payload);
+    }
+
+
+    /* Message of header and payload. Checks the checksum. */
+    private static Message checkMessage(Message headerMessage, byte[] payload)
+            throws IOException {
         /* Make Message */
         Message message = new Message(headerMessage.magic, headerMessage.command, payload);
 
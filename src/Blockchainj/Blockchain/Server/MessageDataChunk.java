@@ -0,0 +1,138 @@
+package Blockchainj.Blockchain.Server;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Blockchain.ProtocolParams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ *  MessageDataChunk - Chunked framing of large responses.
+ *
+ *  A "bestshardchk" request is answered with a sequence of "datachunk" messages instead of a
+ *  single "datacustom" message. Shards are sent in request order, each one split into chunks
+ *  of at most DEFAULT_CHUNK_DATA_SIZE bytes. The data of all chunks of a shard is the shard's
+ *  "bestshard" serialization. A shard is complete when offset plus data length equals the
+ *  shard size. The response ends with the last chunk of the last requested shard.
+ *
+ *  Every chunk carries its own checksum and no response-wide fields, so a shard's chunks
+ *  can be encoded once and sent as they are. Responses may be larger than 2 GB.
+ *
+ *  On failure the server sends a "reject" message before any chunk.
+ *
+ *  Command: "datachunk"
+ *  Payload:
+ *      Shard index int32 4 bytes
+ *      Shard serialized size int64 8 bytes
+ *      Data offset in shard serialization int64 8 bytes
+ *      Data, rest of payload
+ */
+
+public class MessageDataChunk extends Message {
+    /* DataChunk command */
+    private static final byte[] CMD = ProtocolParams.MESSAGE_CMD_DATACHUNK;
+
+    /* Chunk header size */
+    public static final int CHUNK_HEADER_SIZE =
+            BitcoinParams.INT32_SIZE + BitcoinParams.INT64_SIZE + BitcoinParams.INT64_SIZE;
+
+    /* Max data bytes per chunk */
+    public static final int DEFAULT_CHUNK_DATA_SIZE = 1024*1024; //1 MiB
+
+    /* Chunk header */
+    private final int shardIndex;
+    private final long shardSize;
+    private final long offset;
+
+
+    /* Constructor. Does not copy input. */
+    public MessageDataChunk(byte[] magic, byte[] payload) throws IllegalArgumentException {
+        super(magic, CMD, payload);
+
+        if(payload.length < CHUNK_HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid payload.");
+        }
+        shardIndex = BitcoinParams.readINT32(payload, 0);
+        shardSize = BitcoinParams.readINT64(payload, BitcoinParams.INT32_SIZE);
+        offset = BitcoinParams.readINT64(payload,
+                BitcoinParams.INT32_SIZE + BitcoinParams.INT64_SIZE);
+
+        if((shardSize < 0) || (offset < 0) || (offset + getDataLength() > shardSize)) {
+            throw new IllegalArgumentException("Invalid chunk range.");
+        }
+    }
+
+
+    /* Constructor */
+    public MessageDataChunk(Message message) throws IllegalArgumentException {
+        this(message.magic, message.payload);
+
+        if(!isDataChunk(message)) {
+            throw new IllegalArgumentException("Message is not MessageDataChunk");
+        }
+    }
+
+
+    /* Creates a DataChunk message of data[dataOffset, dataOffset+length). */
+    public static MessageDataChunk getMessageDataChunk(int shardIndex, long shardSize,
+                                                       long offset, byte[] data,
+                                                       int dataOffset, int length)
+            throws IllegalArgumentException {
+        try {
+            byte[] payload = new byte[CHUNK_HEADER_SIZE + length];
+            BitcoinParams.INT32ToByteArray(shardIndex, payload, 0);
+            BitcoinParams.INT64ToByteArray(shardSize, payload, BitcoinParams.INT32_SIZE);
+            BitcoinParams.INT64ToByteArray(offset, payload,
+                    BitcoinParams.INT32_SIZE + BitcoinParams.INT64_SIZE);
+            System.arraycopy(data, dataOffset, payload, CHUNK_HEADER_SIZE, length);
+
+            return new MessageDataChunk(BitcoinParams.MAGIC_MAIN, payload);
+        } catch (IndexOutOfBoundsException | NullPointerException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+
+    /* Get methods */
+    public int getShardIndex() { return shardIndex; }
+
+    public long getShardSize() { return shardSize; }
+
+    public long getOffset() { return offset; }
+
+    public int getDataLength() { return payload.length - CHUNK_HEADER_SIZE; }
+
+    /* True if this is the last chunk of its shard */
+    public boolean isLastChunk() { return offset + getDataLength() == shardSize; }
+
+    /* Writes chunk data */
+    public void writeData(OutputStream outputStream) throws IOException {
+        outputStream.write(payload, CHUNK_HEADER_SIZE, getDataLength());
+    }
+
+
+    public static boolean isDataChunk(Message message) {
+        return message.equalsCommand(CMD);
+    }
+
+
+    /* DEBUG MOSTLY */
+    public void print(PrintStream printStream, boolean doMessageHeader, boolean doRawPayload) {
+        if(doMessageHeader) {
+            super.print(printStream, doRawPayload);
+        }
+
+        printStream.println("Shard index: " + shardIndex);
+        printStream.println("Shard size: " + shardSize);
+        printStream.println("Offset: " + offset);
+        printStream.println("Data length: " + getDataLength());
+    }
+
+
+    @Override
+    public String toString() {
+        return super.toString() + " ShardIndex:" + shardIndex + " ShardSize:" + shardSize +
+                " Offset:" + offset + " DataLength:" + getDataLength();
+    }
+}
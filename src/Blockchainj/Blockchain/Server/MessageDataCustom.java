@@ -2,9 +2,13 @@ package Blockchainj.Blockchain.Server;
 
 import Blockchainj.Bitcoin.BitcoinParams;
 import Blockchainj.Blockchain.ProtocolParams;
+import Blockchainj.Util.MerkleMultiProof;
 import Blockchainj.Util.MerkleTree;
 import Blockchainj.Blockchain.UtxoSet.Shard.Shard;
 import Blockchainj.Blockchain.UtxoSet.Shard.ShardSortedMapUtxs;
+import Blockchainj.Blockchain.UtxoSet.BitcoinUtxoSetException;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.ShardDelta;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoLookup;
 import Blockchainj.Util.SHA256HASH;
 import Blockchainj.Util.Utils;
 
@@ -43,6 +47,17 @@ import java.util.Iterator;
  *      "shardnum", list of counts, <int32, 4 bytes>
  *
  *      "bestshard", list of shards, <undefined>
+ *
+ *      "shardproof", list of shards, <undefined>, followed by the Merkle multi proof linking
+ *          the shards' hashes to the merkle root of the same state, see MerkleMultiProof.
+ *          Shards are in request order. The proof's leaf indices are sorted and unique.
+ *
+ *      "sharddelta", 1 element, shard delta, see ShardDelta, followed by the Merkle multi proof
+ *          of the shard at the delta's to height. Apply the delta to the shard at its from
+ *          height and check the proof, see applyShardDelta().
+ *
+ *      "getutxos", list of lookup results in request order, see UtxoLookup.
+ *          <found, uint8>[<height, int32><isCoinbase, uint8><utxo, UTXO serialization>]
  */
 
 public class MessageDataCustom extends Message {
@@ -60,7 +75,10 @@ public class MessageDataCustom extends Message {
      * 2: Index list - Integer
      * 3: Hash list - SHA256HASH
      * 4: Merkle tree list - MerkleTree
-     * 5: Shard list - Shard */
+     * 5: Shard list - Shard
+     * 6: Shard list and Merkle multi proof - Shard
+     * 7: Shard delta and Merkle multi proof - ShardDelta
+     * 8: Utxo lookup list - UtxoLookup */
     private final int requestTypeCase;
 
     /* Element list min/max count */
@@ -71,9 +89,12 @@ public class MessageDataCustom extends Message {
     private final int elementListCount;
 
     /* List of elements.
-     * Possible types: Integer, SHA256HASH, MerkleTree, Shard */
+     * Possible types: Integer, SHA256HASH, MerkleTree, Shard, ShardDelta, UtxoLookup */
     private final ArrayList<?> elementList;
 
+    /* Merkle multi proof following the list of cases 6 and 7. Else null. */
+    private final MerkleMultiProof merkleMultiProof;
+
 
     /* Constructor. Parses payload. Does not copy input all input. */
     public MessageDataCustom(Message message) throws IllegalArgumentException {
@@ -100,6 +121,22 @@ public class MessageDataCustom extends Message {
             elementList = parseElementList(payload, offset, elementListMinCount,
                     elementListMaxCount, requestTypeCase);
             elementListCount = elementList.size();
+
+            /* Parse merkle multi proof after shard or shard delta list */
+            if(requestTypeCase == 6 || requestTypeCase == 7) {
+                offset += ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE;
+                for(Object element : elementList) {
+                    offset += (requestTypeCase == 6) ?
+                            (int) ((Shard) element).getSerializedSize() :
+                            ((ShardDelta) element).getSerializedSize();
+                }
+                merkleMultiProof = MerkleMultiProof.deserialize(
+                        new ByteArrayInputStream(payload, offset, payload.length - offset));
+            } else {
+                merkleMultiProof = null;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
         } catch (BufferUnderflowException | IndexOutOfBoundsException | NullPointerException e) {
             throw new IllegalArgumentException(e);
         }
@@ -109,6 +146,14 @@ public class MessageDataCustom extends Message {
     /* Private Constructor. Does not parse input. Does not copy input all input. */
     private <T> MessageDataCustom(byte[] magic, byte[] payload, T[] elementList)
             throws IllegalArgumentException {
+        this(magic, payload, elementList, null);
+    }
+
+
+    /* Private Constructor. Does not parse input. Does not copy input all input. */
+    private <T> MessageDataCustom(byte[] magic, byte[] payload, T[] elementList,
+                                  MerkleMultiProof merkleMultiProof)
+            throws IllegalArgumentException {
         super(magic, CMD, payload);
         try {
             int offset = 0;
@@ -128,6 +173,7 @@ public class MessageDataCustom extends Message {
             /* Parse element list */
             this.elementList = new ArrayList<>(Arrays.asList(elementList));
             elementListCount = this.elementList.size();
+            this.merkleMultiProof = merkleMultiProof;
         } catch (BufferUnderflowException | IndexOutOfBoundsException | NullPointerException e) {
             throw new IllegalArgumentException(e);
         }
@@ -175,6 +221,67 @@ public class MessageDataCustom extends Message {
         return Utils.getStringFromBytes(requestType, 0, requestType.length);
     }
 
+    /* Cases 6 and 7 only, else null */
+    public MerkleMultiProof getMerkleMultiProof() {
+        return merkleMultiProof;
+    }
+
+
+    /* Case 6. Computes the merkle root from the shards' hashes and the proof. Compare it with a
+     * trusted merkle root to verify the shards. */
+    public SHA256HASH calcShardProofRoot() throws IllegalArgumentException, IOException {
+        if(merkleMultiProof == null || requestTypeCase != 6) {
+            throw new IllegalArgumentException("No shard list merkle multi proof.");
+        }
+
+        /* One hash per proof leaf. Shards of repeated indices must match. */
+        SHA256HASH[] leafHashes = new SHA256HASH[merkleMultiProof.getLeafCount()];
+        for(Object element : elementList) {
+            Shard shard = (Shard) element;
+            int i = Arrays.binarySearch(merkleMultiProof.getLeafIndices(), shard.getShardIndex());
+            if(i < 0) {
+                throw new IllegalArgumentException("Shard index not in proof.");
+            }
+            SHA256HASH shardHash = shard.calcShardHash();
+            if(leafHashes[i] != null && !leafHashes[i].equals(shardHash)) {
+                throw new IllegalArgumentException("Repeated shard does not match.");
+            }
+            leafHashes[i] = shardHash;
+        }
+        for(SHA256HASH leafHash : leafHashes) {
+            if(leafHash == null) {
+                throw new IllegalArgumentException("Proof leaf without shard.");
+            }
+        }
+
+        return merkleMultiProof.calcRoot(leafHashes);
+    }
+
+
+    /* Case 7. Applies the shard delta to the client's copy of the shard at the delta's from
+     * height. Returns the merkle root computed from the updated shard's hash and the proof.
+     * Compare it with a trusted merkle root at the delta's to height to verify the shard. */
+    public SHA256HASH applyShardDelta(Shard shard)
+            throws IllegalArgumentException, IOException, BitcoinUtxoSetException {
+        if(merkleMultiProof == null || requestTypeCase != 7) {
+            throw new IllegalArgumentException("No shard delta merkle multi proof.");
+        }
+
+        ShardDelta shardDelta = (ShardDelta) elementList.get(0);
+        if(shard.getShardNum() != shardDelta.getShardNum() ||
+                shard.getShardIndex() != shardDelta.getShardIndex()) {
+            throw new IllegalArgumentException("Shard does not match shard delta.");
+        }
+        if(merkleMultiProof.getLeafCount() != 1 ||
+                merkleMultiProof.getLeafIndex(0) != shardDelta.getShardIndex()) {
+            throw new IllegalArgumentException("Proof does not match shard delta.");
+        }
+
+        shard.applyShardChanges(shardDelta.toShardChanges(shard.getUtxFactory()));
+
+        return merkleMultiProof.calcRoot(new SHA256HASH[] {shard.calcShardHash()});
+    }
+
 
     /* Creates a MessageDataCustom with given parameters */
     public static MessageDataCustom getMessageDataCustom(byte[] requestType, int[] int32List)
@@ -277,6 +384,16 @@ public class MessageDataCustom extends Message {
     public static MessageDataCustom getMessageDataCustom(byte[] requestType,
                                                          Shard[] shardList)
             throws IllegalArgumentException, IOException {
+        return getMessageDataCustom(requestType, shardList, null);
+    }
+
+
+    /* Creates a MessageDataCustom with given parameters. Proof is written after the shards,
+     * unless null. */
+    public static MessageDataCustom getMessageDataCustom(byte[] requestType,
+                                                         Shard[] shardList,
+                                                         MerkleMultiProof merkleMultiProof)
+            throws IllegalArgumentException, IOException {
         try {
             /* init payload */
             int shardListSerializedSize = 0;
@@ -298,8 +415,13 @@ public class MessageDataCustom extends Message {
             /* Write element list */
             writeShardList(outputStream, shardList);
 
-            return new MessageDataCustom(
-                    BitcoinParams.MAGIC_MAIN, outputStream.toByteArray(), shardList);
+            /* Write merkle multi proof */
+            if(merkleMultiProof != null) {
+                merkleMultiProof.serialize(outputStream);
+            }
+
+            return new MessageDataCustom(BitcoinParams.MAGIC_MAIN, outputStream.toByteArray(),
+                    shardList, merkleMultiProof);
         } catch (IndexOutOfBoundsException | NullPointerException e) {
             throw new IllegalArgumentException(e);
         }
@@ -353,6 +475,72 @@ public class MessageDataCustom extends Message {
     }
 
 
+    /* Creates a MessageDataCustom with given parameters. Proof is written after the delta. */
+    public static MessageDataCustom getMessageDataCustom(byte[] requestType,
+                                                         ShardDelta shardDelta,
+                                                         MerkleMultiProof merkleMultiProof)
+            throws IllegalArgumentException, IOException {
+        try {
+            /* init payload */
+            int payloadSize = ProtocolParams.REQUEST_TYPE_SIZE +
+                    ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE +
+                    shardDelta.getSerializedSize() + (int) merkleMultiProof.getSerializedSize();
+            org.apache.commons.io.output.ByteArrayOutputStream outputStream =
+                    new org.apache.commons.io.output.ByteArrayOutputStream(payloadSize);
+
+            /* Write request type */
+            outputStream.write(requestType);
+
+            /* Write element list count */
+            BitcoinParams.UINT32ToOutputStream(1, outputStream);
+
+            /* Write element list */
+            shardDelta.serialize(outputStream);
+
+            /* Write merkle multi proof */
+            merkleMultiProof.serialize(outputStream);
+
+            return new MessageDataCustom(BitcoinParams.MAGIC_MAIN, outputStream.toByteArray(),
+                    new ShardDelta[] {shardDelta}, merkleMultiProof);
+        } catch (IndexOutOfBoundsException | NullPointerException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+
+    /* Creates a MessageDataCustom with given parameters */
+    public static MessageDataCustom getMessageDataCustom(byte[] requestType,
+                                                         UtxoLookup[] utxoLookupList)
+            throws IllegalArgumentException, IOException {
+        try {
+            /* init payload */
+            int payloadSize = ProtocolParams.REQUEST_TYPE_SIZE +
+                    ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE;
+            for(UtxoLookup utxoLookup : utxoLookupList) {
+                payloadSize += utxoLookup.getSerializedSize();
+            }
+            org.apache.commons.io.output.ByteArrayOutputStream outputStream =
+                    new org.apache.commons.io.output.ByteArrayOutputStream(payloadSize);
+
+            /* Write request type */
+            outputStream.write(requestType);
+
+            /* Write element list count */
+            BitcoinParams.UINT32ToOutputStream(utxoLookupList.length, outputStream);
+
+            /* Write element list */
+            for(UtxoLookup utxoLookup : utxoLookupList) {
+                utxoLookup.serialize(outputStream);
+            }
+
+            return new MessageDataCustom(BitcoinParams.MAGIC_MAIN, outputStream.toByteArray(),
+                    utxoLookupList);
+        } catch (IndexOutOfBoundsException | NullPointerException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+
     private static void readShardList(Shard[] dest, byte[] src, int offset) throws IOException {
         /* Make inputstream from byte array */
         ByteArrayInputStream inputStream = new ByteArrayInputStream(src, offset, src.length);
@@ -370,6 +558,30 @@ public class MessageDataCustom extends Message {
     }
 
 
+    private static void readShardDeltaList(ShardDelta[] dest, byte[] src, int offset)
+            throws IOException {
+        /* Make inputstream from byte array */
+        ByteArrayInputStream inputStream =
+                new ByteArrayInputStream(src, offset, src.length - offset);
+
+        for (int i = 0; i < dest.length; i++) {
+            dest[i] = ShardDelta.deserialize(inputStream);
+        }
+    }
+
+
+    private static void readUtxoLookupList(UtxoLookup[] dest, byte[] src, int offset)
+            throws IOException {
+        /* Make inputstream from byte array */
+        ByteArrayInputStream inputStream =
+                new ByteArrayInputStream(src, offset, src.length - offset);
+
+        for (int i = 0; i < dest.length; i++) {
+            dest[i] = UtxoLookup.deserialize(inputStream);
+        }
+    }
+
+
     public static boolean isDataCustom(Message message) {
         return message.equalsCommand(CMD);
     }
@@ -397,12 +609,22 @@ public class MessageDataCustom extends Message {
                     printStream.println(((SHA256HASH) it.next()).toString());
                 } else if (requestTypeCase == 4) {
                     ((MerkleTree) it.next()).print(printStream, true, false);
-                } else if (requestTypeCase == 5) {
+                } else if (requestTypeCase == 5 || requestTypeCase == 6) {
                     printStream.println("");
                     ((Shard) it.next()).print(printStream, false, false);
+                } else if (requestTypeCase == 7) {
+                    printStream.println("");
+                    ((ShardDelta) it.next()).print(printStream);
+                } else if (requestTypeCase == 8) {
+                    printStream.println("");
+                    ((UtxoLookup) it.next()).print(printStream);
                 }
             }
         }
+        if(merkleMultiProof != null && doList) {
+            printStream.println("");
+            merkleMultiProof.print(printStream, true);
+        }
     }
 
 
@@ -423,9 +645,18 @@ public class MessageDataCustom extends Message {
                 else if(requestTypeCase == 4) {
                     ((MerkleTree)it.next()).serialize(printStream);
                 }
-                else if(requestTypeCase == 5) {
+                else if(requestTypeCase == 5 || requestTypeCase == 6) {
                     ((Shard) it.next()).serialize(printStream);
                 }
+                else if(requestTypeCase == 7) {
+                    ((ShardDelta) it.next()).serialize(printStream);
+                }
+                else if(requestTypeCase == 8) {
+                    ((UtxoLookup) it.next()).serialize(printStream);
+                }
+            }
+            if(merkleMultiProof != null) {
+                merkleMultiProof.serialize(printStream);
             }
             printStream.flush();
         }
@@ -453,13 +684,30 @@ public class MessageDataCustom extends Message {
                         printStream.println("");
                     }
                 }
-                else if(requestTypeCase == 5) {
+                else if(requestTypeCase == 5 || requestTypeCase == 6) {
                     ((Shard) it.next()).print(printStream, true, true);
 
                     if(it.hasNext()) {
                         printStream.println("");
                     }
                 }
+                else if(requestTypeCase == 7) {
+                    ((ShardDelta) it.next()).print(printStream);
+                }
+                else if(requestTypeCase == 8) {
+                    ((UtxoLookup) it.next()).print(printStream);
+
+                    if(it.hasNext()) {
+                        printStream.println("");
+                    }
+                }
+            }
+            if(merkleMultiProof != null) {
+                printStream.println("");
+                merkleMultiProof.print(printStream, false);
+                if(requestTypeCase == 6) {
+                    printStream.println("Merkle root from proof: " + calcShardProofRoot());
+                }
             }
             printStream.flush();
         }
@@ -488,14 +736,31 @@ public class MessageDataCustom extends Message {
                         printStream.println("");
                     }
                 }
-                else if(requestTypeCase == 5) {
+                else if(requestTypeCase == 5 || requestTypeCase == 6) {
                     ((Shard) it.next()).print(printStream, false, false);
 
+                    if(it.hasNext()) {
+                        printStream.println("");
+                    }
+                }
+                else if(requestTypeCase == 7) {
+                    ((ShardDelta) it.next()).print(printStream);
+                }
+                else if(requestTypeCase == 8) {
+                    ((UtxoLookup) it.next()).print(printStream);
+
                     if(it.hasNext()) {
                         printStream.println("");
                     }
                 }
             }
+            if(merkleMultiProof != null) {
+                printStream.println("");
+                merkleMultiProof.print(printStream, true);
+                if(requestTypeCase == 6) {
+                    printStream.println("Merkle root from proof: " + calcShardProofRoot());
+                }
+            }
             printStream.flush();
         }
     }
@@ -536,11 +801,21 @@ public class MessageDataCustom extends Message {
                 readMerkleTreeList(merkleTreeList, payload, offset);
                 return new ArrayList<>(Arrays.asList(merkleTreeList));
             }
-            else if (requestTypeCase == 5) {
+            else if (requestTypeCase == 5 || requestTypeCase == 6) {
                 Shard[] shardList = new Shard[elementListCount];
                 readShardList(shardList, payload, offset);
                 return new ArrayList<>(Arrays.asList(shardList));
             }
+            else if (requestTypeCase == 7) {
+                ShardDelta[] shardDeltaList = new ShardDelta[elementListCount];
+                readShardDeltaList(shardDeltaList, payload, offset);
+                return new ArrayList<>(Arrays.asList(shardDeltaList));
+            }
+            else if (requestTypeCase == 8) {
+                UtxoLookup[] utxoLookupList = new UtxoLookup[elementListCount];
+                readUtxoLookupList(utxoLookupList, payload, offset);
+                return new ArrayList<>(Arrays.asList(utxoLookupList));
+            }
             else {
                 throw new IllegalArgumentException("Request type not found.");
             }
@@ -1,7 +1,9 @@
 package Blockchainj.Blockchain.Server;
 
 import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Bitcoin.TXI;
 import Blockchainj.Blockchain.ProtocolParams;
+import Blockchainj.Util.SHA256HASH;
 import Blockchainj.Util.Utils;
 
 import java.io.PrintStream;
@@ -35,6 +37,13 @@ import java.util.ArrayList;
  *      "shardnum", list of heights <int32 4 bytes>
  *
  *      "bestshard", list of indexes <int32 4 bytes>
+ *      "bestshardchk", list of indexes <int32 4 bytes>, Max:1000, response in "datachunk"s
+ *
+ *      "shardproof", list of indexes <int32 4 bytes>, Min:1
+ *      "sharddelta", <index, int32 4 bytes><from height, int32 4 bytes>
+ *
+ *      "getutxos", list of outpoints <txid, 32 bytes><outIndex, uint32 4 bytes>, Min:1,
+ *          Max:4000
  */
 
 public class MessageGetCustom extends Message {
@@ -60,6 +69,9 @@ public class MessageGetCustom extends Message {
     /* List of heights/indexes */
     private final int[] int32List;
 
+    /* List of outpoints, case 4 */
+    private final TXI[] outpointList;
+
 
     /* Constructor. Does not copy input all input. */
     public MessageGetCustom(byte[] magic, byte[] payload) throws IllegalArgumentException {
@@ -83,6 +95,7 @@ public class MessageGetCustom extends Message {
             if(requestTypeCase == 1) {
                 listElementCount = 0;
                 int32List = null;
+                outpointList = null;
             } else if(requestTypeCase == 2 || requestTypeCase == 3) {
                 listElementCount = (int) BitcoinParams.readUINT32(payload, offset);
                 offset += ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE;
@@ -93,6 +106,18 @@ public class MessageGetCustom extends Message {
 
                 int32List = new int[listElementCount];
                 readInt32List(int32List, payload, offset);
+                outpointList = null;
+            } else if(requestTypeCase == 4) {
+                listElementCount = (int) BitcoinParams.readUINT32(payload, offset);
+                offset += ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE;
+
+                if(listElementCount<elementListMinCount || listElementCount>elementListMaxCount) {
+                    throw new IllegalArgumentException("List too long.");
+                }
+
+                int32List = null;
+                outpointList = new TXI[listElementCount];
+                readOutpointList(outpointList, payload, offset);
             } else {
                 throw new IllegalArgumentException("Invalid payload.");
             }
@@ -137,6 +162,10 @@ public class MessageGetCustom extends Message {
         return int32List[index];
     }
 
+    public TXI getOutpointListByIndex(int index) {
+        return outpointList[index];
+    }
+
     public String getRequestTypeString() {
         /* Get ASCII */
         return Utils.getStringFromBytes(requestType, 0, requestType.length);
@@ -166,6 +195,24 @@ public class MessageGetCustom extends Message {
         }
     }
 
+    private static void readOutpointList(TXI[] dest, byte[] src, int offset) {
+        for(int i=0; i<dest.length; i++) {
+            SHA256HASH txid = SHA256HASH.deserialize(src, offset);
+            offset += SHA256HASH.SERIALIZED_SIZE;
+            dest[i] = new TXI(txid, (int)BitcoinParams.readUINT32(src, offset));
+            offset += BitcoinParams.TRANSACTION_OUT_INDEX_SIZE;
+        }
+    }
+
+    private static void writeOutpointList(byte[] dest, TXI[] src, int offset) {
+        for(int i=0; i<src.length; i++) {
+            src[i].getPrevTxid().serialize(dest, offset);
+            offset += SHA256HASH.SERIALIZED_SIZE;
+            BitcoinParams.UINT32ToByteArray(src[i].getPrevOutIndex(), dest, offset);
+            offset += BitcoinParams.TRANSACTION_OUT_INDEX_SIZE;
+        }
+    }
+
 
     /* Creates a GetCustom message with given parameters */
     public static MessageGetCustom getMessageGetCustom(byte[] requestType, int[] int32List)
@@ -205,6 +252,34 @@ public class MessageGetCustom extends Message {
     }
 
 
+    /* Creates a GetCustom message with an outpoint list */
+    public static MessageGetCustom getMessageGetCustom(byte[] requestType, TXI[] outpointList)
+            throws IllegalArgumentException {
+        /* Calc request case */
+        int requestTypeIndex = ProtocolParams.calcRequestTypeIndex(requestType);
+        int requestTypeCase = ProtocolParams.calcGetCustomRequestTypeCase(requestTypeIndex);
+        if(requestTypeCase != 4) {
+            throw new IllegalArgumentException("Request type invalid.");
+        }
+
+        byte[] payload = new byte[ProtocolParams.REQUEST_TYPE_SIZE +
+                ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE +
+                ((SHA256HASH.SERIALIZED_SIZE + BitcoinParams.TRANSACTION_OUT_INDEX_SIZE) *
+                        outpointList.length)];
+        int offset = 0;
+
+        System.arraycopy(requestType, 0, payload, offset, ProtocolParams.REQUEST_TYPE_SIZE);
+        offset += ProtocolParams.REQUEST_TYPE_SIZE;
+
+        BitcoinParams.UINT32ToByteArray(outpointList.length, payload, offset);
+        offset += ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE;
+
+        writeOutpointList(payload, outpointList, offset);
+
+        return new MessageGetCustom(BitcoinParams.MAGIC_MAIN, payload);
+    }
+
+
     /* DEBUG MOSTLY */
     public void print(PrintStream printStream, boolean doMessageHeader, boolean doRawPayload) {
         if(doMessageHeader) {
@@ -219,6 +294,12 @@ public class MessageGetCustom extends Message {
             for(int i=0; i<int32List.length; i++) {
                 printStream.println("\t" + int32List[i]);
             }
+        } else if(outpointList != null) {
+            printStream.println("Outpoint list: ");
+            for(int i=0; i<outpointList.length; i++) {
+                printStream.println("\t" + outpointList[i].getPrevTxid() + ":" +
+                        outpointList[i].getPrevOutIndex());
+            }
         } else {
             printStream.println("Element list: " + null);
         }
@@ -251,7 +332,7 @@ public class MessageGetCustom extends Message {
 
             /* no list */
             if (requestTypeCase == 1) {
-                return getMessageGetCustom(requestType, null);
+                return getMessageGetCustom(requestType, (int[]) null);
             }
             /* int32 list */
             else if(requestTypeCase == 2 || requestTypeCase == 3) {
@@ -266,7 +347,7 @@ public class MessageGetCustom extends Message {
                 }
 
                 if(list.size() == 0) {
-                    return getMessageGetCustom(requestType, null);
+                    return getMessageGetCustom(requestType, (int[]) null);
                 }
                 else
                 {
@@ -277,6 +358,19 @@ public class MessageGetCustom extends Message {
                     return getMessageGetCustom(requestType, int32List);
                 }
             }
+            /* outpoint list, <txid> <outIndex> pairs */
+            else if(requestTypeCase == 4) {
+                ArrayList<TXI> list = new ArrayList<>();
+                for(int i=offset; i+1<args.length; i+=2) {
+                    try {
+                        list.add(new TXI(new SHA256HASH(args[i]), Integer.parseInt(args[i+1])));
+                    } catch (IllegalArgumentException e) {
+                        break;
+                    }
+                }
+
+                return getMessageGetCustom(requestType, list.toArray(new TXI[0]));
+            }
             else {
                 throw new IllegalArgumentException("Request type case not found.");
             }
@@ -300,6 +394,14 @@ public class MessageGetCustom extends Message {
                 "shardnum <height list>  (max count: " +
                 ProtocolParams.REQUEST_TYPE_LIST_MAX_COUNT + ")\n" +
                 "bestshard <index list>  (max count: " +
-                ProtocolParams.REQUEST_TYPE_LIST_MAX_COUNT + ")\n";
+                ProtocolParams.REQUEST_TYPE_LIST_MAX_COUNT + ")\n" +
+                "bestshardchk <index list>  (max count: " +
+                ProtocolParams.REQUEST_TYPE_CHUNKED_LIST_MAX_COUNT + ")\n" +
+                "shardproof <index list>  (max count: " +
+                ProtocolParams.REQUEST_TYPE_LIST_MAX_COUNT + ")\n" +
+                "sharddelta <index> <from height>  (max blocks: " +
+                ProtocolParams.SHARD_DELTA_MAX_BLOCKS + ")\n" +
+                "getutxos <txid> <outIndex> ...  (max count: " +
+                ProtocolParams.REQUEST_TYPE_OUTPOINT_LIST_MAX_COUNT + ")\n";
     }
 }
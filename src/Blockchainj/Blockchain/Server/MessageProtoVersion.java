@@ -0,0 +1,98 @@
+package Blockchainj.Blockchain.Server;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Blockchain.ProtocolParams;
+
+import java.io.PrintStream;
+
+/**
+ *  MessageProtoVersion - Prototype Protocol version handshake.
+ *
+ *  A version 2 connection starts with the client sending "protoversion". The server answers
+ *  with its own "protoversion". Both sides then use the lower version. If that is below 2,
+ *  the server closes the connection and the client falls back to version 1, which has no
+ *  handshake.
+ *
+ *  Version 2 flow, after the handshake:
+ *      Every request and every response is preceded by a "requestid" message, see
+ *      MessageRequestId. The connection stays open for any number of requests. Up to
+ *      max pipelined requests may be in flight. Responses are sent as soon as they are ready,
+ *      so they may arrive out of request order, but are never interleaved.
+ *
+ *  Command: "protoversion"
+ *  Payload:
+ *      Protocol version uint32 4 bytes
+ *      Max pipelined requests uint32 4 bytes. Ignored from clients.
+ */
+
+public class MessageProtoVersion extends Message {
+    /* ProtoVersion command */
+    private static final byte[] CMD = ProtocolParams.MESSAGE_CMD_PROTOVERSION;
+
+    /* Payload size */
+    public static final int PAYLOAD_SIZE = BitcoinParams.UINT32_SIZE + BitcoinParams.UINT32_SIZE;
+
+    private final int version;
+    private final int maxPipelinedRequests;
+
+
+    /* Constructor. Does not copy input. */
+    public MessageProtoVersion(byte[] magic, byte[] payload) throws IllegalArgumentException {
+        super(magic, CMD, payload);
+
+        if(payload.length != PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Invalid payload.");
+        }
+        version = (int)BitcoinParams.readUINT32(payload, 0);
+        maxPipelinedRequests = (int)BitcoinParams.readUINT32(payload, BitcoinParams.UINT32_SIZE);
+    }
+
+
+    /* Constructor */
+    public MessageProtoVersion(Message message) throws IllegalArgumentException {
+        this(message.magic, message.payload);
+
+        if(!isProtoVersion(message)) {
+            throw new IllegalArgumentException("Message is not MessageProtoVersion");
+        }
+    }
+
+
+    /* Creates a ProtoVersion message with given parameters */
+    public static MessageProtoVersion getMessageProtoVersion(int version,
+                                                             int maxPipelinedRequests) {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        BitcoinParams.UINT32ToByteArray(version, payload, 0);
+        BitcoinParams.UINT32ToByteArray(maxPipelinedRequests, payload, BitcoinParams.UINT32_SIZE);
+        return new MessageProtoVersion(BitcoinParams.MAGIC_MAIN, payload);
+    }
+
+
+    /* Get methods */
+    public int getVersion() { return version; }
+
+    public int getMaxPipelinedRequests() { return maxPipelinedRequests; }
+
+
+    public static boolean isProtoVersion(Message message) {
+        return message.equalsCommand(CMD);
+    }
+
+
+    /* DEBUG MOSTLY */
+    public void print(PrintStream printStream, boolean doMessageHeader, boolean doRawPayload) {
+        if(doMessageHeader) {
+            super.print(printStream, doRawPayload);
+        }
+
+        printStream.println("Protocol version: " + version);
+        printStream.println("Max pipelined requests: " + maxPipelinedRequests);
+    }
+
+
+    @Override
+    public String toString() {
+        return super.toString() + " Version:" + version +
+                " MaxPipelinedRequests:" + maxPipelinedRequests;
+    }
+}
@@ -0,0 +1,100 @@
+package Blockchainj.Blockchain.Server;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Blockchain.ProtocolParams;
+
+import java.io.PrintStream;
+
+/**
+ *  MessageRequestId - Prototype Protocol version 2 request and response framing.
+ *
+ *  Precedes every request and every response of a version 2 connection. The next length
+ *  bytes are the version 1 messages of that request or response:
+ *      Request: one "getcustom" message.
+ *      Response: one "datacustom" or "reject" message, or the "datachunk" messages of a
+ *      "bestshardchk" request.
+ *
+ *  Request ids are chosen by the client and returned with the response. Response messages
+ *  keep their version 1 encoding, so precomputed responses are sent as they are.
+ *
+ *  Command: "requestid"
+ *  Payload:
+ *      Request id uint32 4 bytes
+ *      Length of following messages int64 8 bytes
+ */
+
+public class MessageRequestId extends Message {
+    /* RequestId command */
+    private static final byte[] CMD = ProtocolParams.MESSAGE_CMD_REQUESTID;
+
+    /* Payload size */
+    public static final int PAYLOAD_SIZE = BitcoinParams.UINT32_SIZE + BitcoinParams.INT64_SIZE;
+
+    /* Serialized size */
+    public static final int SERIALIZED_SIZE = HEADER_SIZE + PAYLOAD_SIZE;
+
+    private final long requestId;
+    private final long length;
+
+
+    /* Constructor. Does not copy input. */
+    public MessageRequestId(byte[] magic, byte[] payload) throws IllegalArgumentException {
+        super(magic, CMD, payload);
+
+        if(payload.length != PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Invalid payload.");
+        }
+        requestId = BitcoinParams.readUINT32(payload, 0);
+        length = BitcoinParams.readINT64(payload, BitcoinParams.UINT32_SIZE);
+        if(length < 0) {
+            throw new IllegalArgumentException("Invalid length.");
+        }
+    }
+
+
+    /* Constructor */
+    public MessageRequestId(Message message) throws IllegalArgumentException {
+        this(message.magic, message.payload);
+
+        if(!isRequestId(message)) {
+            throw new IllegalArgumentException("Message is not MessageRequestId");
+        }
+    }
+
+
+    /* Creates a RequestId message with given parameters */
+    public static MessageRequestId getMessageRequestId(long requestId, long length) {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        BitcoinParams.UINT32ToByteArray(requestId, payload, 0);
+        BitcoinParams.INT64ToByteArray(length, payload, BitcoinParams.UINT32_SIZE);
+        return new MessageRequestId(BitcoinParams.MAGIC_MAIN, payload);
+    }
+
+
+    /* Get methods */
+    public long getRequestId() { return requestId; }
+
+    public long getLength() { return length; }
+
+
+    public static boolean isRequestId(Message message) {
+        return message.equalsCommand(CMD);
+    }
+
+
+    /* DEBUG MOSTLY */
+    public void print(PrintStream printStream, boolean doMessageHeader, boolean doRawPayload) {
+        if(doMessageHeader) {
+            super.print(printStream, doRawPayload);
+        }
+
+        printStream.println("Request id: " + requestId);
+        printStream.println("Length: " + length);
+    }
+
+
+    @Override
+    public String toString() {
+        return super.toString() + " RequestId:" + requestId + " Length:" + length;
+    }
+}
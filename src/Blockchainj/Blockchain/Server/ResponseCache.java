@@ -0,0 +1,239 @@
+package Blockchainj.Blockchain.Server;
+
+import Blockchainj.Blockchain.ProtocolParams;
+import Blockchainj.Blockchain.UtxoSet.UtxoSetCommitListener;
+import Blockchainj.Util.SHA256HASH;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ResponseCache
+ *
+ * Server side cache of fully encoded response messages, header and checksum included, so a
+ * popular response is sent with a single write instead of being read and serialized again.
+ *
+ * Entries are keyed by request type index, shard number and shard index. Requests without a
+ * shard index, such as "bestmrkltree", use UNDEFINED_SHARD_INDEX. Each entry keeps the height
+ * it was built at.
+ *
+ * Entries are invalidated on each commit by the shards the block modified, mapped to the
+ * shard number of each cached entry. Entries of unmodified shards stay valid at the new
+ * height. Entries without a shard index are dropped on every commit.
+ *
+ * A response built while a commit was running is not cached. Callers take an epoch before
+ * reading the utxo set and pass it to put(), which ignores the entry if a commit came in
+ * between. The epoch moves after the new state is published, so a reader that sees the new
+ * epoch reads the new state.
+ *
+ * Bounded by total bytes, least recently used entries are evicted first.
+ *
+ * Thread-safe.
+ *
+ */
+
+public class ResponseCache implements UtxoSetCommitListener {
+    /* Max bytes of all entries */
+    private final long maxBytes;
+    private long usedBytes = 0;
+
+    /* Entries, in access order */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+
+    /* Cached entries count per shard number */
+    private final HashMap<Integer, Integer> shardNumCounts = new HashMap<>();
+
+    /* Incremented on each commit */
+    private long epoch = 0;
+
+    /* Stats */
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+    private long evictions = 0;
+
+
+    /* Cache key */
+    private static class Key {
+        private final int requestTypeIndex;
+        private final int shardNum;
+        private final int shardIndex;
+
+        private Key(int requestTypeIndex, int shardNum, int shardIndex) {
+            this.requestTypeIndex = requestTypeIndex;
+            this.shardNum = shardNum;
+            this.shardIndex = shardIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return (requestTypeIndex == key.requestTypeIndex) && (shardNum == key.shardNum) &&
+                    (shardIndex == key.shardIndex);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * requestTypeIndex + shardNum) + shardIndex;
+        }
+    }
+
+
+    /* Cache entry */
+    private static class Entry {
+        private final byte[] response;
+        private final int height;
+
+        private Entry(byte[] response, int height) {
+            this.response = response;
+            this.height = height;
+        }
+    }
+
+
+    public ResponseCache(long maxBytes) {
+        if(maxBytes < 1) {
+            throw new IllegalArgumentException("Max bytes must be >=1.");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+
+    /* Returns the encoded response or null. Do not modify. */
+    public synchronized byte[] get(int requestTypeIndex, int shardNum, int shardIndex) {
+        Entry entry = entries.get(new Key(requestTypeIndex, shardNum, shardIndex));
+        if(entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+
+    /* Returns the current epoch. Take before reading the utxo set. */
+    public synchronized long getEpoch() { return epoch; }
+
+
+    /* Caches the encoded response. Ignored if a commit happened since epoch was taken or if
+     * the response is larger than the cache. */
+    public synchronized void put(long epoch, int requestTypeIndex, int shardNum, int shardIndex,
+                                 byte[] response, int height) {
+        if((epoch != this.epoch) || (response.length > maxBytes)) {
+            return;
+        }
+
+        Key key = new Key(requestTypeIndex, shardNum, shardIndex);
+        Entry old = entries.put(key, new Entry(response, height));
+        if(old != null) {
+            usedBytes -= old.response.length;
+        } else {
+            shardNumCounts.merge(shardNum, 1, Integer::sum);
+        }
+        usedBytes += response.length;
+
+        /* evict least recently used */
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while((usedBytes > maxBytes) && it.hasNext()) {
+            Map.Entry<Key, Entry> eldest = it.next();
+            it.remove();
+            removed(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+    }
+
+
+    /* Bookkeeping for a removed entry */
+    private void removed(Key key, Entry entry) {
+        usedBytes -= entry.response.length;
+        shardNumCounts.merge(key.shardNum, -1, Integer::sum);
+        if(shardNumCounts.get(key.shardNum) == 0) {
+            shardNumCounts.remove(key.shardNum);
+        }
+    }
+
+
+    private void invalidate(Key key) {
+        Entry entry = entries.remove(key);
+        if(entry != null) {
+            removed(key, entry);
+            invalidations++;
+        }
+    }
+
+
+    /* Invalidates every entry that covers a modified shard. Called within the commit. */
+    @Override
+    public synchronized void onCommit(int height, SHA256HASH blockhash, int shardNum,
+                                      int[] modifiedShardIndices) {
+        epoch++;
+        if(entries.isEmpty()) {
+            return;
+        }
+
+        /* Entries without shard index, or of an invalid shard number */
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Key, Entry> entry = it.next();
+            if((entry.getKey().shardIndex == ProtocolParams.UNDEFINED_SHARD_INDEX) ||
+                    !ProtocolParams.isValidShardNum(entry.getKey().shardNum)) {
+                it.remove();
+                removed(entry.getKey(), entry.getValue());
+                invalidations++;
+            }
+        }
+
+        /* Shard entries, per cached shard number */
+        Integer[] cachedShardNums = shardNumCounts.keySet().toArray(new Integer[0]);
+        for(int cachedShardNum : cachedShardNums) {
+            for(int modifiedShardIndex : modifiedShardIndices) {
+                /* Cached shards holding utxs of the modified shard */
+                int[] cachedShardIndices = ProtocolParams.getShardIndicesThatContainValidUtxs(
+                        cachedShardNum, shardNum, modifiedShardIndex);
+                for(int cachedShardIndex : cachedShardIndices) {
+                    for(int i = 0; i<ProtocolParams.MESSAGE_TYPES.length; i++) {
+                        invalidate(new Key(i, cachedShardNum, cachedShardIndex));
+                    }
+                }
+            }
+        }
+    }
+
+
+    /* Get methods */
+    public synchronized int getEntryCount() { return entries.size(); }
+
+    public synchronized long getUsedBytes() { return usedBytes; }
+
+    public synchronized long getHits() { return hits; }
+
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized long getInvalidations() { return invalidations; }
+
+    public synchronized long getEvictions() { return evictions; }
+
+    /* Height the entry was built at, UNDEFINED_HEIGHT if not cached */
+    public synchronized int getEntryHeight(int requestTypeIndex, int shardNum, int shardIndex) {
+        Entry entry = entries.get(new Key(requestTypeIndex, shardNum, shardIndex));
+        return (entry == null)?ProtocolParams.UNDEFINED_HEIGHT:entry.height;
+    }
+
+
+    public synchronized void printParameters(PrintStream printStream) {
+        printStream.println(">ResponseCache");
+        printStream.println("ResponseCache max bytes: " + maxBytes);
+        printStream.println("ResponseCache used bytes: " + usedBytes);
+        printStream.println("ResponseCache entries: " + entries.size());
+        printStream.println("ResponseCache hits: " + hits);
+        printStream.println("ResponseCache misses: " + misses);
+        printStream.println("ResponseCache invalidations: " + invalidations);
+        printStream.println("ResponseCache evictions: " + evictions);
+    }
+}
@@ -0,0 +1,436 @@
+package Blockchainj.Blockchain.Server;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Blockchain.ProtocolParams;
+import Blockchainj.Blockchain.UtxoSet.AbstractUtxoSet;
+import Blockchainj.Blockchain.UtxoSet.Shard.Shard;
+import Blockchainj.Blockchain.UtxoSet.UtxoSetCommitListener;
+import Blockchainj.Util.SHA256HASH;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ShardImageStore
+ *
+ * Keeps the protocol serialization of shards in files, checksums included, so the server can
+ * send them to the socket with FileChannel.transferTo and without copying them into heap.
+ *
+ * One image file per shard of the utxo set's internal shard number:
+ *      <"bestshard" "datacustom" message with this shard only>
+ *      <"datachunk" messages of this shard>
+ *
+ * Images are built on the first request of a shard. When a commit modifies a shard its image
+ * is dropped, and if the shard had an image a new one is built in the background right away,
+ * so that popular shards are ready before they are requested again.
+ *
+ * An image built while a commit modified its shard is served once but not kept.
+ *
+ * Readers get an open channel to the image file. Superseded files are deleted while they may
+ * still be read, which requires POSIX file semantics.
+ *
+ * Thread-safe.
+ *
+ */
+
+public class ShardImageStore implements UtxoSetCommitListener {
+    /* Image file naming */
+    private static final String IMAGE_PREFIX = "shard_";
+    private static final String IMAGE_SUFFIX = ".img";
+
+    /* Image write buffer size */
+    private static final int WRITE_BUFFER_SIZE = 1024*1024; //1 MiB
+
+    /* Utxo set, read only access */
+    private final AbstractUtxoSet utxoSet;
+    private final int shardNum;
+
+    /* Image directory */
+    private final Path imagePath;
+
+    /* Max data bytes of each "datachunk" message */
+    private final int chunkDataSize;
+
+    /* Current images, null if not built. Incremented generation on each modification. */
+    private final ShardImage[] images;
+    private final long[] generations;
+
+    /* Shards queued for a background build */
+    private final boolean[] queued;
+    private final ThreadPoolExecutor builder;
+
+    /* Unique file names */
+    private final AtomicLong fileSerial = new AtomicLong(0);
+
+    /* Closed marker */
+    private boolean closed = false;
+
+    /* Stats */
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong builds = new AtomicLong(0);
+    private final AtomicLong backgroundBuilds = new AtomicLong(0);
+    private final AtomicLong failedBuilds = new AtomicLong(0);
+
+
+    /**
+     * ShardImage
+     *
+     * A shard image file. Images returned by acquire() hold an open channel and must be
+     * closed.
+     */
+    public static class ShardImage implements Closeable {
+        private final Path file;
+        private final int shardIndex;
+        private final int height;
+        private final long shardSize;
+
+        /* "bestshard" message at offset 0 */
+        private final long messageLength;
+
+        /* "datachunk" messages */
+        private final long chunksOffset;
+        private final long chunksLength;
+
+        /* Open channel, null for stored images */
+        private final FileChannel channel;
+
+        private ShardImage(Path file, int shardIndex, int height, long shardSize,
+                           long messageLength, long chunksOffset, long chunksLength,
+                           FileChannel channel) {
+            this.file = file;
+            this.shardIndex = shardIndex;
+            this.height = height;
+            this.shardSize = shardSize;
+            this.messageLength = messageLength;
+            this.chunksOffset = chunksOffset;
+            this.chunksLength = chunksLength;
+            this.channel = channel;
+        }
+
+        private ShardImage open() throws IOException {
+            return new ShardImage(file, shardIndex, height, shardSize, messageLength,
+                    chunksOffset, chunksLength, FileChannel.open(file, StandardOpenOption.READ));
+        }
+
+        public FileChannel getChannel() { return channel; }
+
+        public int getShardIndex() { return shardIndex; }
+
+        public int getHeight() { return height; }
+
+        public long getShardSize() { return shardSize; }
+
+        public long getMessageLength() { return messageLength; }
+
+        /* Shard serialization within the "bestshard" message */
+        public long getShardOffset() {
+            return Message.HEADER_SIZE + ProtocolParams.REQUEST_TYPE_SIZE +
+                    ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE;
+        }
+
+        public long getChunksOffset() { return chunksOffset; }
+
+        public long getChunksLength() { return chunksLength; }
+
+        @Override
+        public void close() throws IOException {
+            if(channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+
+    /* Constructor. Removes image files left in imagePath. */
+    public ShardImageStore(AbstractUtxoSet utxoSet, String imagePath, int chunkDataSize)
+            throws IOException {
+        if(chunkDataSize < 1 || chunkDataSize >
+                BitcoinParams.MAX_PAYLOAD_LENGTH - MessageDataChunk.CHUNK_HEADER_SIZE) {
+            throw new IllegalArgumentException("Chunk data size out of range.");
+        }
+
+        this.utxoSet = utxoSet;
+        this.shardNum = utxoSet.getInternalBestShardNum();
+        this.imagePath = Paths.get(imagePath);
+        this.chunkDataSize = chunkDataSize;
+        images = new ShardImage[shardNum];
+        generations = new long[shardNum];
+        queued = new boolean[shardNum];
+
+        /* Image directory */
+        Files.createDirectories(this.imagePath);
+        deleteImageFiles();
+
+        /* Background builder, one thread */
+        builder = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "ShardImageBuilder");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+
+    public ShardImageStore(AbstractUtxoSet utxoSet, String imagePath) throws IOException {
+        this(utxoSet, imagePath, MessageDataChunk.DEFAULT_CHUNK_DATA_SIZE);
+    }
+
+
+    /* Returns the image of the shard with an open channel. Builds it if needed. */
+    public ShardImage acquire(int shardIndex) throws IOException, IllegalArgumentException {
+        if(shardIndex < 0 || shardIndex >= shardNum) {
+            throw new IllegalArgumentException("Shard index out of range.");
+        }
+
+        synchronized (this) {
+            if(closed) {
+                throw new IllegalStateException("Shard image store closed.");
+            }
+            if(images[shardIndex] != null) {
+                hits.incrementAndGet();
+                return images[shardIndex].open();
+            }
+        }
+
+        return build(shardIndex);
+    }
+
+
+    /* Drops the images of modified shards. Rebuilds the ones that had an image. */
+    @Override
+    public synchronized void onCommit(int height, SHA256HASH blockhash, int shardNum,
+                                      int[] modifiedShardIndices) {
+        if(closed || shardNum != this.shardNum) {
+            return;
+        }
+
+        for(int shardIndex : modifiedShardIndices) {
+            generations[shardIndex]++;
+            ShardImage image = images[shardIndex];
+            if(image == null) {
+                continue;
+            }
+            images[shardIndex] = null;
+            deleteFile(image.file);
+
+            if(!queued[shardIndex]) {
+                queued[shardIndex] = true;
+                builder.execute(() -> buildInBackground(shardIndex));
+            }
+        }
+    }
+
+
+    private void buildInBackground(int shardIndex) {
+        synchronized (this) {
+            queued[shardIndex] = false;
+            if(closed || images[shardIndex] != null) {
+                return;
+            }
+        }
+
+        try {
+            build(shardIndex).close();
+            backgroundBuilds.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            /* Built again on next request */
+            failedBuilds.incrementAndGet();
+        }
+    }
+
+
+    /* Builds a new image file from the current shard. Keeps it if the shard was not modified
+     * meanwhile. Returns it open. */
+    private ShardImage build(int shardIndex) throws IOException {
+        /* Generation before any read */
+        long generation;
+        synchronized (this) {
+            generation = generations[shardIndex];
+        }
+
+        int height = utxoSet.getBestHeight();
+        Shard shard = utxoSet.getShard(shardNum, shardIndex);
+        long shardSize = shard.getSerializedSize();
+        long payloadLength = ProtocolParams.REQUEST_TYPE_SIZE +
+                ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE + shardSize;
+
+        Path file = imagePath.resolve(IMAGE_PREFIX + shardIndex + "_" +
+                fileSerial.incrementAndGet() + IMAGE_SUFFIX);
+        long chunksOffset = Message.HEADER_SIZE + payloadLength;
+        long chunksLength;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            /* "bestshard" payload, hashed while written */
+            MessageDigest digest = SHA256HASH.getDigest();
+            channel.position(Message.HEADER_SIZE);
+            OutputStream payloadStream = new BufferedOutputStream(new DigestOutputStream(
+                    Channels.newOutputStream(channel), digest), WRITE_BUFFER_SIZE);
+            payloadStream.write(ProtocolParams.MESSAGE_TYPE_BESTSHARD);
+            BitcoinParams.UINT32ToOutputStream(1, payloadStream);
+            shard.serialize(payloadStream);
+            payloadStream.flush();
+            if(channel.position() != chunksOffset) {
+                throw new IOException("Shard serialized size does not match written size.");
+            }
+
+            /* "bestshard" header */
+            byte[] checksum = Arrays.copyOf(digest.digest(digest.digest()),
+                    BitcoinParams.PAYLOAD_CHECKSUM_SIZE);
+            ByteArrayOutputStream header = new ByteArrayOutputStream(Message.HEADER_SIZE);
+            header.write(BitcoinParams.MAGIC_MAIN);
+            header.write(ProtocolParams.MESSAGE_CMD_DATACUSTOM);
+            BitcoinParams.UINT32ToOutputStream(payloadLength, header);
+            header.write(checksum);
+            writeFully(channel, ByteBuffer.wrap(header.toByteArray()), 0);
+
+            /* "datachunk" messages, read back from the shard serialization */
+            long shardOffset = Message.HEADER_SIZE + ProtocolParams.REQUEST_TYPE_SIZE +
+                    ProtocolParams.REQUEST_TYPE_LIST_COUNT_SIZE;
+            OutputStream chunkStream = new BufferedOutputStream(
+                    Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+            byte[] data = new byte[(int)Math.min(chunkDataSize, shardSize)];
+            long offset = 0;
+            do {
+                int length = (int)Math.min(chunkDataSize, shardSize - offset);
+                readFully(channel, ByteBuffer.wrap(data, 0, length), shardOffset + offset);
+                MessageDataChunk.getMessageDataChunk(
+                        shardIndex, shardSize, offset, data, 0, length).serialize(chunkStream);
+                offset += length;
+            } while(offset < shardSize);
+            chunkStream.flush();
+            chunksLength = channel.position() - chunksOffset;
+        } catch (IOException | RuntimeException e) {
+            deleteFile(file);
+            throw e;
+        }
+        builds.incrementAndGet();
+
+        ShardImage image = new ShardImage(file, shardIndex, height, shardSize,
+                Message.HEADER_SIZE + payloadLength, chunksOffset, chunksLength, null);
+        ShardImage openImage = image.open();
+
+        /* Keep it, unless modified meanwhile */
+        boolean kept = false;
+        synchronized (this) {
+            if(!closed && generations[shardIndex] == generation) {
+                if(images[shardIndex] != null) {
+                    deleteFile(images[shardIndex].file);
+                }
+                images[shardIndex] = image;
+                kept = true;
+            }
+        }
+        if(!kept) {
+            deleteFile(file);
+        }
+
+        return openImage;
+    }
+
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+
+    private static void deleteFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            /* Left for the next start to remove */
+        }
+    }
+
+
+    private void deleteImageFiles() throws IOException {
+        try (DirectoryStream<Path> files =
+                     Files.newDirectoryStream(imagePath, IMAGE_PREFIX + "*" + IMAGE_SUFFIX)) {
+            for(Path file : files) {
+                deleteFile(file);
+            }
+        }
+    }
+
+
+    /* Stops background builds and deletes image files. Open images stay readable. */
+    public void close() throws IOException {
+        synchronized (this) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            Arrays.fill(images, null);
+        }
+        builder.shutdownNow();
+        try {
+            builder.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        deleteImageFiles();
+    }
+
+
+    public synchronized boolean isClosed() { return closed; }
+
+
+    /* Get methods */
+    public synchronized int getImageCount() {
+        int count = 0;
+        for(ShardImage image : images) {
+            if(image != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getBuilds() { return builds.get(); }
+
+    public long getBackgroundBuilds() { return backgroundBuilds.get(); }
+
+    public long getFailedBuilds() { return failedBuilds.get(); }
+
+
+    public void printParameters(PrintStream printStream) {
+        printStream.println(">ShardImageStore");
+        printStream.println("ShardImageStore path: " + imagePath);
+        printStream.println("ShardImageStore chunk data size: " + chunkDataSize);
+        printStream.println("ShardImageStore images: " + getImageCount());
+        printStream.println("ShardImageStore hits: " + getHits());
+        printStream.println("ShardImageStore builds: " + getBuilds());
+        printStream.println("ShardImageStore background builds: " + getBackgroundBuilds());
+        printStream.println("ShardImageStore failed builds: " + getFailedBuilds());
+    }
+}
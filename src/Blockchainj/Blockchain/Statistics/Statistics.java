@@ -1,5 +1,7 @@
 package Blockchainj.Blockchain.Statistics;
 
+import Blockchainj.Util.AsyncLog;
+
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
@@ -21,6 +23,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * Format: <index_data><delimiter><value_data>
  *      The data can be an integer, a float, a metric unit OR a set of those.
  *
+ * Entries are appended asynchronously and are on disk once the log is stored or the
+ * statistics are closed.
+ *
  *
  */
 
@@ -35,6 +40,9 @@ public abstract class Statistics {
     private final Path statInfoPathname;
     private final Path statLogPathname;
 
+    /* Asynchronous entry writer */
+    private final AsyncLog entryWriter = new AsyncLog("StatisticsEntryWriter");
+
 
     /* Entry formats */
     private static final Charset charset = Charset.forName("US-ASCII");
@@ -114,13 +122,13 @@ public abstract class Statistics {
     public void setPRINT_PERIOD(int printPeriod) { PRINT_PERIOD = printPeriod; }
 
 
-    /* Appends entry to file  */
+    /* Appends entry to file. Blocks only if the entry writer is behind. */
     protected void appendEntry(Entry entry) throws IOException {
         /* append entry to end of file */
-        OutputStream outputStream = new FileOutputStream(
-                stats.get(entry.getStatId()).getFilepathname().toFile(), true);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(entry.getSerializedSize());
         entry.store(outputStream);
-        outputStream.close();
+        entryWriter.append(stats.get(entry.getStatId()).getFilepathname(),
+                outputStream.toByteArray());
     }
 
 
@@ -146,8 +154,9 @@ public abstract class Statistics {
     public abstract void writeStatInfo() throws IOException;
 
 
-    /* Overwrites log with Log */
+    /* Overwrites log with Log. Entries are written first. */
     protected void storeLog(Log log) throws IOException {
+        entryWriter.flush();
         FileOutputStream fileOutputStream = new FileOutputStream(statLogPathname.toFile());
         log.store(fileOutputStream);
         fileOutputStream.close();
@@ -169,6 +178,9 @@ public abstract class Statistics {
 
     protected StatGroup getGroup(int groupId) { return groups.get(groupId); }
 
+    /* Threads a group may use for its own computations */
+    protected int getGroupThreadNum() { return DO_CONCURRENT ? THREAD_NUM : 1; }
+
     protected Iterator<StatGroup> getGroupIterator() { return groups.values().iterator(); }
 
 
@@ -233,6 +245,13 @@ public abstract class Statistics {
                 /* Set state closed. */
                 closed = true;
 
+                /* Write pending entries */
+                try {
+                    entryWriter.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+
                 if(PRINTSTREAM != null) {
                     PRINTSTREAM.println("Closed. Releasing lock for close from thread "
                             + Thread.currentThread().getId() + "...");
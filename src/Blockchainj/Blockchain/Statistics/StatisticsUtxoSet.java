@@ -98,8 +98,8 @@ public class StatisticsUtxoSet extends Statistics {
                     "Utxo Set height does not match with Stat Log height");
         }
 
-        /* Create blockchain */
-        blockchain = new Blockchain(utxoSet, blockBuffer);
+        /* Create blockchain. Only UTXO relevant block data is needed. */
+        blockchain = new Blockchain(utxoSet, blockBuffer, Block.PARSE_MODE_UTXO);
         setPRINT_STREAM(PRINTSTREAM);
         setPRINT_PERIOD(PRINT_PERIOD);
 
@@ -754,28 +754,40 @@ public class StatisticsUtxoSet extends Statistics {
             double[] shardAvgSizes = new double[GROUP3_SHARD_NUMS.length];
             double[] shardVarSizes = new double[GROUP3_SHARD_NUMS.length];
 
-            /* for each shard size */
-            for (int i = 0; i < GROUP3_SHARD_NUMS.length; i++) {
-                int shardNum = GROUP3_SHARD_NUMS[i];
+            /* Sharded utxo sets compute all shard numbers in one pass */
+            if(utxoSet instanceof AbstractUtxoSet) {
+                MathAverage[] shardSizesAvgs =
+                        ((AbstractUtxoSet) utxoSet).getShardSerializedSizeAverages(
+                                GROUP3_SHARD_NUMS, getGroupThreadNum());
 
-                /* create new temp shard avg */
-                MathAverage tempShardsAvg = new MathAverage();
+                for (int i = 0; i < GROUP3_SHARD_NUMS.length; i++) {
+                    shardAvgSizes[i] = shardSizesAvgs[i].getAvg();
+                    shardVarSizes[i] = shardSizesAvgs[i].getDev();
+                }
+            } else {
+                /* for each shard size */
+                for (int i = 0; i < GROUP3_SHARD_NUMS.length; i++) {
+                    int shardNum = GROUP3_SHARD_NUMS[i];
 
-                /* Get shard iterator for this shardnum */
-                Iterator<Shard> shardIterator = utxoSet.getShardIterator(shardNum);
+                    /* create new temp shard avg */
+                    MathAverage tempShardsAvg = new MathAverage();
 
-                /* For each shard calculated serialized size */
-                while(shardIterator.hasNext()) {
-                    /* Get next shard */
-                    Shard shard = shardIterator.next();
+                    /* Get shard iterator for this shardnum */
+                    Iterator<Shard> shardIterator = utxoSet.getShardIterator(shardNum);
 
-                    /* Add shard serialized size to accumulator */
-                    tempShardsAvg.push(shard.getSerializedSize());
-                }
+                    /* For each shard calculated serialized size */
+                    while(shardIterator.hasNext()) {
+                        /* Get next shard */
+                        Shard shard = shardIterator.next();
 
-                /* Update values */
-                shardAvgSizes[i] = tempShardsAvg.getAvg();
-                shardVarSizes[i] = tempShardsAvg.getDev();
+                        /* Add shard serialized size to accumulator */
+                        tempShardsAvg.push(shard.getSerializedSize());
+                    }
+
+                    /* Update values */
+                    shardAvgSizes[i] = tempShardsAvg.getAvg();
+                    shardVarSizes[i] = tempShardsAvg.getDev();
+                }
             }
 
             /* Compute and update entries */
@@ -900,11 +912,15 @@ public class StatisticsUtxoSet extends Statistics {
                     /* Set index to modified shard indices array */
                     modifiedShardIndices[k] = shardIndex;
 
-                    /* Get shard */
-                    Shard shard = utxoSet.getShard(shardNum, shardIndex);
-
-                    /* Add shard serialized size to accumulator */
-                    fullVerShardDataSizes[i] += shard.getSerializedSize();
+                    /* Add shard serialized size to accumulator. Sharded utxo sets do not
+                     * build the shard. */
+                    if(utxoSet instanceof AbstractUtxoSet) {
+                        fullVerShardDataSizes[i] += ((AbstractUtxoSet) utxoSet)
+                                .getShardSerializedSize(shardNum, shardIndex);
+                    } else {
+                        fullVerShardDataSizes[i] +=
+                                utxoSet.getShard(shardNum, shardIndex).getSerializedSize();
+                    }
                 }
 
                 /* Compute merkle tree missing hashes size */
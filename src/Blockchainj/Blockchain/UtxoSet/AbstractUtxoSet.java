@@ -1,14 +1,19 @@
 package Blockchainj.Blockchain.UtxoSet;
 
 import Blockchainj.Bitcoin.Block;
+import Blockchainj.Bitcoin.TXI;
 import Blockchainj.Blockchain.ProtocolParams;
 import Blockchainj.Blockchain.UtxoSet.Shard.MainShardFactory;
 import Blockchainj.Blockchain.UtxoSet.Shard.Shard;
 import Blockchainj.Blockchain.UtxoSet.Shard.ShardFactory;
 import Blockchainj.Blockchain.UtxoSet.Shard.ShardIterator;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.STX;
 import Blockchainj.Blockchain.UtxoSet.UTXOS.ShardChanges;
 import Blockchainj.Blockchain.UtxoSet.UTXOS.UTX;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoLookup;
 import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoSetChanges;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoSetDelta;
+import Blockchainj.Util.MathAverage;
 import Blockchainj.Util.MerkleTree;
 import Blockchainj.Util.SHA256HASH;
 import Blockchainj.Util.Utils;
@@ -20,6 +25,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
@@ -29,6 +35,12 @@ import java.util.concurrent.atomic.AtomicLong;
  *
  * Has optional concurrency for commitBlock() method.
  *
+ * Reads do not wait for commits. Each commit publishes an immutable UtxoSetState through a
+ * volatile reference, and height, blockhash, counts, sizes and the Merkle tree are read from
+ * it without locking. Shards are modified in place by the implementations, so shard reads
+ * hold a read lock that commits take for writing only while they apply shard changes.
+ * Computing the changes of a block does not block any reader.
+ *
  * This implementation uses an internal number of shards to split the Utxo Set into.
  * The Shards are accessed via a put/get interface.
  * For disk load and storage the Shards are accessed via a store/load interface.
@@ -61,14 +73,14 @@ public abstract class AbstractUtxoSet implements UtxoSet {
     protected final int shardNum;
 
     /* Utx and Utxo count */
-    private AtomicInteger utxCount;
-    private AtomicInteger utxoCount;
+    private AtomicInteger utxCount = new AtomicInteger(0);
+    private AtomicInteger utxoCount = new AtomicInteger(0);
 
     /* Utxo set serialized size. Includes Shards.serializedSize. */
-    private AtomicLong serializedSize;
+    private AtomicLong serializedSize = new AtomicLong(0);
 
     /* UTXs serialized size. Sum of all UTX's serialized size. */
-    private AtomicLong serializedUtxSize;
+    private AtomicLong serializedUtxSize = new AtomicLong(0);
 
     /* Utxo Merkle Tree */
     protected final MerkleTree merkleTree;
@@ -87,6 +99,9 @@ public abstract class AbstractUtxoSet implements UtxoSet {
     public static final int DEFAULT_GARBAGE_COLLECTOR_CALL_PERIOD = 100;
     private int GARBAGE_COLLECTOR_CALL_PERIOD = DEFAULT_GARBAGE_COLLECTOR_CALL_PERIOD;
 
+    /* Minimum outpoints of a parallel lookup task, see getInternalBestUtxoLookups() */
+    private static final int LOOKUP_TASK_MIN_OUTPOINTS = 32;
+
     /* Mark utxo set as closed */
     private volatile boolean closed = false;
 
@@ -94,6 +109,30 @@ public abstract class AbstractUtxoSet implements UtxoSet {
     private final UtxoSetTimer utxoSetTimer = new UtxoSetTimer();
     private boolean activeTimer = false;
 
+    /* Optional export of committed block changes. Closed with the utxo set. */
+    private UtxoSetDeltaWriter utxoSetDeltaWriter = null;
+
+    /* Optional per shard changes of committed blocks. Closed with the utxo set. */
+    private volatile ShardDeltaStore shardDeltaStore = null;
+
+    /* Notified after each commit */
+    private final CopyOnWriteArrayList<UtxoSetCommitListener> commitListeners =
+            new CopyOnWriteArrayList<>();
+
+    /* Last published state. Read without locking. */
+    private volatile UtxoSetState state;
+
+    /* Height each shard was last modified at. Replaced, never modified, on each commit. */
+    private int[] shardVersions;
+
+    /* Shard access. Commits hold the write lock while shards are modified, shard reads hold
+     * the read lock. Commits are serialized by the object monitor. */
+    private final ReentrantReadWriteLock shardLock = new ReentrantReadWriteLock();
+
+    /* UTX count and size per txid prefix, for shard sizes. Guarded by shardLock like the
+     * shards. */
+    private final TxidPrefixHistogram prefixHistogram = new TxidPrefixHistogram();
+
 
     /* Constructor for new UtxoSet. Throws FileAlreadyExistsException if UtxoSet already exists
      * in the utxoSetPath provided dir.
@@ -128,6 +167,9 @@ public abstract class AbstractUtxoSet implements UtxoSet {
 
         /* init merkle tree */
         merkleTree = new MerkleTree(shardNum);
+
+        /* init state */
+        initState();
     }
 
 
@@ -161,6 +203,9 @@ public abstract class AbstractUtxoSet implements UtxoSet {
 
         /* init merkle tree */
         merkleTree = new MerkleTree(shardNum);
+
+        /* init state */
+        initState();
     }
 
 
@@ -193,10 +238,59 @@ public abstract class AbstractUtxoSet implements UtxoSet {
         this.GARBAGE_COLLECTOR_CALL_PERIOD = GARBAGE_COLLECTOR_CALL_PERIOD;
     }
 
+    /* Force the utxo set log to the disk every period commits. 0 only on close. */
+    public synchronized void setUTXO_SET_LOG_SYNC_PERIOD(int UTXO_SET_LOG_SYNC_PERIOD) {
+        utxoSetLog.setSyncPeriod(UTXO_SET_LOG_SYNC_PERIOD);
+    }
+
     public synchronized void setActiveTimer(boolean activeTimer) {
         this.activeTimer = activeTimer;
     }
 
+    /* Export the changes of every committed block. Null to stop exporting. */
+    public synchronized void setUtxoSetDeltaWriter(UtxoSetDeltaWriter utxoSetDeltaWriter) {
+        this.utxoSetDeltaWriter = utxoSetDeltaWriter;
+    }
+
+    /* Keep the shard changes of every committed block. Null to stop keeping them. */
+    public synchronized void setShardDeltaStore(ShardDeltaStore shardDeltaStore) {
+        this.shardDeltaStore = shardDeltaStore;
+    }
+
+    /* Null if not set */
+    public ShardDeltaStore getShardDeltaStore() {
+        return shardDeltaStore;
+    }
+
+    /* Listeners are called by the committing thread, see UtxoSetCommitListener. */
+    public void addCommitListener(UtxoSetCommitListener listener) {
+        commitListeners.add(listener);
+    }
+
+    public void removeCommitListener(UtxoSetCommitListener listener) {
+        commitListeners.remove(listener);
+    }
+
+
+    /* All shards at best height, published as the first state. */
+    private void initState() {
+        shardVersions = new int[shardNum];
+        Arrays.fill(shardVersions, bestHeight);
+        publishState(true);
+    }
+
+
+    /* Publishes the working state to readers. The Merkle tree is copied only if changed. */
+    private void publishState(boolean merkleTreeChanged) {
+        UtxoSetState prevState = state;
+        MerkleTree merkleTreeCopy = (merkleTreeChanged || (prevState == null)) ?
+                merkleTree.getReadOnlyCopy() : prevState.getMerkleTree();
+
+        state = new UtxoSetState(bestHeight, bestBlockhash, shardNum, utxCount.get(),
+                utxoCount.get(), serializedSize.get(), serializedUtxSize.get(), merkleTreeCopy,
+                shardVersions);
+    }
+
 
     /**
      *  Initialization methods must be called by AbstractUtxoSet implementaion constructors.
@@ -228,6 +322,9 @@ public abstract class AbstractUtxoSet implements UtxoSet {
 
         /* rehash merkle tree */
         merkleTree.rehashTree();
+
+        /* publish state */
+        publishState(true);
     }
 
 
@@ -253,6 +350,9 @@ public abstract class AbstractUtxoSet implements UtxoSet {
             utxCount.addAndGet(shard.getUtxCount());
             utxoCount.addAndGet(shard.getUtxoCount());
 
+            /* Update txid prefix histogram */
+            prefixHistogram.addShard(shard);
+
             /* Calculate hash. */
             SHA256HASH shardHash = shard.calcShardHash();
 
@@ -278,6 +378,9 @@ public abstract class AbstractUtxoSet implements UtxoSet {
                         " Height: " + getBestHeight());
             }
         }
+
+        /* publish state */
+        publishState(true);
     }
 
 
@@ -359,12 +462,92 @@ public abstract class AbstractUtxoSet implements UtxoSet {
         UtxoSetChanges changes = UtxoSetChanges.calcNewUtxoSetChanges(
                 block, shardNum, getShardFactory().getUtxFactory());
 
+        /* Export changes */
+        if(utxoSetDeltaWriter != null) {
+            utxoSetDeltaWriter.append(
+                    UtxoSetDelta.fromUtxoSetChanges(changes, block.getPrevBlockhash()));
+        }
+
         /* TIMER */
         if(activeTimer) {
             utxoSetTimer.endTimerForStage1startTimerForStage2(
                     UtxoSetTimer.calcUtxoSetChanges, UtxoSetTimer.applyChanges);
         }
 
+        applyUtxoSetChanges(changes);
+    }
+
+
+    /* Commit precomputed changes of a single block, e.g. rebuilt from a UtxoSetDelta.
+     * Changes must have the utxo set's shard number. Same guarantees as commitBlock(). */
+    @Override
+    public synchronized void commitUtxoSetChanges(UtxoSetChanges changes)
+            throws BitcoinUtxoSetException, IOException {
+        if(isClosed()) {
+            throw new IllegalStateException("Utxo Set closed.");
+        }
+
+        if(changes.getShardNum() != shardNum) {
+            throw new IllegalArgumentException("Changes shard number " + changes.getShardNum() +
+                    " does not match utxo set shard number " + shardNum + ".");
+        }
+
+        /* Call garbage collector */
+        if(changes.getHeight()%GARBAGE_COLLECTOR_CALL_PERIOD == 0) {
+            Utils.suggestGarbageCollectorRun();
+        }
+
+        /* TIMER */
+        if(activeTimer) {
+            utxoSetTimer.startRound();
+            utxoSetTimer.startTimerForStage(UtxoSetTimer.applyChanges);
+        }
+
+        applyUtxoSetChanges(changes);
+    }
+
+
+    /* Applies changes, publishes the new state and notifies listeners. Ends timer round.
+     * Must be called by a synchronized method. */
+    private void applyUtxoSetChanges(UtxoSetChanges changes)
+            throws BitcoinUtxoSetException, IOException {
+        int[] modifiedShardIndices = new int[changes.getModifiedShardCount()];
+        int i = 0;
+        Iterator<ShardChanges> it = changes.getShardChangesIterator();
+        while(it.hasNext()) {
+            modifiedShardIndices[i++] = it.next().getShardIndex();
+        }
+
+        /* Keep shard changes, before readers can see the new state */
+        if(shardDeltaStore != null) {
+            shardDeltaStore.append(changes);
+        }
+
+        /* Shard reads wait until the new state is published */
+        shardLock.writeLock().lock();
+        try {
+            applyShardChangesAndUpdateLog(changes);
+
+            /* publish state */
+            shardVersions = UtxoSetState.nextShardVersions(
+                    shardVersions, bestHeight, modifiedShardIndices);
+            publishState(HASH_SHARDS_AND_REBUILD_MERKLE_TREE_ON_COMMIT);
+
+            /* notify listeners, after the new state is published and before shard reads
+             * resume */
+            for(UtxoSetCommitListener listener : commitListeners) {
+                listener.onCommit(bestHeight, bestBlockhash, shardNum, modifiedShardIndices);
+            }
+        } finally {
+            shardLock.writeLock().unlock();
+        }
+    }
+
+
+    /* Applies changes to shards, updates merkle tree and utxo set log. Ends timer round.
+     * Must be called with the shard write lock held. */
+    private void applyShardChangesAndUpdateLog(UtxoSetChanges changes)
+            throws BitcoinUtxoSetException, IOException {
         /* If concurrent commit */
         if(CONCURRENT_COMMIT) {
             /* Unbounded blocking queue for thread pool excecutor. The producer (this thread),
@@ -525,15 +708,32 @@ public abstract class AbstractUtxoSet implements UtxoSet {
         }
 
         /* Commit any pending data to disk. */
-        commitPendingData();
+        shardLock.writeLock().lock();
+        try {
+            commitPendingData();
+        } finally {
+            shardLock.writeLock().unlock();
+        }
+
+        /* Close utxo set log */
+        utxoSetLog.close();
+
+        /* Close export */
+        if(utxoSetDeltaWriter != null) {
+            utxoSetDeltaWriter.close();
+        }
+
+        /* Close shard delta store */
+        if(shardDeltaStore != null) {
+            shardDeltaStore.close();
+        }
 
         /* Mark utxo set as closed */
         closed = true;
     }
 
-    /* Call to this function is best made after aquiring at least read lock. */
     @Override
-    public synchronized boolean isClosed() {
+    public boolean isClosed() {
         return closed;
     }
 
@@ -579,6 +779,10 @@ public abstract class AbstractUtxoSet implements UtxoSet {
                         UtxoSetTimer.loadShard, UtxoSetTimer.applyShardChanges);
             }
 
+            /* Changed UTXs leave the prefix histogram and come back as they are after */
+            HashSet<SHA256HASH> changedTxids = getChangedTxids(shardChanges);
+            updatePrefixHistogram(shard, changedTxids, false);
+
             /* Apply changes to shard. */
             try {
                 shard.applyShardChanges(shardChanges);
@@ -589,6 +793,8 @@ public abstract class AbstractUtxoSet implements UtxoSet {
                 throw e;
             }
 
+            updatePrefixHistogram(shard, changedTxids, true);
+
             /* Update serialized size */
             serializedSize.addAndGet(shard.getSerializedSize() - prevShardSerializedSize);
             serializedUtxSize.addAndGet(
@@ -633,33 +839,68 @@ public abstract class AbstractUtxoSet implements UtxoSet {
     }
 
 
+    /* Txids of the UTXs spent from or put to the shard */
+    private static HashSet<SHA256HASH> getChangedTxids(ShardChanges shardChanges) {
+        HashSet<SHA256HASH> txids = new HashSet<>();
+        Iterator<STX> stxIterator = shardChanges.getStxIterator();
+        while(stxIterator.hasNext()) {
+            txids.add(stxIterator.next().getPrevTxid());
+        }
+        Iterator<UTX> utxIterator = shardChanges.getUtxIterator();
+        while(utxIterator.hasNext()) {
+            txids.add(utxIterator.next().getTxid());
+        }
+        return txids;
+    }
+
+
+    /* Adds or removes the shard's UTXs of txids to or from the prefix histogram */
+    private void updatePrefixHistogram(Shard shard, HashSet<SHA256HASH> txids, boolean add) {
+        for(SHA256HASH txid : txids) {
+            UTX utx = shard.getUTX(txid);
+            if(utx == null) {
+                continue;
+            }
+            if(add) {
+                prefixHistogram.add(utx);
+            } else {
+                prefixHistogram.remove(utx);
+            }
+        }
+    }
+
+
     /**
      * Get method for internal AbstractUtxoSet data. */
-    protected int getShardNum() { return shardNum; }
+    public int getShardNum() { return shardNum; }
 
     public int getInternalBestShardNum() { return getShardNum(); }
 
     public String getUtxoSetPath() { return filenames.getUtxoSetPath(); }
 
-    /* Get internal shard number for given height. */
-    public synchronized int getInternalShardNum(int height) throws IOException {
+    /* Last published state. Never blocks. */
+    public UtxoSetState getState() {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
         }
 
-        UtxoSetLog.UtxoSetLogEntry entry = utxoSetLog.getEntry(height);
-        return entry.numShard;
+        return state;
     }
 
-    public synchronized SHA256HASH getInternalBestMerkleRoot() {
+    /* Get internal shard number for given height. */
+    public int getInternalShardNum(int height) throws IOException {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
         }
 
-        return merkleTree.getRoot();
+        return utxoSetLog.getNumShard(height);
+    }
+
+    public SHA256HASH getInternalBestMerkleRoot() {
+        return getState().getMerkleRoot();
     }
 
-    public synchronized SHA256HASH getInteranlMerkleRoot(int height) throws IOException {
+    public SHA256HASH getInteranlMerkleRoot(int height) throws IOException {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
         }
@@ -668,110 +909,259 @@ public abstract class AbstractUtxoSet implements UtxoSet {
         return entry.merkleRoot;
     }
 
-    /* Does not return copy */
-    public synchronized MerkleTree getInternalBestMerkleTree() {
+    /* Read only copy of the last published state's tree. Does not change with commits. */
+    public MerkleTree getInternalBestMerkleTree() {
+        return getState().getMerkleTree();
+    }
+
+    /* Returns a copy, read with the shard read lock held. Does not change with commits. */
+    public Shard getInternalBestShard(int index) throws IOException{
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
         }
 
-        return merkleTree.getReadOnly();
+        return readShardCopy(index);
     }
 
-    /* Does not return copy */
-    public synchronized Shard getInternalBestShard(int index) throws IOException{
+
+    /* Reads the internal shards at shardIndices into shardList and returns the state they
+     * belong to. The state's merkle tree links the shards' hashes to its root. Returns copies,
+     * serialized with the shard read lock held, so later commits do not change them. */
+    public UtxoSetState getInternalBestShards(int[] shardIndices, Shard[] shardList)
+            throws IOException, IllegalArgumentException {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
         }
 
-        return getCachedShard(index);
-    }
+        for(int shardIndex : shardIndices) {
+            if( (shardIndex < 0) || (shardIndex >= shardNum) ) {
+                throw new IllegalArgumentException("Shard index out of range: " + shardIndex);
+            }
+        }
 
+        /* State is published with the shard write lock held. */
+        byte[][] serializedShards = new byte[shardIndices.length][];
+        UtxoSetState readState;
+        shardLock.readLock().lock();
+        try {
+            for(int i=0; i<shardIndices.length; i++) {
+                serializedShards[i] = serializeShard(getCachedShard(shardIndices[i]));
+            }
+            readState = state;
+        } finally {
+            shardLock.readLock().unlock();
+        }
 
+        /* Deserialize outside the lock */
+        for(int i=0; i<shardIndices.length; i++) {
+            shardList[i] = getShardFactory().deserialize(
+                    new ByteArrayInputStream(serializedShards[i]));
+            serializedShards[i] = null;
+        }
+        return readState;
+    }
 
-    /**
-     * Interface get methods.
-     */
-    @Override
-    public synchronized SHA256HASH getBestBlockhash() {
+
+    /* Looks up outpoints in the internal shards and returns the state the results belong to.
+     * Outpoints are grouped by shard index and each shard is read once. Groups are looked up in
+     * parallel on executor, or by the calling thread if executor is null. Results are in
+     * outpoint order. */
+    public UtxoSetState getInternalBestUtxoLookups(TXI[] outpoints, UtxoLookup[] results,
+                                                   ExecutorService executor)
+            throws IOException {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
         }
 
-        return bestBlockhash;
+        /* Sort outpoint positions by shard index, <shardIndex><position> */
+        long[] keys = new long[outpoints.length];
+        for(int i=0; i<outpoints.length; i++) {
+            int shardIndex = ProtocolParams.calcShardIndex(shardNum, outpoints[i].getPrevTxid());
+            keys[i] = ((long) shardIndex << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        /* Tasks of whole shard groups, at least LOOKUP_TASK_MIN_OUTPOINTS outpoints each */
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        int taskStart = 0;
+        for(int i=1; i<=keys.length; i++) {
+            boolean groupEnd = (i == keys.length) || ((keys[i] >>> 32) != (keys[i-1] >>> 32));
+            if(groupEnd && ((i - taskStart >= LOOKUP_TASK_MIN_OUTPOINTS) || i == keys.length)) {
+                tasks.add(newLookupTask(keys, taskStart, i, outpoints, results));
+                taskStart = i;
+            }
+        }
+
+        /* Commits wait until all lookups are done. State is published with the write lock
+         * held. */
+        shardLock.readLock().lock();
+        try {
+            if(executor == null || tasks.size() < 2) {
+                for(Callable<Void> task : tasks) {
+                    task.call();
+                }
+            } else {
+                for(Future<Void> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            }
+            return state;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new IOException(e.getCause());
+            }
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            shardLock.readLock().unlock();
+        }
     }
 
 
-    @Override
-    public synchronized int getBestHeight() {
-        if(isClosed()) {
-            throw new IllegalStateException("Utxo Set closed.");
+    /* Looks up keys[from, to), see getInternalBestUtxoLookups(), one shard at a time. */
+    private Callable<Void> newLookupTask(long[] keys, int from, int to,
+                                         TXI[] outpoints, UtxoLookup[] results) {
+        return () -> {
+            int groupStart = from;
+            for(int i=from+1; i<=to; i++) {
+                if( (i == to) || ((keys[i] >>> 32) != (keys[i-1] >>> 32)) ) {
+                    int[] positions = new int[i - groupStart];
+                    for(int j=0; j<positions.length; j++) {
+                        positions[j] = (int) keys[groupStart + j];
+                    }
+                    lookupUTXOs((int) (keys[groupStart] >>> 32), outpoints, positions, results);
+                    groupStart = i;
+                }
+            }
+            return null;
+        };
+    }
+
+
+    /* Looks up the outpoints at positions, all of shard shardIndex, into results at the same
+     * positions. Called with the shard read lock held, possibly by several threads at once.
+     * Implementations that do not keep shards in memory may override it to avoid loading the
+     * whole shard. */
+    protected void lookupUTXOs(int shardIndex, TXI[] outpoints, int[] positions,
+                               UtxoLookup[] results) throws IOException {
+        Shard shard = getCachedShard(shardIndex);
+        for(int position : positions) {
+            TXI outpoint = outpoints[position];
+            results[position] = UtxoLookup.lookup(
+                    shard.getUTX(outpoint.getPrevTxid()), outpoint.getPrevOutIndex());
         }
+    }
+
+
+    /* Copy of getCachedShard(), serialized with the shard read lock held. Waits while a commit
+     * modifies shards. Cached shards are modified in place, the copy is not. */
+    private Shard readShardCopy(int shardIndex) throws IOException {
+        byte[] serializedShard;
+        shardLock.readLock().lock();
+        try {
+            serializedShard = serializeShard(getCachedShard(shardIndex));
+        } finally {
+            shardLock.readLock().unlock();
+        }
+
+        return getShardFactory().deserialize(new ByteArrayInputStream(serializedShard));
+    }
+
 
-        return bestHeight;
+    private static byte[] serializeShard(Shard shard) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+                (int)Math.min(shard.getSerializedSize(), Integer.MAX_VALUE-8));
+        shard.serialize(outputStream);
+        return outputStream.toByteArray();
+    }
+
+
+
+    /**
+     * Interface get methods.
+     */
+    @Override
+    public SHA256HASH getBestBlockhash() {
+        return getState().getBlockhash();
     }
 
 
     @Override
-    public synchronized SHA256HASH getBlockhash(int height) throws NoSuchElementException {
+    public int getBestHeight() {
+        return getState().getHeight();
+    }
+
+
+    @Override
+    public SHA256HASH getBlockhash(int height) throws NoSuchElementException {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
         }
 
         try {
-            UtxoSetLog.UtxoSetLogEntry entry = utxoSetLog.getEntry(height);
-            return entry.blockhash;
+            return utxoSetLog.getBlockhash(height);
         } catch (IOException e) {
             throw new NoSuchElementException(e.toString());
         }
     }
 
 
-    @Override
-    public synchronized int getUtxCount() {
+    /* Height of blockhash from the utxo set log index. -1 if not found. */
+    public int getHeight(SHA256HASH blockhash) {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
         }
 
-        return utxCount.get();
+        return utxoSetLog.getHeight(blockhash);
     }
 
 
     @Override
-    public synchronized int getUtxoCount() {
-        if(isClosed()) {
-            throw new IllegalStateException("Utxo Set closed.");
-        }
+    public int getUtxCount() {
+        return getState().getUtxCount();
+    }
+
 
-        return utxoCount.get();
+    @Override
+    public int getUtxoCount() {
+        return getState().getUtxoCount();
     }
 
 
+    /* Exact for shard numbers up to TxidPrefixHistogram.BUCKET_COUNT. Constant time and read
+     * without the shard lock, so a commit in progress may be partly included. */
     @Override
-    public synchronized long getUtxoSetSerializedSizeEstimate(int shardNum)
+    public long getUtxoSetSerializedSizeEstimate(int shardNum)
             throws IllegalArgumentException {
-        if(isClosed()) {
-            throw new IllegalStateException("Utxo Set closed.");
-        }
-
         ProtocolParams.validateShardNum(shardNum);
 
+        /* Covered shard numbers from the prefix histogram */
+        if(TxidPrefixHistogram.isCovered(shardNum)) {
+            return prefixHistogram.getUtxoSetSerializedSize(shardNum);
+        }
+
+        /* Others estimated with empty shard headers */
         return getUtxSerializedSize() +
                 ( (long)shardNum * Shard.getEmptyShardHeaderSerializedSize() );
     }
 
 
     @Override
-    public synchronized long getUtxSerializedSize() {
-        if(isClosed()) {
-            throw new IllegalStateException("Utxo Set closed.");
-        }
-
-        return serializedUtxSize.get();
+    public long getUtxSerializedSize() {
+        return getState().getUtxSerializedSize();
     }
 
 
+    /* Shards are read one at a time, so a commit during iteration may show in later shards. */
     @Override
-    public synchronized Iterator<UTX> getUtxIterator() {
+    public Iterator<UTX> getUtxIterator() {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
         }
@@ -781,7 +1171,7 @@ public abstract class AbstractUtxoSet implements UtxoSet {
 
 
     @Override
-    public synchronized Shard getShard(int shardNum, int shardIndex)
+    public Shard getShard(int shardNum, int shardIndex)
             throws IOException, IllegalArgumentException {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
@@ -802,20 +1192,26 @@ public abstract class AbstractUtxoSet implements UtxoSet {
         /* Temporary empty shard */
         Shard tempShard = getShardFactory().getNewShard(shardNum, shardIndex);
 
-        /* Iterate through shards to get UTXs. UTXs should be sorted. */
-        for(int i=0; i<oldShardIndices.length; i++) {
-            Shard shard = getCachedShard(oldShardIndices[i]);
+        /* Iterate through shards to get UTXs. UTXs should be sorted.
+         * All shards of the same state. */
+        shardLock.readLock().lock();
+        try {
+            for(int i=0; i<oldShardIndices.length; i++) {
+                Shard shard = getCachedShard(oldShardIndices[i]);
 
-            Iterator<UTX> utxIterator = shard.getUtxIterator();
-            while(utxIterator.hasNext()) {
-                UTX utx = utxIterator.next();
+                Iterator<UTX> utxIterator = shard.getUtxIterator();
+                while(utxIterator.hasNext()) {
+                    UTX utx = utxIterator.next();
 
-                if(tempShard.inRange(utx.getTxid())) {
-                    utxList.add(utx);
+                    if(tempShard.inRange(utx.getTxid())) {
+                        utxList.add(utx);
+                    }
                 }
-            }
 
-            /* No need to call putCachedShard() since no modifications to shard */
+                /* No need to call putCachedShard() since no modifications to shard */
+            }
+        } finally {
+            shardLock.readLock().unlock();
         }
 
         /* Get UTXs into array */
@@ -826,8 +1222,54 @@ public abstract class AbstractUtxoSet implements UtxoSet {
     }
 
 
+    /* Serialized size of getShard(shardNum, shardIndex), without building the shard. From
+     * the prefix histogram for shard numbers up to TxidPrefixHistogram.BUCKET_COUNT, else from
+     * the internal shards. */
+    public long getShardSerializedSize(int shardNum, int shardIndex)
+            throws IOException, IllegalArgumentException {
+        if(isClosed()) {
+            throw new IllegalStateException("Utxo Set closed.");
+        }
+
+        /* Internal shards of the shard, checks input */
+        int[] internalShardIndices = ProtocolParams.getShardIndicesThatContainValidUtxs(
+                getInternalBestShardNum(), shardNum, shardIndex);
+
+        shardLock.readLock().lock();
+        try {
+            if(TxidPrefixHistogram.isCovered(shardNum)) {
+                return prefixHistogram.getShardSerializedSize(shardNum, shardIndex);
+            }
+
+            long utxCount = 0;
+            long utxSize = 0;
+            for(int internalShardIndex : internalShardIndices) {
+                Shard shard = getCachedShard(internalShardIndex);
+                if(shardNum <= getInternalBestShardNum()) {
+                    utxCount += shard.getUtxCount();
+                    utxSize += shard.getUtxSerializedSize();
+                } else {
+                    /* Part of the internal shard */
+                    Iterator<UTX> utxIterator = shard.getUtxIterator();
+                    while(utxIterator.hasNext()) {
+                        UTX utx = utxIterator.next();
+                        if(ProtocolParams.calcShardIndex(shardNum, utx.getTxid()) == shardIndex) {
+                            utxCount++;
+                            utxSize += utx.getSerializedSize();
+                        }
+                    }
+                }
+            }
+            return TxidPrefixHistogram.calcShardSerializedSize(utxCount, utxSize);
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+
+    /* Shards are read one at a time, so a commit during iteration may show in later shards. */
     @Override
-    public synchronized Iterator<Shard> getShardIterator(int shardNum)
+    public Iterator<Shard> getShardIterator(int shardNum)
             throws IllegalArgumentException {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
@@ -843,7 +1285,7 @@ public abstract class AbstractUtxoSet implements UtxoSet {
 
 
     @Override
-    public synchronized MerkleTree getMerkleTree(int shardNum)
+    public MerkleTree getMerkleTree(int shardNum)
             throws IOException, IllegalArgumentException {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
@@ -859,22 +1301,27 @@ public abstract class AbstractUtxoSet implements UtxoSet {
         /* Build new merkle tree */
         MerkleTree merkleTree = new MerkleTree(shardNum);
 
-        /* Get shards and calculate hashses */
-        Iterator<Shard> shardIterator = getShardIterator(shardNum);
-        /* Iterator should return ALL shards */
-        for(int i=0; i<shardNum; i++) {
-            try {
-                /* Get next shard */
-                Shard shard = shardIterator.next();
+        /* Get shards and calculate hashses. All shards of the same state. */
+        shardLock.readLock().lock();
+        try {
+            Iterator<Shard> shardIterator = getShardIterator(shardNum);
+            /* Iterator should return ALL shards */
+            for(int i=0; i<shardNum; i++) {
+                try {
+                    /* Get next shard */
+                    Shard shard = shardIterator.next();
 
-                /* Hash shard */
-                SHA256HASH shardHash = shard.calcShardHash();
+                    /* Hash shard */
+                    SHA256HASH shardHash = shard.calcShardHash();
 
-                /* Put shard to tree */
-                merkleTree.updateLeafHash(shard.getShardIndex(), shardHash);
-            } catch (NoSuchElementException e) {
-                throw new IOException(e);
+                    /* Put shard to tree */
+                    merkleTree.updateLeafHash(shard.getShardIndex(), shardHash);
+                } catch (NoSuchElementException e) {
+                    throw new IOException(e);
+                }
             }
+        } finally {
+            shardLock.readLock().unlock();
         }
 
         /* Build merkle tree */
@@ -886,18 +1333,192 @@ public abstract class AbstractUtxoSet implements UtxoSet {
 
 
 
+    /* Average and deviation of the shard serialized sizes for each of shardNums, as the shards
+     * of getShardIterator() would have, without building shards. All shards of the same state.
+     *
+     * Shard numbers up to TxidPrefixHistogram.BUCKET_COUNT come from the prefix histogram.
+     * Others take one pass over the internal shards, split over threadNum threads. Shards of
+     * shardNum up to the internal shard number are unions of internal shards, their sizes
+     * come from the internal shards' sizes. Larger shardNum shards are prefix ranges inside
+     * one internal shard, their sizes are accumulated over the sorted UTXs. */
+    public MathAverage[] getShardSerializedSizeAverages(int[] shardNums, int threadNum)
+            throws IOException, IllegalArgumentException {
+        if(isClosed()) {
+            throw new IllegalStateException("Utxo Set closed.");
+        }
+        for(int shardNum : shardNums) {
+            ProtocolParams.validateShardNum(shardNum);
+        }
+
+        /* Shard numbers of the histogram, and larger shard numbers counted in the pass */
+        int[] coveredShardNums =
+                Arrays.stream(shardNums).filter(TxidPrefixHistogram::isCovered).toArray();
+        boolean doPass = coveredShardNums.length < shardNums.length;
+        int[] largerShardNums = Arrays.stream(shardNums)
+                .filter(n -> !TxidPrefixHistogram.isCovered(n) && n > shardNum).toArray();
+
+        /* Internal shard UTX counts and serialized sizes */
+        int[] utxCounts = new int[shardNum];
+        long[] utxSizes = new long[shardNum];
+
+        /* Contiguous internal shard ranges, a few per thread for balance */
+        int taskCount = Math.max(1, Math.min(shardNum, threadNum * 4));
+        ArrayList<Callable<MathAverage[]>> tasks = new ArrayList<>();
+        for(int i=0; i<taskCount; i++) {
+            int from = (int) ((long) shardNum * i / taskCount);
+            int to = (int) ((long) shardNum * (i+1) / taskCount);
+            tasks.add(() -> accumulateShardSizes(from, to, utxCounts, utxSizes,
+                    largerShardNums));
+        }
+
+        /* Commits wait until the pass is done */
+        MathAverage[] coveredAverages;
+        List<MathAverage[]> partials = new ArrayList<>();
+        shardLock.readLock().lock();
+        try {
+            coveredAverages = prefixHistogram.getShardSerializedSizeAverages(coveredShardNums);
+
+            if(!doPass) {
+                tasks.clear();
+            } else if(threadNum <= 1 || tasks.size() < 2) {
+                for(Callable<MathAverage[]> task : tasks) {
+                    partials.add(task.call());
+                }
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+                try {
+                    for(Future<MathAverage[]> future : executor.invokeAll(tasks)) {
+                        partials.add(future.get());
+                    }
+                } finally {
+                    executor.shutdown();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new IOException(e.getCause());
+            }
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            shardLock.readLock().unlock();
+        }
+
+        /* Averages in shardNums order */
+        MathAverage[] averages = new MathAverage[shardNums.length];
+        int covered = 0;
+        int larger = 0;
+        for(int i=0; i<shardNums.length; i++) {
+            if(TxidPrefixHistogram.isCovered(shardNums[i])) {
+                averages[i] = coveredAverages[covered++];
+                continue;
+            }
+            averages[i] = new MathAverage();
+
+            if(shardNums[i] <= shardNum) {
+                /* Sum internal shards of each shard */
+                int internalPerShard = shardNum / shardNums[i];
+                for(int k=0; k<shardNum; k+=internalPerShard) {
+                    long utxCount = 0;
+                    long utxSize = 0;
+                    for(int j=k; j<k+internalPerShard; j++) {
+                        utxCount += utxCounts[j];
+                        utxSize += utxSizes[j];
+                    }
+                    averages[i].push(
+                            TxidPrefixHistogram.calcShardSerializedSize(utxCount, utxSize));
+                }
+            } else {
+                /* Add partials, the rest of the shards are empty */
+                for(MathAverage[] partial : partials) {
+                    averages[i].add(partial[larger]);
+                }
+                averages[i].push(TxidPrefixHistogram.calcShardSerializedSize(0, 0),
+                        shardNums[i] - averages[i].getCount());
+                larger++;
+            }
+        }
+
+        return averages;
+    }
+
+
+    /* Reads internal shards [from, to) into utxCounts and utxSizes and returns the sizes of
+     * the non empty shards of each of largerShardNums. Called with the shard read lock held. */
+    private MathAverage[] accumulateShardSizes(int from, int to, int[] utxCounts,
+                                               long[] utxSizes, int[] largerShardNums)
+            throws IOException {
+        MathAverage[] averages = new MathAverage[largerShardNums.length];
+        int[] shifts = new int[largerShardNums.length];
+        for(int j=0; j<largerShardNums.length; j++) {
+            averages[j] = new MathAverage();
+            shifts[j] = 32 - Integer.numberOfTrailingZeros(largerShardNums[j]);
+        }
+
+        /* Open shard of each larger shard number */
+        long[] openIndices = new long[largerShardNums.length];
+        long[] openCounts = new long[largerShardNums.length];
+        long[] openSizes = new long[largerShardNums.length];
+
+        for(int i=from; i<to; i++) {
+            Shard shard = getCachedShard(i);
+            utxCounts[i] = shard.getUtxCount();
+            utxSizes[i] = shard.getUtxSerializedSize();
+            if(largerShardNums.length == 0 || utxCounts[i] == 0) {
+                continue;
+            }
+
+            /* UTXs are sorted, shards end when the prefix changes */
+            Arrays.fill(openIndices, -1);
+            Iterator<UTX> utxIterator = shard.getUtxIterator();
+            while(utxIterator.hasNext()) {
+                UTX utx = utxIterator.next();
+                long prefix = utx.getTxid().getLastUINT32LE();
+                long utxSize = utx.getSerializedSize();
+                for(int j=0; j<largerShardNums.length; j++) {
+                    long index = prefix >>> shifts[j];
+                    if(index != openIndices[j]) {
+                        if(openIndices[j] != -1) {
+                            averages[j].push(TxidPrefixHistogram.calcShardSerializedSize(
+                                    openCounts[j], openSizes[j]));
+                        }
+                        openIndices[j] = index;
+                        openCounts[j] = 0;
+                        openSizes[j] = 0;
+                    }
+                    openCounts[j]++;
+                    openSizes[j] += utxSize;
+                }
+            }
+            for(int j=0; j<largerShardNums.length; j++) {
+                averages[j].push(TxidPrefixHistogram.calcShardSerializedSize(
+                        openCounts[j], openSizes[j]));
+            }
+        }
+
+        return averages;
+    }
+
+
     /* print */
-    /* Caller must get readLock, else call at own risk */
     @Override
     public synchronized void print(PrintStream printStream) {
+        UtxoSetState state = this.state;
         printStream.println("Utxo Set");
-        printStream.println("Best height: " + getBestHeight());
-        printStream.println("Best blockhash: " + getBestBlockhash());
+        printStream.println("Best height: " + state.getHeight());
+        printStream.println("Best blockhash: " + state.getBlockhash());
         printStream.println("Utxo Set closed: " + closed);
         printStream.println("Internal number of shards: " + getInternalBestShardNum());
-        printStream.println("Best Merkle tree root: " + getInternalBestMerkleRoot());
-        printStream.println("Utx count: " + getUtxCount());
-        printStream.println("Utxo count: " + getUtxoCount());
+        printStream.println("Best Merkle tree root: " + state.getMerkleRoot());
+        printStream.println("Utx count: " + state.getUtxCount());
+        printStream.println("Utxo count: " + state.getUtxoCount());
 
         if(activeTimer)
             utxoSetTimer.print(printStream, true, true, true);
@@ -913,6 +1534,7 @@ public abstract class AbstractUtxoSet implements UtxoSet {
         printStream.println("Utxo Set internal shard num: " + shardNum);
         printStream.println("Utxo Set concurrent commit: " + CONCURRENT_COMMIT);
         printStream.println("Utxo Set concurrent commit threads: " + COMMIT_CORE_THREADS);
+        printStream.println("Utxo Set log sync period: " + utxoSetLog.getSyncPeriod());
         printStream.println("Utxo Set active timer: " + activeTimer);
         getShardFactory().printShardType(printStream);
         getShardFactory().getUtxFactory().printUtxType(printStream);
@@ -929,7 +1551,7 @@ public abstract class AbstractUtxoSet implements UtxoSet {
         private UtxIterator() {
             try {
                 /* get first shard and it's utx iterator */
-                currentShard = getCachedShard(0);
+                currentShard = readShardCopy(0);
                 currentIterator = currentShard.getUtxIterator();
                 endReached = false;
             } catch (IOException e) {
@@ -967,7 +1589,7 @@ public abstract class AbstractUtxoSet implements UtxoSet {
                     return false;
                 } else {
                     try {
-                        currentShard = getCachedShard(nextShardIndex);
+                        currentShard = readShardCopy(nextShardIndex);
                         currentIterator = currentShard.getUtxIterator();
                     } catch (IOException e) {
                         throw new RuntimeException(e);
@@ -994,7 +1616,7 @@ public abstract class AbstractUtxoSet implements UtxoSet {
             nextShardIndex++;
 
             try {
-                return getCachedShard(returnShardIndex);
+                return readShardCopy(returnShardIndex);
             } catch (IOException e) {
                 nextShardIndex = shardNum;
                 throw new NoSuchElementException();
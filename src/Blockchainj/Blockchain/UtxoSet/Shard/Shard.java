@@ -43,6 +43,9 @@ public interface Shard {
     /* Returns TXO if found, else null */
     UTXO getUTXO(SHA256HASH txid, int outIndex);
 
+    /* Returns UTX if found, else null */
+    UTX getUTX(SHA256HASH txid);
+
 
     /** Prototype Protocol protocol serialization. */
     void serialize(OutputStream outputStream) throws IOException;
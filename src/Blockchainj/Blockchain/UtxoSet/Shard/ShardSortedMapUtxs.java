@@ -168,6 +168,12 @@ public class ShardSortedMapUtxs extends AbstractShard {
     }
 
 
+    @Override
+    public UTX getUTX(SHA256HASH txid) {
+        return utxs.get(txid);
+    }
+
+
     @Override
     public UTXO getUTXO(SHA256HASH txid, int outIndex) {
         /* get utx */
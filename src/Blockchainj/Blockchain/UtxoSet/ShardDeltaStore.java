@@ -0,0 +1,507 @@
+package Blockchainj.Blockchain.UtxoSet;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Blockchain.ProtocolParams;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.ShardChanges;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.ShardDelta;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxFactory;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoSetChanges;
+import Blockchainj.Util.SHA256HASH;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ShardDeltaStore
+ *
+ * Keeps the shard changes of every committed block in an append-only file, so the net changes
+ * of one shard over a height range can be read without reading the other shards' changes.
+ * See ShardDelta.
+ *
+ * Appended by AbstractUtxoSet before each commit is applied, see
+ * AbstractUtxoSet.setShardDeltaStore(). Records start at the first height appended. If a
+ * height is skipped or the shard number changes, the file is cleared and records start again,
+ * since ranges over the gap cannot be served anyway. If a stored height is appended with
+ * another blockhash, after a reorg, the records from that height on are truncated.
+ *
+ * File format, heights must be consecutive:
+ * <recordSize, uint32><record, recordSize bytes>
+ *     ...
+ *
+ * Record:
+ * <height, int32><blockhash, 32bytes><shardNum, int32><shardCount, uint32>
+ *     <shard table[], <shardIndex, int32><sectionOffset, uint32>>
+ *     <section[], ShardDelta changes serialization>
+ *
+ * The shard table has the modified shards in ascending index order. Section offsets are from
+ * the record start. A section ends where the next one starts.
+ *
+ * On open, a partially written last record is truncated.
+ *
+ * Only the last KEEP_BLOCKS records can be served, see ProtocolParams.SHARD_DELTA_MAX_BLOCKS.
+ * Once COMPACT_SLACK_BLOCKS more are stored, append() compacts the file. The kept records are
+ * copied to a new file, which replaces the store file. The file stays below
+ * KEEP_BLOCKS + COMPACT_SLACK_BLOCKS records.
+ *
+ * Thread-safe. Reads do not block appends.
+ *
+ */
+
+public class ShardDeltaStore {
+    /* Store file. The channel is replaced by compaction. */
+    private final Path storeFile;
+    private FileChannel channel;
+
+    /* Records kept behind the last height, as far back as "sharddelta" requests reach */
+    private static final int KEEP_BLOCKS = ProtocolParams.SHARD_DELTA_MAX_BLOCKS + 1;
+    /* Records above KEEP_BLOCKS that trigger a compaction */
+    private static final int COMPACT_SLACK_BLOCKS = ProtocolParams.SHARD_DELTA_MAX_BLOCKS;
+
+    /* Readers hold the read lock while reading the file, compaction swaps the file with the
+     * write lock held. Taken before this object's monitor. */
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+    /* One compaction at a time */
+    private final ReentrantLock compactLock = new ReentrantLock();
+
+    /* Record header and shard table entry sizes */
+    private static final int RECORD_HEADER_SIZE = BitcoinParams.INT32_SIZE +
+            SHA256HASH.SERIALIZED_SIZE + BitcoinParams.INT32_SIZE + BitcoinParams.UINT32_SIZE;
+    private static final int TABLE_ENTRY_SIZE =
+            BitcoinParams.INT32_SIZE + BitcoinParams.UINT32_SIZE;
+
+    /* Record positions, after the record size, by height - firstHeight. */
+    private long[] positions = new long[1024];
+    private int firstHeight = ProtocolParams.UNDEFINED_HEIGHT;
+    private int lastHeight = ProtocolParams.UNDEFINED_HEIGHT;
+    private int shardNum = ProtocolParams.UNDEFINED_SHARD_NUM;
+
+    /* End of last complete record */
+    private long endPosition = 0;
+
+    /* Incremented when records are truncated */
+    private long truncations = 0;
+
+    /* Closed marker */
+    private boolean closed = false;
+
+
+    /* Opens or creates store file */
+    public ShardDeltaStore(Path storeFile) throws IOException {
+        this.storeFile = storeFile;
+        if(storeFile.getParent() != null) {
+            storeFile.getParent().toFile().mkdirs();
+        }
+        channel = FileChannel.open(storeFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        /* index complete records */
+        ByteBuffer header = ByteBuffer.allocate(BitcoinParams.UINT32_SIZE + RECORD_HEADER_SIZE);
+        long position = 0;
+        long size = channel.size();
+        while(position + header.capacity() <= size) {
+            header.clear();
+            readFully(header, position);
+            long recordSize = BitcoinParams.readUINT32(header.array(), 0);
+            if(position + BitcoinParams.UINT32_SIZE + recordSize > size) {
+                break;
+            }
+            int height = BitcoinParams.readINT32(header.array(), BitcoinParams.UINT32_SIZE);
+            int recordShardNum = BitcoinParams.readINT32(header.array(),
+                    BitcoinParams.UINT32_SIZE + BitcoinParams.INT32_SIZE +
+                            SHA256HASH.SERIALIZED_SIZE);
+            if( (lastHeight != ProtocolParams.UNDEFINED_HEIGHT) &&
+                    ((height != lastHeight + 1) || (recordShardNum != shardNum)) ) {
+                break;
+            }
+            addPosition(height, recordShardNum, position + BitcoinParams.UINT32_SIZE);
+            position += BitcoinParams.UINT32_SIZE + recordSize;
+        }
+
+        /* drop partial record */
+        channel.truncate(position);
+        endPosition = position;
+    }
+
+
+    /* Appends the shard changes of a block. Returns false if the height is already stored with
+     * the same blockhash. */
+    public boolean append(UtxoSetChanges changes) throws IOException {
+        int height = changes.getHeight();
+
+        /* check height without building the record */
+        synchronized (this) {
+            checkClosed();
+            if( isStored(height, changes.getShardNum()) &&
+                    changes.getBlockhash().equals(readBlockhash(height)) ) {
+                return false;
+            }
+        }
+
+        /* modified shards in index order */
+        ArrayList<ShardChanges> shardChangesList = new ArrayList<>();
+        Iterator<ShardChanges> it = changes.getShardChangesIterator();
+        while(it.hasNext()) {
+            shardChangesList.add(it.next());
+        }
+        shardChangesList.sort((a, b) -> Integer.compare(a.getShardIndex(), b.getShardIndex()));
+
+        /* sections */
+        ByteArrayOutputStream sections = new ByteArrayOutputStream();
+        int tableSize = shardChangesList.size() * TABLE_ENTRY_SIZE;
+        int sectionsStart = RECORD_HEADER_SIZE + tableSize;
+        ByteArrayOutputStream table = new ByteArrayOutputStream(tableSize);
+        for(ShardChanges shardChanges : shardChangesList) {
+            BitcoinParams.INT32ToOutputStream(shardChanges.getShardIndex(), table);
+            BitcoinParams.UINT32ToOutputStream(sectionsStart + sections.size(), table);
+            ShardDelta.writeChanges(shardChanges, sections);
+        }
+
+        /* record */
+        int recordSize = sectionsStart + sections.size();
+        ByteArrayOutputStream record =
+                new ByteArrayOutputStream(BitcoinParams.UINT32_SIZE + recordSize);
+        BitcoinParams.UINT32ToOutputStream(recordSize, record);
+        BitcoinParams.INT32ToOutputStream(height, record);
+        changes.getBlockhash().serialize(record);
+        BitcoinParams.INT32ToOutputStream(changes.getShardNum(), record);
+        BitcoinParams.UINT32ToOutputStream(shardChangesList.size(), record);
+        table.writeTo(record);
+        sections.writeTo(record);
+
+        synchronized (this) {
+            checkClosed();
+
+            /* Stored height of another block, truncate from it */
+            if(isStored(height, changes.getShardNum())) {
+                if(changes.getBlockhash().equals(readBlockhash(height))) {
+                    return false;
+                }
+                truncateFrom(height);
+            }
+
+            /* Restart records at a gap or a new shard number */
+            if( (lastHeight != ProtocolParams.UNDEFINED_HEIGHT) &&
+                    ((height != lastHeight + 1) || (changes.getShardNum() != shardNum)) ) {
+                channel.truncate(0);
+                truncations++;
+                endPosition = 0;
+                firstHeight = ProtocolParams.UNDEFINED_HEIGHT;
+                lastHeight = ProtocolParams.UNDEFINED_HEIGHT;
+                shardNum = ProtocolParams.UNDEFINED_SHARD_NUM;
+            }
+
+            /* write record in one go */
+            ByteBuffer buffer = ByteBuffer.wrap(record.toByteArray());
+            long position = endPosition;
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+
+            addPosition(height, changes.getShardNum(), endPosition + BitcoinParams.UINT32_SIZE);
+            endPosition = position;
+        }
+
+        compactIfNeeded();
+        return true;
+    }
+
+
+    /* Drops the records older than KEEP_BLOCKS if there are COMPACT_SLACK_BLOCKS of them.
+     * The kept records are copied without the file lock, so reads go on meanwhile. */
+    private void compactIfNeeded() throws IOException {
+        if(!compactLock.tryLock()) {
+            return;
+        }
+        try {
+            /* kept range */
+            int keepHeight;
+            long keepPosition;
+            long copyEnd;
+            long copyTruncations;
+            FileChannel oldChannel;
+            synchronized (this) {
+                if( (firstHeight == ProtocolParams.UNDEFINED_HEIGHT) ||
+                        (lastHeight - firstHeight + 1 < KEEP_BLOCKS + COMPACT_SLACK_BLOCKS) ) {
+                    return;
+                }
+                keepHeight = lastHeight - KEEP_BLOCKS + 1;
+                keepPosition = positions[keepHeight - firstHeight] - BitcoinParams.UINT32_SIZE;
+                copyEnd = endPosition;
+                copyTruncations = truncations;
+                oldChannel = channel;
+            }
+
+            /* copy kept records to a new file */
+            Path compactFile = storeFile.resolveSibling(storeFile.getFileName() + ".compact");
+            FileChannel newChannel = FileChannel.open(compactFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                transferFully(oldChannel, keepPosition, copyEnd, newChannel);
+            } catch (IOException e) {
+                newChannel.close();
+                Files.deleteIfExists(compactFile);
+                if(isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+
+            /* swap files */
+            fileLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    if(closed || (truncations != copyTruncations)) {
+                        /* closed or truncated meanwhile, next append tries again */
+                        newChannel.close();
+                        Files.deleteIfExists(compactFile);
+                        return;
+                    }
+
+                    /* records appended meanwhile */
+                    transferFully(oldChannel, copyEnd, endPosition, newChannel);
+                    newChannel.force(true);
+                    Files.move(compactFile, storeFile, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+
+                    channel = newChannel;
+                    oldChannel.close();
+                    int keptCount = lastHeight - keepHeight + 1;
+                    long[] keptPositions = new long[Math.max(1024, 2 * keptCount)];
+                    for(int i=0; i<keptCount; i++) {
+                        keptPositions[i] = positions[keepHeight - firstHeight + i] - keepPosition;
+                    }
+                    positions = keptPositions;
+                    firstHeight = keepHeight;
+                    endPosition -= keepPosition;
+                }
+            } finally {
+                fileLock.writeLock().unlock();
+            }
+        } finally {
+            compactLock.unlock();
+        }
+    }
+
+
+    /* Copies from source bytes [start, end) to the end of target */
+    private static void transferFully(FileChannel source, long start, long end,
+                                      FileChannel target) throws IOException {
+        long targetPosition = target.size();
+        long position = start;
+        while(position < end) {
+            long transferred = source.transferTo(position, end - position,
+                    target.position(targetPosition));
+            if(transferred <= 0) {
+                throw new EOFException("Shard delta store ended unexpectedly.");
+            }
+            position += transferred;
+            targetPosition += transferred;
+        }
+    }
+
+
+    /* Returns the net changes of shardIndex over the blocks fromHeight+1 to toHeight.
+     * toBlockhash is the blockhash at toHeight, checked against the stored record.
+     * Throws IllegalArgumentException if the range is not stored. */
+    public ShardDelta getShardDelta(int shardIndex, int fromHeight, int toHeight,
+                                    SHA256HASH toBlockhash, UtxFactory utxFactory)
+            throws IOException, IllegalArgumentException, BitcoinUtxoSetException {
+        fileLock.readLock().lock();
+        try {
+            return readShardDelta(shardIndex, fromHeight, toHeight, toBlockhash, utxFactory);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+
+    /* getShardDelta() with the file read lock held */
+    private ShardDelta readShardDelta(int shardIndex, int fromHeight, int toHeight,
+                                      SHA256HASH toBlockhash, UtxFactory utxFactory)
+            throws IOException, IllegalArgumentException, BitcoinUtxoSetException {
+        /* positions of the range */
+        long[] rangePositions;
+        int rangeShardNum;
+        synchronized (this) {
+            checkClosed();
+            if(toHeight < fromHeight) {
+                throw new IllegalArgumentException("To height must be >= from height.");
+            }
+            if( (toHeight > fromHeight) && ((firstHeight == ProtocolParams.UNDEFINED_HEIGHT) ||
+                    (fromHeight + 1 < firstHeight) || (toHeight > lastHeight)) ) {
+                throw new IllegalArgumentException("Shard deltas stored for heights " +
+                        firstHeight + " to " + lastHeight + " only.");
+            }
+            rangePositions = (toHeight == fromHeight) ? new long[0] : Arrays.copyOfRange(
+                    positions, fromHeight + 1 - firstHeight, toHeight + 1 - firstHeight);
+            rangeShardNum = shardNum;
+        }
+        if( (shardIndex < 0) || (shardIndex >= rangeShardNum && rangePositions.length > 0) ) {
+            throw new IllegalArgumentException("Shard index out of range.");
+        }
+
+        /* coalesce block changes */
+        ShardChanges rangeChanges = new ShardChanges(shardIndex, toHeight);
+        ByteBuffer header = ByteBuffer.allocate(BitcoinParams.UINT32_SIZE + RECORD_HEADER_SIZE);
+        ByteBuffer entry = ByteBuffer.allocate(2 * TABLE_ENTRY_SIZE);
+        for(int i=0; i<rangePositions.length; i++) {
+            /* record size and header */
+            long position = rangePositions[i];
+            header.clear();
+            readFully(header, position - BitcoinParams.UINT32_SIZE);
+            long recordSize = BitcoinParams.readUINT32(header.array(), 0);
+            int height = BitcoinParams.readINT32(header.array(), BitcoinParams.UINT32_SIZE);
+            if(height != fromHeight + 1 + i) {
+                throw new IOException(storeFile + " record height mismatch.");
+            }
+            if(height == toHeight && !toBlockhash.equals(SHA256HASH.deserialize(
+                    header.array(), BitcoinParams.UINT32_SIZE + BitcoinParams.INT32_SIZE))) {
+                throw new IOException(storeFile + " does not match the utxo set at height " +
+                        toHeight + ".");
+            }
+            long shardCount = BitcoinParams.readUINT32(header.array(),
+                    header.capacity() - BitcoinParams.UINT32_SIZE);
+
+            /* binary search shard table */
+            long low = 0;
+            long high = shardCount - 1;
+            long sectionStart = -1;
+            long sectionEnd = -1;
+            while(low <= high) {
+                long mid = (low + high) >>> 1;
+                long entryPosition = position + RECORD_HEADER_SIZE + mid * TABLE_ENTRY_SIZE;
+                entry.clear();
+                entry.limit((mid + 1 < shardCount) ? 2 * TABLE_ENTRY_SIZE : TABLE_ENTRY_SIZE);
+                readFully(entry, entryPosition);
+                int midShardIndex = BitcoinParams.readINT32(entry.array(), 0);
+                if(midShardIndex < shardIndex) {
+                    low = mid + 1;
+                } else if(midShardIndex > shardIndex) {
+                    high = mid - 1;
+                } else {
+                    sectionStart = BitcoinParams.readUINT32(entry.array(),
+                            BitcoinParams.INT32_SIZE);
+                    sectionEnd = (mid + 1 < shardCount) ? BitcoinParams.readUINT32(
+                            entry.array(), TABLE_ENTRY_SIZE + BitcoinParams.INT32_SIZE) :
+                            recordSize;
+                    break;
+                }
+            }
+
+            /* shard not modified by block */
+            if(sectionStart < 0) {
+                continue;
+            }
+
+            ByteBuffer section = ByteBuffer.allocate((int)(sectionEnd - sectionStart));
+            readFully(section, position + sectionStart);
+            ShardChanges blockChanges = ShardDelta.readChanges(
+                    new ByteArrayInputStream(section.array()), shardIndex, height, utxFactory);
+            ShardDelta.accumulate(rangeChanges, blockChanges);
+        }
+
+        return ShardDelta.fromShardChanges(rangeChanges, rangeShardNum, fromHeight, toHeight,
+                toBlockhash);
+    }
+
+
+    public synchronized int getFirstHeight() { return firstHeight; }
+
+    public synchronized int getLastHeight() { return lastHeight; }
+
+
+    public synchronized void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        channel.force(true);
+        channel.close();
+    }
+
+
+    public synchronized boolean isClosed() { return closed; }
+
+
+    private void checkClosed() {
+        if(closed) {
+            throw new IllegalStateException("Shard delta store closed.");
+        }
+    }
+
+
+    /* Must hold lock */
+    private boolean isStored(int height, int recordShardNum) {
+        return (lastHeight != ProtocolParams.UNDEFINED_HEIGHT) && (height <= lastHeight) &&
+                (height >= firstHeight) && (recordShardNum == shardNum);
+    }
+
+
+    /* Blockhash of a stored height. Must hold lock. */
+    private SHA256HASH readBlockhash(int height) throws IOException {
+        ByteBuffer blockhash = ByteBuffer.allocate(SHA256HASH.SERIALIZED_SIZE);
+        readFully(blockhash, positions[height - firstHeight] + BitcoinParams.INT32_SIZE);
+        return SHA256HASH.deserialize(blockhash.array(), 0);
+    }
+
+
+    /* Drops the records of height and after. Must hold lock. */
+    private void truncateFrom(int height) throws IOException {
+        endPosition = positions[height - firstHeight] - BitcoinParams.UINT32_SIZE;
+        channel.truncate(endPosition);
+        truncations++;
+        if(height == firstHeight) {
+            firstHeight = ProtocolParams.UNDEFINED_HEIGHT;
+            lastHeight = ProtocolParams.UNDEFINED_HEIGHT;
+            shardNum = ProtocolParams.UNDEFINED_SHARD_NUM;
+        } else {
+            lastHeight = height - 1;
+        }
+    }
+
+
+    /* Must hold lock or be called by constructor */
+    private void addPosition(int height, int recordShardNum, long position) {
+        if(firstHeight == ProtocolParams.UNDEFINED_HEIGHT) {
+            firstHeight = height;
+            shardNum = recordShardNum;
+        }
+        int i = height - firstHeight;
+        if(i >= positions.length) {
+            positions = Arrays.copyOf(positions, 2 * positions.length);
+        }
+        positions[i] = position;
+        lastHeight = height;
+    }
+
+
+    /* Positional read from buffer position to limit. Does not move the channel's position. */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position() - start);
+            if(read < 0) {
+                throw new EOFException(storeFile + " ended unexpectedly.");
+            }
+        }
+    }
+
+
+    public void printParameters(PrintStream printStream) {
+        printStream.println(">ShardDeltaStore");
+        printStream.println("ShardDeltaStore file: " + storeFile);
+        printStream.println("ShardDeltaStore first height: " + getFirstHeight());
+        printStream.println("ShardDeltaStore last height: " + getLastHeight());
+    }
+}
@@ -0,0 +1,204 @@
+package Blockchainj.Blockchain.UtxoSet;
+
+import Blockchainj.Blockchain.ProtocolParams;
+import Blockchainj.Blockchain.UtxoSet.Shard.Shard;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UTX;
+import Blockchainj.Util.CompactSizeUInt;
+import Blockchainj.Util.MathAverage;
+import Blockchainj.Util.SHA256HASH;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * TxidPrefixHistogram
+ *
+ * UTX count and UTX serialized size per txid prefix of BUCKET_BITS bits, see
+ * ProtocolParams.calcShardIndex(). A shard of any shard number up to BUCKET_COUNT is a range of
+ * consecutive buckets, so its size is a sum over buckets, without reading any UTX.
+ *
+ * Kept up to date by AbstractUtxoSet as shard changes are applied.
+ *
+ * UTX counts are also kept per level, a level being the shards of one shard number up to
+ * BUCKET_COUNT, with a running sum of the shards' UTX count sizes. The UTX set serialized size
+ * of a shard number is read in constant time.
+ *
+ * Thread-safe updates. Reads are consistent only while no updates are done, AbstractUtxoSet
+ * reads the averages with the shard read lock held.
+ *
+ */
+
+public class TxidPrefixHistogram {
+    /* Txid prefix bits, 2^20 buckets */
+    public static final int BUCKET_BITS = 20;
+    public static final int BUCKET_COUNT = 1 << BUCKET_BITS;
+
+    /* Per bucket UTX count and UTX serialized size */
+    private final AtomicIntegerArray utxCounts = new AtomicIntegerArray(BUCKET_COUNT);
+    private final AtomicLongArray utxSizes = new AtomicLongArray(BUCKET_COUNT);
+
+    /* Per level UTX count of each shard, by level bits. The last level is utxCounts. */
+    private final AtomicIntegerArray[] levelCounts = new AtomicIntegerArray[BUCKET_BITS + 1];
+
+    /* Per level sum of the shards' UTX count CompactSizeUInt sizes */
+    private final AtomicLong[] levelCountSizes = new AtomicLong[BUCKET_BITS + 1];
+
+    /* UTX serialized size of all buckets */
+    private final AtomicLong totalUtxSize = new AtomicLong(0);
+
+
+    /* Constructor, empty */
+    public TxidPrefixHistogram() {
+        for(int level=0; level<BUCKET_BITS; level++) {
+            levelCounts[level] = new AtomicIntegerArray(1 << level);
+        }
+        levelCounts[BUCKET_BITS] = utxCounts;
+        for(int level=0; level<=BUCKET_BITS; level++) {
+            levelCountSizes[level] =
+                    new AtomicLong((long)(1 << level) * CompactSizeUInt.getSizeOf(0));
+        }
+    }
+
+
+    /* Bucket of txid */
+    public static int getBucket(SHA256HASH txid) {
+        return (int) (txid.getLastUINT32LE() >>> (32 - BUCKET_BITS));
+    }
+
+
+    /* True if shards of shardNum are bucket ranges */
+    public static boolean isCovered(int shardNum) {
+        return shardNum <= BUCKET_COUNT;
+    }
+
+
+    /* Adds or removes a UTX */
+    public void add(UTX utx) {
+        int bucket = getBucket(utx.getTxid());
+        addCount(bucket, 1);
+        utxSizes.addAndGet(bucket, utx.getSerializedSize());
+        totalUtxSize.addAndGet(utx.getSerializedSize());
+    }
+
+    public void remove(UTX utx) {
+        int bucket = getBucket(utx.getTxid());
+        addCount(bucket, -1);
+        utxSizes.addAndGet(bucket, -utx.getSerializedSize());
+        totalUtxSize.addAndGet(-utx.getSerializedSize());
+    }
+
+
+    /* Adds delta to the bucket's shard count on each level. Each update sees its own old and
+     * new count, so concurrent updates of a shard sum up to the right count size. */
+    private void addCount(int bucket, int delta) {
+        for(int level=0; level<=BUCKET_BITS; level++) {
+            int newCount = levelCounts[level].addAndGet(bucket >>> (BUCKET_BITS - level), delta);
+            int sizeDelta = CompactSizeUInt.getSizeOf(newCount) -
+                    CompactSizeUInt.getSizeOf(newCount - delta);
+            if(sizeDelta != 0) {
+                levelCountSizes[level].addAndGet(sizeDelta);
+            }
+        }
+    }
+
+
+    /* Adds all UTXs of shard */
+    public void addShard(Shard shard) {
+        Iterator<UTX> utxIterator = shard.getUtxIterator();
+        while(utxIterator.hasNext()) {
+            add(utxIterator.next());
+        }
+    }
+
+
+    /* Serialized size of shardIndex of shardNum */
+    public long getShardSerializedSize(int shardNum, int shardIndex)
+            throws IllegalArgumentException {
+        checkCovered(shardNum);
+        if(shardIndex < 0 || shardIndex >= shardNum) {
+            throw new IllegalArgumentException(new IndexOutOfBoundsException());
+        }
+
+        int bucketsPerShard = BUCKET_COUNT / shardNum;
+        long utxCount = 0;
+        long utxSize = 0;
+        for(int i=shardIndex*bucketsPerShard; i<(shardIndex+1)*bucketsPerShard; i++) {
+            utxCount += utxCounts.get(i);
+            utxSize += utxSizes.get(i);
+        }
+        return calcShardSerializedSize(utxCount, utxSize);
+    }
+
+
+    /* Sum of all shard serialized sizes of shardNum. Constant time. */
+    public long getUtxoSetSerializedSize(int shardNum) throws IllegalArgumentException {
+        checkCovered(shardNum);
+
+        /* UTX sizes, plus header and UTX count of each shard */
+        int level = Integer.numberOfTrailingZeros(shardNum);
+        return totalUtxSize.get() + levelCountSizes[level].get() + (long)shardNum *
+                (Shard.getEmptyShardHeaderSerializedSize() - CompactSizeUInt.getSizeOf(0));
+    }
+
+
+    /* Average and deviation of shard serialized sizes for each of shardNums */
+    public MathAverage[] getShardSerializedSizeAverages(int[] shardNums)
+            throws IllegalArgumentException {
+        MathAverage[] averages = new MathAverage[shardNums.length];
+        reduceLevels(shardNums, averages);
+        return averages;
+    }
+
+
+    /* Merges bucket pairs level by level, from BUCKET_COUNT shards down to 1, and fills the
+     * averages of the requested shard numbers. */
+    private void reduceLevels(int[] shardNums, MathAverage[] averages)
+            throws IllegalArgumentException {
+        for(int shardNum : shardNums) {
+            checkCovered(shardNum);
+        }
+
+        int[] counts = new int[BUCKET_COUNT];
+        long[] bytes = new long[BUCKET_COUNT];
+        for(int i=0; i<BUCKET_COUNT; i++) {
+            counts[i] = utxCounts.get(i);
+            bytes[i] = utxSizes.get(i);
+        }
+
+        for(int levelShardNum=BUCKET_COUNT; levelShardNum>=1; levelShardNum>>=1) {
+            for(int j=0; j<shardNums.length; j++) {
+                if(shardNums[j] != levelShardNum) {
+                    continue;
+                }
+
+                averages[j] = new MathAverage();
+                for(int i=0; i<levelShardNum; i++) {
+                    averages[j].push(calcShardSerializedSize(counts[i], bytes[i]));
+                }
+            }
+
+            /* Next level, pairs of shards */
+            for(int i=0; i<levelShardNum/2; i++) {
+                counts[i] = counts[2*i] + counts[2*i+1];
+                bytes[i] = bytes[2*i] + bytes[2*i+1];
+            }
+        }
+    }
+
+
+    private static void checkCovered(int shardNum) throws IllegalArgumentException {
+        ProtocolParams.validateShardNum(shardNum);
+        if(!isCovered(shardNum)) {
+            throw new IllegalArgumentException("Shard num above " + BUCKET_COUNT + ".");
+        }
+    }
+
+
+    /* Serialized size of a shard with utxCount UTXs of utxSize bytes, see Shard */
+    public static long calcShardSerializedSize(long utxCount, long utxSize) {
+        return Shard.getEmptyShardHeaderSerializedSize() - CompactSizeUInt.getSizeOf(0) +
+                CompactSizeUInt.getSizeOf(utxCount) + utxSize;
+    }
+}
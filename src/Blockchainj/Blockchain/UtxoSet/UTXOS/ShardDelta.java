@@ -0,0 +1,312 @@
+package Blockchainj.Blockchain.UtxoSet.UTXOS;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Bitcoin.TXI;
+import Blockchainj.Blockchain.UtxoSet.BitcoinUtxoSetChangesException;
+import Blockchainj.Util.CompactSizeUInt;
+import Blockchainj.Util.SHA256HASH;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.Iterator;
+
+/**
+ * ShardDelta
+ *
+ * The net changes of one shard over the blocks fromHeight+1 to toHeight. Applied to the shard
+ * at fromHeight, it gives the shard at toHeight.
+ *
+ * Outputs created and spent within the range are left out. The spent outpoints are outputs
+ * of the shard at fromHeight, and the UTXs are the range's remaining created outputs.
+ *
+ * Immutable class.
+ *
+ * Serialization:
+ * <shardNum, int32><shardIndex, int32><fromHeight, int32><toHeight, int32>
+ *     <toBlockhash, 32bytes><changes>
+ *
+ * Changes serialization, also used per block by ShardDeltaStore:
+ * <stxiCount, compactSizeUint><outpoint[], <prevTxid, 32bytes><prevOutIndex, uint32>>
+ *     <utxCount, compactSizeUint><utxDataSize, uint32><utx[], UTX Prototype Protocol serialization>
+ *
+ */
+
+public class ShardDelta {
+    /* Range */
+    private final int shardNum;
+    private final int shardIndex;
+    private final int fromHeight;
+    private final int toHeight;
+    private final SHA256HASH toBlockhash;
+
+    /* Spent outpoints */
+    private static final int OUTPOINT_SIZE =
+            SHA256HASH.SERIALIZED_SIZE + BitcoinParams.TRANSACTION_OUT_INDEX_SIZE;
+    private final int stxiCount;
+    private final byte[] outpoints;
+
+    /* Created UTXs in Prototype Protocol serialization */
+    private final int utxCount;
+    private final byte[] utxData;
+
+    /* Header serialized size */
+    private static final int HEADER_SIZE =
+            4 * BitcoinParams.INT32_SIZE + SHA256HASH.SERIALIZED_SIZE;
+
+
+    /* Private constructor. Does not copy input. */
+    private ShardDelta(int shardNum, int shardIndex, int fromHeight, int toHeight,
+                       SHA256HASH toBlockhash, int stxiCount, byte[] outpoints,
+                       int utxCount, byte[] utxData) {
+        this.shardNum = shardNum;
+        this.shardIndex = shardIndex;
+        this.fromHeight = fromHeight;
+        this.toHeight = toHeight;
+        this.toBlockhash = toBlockhash;
+        this.stxiCount = stxiCount;
+        this.outpoints = outpoints;
+        this.utxCount = utxCount;
+        this.utxData = utxData;
+    }
+
+
+    /* Get methods */
+    public int getShardNum() { return shardNum; }
+
+    public int getShardIndex() { return shardIndex; }
+
+    public int getFromHeight() { return fromHeight; }
+
+    public int getToHeight() { return toHeight; }
+
+    public SHA256HASH getToBlockhash() { return toBlockhash; }
+
+    public int getStxiCount() { return stxiCount; }
+
+    public int getUtxCount() { return utxCount; }
+
+    public int getSerializedSize() {
+        return HEADER_SIZE + getChangesSerializedSize(stxiCount, outpoints.length,
+                utxCount, utxData.length);
+    }
+
+
+    /* Creates ShardDelta from the coalesced changes of the range. See accumulate(). */
+    public static ShardDelta fromShardChanges(ShardChanges changes, int shardNum,
+                                              int fromHeight, int toHeight,
+                                              SHA256HASH toBlockhash) {
+        ByteArrayOutputStream outpointStream =
+                new ByteArrayOutputStream(changes.getStxiCount() * OUTPOINT_SIZE);
+        ByteArrayOutputStream utxStream = new ByteArrayOutputStream();
+        int[] counts;
+        try {
+            counts = writeChangeLists(changes, outpointStream, utxStream);
+        } catch (IOException e) {
+            /* Byte array streams do not throw */
+            throw new RuntimeException(e);
+        }
+
+        return new ShardDelta(shardNum, changes.getShardIndex(), fromHeight, toHeight,
+                toBlockhash, counts[0], outpointStream.toByteArray(),
+                counts[1], utxStream.toByteArray());
+    }
+
+
+    /* Adds the changes of the next block to the changes of the range so far. Spends of outputs
+     * created within the range remove them, other spends are kept. */
+    public static void accumulate(ShardChanges rangeChanges, ShardChanges blockChanges)
+            throws BitcoinUtxoSetChangesException {
+        Iterator<STX> itSTX = blockChanges.getStxIterator();
+        while(itSTX.hasNext()) {
+            Iterator<TXI> itTXI = itSTX.next().getTxiIterator();
+            while(itTXI.hasNext()) {
+                TXI txi = itTXI.next();
+                if(!rangeChanges.spentUTXO(txi, blockChanges.getHeight()) &&
+                        !rangeChanges.putTXI(txi)) {
+                    throw new BitcoinUtxoSetChangesException("Failed to put txi to changes.",
+                            null, blockChanges.getHeight(), txi);
+                }
+            }
+        }
+
+        Iterator<UTX> itUTX = blockChanges.getUtxIterator();
+        while(itUTX.hasNext()) {
+            UTX utx = itUTX.next();
+            if(!rangeChanges.putUTX(utx)) {
+                throw new BitcoinUtxoSetChangesException("Failed to put utx to changes.",
+                        null, blockChanges.getHeight(), utx);
+            }
+        }
+    }
+
+
+    /* Returns the changes to apply to the shard at fromHeight, see Shard.applyShardChanges().
+     * UTXs are instantiated with utxFactory. */
+    public ShardChanges toShardChanges(UtxFactory utxFactory)
+            throws BitcoinUtxoSetChangesException {
+        try {
+            return readChanges(new ByteArrayInputStream(getChangesBytes()), shardIndex,
+                    toHeight, utxFactory);
+        } catch (IOException e) {
+            throw new BitcoinUtxoSetChangesException("Corrupted shard delta.",
+                    toBlockhash.toString(), toHeight, e);
+        }
+    }
+
+
+    /* Changes serialization */
+    private byte[] getChangesBytes() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+                getChangesSerializedSize(stxiCount, outpoints.length, utxCount, utxData.length));
+        writeChanges(outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private void writeChanges(OutputStream outputStream) throws IOException {
+        new CompactSizeUInt(stxiCount).serialize(outputStream);
+        outputStream.write(outpoints);
+        new CompactSizeUInt(utxCount).serialize(outputStream);
+        BitcoinParams.UINT32ToOutputStream(utxData.length, outputStream);
+        outputStream.write(utxData);
+    }
+
+    private static int getChangesSerializedSize(int stxiCount, int outpointsSize,
+                                                int utxCount, int utxDataSize) {
+        return CompactSizeUInt.getSizeOf(stxiCount) + outpointsSize +
+                CompactSizeUInt.getSizeOf(utxCount) + BitcoinParams.UINT32_SIZE + utxDataSize;
+    }
+
+
+    /* Writes the changes serialization of one block's or range's shard changes. */
+    public static void writeChanges(ShardChanges changes, OutputStream outputStream)
+            throws IOException {
+        ByteArrayOutputStream outpointStream =
+                new ByteArrayOutputStream(changes.getStxiCount() * OUTPOINT_SIZE);
+        ByteArrayOutputStream utxStream = new ByteArrayOutputStream();
+        int[] counts = writeChangeLists(changes, outpointStream, utxStream);
+
+        new CompactSizeUInt(counts[0]).serialize(outputStream);
+        outpointStream.writeTo(outputStream);
+        new CompactSizeUInt(counts[1]).serialize(outputStream);
+        BitcoinParams.UINT32ToOutputStream(utxStream.size(), outputStream);
+        utxStream.writeTo(outputStream);
+    }
+
+
+    /* Writes outpoints and utxs. Returns {stxiCount, utxCount}. */
+    private static int[] writeChangeLists(ShardChanges changes, OutputStream outpointStream,
+                                          OutputStream utxStream) throws IOException {
+        int stxiCount = 0;
+        int utxCount = 0;
+
+        /* spent outpoints */
+        Iterator<STX> itSTX = changes.getStxIterator();
+        while(itSTX.hasNext()) {
+            Iterator<TXI> itTXI = itSTX.next().getTxiIterator();
+            while(itTXI.hasNext()) {
+                TXI txi = itTXI.next();
+                txi.getPrevTxid().serialize(outpointStream);
+                BitcoinParams.UINT32ToOutputStream(txi.getPrevOutIndex(), outpointStream);
+                stxiCount++;
+            }
+        }
+
+        /* created utxs */
+        Iterator<UTX> itUTX = changes.getUtxIterator();
+        while(itUTX.hasNext()) {
+            itUTX.next().serialize(utxStream);
+            utxCount++;
+        }
+
+        return new int[] {stxiCount, utxCount};
+    }
+
+
+    /* Reads a changes serialization into new ShardChanges. */
+    public static ShardChanges readChanges(InputStream inputStream, int shardIndex, int height,
+                                           UtxFactory utxFactory)
+            throws IOException, BitcoinUtxoSetChangesException {
+        ShardChanges changes = new ShardChanges(shardIndex, height);
+
+        /* spent outpoints */
+        long stxiCount = CompactSizeUInt.deserialize(inputStream).getValue();
+        byte[] outpoint = new byte[OUTPOINT_SIZE];
+        for(long i=0; i<stxiCount; i++) {
+            IOUtils.readFully(inputStream, outpoint);
+            TXI txi = new TXI(SHA256HASH.deserialize(outpoint, 0),
+                    (int)BitcoinParams.readUINT32(outpoint, SHA256HASH.SERIALIZED_SIZE));
+            if(!changes.putTXI(txi)) {
+                throw new BitcoinUtxoSetChangesException("Failed to put txi to changes.",
+                        null, height, txi);
+            }
+        }
+
+        /* created utxs */
+        long utxCount = CompactSizeUInt.deserialize(inputStream).getValue();
+        BitcoinParams.readUINT32(inputStream);
+        for(long i=0; i<utxCount; i++) {
+            UTX utx = utxFactory.deserialize(inputStream);
+            if(!changes.putUTX(utx)) {
+                throw new BitcoinUtxoSetChangesException("Failed to put utx to changes.",
+                        null, height, utx);
+            }
+        }
+
+        return changes;
+    }
+
+
+    /* Serialize */
+    public void serialize(OutputStream outputStream) throws IOException {
+        BitcoinParams.INT32ToOutputStream(shardNum, outputStream);
+        BitcoinParams.INT32ToOutputStream(shardIndex, outputStream);
+        BitcoinParams.INT32ToOutputStream(fromHeight, outputStream);
+        BitcoinParams.INT32ToOutputStream(toHeight, outputStream);
+        toBlockhash.serialize(outputStream);
+        writeChanges(outputStream);
+    }
+
+
+    /* Deserialize */
+    public static ShardDelta deserialize(InputStream inputStream) throws IOException {
+        int shardNum = BitcoinParams.readINT32(inputStream);
+        int shardIndex = BitcoinParams.readINT32(inputStream);
+        int fromHeight = BitcoinParams.readINT32(inputStream);
+        int toHeight = BitcoinParams.readINT32(inputStream);
+        byte[] hash = new byte[SHA256HASH.SERIALIZED_SIZE];
+        IOUtils.readFully(inputStream, hash);
+        SHA256HASH toBlockhash = new SHA256HASH(hash);
+
+        long stxiCount = CompactSizeUInt.deserialize(inputStream).getValue();
+        if(stxiCount > BitcoinParams.MAX_PAYLOAD_LENGTH / OUTPOINT_SIZE) {
+            throw new IOException("Invalid spent outpoint count.");
+        }
+        byte[] outpoints = new byte[(int)stxiCount * OUTPOINT_SIZE];
+        IOUtils.readFully(inputStream, outpoints);
+
+        long utxCount = CompactSizeUInt.deserialize(inputStream).getValue();
+        long utxDataSize = BitcoinParams.readUINT32(inputStream);
+        if(utxCount > BitcoinParams.MAX_PAYLOAD_LENGTH ||
+                utxDataSize > BitcoinParams.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid utx data size.");
+        }
+        byte[] utxData = new byte[(int)utxDataSize];
+        IOUtils.readFully(inputStream, utxData);
+
+        return new ShardDelta(shardNum, shardIndex, fromHeight, toHeight, toBlockhash,
+                (int)stxiCount, outpoints, (int)utxCount, utxData);
+    }
+
+
+    /* DEBUG ONLY */
+    public void print(PrintStream printStream) {
+        printStream.println("Shard number: " + shardNum);
+        printStream.println("Shard index: " + shardIndex);
+        printStream.println("From height: " + fromHeight);
+        printStream.println("To height: " + toHeight);
+        printStream.println("To blockhash: " + toBlockhash);
+        printStream.println("STXI count: " + stxiCount);
+        printStream.println("UTX count: " + utxCount);
+        printStream.println("Serialized size: " + getSerializedSize());
+    }
+}
@@ -0,0 +1,118 @@
+package Blockchainj.Blockchain.UtxoSet.UTXOS;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * UtxoLookup
+ *
+ * Result of looking up one outpoint in the utxo set. Either not found, or the unspent output
+ * with the height and coinbase flag of the transaction that created it.
+ *
+ * Immutable class.
+ *
+ * Prototype Protocol serialization:
+ * <found, uint8>
+ *     if found: <height, int32><isCoinbase, uint8><utxo, UTXO serialization>
+ *
+ */
+
+public class UtxoLookup {
+    /* Not found result */
+    public static final UtxoLookup NOT_FOUND = new UtxoLookup(false, -1, false, null);
+
+    private final boolean found;
+    private final int height;
+    private final boolean coinbase;
+    private final UTXO utxo;
+
+
+    /* Private constructor. Use lookup() or NOT_FOUND. */
+    private UtxoLookup(boolean found, int height, boolean coinbase, UTXO utxo) {
+        this.found = found;
+        this.height = height;
+        this.coinbase = coinbase;
+        this.utxo = utxo;
+    }
+
+
+    /* Result for outIndex of utx. Utx may be null. */
+    public static UtxoLookup lookup(UTX utx, int outIndex) {
+        if(utx == null) {
+            return NOT_FOUND;
+        }
+
+        UTXO utxo = utx.getUtxo(outIndex);
+        if(utxo == null) {
+            return NOT_FOUND;
+        }
+
+        return new UtxoLookup(true, utx.getHeight(), utx.isCoinbase(), utxo);
+    }
+
+
+    /* Get methods */
+    public boolean isFound() { return found; }
+
+    /* -1 if not found */
+    public int getHeight() { return height; }
+
+    public boolean isCoinbase() { return coinbase; }
+
+    /* Null if not found */
+    public UTXO getUtxo() { return utxo; }
+
+
+    public int getSerializedSize() {
+        if(!found) {
+            return 1;
+        }
+        return 1 + BitcoinParams.INT32_SIZE + 1 + utxo.getSerializedSize();
+    }
+
+
+    /* Serialize */
+    public void serialize(OutputStream outputStream) throws IOException {
+        outputStream.write(found ? 1 : 0);
+        if(found) {
+            BitcoinParams.INT32ToOutputStream(height, outputStream);
+            outputStream.write(coinbase ? 1 : 0);
+            utxo.serialize(outputStream);
+        }
+    }
+
+
+    /* Deserialize */
+    public static UtxoLookup deserialize(InputStream inputStream) throws IOException {
+        int found = inputStream.read();
+        if(found == 0) {
+            return NOT_FOUND;
+        } else if(found != 1) {
+            throw new IOException("Invalid utxo lookup.");
+        }
+
+        int height = BitcoinParams.readINT32(inputStream);
+        int coinbase = inputStream.read();
+        if(coinbase != 0 && coinbase != 1) {
+            throw new IOException("Invalid utxo lookup.");
+        }
+        UTXO utxo = UTXO.deserialize(inputStream);
+
+        return new UtxoLookup(true, height, coinbase == 1, utxo);
+    }
+
+
+    /* DEBUG ONLY */
+    public void print(PrintStream printStream) {
+        printStream.println("Found: " + found);
+        if(found) {
+            printStream.println("Height: " + height);
+            printStream.println("Coinbase: " + coinbase);
+            utxo.print(printStream);
+        }
+    }
+}
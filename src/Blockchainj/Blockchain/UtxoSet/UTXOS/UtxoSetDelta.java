@@ -0,0 +1,207 @@
+package Blockchainj.Blockchain.UtxoSet.UTXOS;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Bitcoin.TXI;
+import Blockchainj.Blockchain.UtxoSet.BitcoinUtxoSetChangesException;
+import Blockchainj.Util.CompactSizeUInt;
+import Blockchainj.Util.SHA256HASH;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.Iterator;
+
+/**
+ * UtxoSetDelta
+ *
+ * The net changes of a block to the utxo set, independent of shard number and UTX type.
+ * Derived from UtxoSetChanges, so outputs spent within the same block and non-unique txids
+ * are already taken care of.
+ *
+ * A UtxoSetChanges of any shard number and UTX type can be rebuilt from it without parsing the
+ * block or hashing txids.
+ *
+ * Immutable class.
+ *
+ * Serialization:
+ * <height, int32><blockhash, 32bytes><prevBlockhash, 32bytes>
+ *     <stxiCount, compactSizeUint><outpoint[], <prevTxid, 32bytes><prevOutIndex, uint32>>
+ *     <utxCount, compactSizeUint><utxDataSize, uint32><utx[], UTX Prototype Protocol serialization>
+ *
+ */
+
+public class UtxoSetDelta {
+    /* Block metadata */
+    private final int height;
+    private final SHA256HASH blockhash;
+    private final SHA256HASH prevBlockhash;
+
+    /* Spent outpoints */
+    private static final int OUTPOINT_SIZE =
+            SHA256HASH.SERIALIZED_SIZE + BitcoinParams.TRANSACTION_OUT_INDEX_SIZE;
+    private final int stxiCount;
+    private final byte[] outpoints;
+
+    /* Created UTXs in Prototype Protocol serialization */
+    private final int utxCount;
+    private final byte[] utxData;
+
+
+    /* Private constructor. Does not copy input. */
+    private UtxoSetDelta(int height, SHA256HASH blockhash, SHA256HASH prevBlockhash,
+                         int stxiCount, byte[] outpoints, int utxCount, byte[] utxData) {
+        this.height = height;
+        this.blockhash = blockhash;
+        this.prevBlockhash = prevBlockhash;
+        this.stxiCount = stxiCount;
+        this.outpoints = outpoints;
+        this.utxCount = utxCount;
+        this.utxData = utxData;
+    }
+
+
+    /* Get methods */
+    public int getHeight() { return height; }
+
+    public SHA256HASH getBlockhash() { return blockhash; }
+
+    public SHA256HASH getPrevBlockhash() { return prevBlockhash; }
+
+    public int getStxiCount() { return stxiCount; }
+
+    public int getUtxCount() { return utxCount; }
+
+    public int getSerializedSize() {
+        return BitcoinParams.INT32_SIZE + SHA256HASH.SERIALIZED_SIZE + SHA256HASH.SERIALIZED_SIZE +
+                CompactSizeUInt.getSizeOf(stxiCount) + outpoints.length +
+                CompactSizeUInt.getSizeOf(utxCount) + BitcoinParams.UINT32_SIZE + utxData.length;
+    }
+
+
+    /* Collects the spent outpoints and created UTXs of all shard changes. */
+    public static UtxoSetDelta fromUtxoSetChanges(UtxoSetChanges changes,
+                                                  SHA256HASH prevBlockhash) {
+        ByteArrayOutputStream outpointStream =
+                new ByteArrayOutputStream(changes.getStxiCount() * OUTPOINT_SIZE);
+        ByteArrayOutputStream utxStream = new ByteArrayOutputStream();
+        int stxiCount = 0;
+        int utxCount = 0;
+
+        try {
+            Iterator<ShardChanges> itShardChanges = changes.getShardChangesIterator();
+            while(itShardChanges.hasNext()) {
+                ShardChanges shardChanges = itShardChanges.next();
+
+                /* spent outpoints */
+                Iterator<STX> itSTX = shardChanges.getStxIterator();
+                while(itSTX.hasNext()) {
+                    Iterator<TXI> itTXI = itSTX.next().getTxiIterator();
+                    while(itTXI.hasNext()) {
+                        TXI txi = itTXI.next();
+                        txi.getPrevTxid().serialize(outpointStream);
+                        BitcoinParams.UINT32ToOutputStream(txi.getPrevOutIndex(), outpointStream);
+                        stxiCount++;
+                    }
+                }
+
+                /* created utxs */
+                Iterator<UTX> itUTX = shardChanges.getUtxIterator();
+                while(itUTX.hasNext()) {
+                    itUTX.next().serialize(utxStream);
+                    utxCount++;
+                }
+            }
+        } catch (IOException e) {
+            /* Byte array streams do not throw */
+            throw new RuntimeException(e);
+        }
+
+        return new UtxoSetDelta(changes.getHeight(), changes.getBlockhash(), prevBlockhash,
+                stxiCount, outpointStream.toByteArray(), utxCount, utxStream.toByteArray());
+    }
+
+
+    /* Routes spent outpoints and created UTXs into a new UtxoSetChanges of given shard number.
+     * UTXs are instantiated with utxFactory. */
+    public UtxoSetChanges toUtxoSetChanges(int shardNum, UtxFactory utxFactory)
+            throws BitcoinUtxoSetChangesException {
+        UtxoSetChanges changes = new UtxoSetChanges(shardNum, blockhash, height);
+
+        /* spent outpoints */
+        for(int i=0; i<stxiCount; i++) {
+            int offset = i * OUTPOINT_SIZE;
+            TXI txi = new TXI(SHA256HASH.deserialize(outpoints, offset),
+                    (int)BitcoinParams.readUINT32(outpoints, offset + SHA256HASH.SERIALIZED_SIZE));
+            if(!changes.putTXI(txi)) {
+                throw new BitcoinUtxoSetChangesException("Failed to put txi to changes.",
+                        blockhash.toString(), height, txi);
+            }
+        }
+
+        /* created utxs */
+        try {
+            ByteArrayInputStream utxStream = new ByteArrayInputStream(utxData);
+            for(int i=0; i<utxCount; i++) {
+                UTX utx = utxFactory.deserialize(utxStream);
+                if(!changes.putUTX(utx)) {
+                    throw new BitcoinUtxoSetChangesException("Failed to put utx to changes.",
+                            blockhash.toString(), height, utx);
+                }
+            }
+        } catch (IOException e) {
+            throw new BitcoinUtxoSetChangesException("Corrupted UTX data.",
+                    blockhash.toString(), height, e);
+        }
+
+        return changes;
+    }
+
+
+    /* Serialize */
+    public void serialize(OutputStream outputStream) throws IOException {
+        BitcoinParams.INT32ToOutputStream(height, outputStream);
+        blockhash.serialize(outputStream);
+        prevBlockhash.serialize(outputStream);
+        new CompactSizeUInt(stxiCount).serialize(outputStream);
+        outputStream.write(outpoints);
+        new CompactSizeUInt(utxCount).serialize(outputStream);
+        BitcoinParams.UINT32ToOutputStream(utxData.length, outputStream);
+        outputStream.write(utxData);
+    }
+
+
+    /* Deserialize */
+    public static UtxoSetDelta deserialize(InputStream inputStream) throws IOException {
+        int height = BitcoinParams.readINT32(inputStream);
+        SHA256HASH blockhash = readHash(inputStream);
+        SHA256HASH prevBlockhash = readHash(inputStream);
+
+        int stxiCount = (int)CompactSizeUInt.deserialize(inputStream).getValue();
+        byte[] outpoints = new byte[stxiCount * OUTPOINT_SIZE];
+        IOUtils.readFully(inputStream, outpoints);
+
+        int utxCount = (int)CompactSizeUInt.deserialize(inputStream).getValue();
+        byte[] utxData = new byte[(int)BitcoinParams.readUINT32(inputStream)];
+        IOUtils.readFully(inputStream, utxData);
+
+        return new UtxoSetDelta(
+                height, blockhash, prevBlockhash, stxiCount, outpoints, utxCount, utxData);
+    }
+
+
+    private static SHA256HASH readHash(InputStream inputStream) throws IOException {
+        byte[] hash = new byte[SHA256HASH.SERIALIZED_SIZE];
+        IOUtils.readFully(inputStream, hash);
+        return new SHA256HASH(hash);
+    }
+
+
+    /* DEBUG ONLY */
+    public void print(PrintStream printStream) {
+        printStream.println("Height: " + height);
+        printStream.println("Blockhash: " + blockhash);
+        printStream.println("Previous blockhash: " + prevBlockhash);
+        printStream.println("STXI count: " + stxiCount);
+        printStream.println("UTX count: " + utxCount);
+        printStream.println("Serialized size: " + getSerializedSize());
+    }
+}
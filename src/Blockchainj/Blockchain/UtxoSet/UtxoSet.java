@@ -6,6 +6,7 @@ import Blockchainj.Blockchain.ProtocolParams;
 import Blockchainj.Blockchain.UtxoSet.Shard.Shard;
 import Blockchainj.Blockchain.UtxoSet.Shard.ShardFactory;
 import Blockchainj.Blockchain.UtxoSet.UTXOS.UTX;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoSetChanges;
 import Blockchainj.Util.MerkleTree;
 import Blockchainj.Util.SHA256HASH;
 
@@ -117,6 +118,14 @@ public interface UtxoSet {
     void commitBlock(Block block) throws BitcoinUtxoSetException, IOException;
 
 
+    /**
+     * Commit UtxoSetChanges of a single block, computed beforehand (see UtxoSetDelta).
+     * Same guarantees as commitBlock(). The block is not re-parsed or re-hashed.
+     *
+     * This is a write operation. */
+    void commitUtxoSetChanges(UtxoSetChanges changes) throws BitcoinUtxoSetException, IOException;
+
+
     /**
      * Safely closes the utxo set.
      * After this method has been called, access to the utxo write methods is not possible.
@@ -0,0 +1,20 @@
+package Blockchainj.Blockchain.UtxoSet;
+
+import Blockchainj.Util.SHA256HASH;
+
+/**
+ * UtxoSetCommitListener
+ *
+ * Notified by AbstractUtxoSet after each block has been committed, with the internal indices
+ * of the shards the block modified.
+ *
+ * Called after the new UtxoSetState is published and while the shard write lock is still
+ * held. A reader that sees the listener's effects also sees the new state, and no shard is
+ * read between the commit and the listener. Listeners must be quick, must not call back into
+ * the utxo set and must not throw.
+ *
+ */
+
+public interface UtxoSetCommitListener {
+    void onCommit(int height, SHA256HASH blockhash, int shardNum, int[] modifiedShardIndices);
+}
@@ -0,0 +1,161 @@
+package Blockchainj.Blockchain.UtxoSet;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoSetDelta;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+
+/**
+ * UtxoSetDeltaBuffer
+ *
+ * Reads UtxoSetDeltas from a utxo set delta file written by UtxoSetDeltaWriter, in height
+ * order. Used like a BlockBuffer to rebuild a utxo set without parsing blocks.
+ *
+ * Records before the start height are skipped by size without being parsed.
+ * A partially written last record ends the iteration.
+ *
+ * Thread-safe. Iterators are not.
+ *
+ */
+
+public class UtxoSetDeltaBuffer {
+    /* Delta file */
+    private final Path deltaFile;
+
+    /* Read buffer size */
+    private static final int READ_BUFFER_SIZE = 1024*1024; //1 MiB
+
+    /* Closed marker */
+    private volatile boolean closed = false;
+
+
+    /* Delta iterator */
+    public interface UtxoSetDeltaIterator {
+        UtxoSetDelta next() throws NoSuchElementException, IOException;
+
+        boolean hasNext() throws IOException;
+    }
+
+
+    public UtxoSetDeltaBuffer(Path deltaFile) throws FileNotFoundException {
+        if(!Files.isRegularFile(deltaFile)) {
+            throw new FileNotFoundException("Utxo set delta file " + deltaFile + " not found.");
+        }
+        this.deltaFile = deltaFile;
+    }
+
+
+    private class DeltaFileIterator implements UtxoSetDeltaIterator {
+        private final BufferedInputStream inputStream;
+        private final int endHeight;
+
+        /* Next record. Null if not read yet or end reached. */
+        private UtxoSetDelta nextDelta = null;
+        private boolean endReached = false;
+
+        private DeltaFileIterator(int startHeight, int endHeight) throws IOException {
+            this.endHeight = endHeight;
+            inputStream = new BufferedInputStream(
+                    Files.newInputStream(deltaFile), READ_BUFFER_SIZE);
+
+            /* skip records before start height */
+            byte[] header = new byte[BitcoinParams.UINT32_SIZE + BitcoinParams.INT32_SIZE];
+            for(;;) {
+                inputStream.mark(header.length);
+                if(IOUtils.read(inputStream, header) != header.length) {
+                    end();
+                    return;
+                }
+                long recordSize = BitcoinParams.readUINT32(header, 0);
+                int height = BitcoinParams.readINT32(header, BitcoinParams.UINT32_SIZE);
+                if(height >= startHeight) {
+                    inputStream.reset();
+                    return;
+                }
+                long toSkip = recordSize - BitcoinParams.INT32_SIZE;
+                if(IOUtils.skip(inputStream, toSkip) != toSkip) {
+                    end();
+                    return;
+                }
+            }
+        }
+
+        private void end() throws IOException {
+            endReached = true;
+            nextDelta = null;
+            inputStream.close();
+        }
+
+        /* Reads next record. Ends at end of file, partial record or end height. */
+        private void readNext() throws IOException {
+            if(endReached || nextDelta != null) {
+                return;
+            }
+            if(closed) {
+                end();
+                return;
+            }
+
+            byte[] sizeBytes = new byte[BitcoinParams.UINT32_SIZE];
+            if(IOUtils.read(inputStream, sizeBytes) != sizeBytes.length) {
+                end();
+                return;
+            }
+            byte[] record = new byte[(int)BitcoinParams.readUINT32(sizeBytes, 0)];
+            if(IOUtils.read(inputStream, record) != record.length) {
+                end();
+                return;
+            }
+
+            UtxoSetDelta delta = UtxoSetDelta.deserialize(new ByteArrayInputStream(record));
+            if(delta.getHeight() > endHeight) {
+                end();
+                return;
+            }
+            nextDelta = delta;
+        }
+
+        public UtxoSetDelta next() throws NoSuchElementException, IOException {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            UtxoSetDelta delta = nextDelta;
+            nextDelta = null;
+            return delta;
+        }
+
+        public boolean hasNext() throws IOException {
+            readNext();
+            return nextDelta != null;
+        }
+    }
+
+
+    public UtxoSetDeltaIterator iterator(int startHeight) throws IOException {
+        return iterator(startHeight, Integer.MAX_VALUE);
+    }
+
+
+    public UtxoSetDeltaIterator iterator(int startHeight, int endHeight) throws IOException {
+        if(endHeight < startHeight) {
+            throw new IllegalArgumentException("End height must be >=startHeight.");
+        }
+        return new DeltaFileIterator(startHeight, endHeight);
+    }
+
+
+    /* Iterators end at their next record */
+    public void close() { closed = true; }
+
+    public boolean isClosed() { return closed; }
+
+
+    public void printParameters(PrintStream printStream) {
+        printStream.println(">UtxoSetDeltaBuffer");
+        printStream.println("UtxoSetDeltaBuffer file: " + deltaFile);
+    }
+}
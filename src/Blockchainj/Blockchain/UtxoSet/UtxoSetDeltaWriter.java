@@ -0,0 +1,188 @@
+package Blockchainj.Blockchain.UtxoSet;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Blockchain.ProtocolParams;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoSetDelta;
+import Blockchainj.Util.SHA256HASH;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * UtxoSetDeltaWriter
+ *
+ * Exports UtxoSetDeltas into an append-only utxo set delta file, to be read back by
+ * UtxoSetDeltaBuffer.
+ *
+ * File format, heights must be consecutive:
+ * <recordSize, uint32><UtxoSetDelta serialization, recordSize bytes>
+ * <recordSize, uint32><UtxoSetDelta serialization, recordSize bytes>
+ *     ...
+ *
+ * On open, a partially written last record is truncated. Deltas for heights already in the
+ * file are skipped, so a utxo set resumed after a crash can keep exporting. A delta for a
+ * height in the file with another blockhash, after a reorg or a restart on another branch,
+ * truncates the file from that height and is appended.
+ *
+ * Thread-safe.
+ *
+ */
+
+public class UtxoSetDeltaWriter {
+    /* Delta file */
+    private final Path deltaFile;
+    private final FileChannel channel;
+
+    /* Record positions, at the record size, by height - firstHeight */
+    private long[] positions = new long[1024];
+    private int firstHeight = ProtocolParams.UNDEFINED_HEIGHT;
+
+    /* Last height in file */
+    private int lastHeight = ProtocolParams.UNDEFINED_HEIGHT;
+
+    /* Closed marker */
+    private boolean closed = false;
+
+
+    /* Opens or creates delta file */
+    public UtxoSetDeltaWriter(Path deltaFile) throws IOException {
+        this.deltaFile = deltaFile;
+        channel = FileChannel.open(deltaFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        /* index complete records of consecutive heights */
+        ByteBuffer header =
+                ByteBuffer.allocate(BitcoinParams.UINT32_SIZE + BitcoinParams.INT32_SIZE);
+        long position = 0;
+        long size = channel.size();
+        while(position + header.capacity() <= size) {
+            header.clear();
+            while(header.hasRemaining()) {
+                channel.read(header, position + header.position());
+            }
+            long recordSize = BitcoinParams.readUINT32(header.array(), 0);
+            if(position + BitcoinParams.UINT32_SIZE + recordSize > size) {
+                break;
+            }
+            int height = BitcoinParams.readINT32(header.array(), BitcoinParams.UINT32_SIZE);
+            if( (lastHeight != ProtocolParams.UNDEFINED_HEIGHT) && (height != lastHeight + 1) ) {
+                break;
+            }
+            addPosition(height, position);
+            position += BitcoinParams.UINT32_SIZE + recordSize;
+        }
+
+        /* drop partial record */
+        channel.truncate(position);
+        channel.position(position);
+    }
+
+
+    /* Appends delta. Returns false if the height is already in the file with the same
+     * blockhash. Throws IOException if heights are not consecutive. */
+    public synchronized boolean append(UtxoSetDelta delta) throws IOException {
+        if(closed) {
+            throw new IllegalStateException("Utxo set delta writer closed.");
+        }
+
+        if(lastHeight != ProtocolParams.UNDEFINED_HEIGHT) {
+            if( (delta.getHeight() <= lastHeight) && (delta.getHeight() >= firstHeight) ) {
+                if(delta.getBlockhash().equals(readBlockhash(delta.getHeight()))) {
+                    return false;
+                }
+                /* Another block at this height, truncate from it */
+                truncateFrom(delta.getHeight());
+            } else if(delta.getHeight() <= lastHeight) {
+                return false;
+            }
+            if(delta.getHeight() != lastHeight + 1) {
+                throw new IOException("Utxo set delta file " + deltaFile + " ends at height " +
+                        lastHeight + ", cannot append height " + delta.getHeight() + ".");
+            }
+        }
+
+        /* write record in one go */
+        int recordSize = delta.getSerializedSize();
+        ByteArrayOutputStream record =
+                new ByteArrayOutputStream(BitcoinParams.UINT32_SIZE + recordSize);
+        BitcoinParams.UINT32ToOutputStream(recordSize, record);
+        delta.serialize(record);
+        ByteBuffer buffer = ByteBuffer.wrap(record.toByteArray());
+        long position = channel.position();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        addPosition(delta.getHeight(), position);
+        return true;
+    }
+
+
+    /* Blockhash of a height in the file. Must hold lock. */
+    private SHA256HASH readBlockhash(int height) throws IOException {
+        ByteBuffer blockhash = ByteBuffer.allocate(SHA256HASH.SERIALIZED_SIZE);
+        long position = positions[height - firstHeight] + BitcoinParams.UINT32_SIZE +
+                BitcoinParams.INT32_SIZE;
+        while(blockhash.hasRemaining()) {
+            if(channel.read(blockhash, position + blockhash.position()) < 0) {
+                throw new EOFException(deltaFile + " ended unexpectedly.");
+            }
+        }
+        return new SHA256HASH(blockhash.array());
+    }
+
+
+    /* Drops the records of height and after. Must hold lock. */
+    private void truncateFrom(int height) throws IOException {
+        long position = positions[height - firstHeight];
+        channel.truncate(position);
+        channel.position(position);
+        if(height == firstHeight) {
+            firstHeight = ProtocolParams.UNDEFINED_HEIGHT;
+            lastHeight = ProtocolParams.UNDEFINED_HEIGHT;
+        } else {
+            lastHeight = height - 1;
+        }
+    }
+
+
+    /* Must hold lock or be called by constructor */
+    private void addPosition(int height, long position) {
+        if(firstHeight == ProtocolParams.UNDEFINED_HEIGHT) {
+            firstHeight = height;
+        }
+        int i = height - firstHeight;
+        if(i >= positions.length) {
+            positions = Arrays.copyOf(positions, 2 * positions.length);
+        }
+        positions[i] = position;
+        lastHeight = height;
+    }
+
+
+    public synchronized int getLastHeight() { return lastHeight; }
+
+
+    public synchronized void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        channel.force(true);
+        channel.close();
+    }
+
+
+    public synchronized boolean isClosed() { return closed; }
+
+
+    public void printParameters(PrintStream printStream) {
+        printStream.println(">UtxoSetDeltaWriter");
+        printStream.println("UtxoSetDeltaWriter file: " + deltaFile);
+        printStream.println("UtxoSetDeltaWriter last height: " + getLastHeight());
+    }
+}
@@ -0,0 +1,214 @@
+package Blockchainj.Blockchain.UtxoSet;
+
+import Blockchainj.Bitcoin.BitcoinBlockException;
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Bitcoin.Transaction;
+import Blockchainj.Bitcoin.TransactionInput;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxFactory;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoSetChanges;
+import Blockchainj.Util.CompactSizeUInt;
+import Blockchainj.Util.SHA256HASH;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * UtxoSetGenerator
+ *
+ * Commits generated blocks to a utxo set, for load tests without the blockchain.
+ *
+ * Each block has a coinbase with txsPerBlock outputs and up to txsPerBlock transactions. Each
+ * transaction spends one random unspent output of the blocks generated before and creates
+ * outputsPerTx pay to pubkey hash outputs. Blocks continue from the utxo set's best height.
+ * Blockhashes are made up. Deterministic for a given seed and starting utxo set.
+ *
+ * Blocks are committed as UtxoSetChanges, see AbstractUtxoSet.commitUtxoSetChanges().
+ *
+ * Not thread-safe.
+ *
+ */
+
+public class UtxoSetGenerator {
+    /* Utxo set */
+    private final AbstractUtxoSet utxoSet;
+    private final UtxFactory utxFactory;
+
+    /* Block shape */
+    private final int txsPerBlock;
+    private final int outputsPerTx;
+
+    /* Random source */
+    private final Random random;
+
+    /* Unspent outputs of generated blocks, <txid><out index> each. The first
+     * spendableCount are used. */
+    private static final int OUTPOINT_SIZE = SHA256HASH.HASH_SIZE + BitcoinParams.UINT32_SIZE;
+    private byte[] spendable = new byte[0];
+    private int spendableCount = 0;
+
+    /* Pay to pubkey hash script, <OP_DUP OP_HASH160 20 bytes OP_EQUALVERIFY OP_CHECKSIG> */
+    private static final int P2PKH_SCRIPT_SIZE = 25;
+
+
+    /* Constructor */
+    public UtxoSetGenerator(AbstractUtxoSet utxoSet, int txsPerBlock, int outputsPerTx,
+                            long seed) {
+        if(txsPerBlock < 0 || outputsPerTx < 1) {
+            throw new IllegalArgumentException("Invalid block shape.");
+        }
+        this.utxoSet = utxoSet;
+        this.utxFactory = utxoSet.getShardFactory().getUtxFactory();
+        this.txsPerBlock = txsPerBlock;
+        this.outputsPerTx = outputsPerTx;
+        this.random = new Random(seed);
+    }
+
+
+    /* Commits count blocks. Prints progress every printPeriod blocks if printStream is not
+     * null. */
+    public void commitBlocks(int count, PrintStream printStream, int printPeriod)
+            throws BitcoinUtxoSetException, IOException {
+        for(int i=0; i<count; i++) {
+            int height = utxoSet.getBestHeight() + 1;
+            utxoSet.commitUtxoSetChanges(nextBlock(height));
+
+            if(printStream != null && printPeriod > 0 && ((i+1) % printPeriod == 0)) {
+                printStream.println("Generated block " + height + ". Utxos: " +
+                        utxoSet.getUtxoCount());
+            }
+        }
+    }
+
+
+    /* Changes of the block at height */
+    private UtxoSetChanges nextBlock(int height) throws BitcoinUtxoSetException {
+        /* Made up blockhash */
+        byte[] seed = new byte[SHA256HASH.HASH_SIZE];
+        random.nextBytes(seed);
+        SHA256HASH blockhash = SHA256HASH.doDoubleSHA256(seed, 0, seed.length);
+
+        UtxoSetChanges changes = new UtxoSetChanges(utxoSet.getShardNum(), blockhash, height);
+        int coinbaseOutputs = Math.max(1, txsPerBlock);
+        byte[] outputs = new byte[(coinbaseOutputs + txsPerBlock*outputsPerTx) * OUTPOINT_SIZE];
+        int outputCount = 0;
+
+        try {
+            /* Coinbase */
+            Transaction coinbase = Transaction.deserialize(blockhash, height,
+                    newTransaction(null, 0, height, coinbaseOutputs), 0, true);
+            outputCount = putTransaction(changes, coinbase, outputs, outputCount);
+
+            /* Transactions spending outputs of earlier blocks */
+            for(int i=0; i<txsPerBlock && spendableCount > 0; i++) {
+                int spent = random.nextInt(spendableCount);
+                byte[] txData = newTransaction(spendable, spent * OUTPOINT_SIZE, height,
+                        outputsPerTx);
+
+                /* Spent outpoint is replaced by the last one */
+                spendableCount--;
+                System.arraycopy(spendable, spendableCount * OUTPOINT_SIZE,
+                        spendable, spent * OUTPOINT_SIZE, OUTPOINT_SIZE);
+
+                Transaction transaction =
+                        Transaction.deserialize(blockhash, height, txData, 0, false);
+                Iterator<TransactionInput> txInIterator = transaction.getTxInIterator();
+                while(txInIterator.hasNext()) {
+                    if(!changes.putTXI(txInIterator.next())) {
+                        throw new BitcoinUtxoSetException("Failed to put generated txi.",
+                                blockhash.toString(), height);
+                    }
+                }
+                outputCount = putTransaction(changes, transaction, outputs, outputCount);
+            }
+        } catch (BitcoinBlockException e) {
+            throw new BitcoinUtxoSetException(
+                    "Invalid generated transaction.", blockhash.toString(), height, e);
+        }
+
+        /* Outputs become spendable in the next blocks */
+        int newSize = (spendableCount + outputCount) * OUTPOINT_SIZE;
+        if(spendable.length < newSize) {
+            spendable = Arrays.copyOf(spendable, Math.max(newSize, spendable.length * 2));
+        }
+        System.arraycopy(outputs, 0, spendable, spendableCount * OUTPOINT_SIZE,
+                outputCount * OUTPOINT_SIZE);
+        spendableCount += outputCount;
+
+        return changes;
+    }
+
+
+    /* Puts the transaction's UTX into changes and its outpoints into outputs. Returns the new
+     * output count. */
+    private int putTransaction(UtxoSetChanges changes, Transaction transaction, byte[] outputs,
+                               int outputCount) throws BitcoinUtxoSetException {
+        if(!changes.putUTX(utxFactory.getNewUTX(transaction))) {
+            throw new BitcoinUtxoSetException("Failed to put generated utx.",
+                    changes.getBlockhash().toString(), changes.getHeight());
+        }
+
+        byte[] txid = transaction.getTxid().getHash();
+        for(int i=0; i<transaction.getTxOutCount(); i++) {
+            int offset = outputCount * OUTPOINT_SIZE;
+            System.arraycopy(txid, 0, outputs, offset, SHA256HASH.HASH_SIZE);
+            BitcoinParams.UINT32ToByteArray(i, outputs, offset + SHA256HASH.HASH_SIZE);
+            outputCount++;
+        }
+        return outputCount;
+    }
+
+
+    /* Serialized transaction spending the outpoint at offset of outpoints, or a coinbase if
+     * outpoints is null. */
+    private byte[] newTransaction(byte[] outpoints, int offset, int height, int outputCount) {
+        ByteArrayOutputStream tx = new ByteArrayOutputStream();
+        try {
+            /* Version, one input */
+            BitcoinParams.INT32ToOutputStream(1, tx);
+            tx.write(CompactSizeUInt.getEncoded(1));
+
+            /* Input. Coinbase script has the height and random bytes for a unique txid. */
+            byte[] script;
+            if(outpoints == null) {
+                tx.write(new byte[SHA256HASH.HASH_SIZE]);
+                BitcoinParams.UINT32ToOutputStream(0xFFFFFFFFL, tx);
+                script = new byte[12];
+                random.nextBytes(script);
+                BitcoinParams.INT32ToByteArray(height, script, 0);
+            } else {
+                tx.write(outpoints, offset, OUTPOINT_SIZE);
+                script = new byte[107]; //signature and public key
+                random.nextBytes(script);
+            }
+            tx.write(CompactSizeUInt.getEncoded(script.length));
+            tx.write(script);
+            BitcoinParams.UINT32ToOutputStream(0xFFFFFFFFL, tx);
+
+            /* Outputs */
+            tx.write(CompactSizeUInt.getEncoded(outputCount));
+            for(int i=0; i<outputCount; i++) {
+                BitcoinParams.INT64ToOutputStream(1 + random.nextInt(100000000), tx);
+                byte[] pubkeyHash = new byte[20];
+                random.nextBytes(pubkeyHash);
+                tx.write(CompactSizeUInt.getEncoded(P2PKH_SCRIPT_SIZE));
+                tx.write(new byte[] {0x76, (byte) 0xA9, 0x14});
+                tx.write(pubkeyHash);
+                tx.write(new byte[] {(byte) 0x88, (byte) 0xAC});
+            }
+
+            /* Locktime */
+            BitcoinParams.UINT32ToOutputStream(0, tx);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return tx.toByteArray();
+    }
+
+
+    /* Get methods */
+    public int getSpendableCount() { return spendableCount; }
+}
@@ -1,11 +1,19 @@
 package Blockchainj.Blockchain.UtxoSet;
 
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Bitcoin.TXI;
 import Blockchainj.Blockchain.UtxoSet.Shard.Shard;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UTX;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxFactory;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoLookup;
+import Blockchainj.Util.CompactSizeUInt;
 import Blockchainj.Util.SHA256HASH;
 
 import java.io.*;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
 
 public class UtxoSetIO extends AbstractUtxoSet {
 
@@ -114,6 +122,53 @@ public class UtxoSetIO extends AbstractUtxoSet {
     }
 
 
+    /* Look up outpoints while reading the shard file, without loading the shard.
+     * UTXs are stored in txid order, so reading stops after the last txid looked up. */
+    @Override
+    protected void lookupUTXOs(int shardIndex, TXI[] outpoints, int[] positions,
+                               UtxoLookup[] results) throws IOException {
+        /* positions in txid order */
+        Integer[] sorted = new Integer[positions.length];
+        for(int i=0; i<positions.length; i++) {
+            sorted[i] = positions[i];
+            results[positions[i]] = UtxoLookup.NOT_FOUND;
+        }
+        Arrays.sort(sorted, Comparator.comparing(position -> outpoints[position].getPrevTxid()));
+
+        Path shardPathName = filenames.getShardFilenameAsPath(shardIndex);
+        try (InputStream inputStream = new BufferedInputStream(
+                new FileInputStream(shardPathName.toFile()))) {
+            /* check shard */
+            int fileShardNum = BitcoinParams.readINT32(inputStream);
+            int fileShardIndex = BitcoinParams.readINT32(inputStream);
+            if(fileShardNum != getShardNum() || fileShardIndex != shardIndex) {
+                throw new IOException(new BitcoinUtxoSetException(
+                        "Stored shard does not match shardNum or shardIndex.",
+                        getBestBlockhash().toString(), getBestHeight()) );
+            }
+            long utxCount = CompactSizeUInt.deserialize(inputStream).getValue();
+
+            /* merge stored UTXs with sorted outpoints */
+            UtxFactory utxFactory = getShardFactory().getUtxFactory();
+            int next = 0;
+            for(long i=0; (i<utxCount) && (next<sorted.length); i++) {
+                UTX utx = utxFactory.load(inputStream);
+                SHA256HASH txid = utx.getTxid();
+                while( (next < sorted.length) &&
+                        (outpoints[sorted[next]].getPrevTxid().compareTo(txid) < 0) ) {
+                    next++;
+                }
+                while( (next < sorted.length) &&
+                        outpoints[sorted[next]].getPrevTxid().equals(txid) ) {
+                    results[sorted[next]] = UtxoLookup.lookup(
+                            utx, outpoints[sorted[next]].getPrevOutIndex());
+                    next++;
+                }
+            }
+        }
+    }
+
+
     /* Put shard. Since this is IO, getShard is equivalent to storeShard. */
     @Override
     protected void putCachedShard(Shard shard) throws IOException {
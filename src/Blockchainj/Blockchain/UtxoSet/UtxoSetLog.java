@@ -4,8 +4,11 @@ import Blockchainj.Util.SHA256HASH;
 import Blockchainj.Util.Utils;
 
 import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Utxo Set Log File
@@ -18,21 +21,62 @@ import java.nio.file.Path;
  * Position  0: <blockhash, 32bytes><number of shards, 4bytes><utxo merkle tree root, 32bytes>
  * Position 68: <blockhash, 32bytes><number of shards, 4bytes><utxo merkle tree root, 32bytes>
  *     ...
+ * <zero padding, multiple of 68 bytes>
  *
  * Height 0 entry starts at position 0.
  * Height 1 entry starts at position 68.
  * ...
  *
+ * The file is memory mapped and grows by GROW_ENTRIES entries at a time. The unused tail is
+ * zero filled. An all zero entry is never a valid entry, so the entry count is recovered on
+ * open by skipping the zero tail. Files without padding are read as they are.
+ *
  * Use:
  * - Get entry with best height.
- * - Get entry for any available height.
+ * - Get entry, blockhash or number of shards for any available height. O(1), reads the mapped
+ *   file directly.
+ * - Get height of a blockhash from an in-memory hash index.
  * - Append entry, increasing best height by 1.
  * - Delete last entry, decreasing best height by 1.
+ *
+ * Appends and deletes are written to the mapped file. Dirty entries are forced to the disk
+ * every syncPeriod modifications and on close. A sync period of 0 leaves write back to the
+ * operating system until close.
+ *
+ * Thread-safe, entries are read while the utxo set commits. Reads take no lock. Appends and
+ * deletes are synchronized, deletes are retried around by readers.
  */
 
 public class UtxoSetLog {
+    /* The mapped file grows by this many entries. */
+    private static final int GROW_ENTRIES = 4096;
+
+    /* Max entries of a single mapping */
+    private static final int MAX_ENTRIES = Integer.MAX_VALUE / UtxoSetLogEntry.LOGENTRY_SIZE;
+
     /* Utxo set log file */
     private final File utxoSetLogFile;
+    private final FileChannel fileChannel;
+
+    /* Mapped log file. Replaced when the file grows. */
+    private volatile MappedByteBuffer mappedLog;
+
+    /* Number of entries. Entry bytes are written before the count is increased. */
+    private volatile int entryCount;
+
+    /* Odd while the last entry is being deleted. Readers retry if it changed. */
+    private volatile int modCount = 0;
+
+    /* Blockhash index. Open addressing, linear probing. Slot holds height+1, 0 is empty.
+     * Replaced when it grows. */
+    private volatile int[] heightIndex;
+
+    /* Force dirty entries every syncPeriod modifications. 0 only on close. */
+    private int syncPeriod = 0;
+    private int unsyncedModifications = 0;
+    private int firstUnsyncedEntry = 0;
+
+    private boolean closed = false;
 
 
     /* Utxo set log entry. */
@@ -57,27 +101,30 @@ public class UtxoSetLog {
         }
 
         /* Deserialize constructor. Inner class cannot have static methods. */
-        UtxoSetLogEntry(InputStream inputStream, int height) throws IOException {
+        UtxoSetLogEntry(MappedByteBuffer mappedLog, int height) {
+            int index = getPosition(height);
+
             /* read blockhash */
-            blockhash = SHA256HASH.deserialize(inputStream);
+            blockhash = SHA256HASH.deserialize(mappedLog, index);
+            index += SHA256HASH.HASH_SIZE;
 
             /* read numShard */
             numShardBytes = new byte[NUMSHARD_SIZE];
-            if( inputStream.read(numShardBytes) != NUMSHARD_SIZE) {
-                throw new IOException("Expected " + NUMSHARD_SIZE + " for numShard.");
-            }
+            mappedLog.get(index, numShardBytes);
             numShard = Utils.readInt32LE(numShardBytes, 0);
+            index += NUMSHARD_SIZE;
 
             /* read merkle tree root */
-            merkleRoot = SHA256HASH.deserialize(inputStream);
+            merkleRoot = SHA256HASH.deserialize(mappedLog, index);
 
             this.height = height;
         }
 
-        void serialize(OutputStream outputStream) throws IOException {
-            blockhash.serialize(outputStream);
-            outputStream.write(numShardBytes);
-            merkleRoot.serialize(outputStream);
+        void serialize(MappedByteBuffer mappedLog) {
+            int index = getPosition(height);
+            blockhash.serialize(mappedLog, index);
+            mappedLog.put(index + SHA256HASH.HASH_SIZE, numShardBytes);
+            merkleRoot.serialize(mappedLog, index + SHA256HASH.HASH_SIZE + NUMSHARD_SIZE);
         }
 
         void print() {
@@ -104,6 +151,31 @@ public class UtxoSetLog {
         if (!isCorrectFileSize(fileSize)) {
             throw new IOException(utxoSetLogFilePathname.toString() + " is badly formatted.");
         }
+        if (fileSize / UtxoSetLogEntry.LOGENTRY_SIZE > MAX_ENTRIES) {
+            throw new IOException(utxoSetLogFilePathname.toString() + " is too large.");
+        }
+
+        fileChannel = FileChannel.open(utxoSetLogFilePathname,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            /* Map the whole file and skip the zero tail. */
+            int fileEntries = (int) (fileSize / UtxoSetLogEntry.LOGENTRY_SIZE);
+            mappedLog = map(fileEntries);
+            int count = fileEntries;
+            while (count > 0 && isZeroEntry(count - 1)) {
+                count--;
+            }
+            entryCount = count;
+
+            /* Build blockhash index */
+            heightIndex = new int[getIndexCapacity(count)];
+            for (int height = 0; height < count; height++) {
+                insertIndex(heightIndex, height);
+            }
+        } catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
     }
 
 
@@ -113,31 +185,57 @@ public class UtxoSetLog {
     }
 
 
-    /* returns log file size */
-    public long getFileSize() { return utxoSetLogFile.length(); }
+    /* returns log file size, excluding the zero tail */
+    public long getFileSize() { return (long)entryCount * UtxoSetLogEntry.LOGENTRY_SIZE; }
 
 
-    /* Append entry. Entry height must match log file entry height */
-    public void appendEntry(UtxoSetLogEntry entry) throws IOException, IllegalArgumentException{
-        /* Get and check file size. */
-        long fileSize = getFileSize();
-        if(!isCorrectFileSize(fileSize)) {
-            throw new IOException(utxoSetLogFile.toString() + "is badly formatted.");
+    /* Force dirty entries every syncPeriod appends or deletes. 0 forces only on close. */
+    public synchronized void setSyncPeriod(int syncPeriod) {
+        if(syncPeriod < 0) {
+            throw new IllegalArgumentException("Sync period must be >= 0.");
         }
+        this.syncPeriod = syncPeriod;
+    }
 
-        /* Calc entry height */
-        int newEntryHeight  = (int) (fileSize / UtxoSetLogEntry.LOGENTRY_SIZE);
+    public synchronized int getSyncPeriod() { return syncPeriod; }
+
+
+    /* Append entry. Entry height must match log file entry height */
+    public synchronized void appendEntry(UtxoSetLogEntry entry)
+            throws IOException, IllegalArgumentException{
+        checkClosed();
 
         /* Heights must match */
+        int newEntryHeight = entryCount;
         if(newEntryHeight != entry.height) {
             throw new IllegalArgumentException("Entry height must match current log file " +
                     "entry height.");
         }
 
-        /* append new entry to end of log file */
-        OutputStream outputStream = new FileOutputStream(utxoSetLogFile, true);
-        entry.serialize(outputStream);
-        outputStream.close();
+        /* Grow mapped file */
+        if(newEntryHeight >= MAX_ENTRIES) {
+            throw new IOException(utxoSetLogFile.toString() + " is full.");
+        }
+        if(getPosition(newEntryHeight + 1) > mappedLog.capacity()) {
+            int capacity = (newEntryHeight / GROW_ENTRIES + 1) * GROW_ENTRIES;
+            mappedLog = map(Math.min(capacity, MAX_ENTRIES));
+        }
+
+        /* write new entry, index it and publish it */
+        entry.serialize(mappedLog);
+        if(getIndexCapacity(newEntryHeight + 1) > heightIndex.length) {
+            int[] newIndex = new int[getIndexCapacity(newEntryHeight + 1)];
+            for(int height = 0; height < newEntryHeight; height++) {
+                insertIndex(newIndex, height);
+            }
+            insertIndex(newIndex, newEntryHeight);
+            heightIndex = newIndex;
+        } else {
+            insertIndex(heightIndex, newEntryHeight);
+        }
+        entryCount = newEntryHeight + 1;
+
+        modified(newEntryHeight);
     }
 
 
@@ -150,65 +248,249 @@ public class UtxoSetLog {
 
     /* Read last entry. If no entries return null. */
     public UtxoSetLogEntry getLastEntry() throws IOException {
-        /* Get filesize, calc last height and get it. */
-        long fileSize = getFileSize();
-        int lastHeight = (int) (fileSize / UtxoSetLogEntry.LOGENTRY_SIZE) - 1;
-
-        if(fileSize == 0) {
-            return null;
-        } else {
-            return getEntry(lastHeight);
+        while(true) {
+            int mod = modCount;
+            if((mod & 1) == 0) {
+                int count = entryCount;
+                UtxoSetLogEntry entry =
+                        (count == 0) ? null : new UtxoSetLogEntry(mappedLog, count - 1);
+                if(modCount == mod) {
+                    return entry;
+                }
+            }
+            Thread.onSpinWait();
         }
     }
 
 
     /* Read entry at height */
     public UtxoSetLogEntry getEntry(int height) throws IOException {
-        /* Get and check filesize. */
-        long fileSize = getFileSize();
-        if (!isCorrectFileSize(fileSize)) {
-            throw new IOException(utxoSetLogFile.toString() + "is badly formatted.");
+        while(true) {
+            int mod = modCount;
+            if((mod & 1) == 0) {
+                checkHeight(height);
+                UtxoSetLogEntry entry = new UtxoSetLogEntry(mappedLog, height);
+                if(modCount == mod) {
+                    return entry;
+                }
+            }
+            Thread.onSpinWait();
         }
+    }
 
-        /* Calc last entry height. Can be -1 which is <0 which is no entries, */
-        int bestHeight = (int) (fileSize / UtxoSetLogEntry.LOGENTRY_SIZE) - 1;
 
-        /* check range */
-        if( (height < 0) || (height > bestHeight) ) {
-            throw new IOException("Height not found");
+    /* Read blockhash at height */
+    public SHA256HASH getBlockhash(int height) throws IOException {
+        while(true) {
+            int mod = modCount;
+            if((mod & 1) == 0) {
+                checkHeight(height);
+                SHA256HASH blockhash = SHA256HASH.deserialize(mappedLog, getPosition(height));
+                if(modCount == mod) {
+                    return blockhash;
+                }
+            }
+            Thread.onSpinWait();
         }
+    }
 
-        /* calc skip bytes */
-        long skipBytes = (long)height * (long)UtxoSetLogEntry.LOGENTRY_SIZE;
 
-        /* skip bytes */
-        InputStream inputStream = new FileInputStream(utxoSetLogFile);
-        if ( inputStream.skip(skipBytes) != skipBytes ) {
-            throw new IOException("Unable to skip bytes: " + skipBytes);
+    /* Read number of shards at height */
+    public int getNumShard(int height) throws IOException {
+        while(true) {
+            int mod = modCount;
+            if((mod & 1) == 0) {
+                checkHeight(height);
+                int numShard = mappedLog.getInt(getPosition(height) + SHA256HASH.HASH_SIZE);
+                if(modCount == mod) {
+                    return numShard;
+                }
+            }
+            Thread.onSpinWait();
         }
+    }
 
-        /* read last entry */
-        return new UtxoSetLogEntry(inputStream, height);
+
+    /* Height of blockhash. -1 if not in the log. */
+    public int getHeight(SHA256HASH blockhash) {
+        int hashCode = blockhash.hashCode();
+        while(true) {
+            int mod = modCount;
+            if((mod & 1) == 0) {
+                int height = findIndex(heightIndex, blockhash, hashCode);
+                if(modCount == mod) {
+                    return height;
+                }
+            }
+            Thread.onSpinWait();
+        }
     }
 
 
     /* Delete last entry */
-    public void deleteLastEntry() throws IOException {
-        /* Get and check filesize. */
-        long fileSize = getFileSize();
-        if (!isCorrectFileSize(fileSize)) {
-            throw new IOException(utxoSetLogFile.toString() + "is badly formatted.");
-        }
-        else if (fileSize == 0) {
+    public synchronized void deleteLastEntry() throws IOException {
+        checkClosed();
+
+        int lastHeight = entryCount - 1;
+        if (lastHeight < 0) {
             throw new IOException(utxoSetLogFile.toString() + "is empty.");
         }
 
-        /* open appended file and truncate it */
-        FileOutputStream outputStream = new FileOutputStream(utxoSetLogFile, true);
-        FileChannel fileChannel = outputStream.getChannel();
-        fileChannel.truncate(fileSize - UtxoSetLogEntry.LOGENTRY_SIZE);
+        /* Readers retry while modCount is odd or changed */
+        modCount++;
+        try {
+            entryCount = lastHeight;
+            removeIndex(heightIndex, lastHeight);
+            int position = getPosition(lastHeight);
+            for(int i = 0; i < UtxoSetLogEntry.LOGENTRY_SIZE; i++) {
+                mappedLog.put(position + i, (byte) 0);
+            }
+        } finally {
+            modCount++;
+        }
+
+        modified(lastHeight);
+    }
+
+
+    /* Force dirty entries to the disk */
+    public synchronized void force() {
+        if(closed || unsyncedModifications == 0) {
+            return;
+        }
+
+        int from = getPosition(firstUnsyncedEntry);
+        int to = Math.min(getPosition(entryCount + 1), mappedLog.capacity());
+        if(to > from) {
+            mappedLog.force(from, to - from);
+        }
+        unsyncedModifications = 0;
+        firstUnsyncedEntry = entryCount;
+    }
+
+
+    /* Force dirty entries and close the file. Entries already read stay valid. The mapping is
+     * released by the garbage collector, so late readers do not fault. */
+    public synchronized void close() throws IOException {
+        if(closed) {
+            return;
+        }
+
+        force();
+        closed = true;
         fileChannel.close();
-        outputStream.close();
+    }
+
+
+    /* Count modification and force if sync period reached */
+    private void modified(int height) {
+        if(unsyncedModifications == 0 || height < firstUnsyncedEntry) {
+            firstUnsyncedEntry = Math.min(height, entryCount);
+        }
+        unsyncedModifications++;
+
+        if(syncPeriod > 0 && unsyncedModifications >= syncPeriod) {
+            force();
+        }
+    }
+
+
+    private void checkClosed() throws IOException {
+        if(closed) {
+            throw new IOException(utxoSetLogFile.toString() + " is closed.");
+        }
+    }
+
+
+    private void checkHeight(int height) throws IOException {
+        if( (height < 0) || (height >= entryCount) ) {
+            throw new IOException("Height not found");
+        }
+    }
+
+
+    /* Map file with capacity for given entries. Extends the file with zeros. */
+    private MappedByteBuffer map(int entries) throws IOException {
+        MappedByteBuffer mappedLog = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                (long)entries * UtxoSetLogEntry.LOGENTRY_SIZE);
+        mappedLog.order(ByteOrder.LITTLE_ENDIAN);
+        return mappedLog;
+    }
+
+
+    private static int getPosition(int height) {
+        return height * UtxoSetLogEntry.LOGENTRY_SIZE;
+    }
+
+
+    private boolean isZeroEntry(int height) {
+        int position = getPosition(height);
+        for(int i = 0; i < UtxoSetLogEntry.LOGENTRY_SIZE; i++) {
+            if(mappedLog.get(position + i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /* Blockhash index. Load factor at most 1/2. */
+    private static int getIndexCapacity(int entries) {
+        int capacity = GROW_ENTRIES;
+        while(capacity < 2 * (long)entries) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void insertIndex(int[] index, int height) {
+        int mask = index.length - 1;
+        int slot = SHA256HASH.hashCode(mappedLog, getPosition(height)) & mask;
+        while(index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = height + 1;
+    }
+
+    private int findIndex(int[] index, SHA256HASH blockhash, int hashCode) {
+        int mask = index.length - 1;
+        int slot = hashCode & mask;
+        /* Count before mapping, entries below count are in the mapping. */
+        int count = entryCount;
+        MappedByteBuffer mappedLog = this.mappedLog;
+        int value;
+        while((value = index[slot]) != 0) {
+            int height = value - 1;
+            if(height < count && blockhash.equals(mappedLog, getPosition(height))) {
+                return height;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /* Remove height from index and shift back the rest of its probe run. */
+    private void removeIndex(int[] index, int height) {
+        int mask = index.length - 1;
+        int slot = SHA256HASH.hashCode(mappedLog, getPosition(height)) & mask;
+        while(index[slot] != height + 1) {
+            slot = (slot + 1) & mask;
+        }
+
+        int next = slot;
+        while(true) {
+            next = (next + 1) & mask;
+            if(index[next] == 0) {
+                break;
+            }
+            int home = SHA256HASH.hashCode(mappedLog, getPosition(index[next] - 1)) & mask;
+            /* move if home is not cyclically in (slot, next] */
+            if( (slot <= next) ? (home <= slot || home > next) : (home <= slot && home > next) ) {
+                index[slot] = index[next];
+                slot = next;
+            }
+        }
+        index[slot] = 0;
     }
 
 
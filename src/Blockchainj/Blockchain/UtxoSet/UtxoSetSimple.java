@@ -7,8 +7,11 @@ import Blockchainj.Blockchain.UtxoSet.Shard.MainShardFactory;
 import Blockchainj.Blockchain.UtxoSet.Shard.Shard;
 import Blockchainj.Blockchain.UtxoSet.Shard.ShardFactory;
 import Blockchainj.Blockchain.UtxoSet.Shard.ShardIterator;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.STX;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.ShardChanges;
 import Blockchainj.Blockchain.UtxoSet.UTXOS.UTX;
 import Blockchainj.Blockchain.UtxoSet.UTXOS.UTXO;
+import Blockchainj.Blockchain.UtxoSet.UTXOS.UtxoSetChanges;
 import Blockchainj.Util.CompactSizeUInt;
 import Blockchainj.Util.MerkleTree;
 import Blockchainj.Util.SHA256HASH;
@@ -100,105 +103,86 @@ public class UtxoSetSimple implements UtxoSet {
     }
 
 
+    /* Commits the block's changes, so blocks and exported changes take the same path */
     @Override
     public synchronized void commitBlock(Block block) throws BitcoinUtxoSetException, IOException {
         if(isClosed()) {
             throw new IllegalStateException("Utxo Set closed.");
         }
 
-        /* Call garbage collector */
-        if(block.getHeight()%GARBAGE_COLLECTOR_CALL_PERIOD == 0) {
-            Utils.suggestGarbageCollectorRun();
-        }
-
-        /* Process each transaction */
-        Iterator<Transaction> txIterator = block.getTxIterator();
-        while(txIterator.hasNext()) {
-            Transaction t = txIterator.next();
-
-            /* Check for non-unique txids */
-            if(BitcoinUtils.isDuplicateTxid(t)) {
-                continue;
-            }
-
-            //TODO REMOVE!
-            if(t.isCoinbase() && t.getTxInCount() > 1) {
-                t.print(System.out, true, true, true);
-                throw new RuntimeException();
-            }
-
-            /* Process transaction inputs */
-            Iterator<TransactionInput> txInIterator = t.getTxInIterator();
-            while(txInIterator.hasNext()) {
-                TransactionInput tIn = txInIterator.next();
-
-                /* If transaction input is coinbase skip it */
-                if(tIn.isCoinbase()) {
-                    //noinspection UnnecessaryContinue
-                    continue;
-                }
+        /* Shard routing does not matter, calculate changes for a single shard */
+        commitUtxoSetChanges(UtxoSetChanges.calcNewUtxoSetChanges(
+                block, ProtocolParams.MIN_SHARD_NUM, getShardFactory().getUtxFactory()));
+    }
 
-//                Iterator<Transaction> t2 = block.getTxIterator();
-//                while(t2.hasNext()) {
-//                    Iterator<TransactionOutput> t3 = t2.next().getTxOutIterator();
-//                    while(t3.hasNext()) {
-//                        SHA256HASH txid = t3.next().getTxid();
-//                        if(tIn.getPrevTxid().equals(txid)) {
-//                            System.out.println(block.getHeight());
-//                        }
-//                    }
-//                }
-
-
-                /* Else check if transaction input can be spent. */
-                /* Get utx */
-                UTX utx = utxs.get(tIn.getPrevTxid());
-
-                /* Check if utx found */
-                if(utx == null) {
-                    throw new BitcoinUtxoSetChangesException(
-                            "UTX not found.", tIn.getBlockhash().toString(), tIn.getHeight(), tIn);
-                }
 
-                /* Try to spent tIn */
-                UTX newUtx = utx.spentUTXO(tIn, block.getHeight());
+    @Override
+    public synchronized void commitUtxoSetChanges(UtxoSetChanges changes)
+            throws BitcoinUtxoSetException, IOException {
+        if(isClosed()) {
+            throw new IllegalStateException("Utxo Set closed.");
+        }
 
-                /* Decrease utxo count by 1 */
-                utxoCount--;
+        /* Call garbage collector */
+        if(changes.getHeight()%GARBAGE_COLLECTOR_CALL_PERIOD == 0) {
+            Utils.suggestGarbageCollectorRun();
+        }
 
-                /* remove if utx is empty else replace with new */
-                if(newUtx == null) {
-                    utxs.remove(utx.getTxid());
-                } else {
-                    utxs.put(newUtx.getTxid(), newUtx);
+        /* Shard routing does not matter, all shard changes go to the same map */
+        Iterator<ShardChanges> itShardChanges = changes.getShardChangesIterator();
+        while(itShardChanges.hasNext()) {
+            ShardChanges shardChanges = itShardChanges.next();
+
+            /* Spent transaction inputs */
+            Iterator<STX> itSTX = shardChanges.getStxIterator();
+            while(itSTX.hasNext()) {
+                Iterator<TXI> itTXI = itSTX.next().getTxiIterator();
+                while(itTXI.hasNext()) {
+                    TXI txi = itTXI.next();
+
+                    /* Get utx */
+                    UTX utx = utxs.get(txi.getPrevTxid());
+
+                    /* Check if utx found */
+                    if(utx == null) {
+                        throw new BitcoinUtxoSetChangesException("UTX not found.",
+                                changes.getBlockhash().toString(), changes.getHeight(), txi);
+                    }
+
+                    /* Try to spent txi */
+                    UTX newUtx = utx.spentUTXO(txi, changes.getHeight());
+
+                    /* Decrease utxo count by 1 */
+                    utxoCount--;
+
+                    /* remove if utx is empty else replace with new */
+                    if(newUtx == null) {
+                        utxs.remove(utx.getTxid());
+                    } else {
+                        utxs.put(newUtx.getTxid(), newUtx);
+                    }
                 }
             }
 
-            /* Process transaction outputs. Get new UTX instance */
-            UTX utx = getShardFactory().getUtxFactory().getNewUTX(t);
+            /* New utxs */
+            Iterator<UTX> itUTX = shardChanges.getUtxIterator();
+            while(itUTX.hasNext()) {
+                UTX utx = itUTX.next();
 
-            /*  UTX must not already exist in the changes. */
-            if( utxs.put(utx.getTxid(), utx) != null ) {
-                throw new BitcoinUtxoSetChangesException("Failed to put utx to chagnes.",
-                        block.getBlockhash().toString(), block.getHeight(), utx);
-            }
-
-
-            Iterator<TransactionOutput> it = t.getTxOutIterator();
-            while(it.hasNext()) {
-                if(it.next().getScript()[2] == (byte)(0x6a & 0XFF)) {
-                    System.out.println(block.getHeight());
+                /*  UTX must not already exist. */
+                if( utxs.put(utx.getTxid(), utx) != null ) {
+                    throw new BitcoinUtxoSetChangesException("Failed to put utx to chagnes.",
+                            changes.getBlockhash().toString(), changes.getHeight(), utx);
                 }
-            }
 
-
-            /* Add utxo count */
-            utxoCount += utx.getUtxosCount();
+                /* Add utxo count */
+                utxoCount += utx.getUtxosCount();
+            }
         }
 
         /* update best blockhash and height */
-        bestBlockhash = block.getBlockhash();
-        bestHeight = block.getHeight();
+        bestBlockhash = changes.getBlockhash();
+        bestHeight = changes.getHeight();
     }
 
 
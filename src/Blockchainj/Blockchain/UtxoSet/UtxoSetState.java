@@ -0,0 +1,98 @@
+package Blockchainj.Blockchain.UtxoSet;
+
+import Blockchainj.Util.MerkleTree;
+import Blockchainj.Util.SHA256HASH;
+
+import java.io.PrintStream;
+
+/**
+ * UtxoSetState
+ *
+ * Immutable snapshot of an AbstractUtxoSet after a commit: best height and blockhash, counts,
+ * serialized sizes, Merkle tree and the shard version table.
+ *
+ * A shard's version is the height of the last commit that modified it, or the height the
+ * utxo set was opened at. Two reads of a shard with the same version return the same UTXs.
+ *
+ * Published through a volatile reference after each commit, so getters read it without
+ * locking.
+ *
+ */
+
+public class UtxoSetState {
+    private final int height;
+    private final SHA256HASH blockhash;
+    private final int shardNum;
+    private final int utxCount;
+    private final int utxoCount;
+    private final long serializedSize;
+    private final long utxSerializedSize;
+
+    /* Read only copy. Not modified after publishing. */
+    private final MerkleTree merkleTree;
+
+    /* Not modified after publishing */
+    private final int[] shardVersions;
+
+
+    UtxoSetState(int height, SHA256HASH blockhash, int shardNum, int utxCount, int utxoCount,
+                 long serializedSize, long utxSerializedSize, MerkleTree merkleTree,
+                 int[] shardVersions) {
+        this.height = height;
+        this.blockhash = blockhash;
+        this.shardNum = shardNum;
+        this.utxCount = utxCount;
+        this.utxoCount = utxoCount;
+        this.serializedSize = serializedSize;
+        this.utxSerializedSize = utxSerializedSize;
+        this.merkleTree = merkleTree;
+        this.shardVersions = shardVersions;
+    }
+
+
+    /* Get methods */
+    public int getHeight() { return height; }
+
+    public SHA256HASH getBlockhash() { return blockhash; }
+
+    public int getShardNum() { return shardNum; }
+
+    public int getUtxCount() { return utxCount; }
+
+    public int getUtxoCount() { return utxoCount; }
+
+    public long getSerializedSize() { return serializedSize; }
+
+    public long getUtxSerializedSize() { return utxSerializedSize; }
+
+    public MerkleTree getMerkleTree() { return merkleTree; }
+
+    public SHA256HASH getMerkleRoot() { return merkleTree.getRoot(); }
+
+    public int getShardVersion(int shardIndex) throws ArrayIndexOutOfBoundsException {
+        return shardVersions[shardIndex];
+    }
+
+
+    /* Shard version table after a commit at height that modified the given shards. */
+    static int[] nextShardVersions(int[] shardVersions, int height, int[] modifiedShardIndices) {
+        int[] next = shardVersions.clone();
+        for(int shardIndex : modifiedShardIndices) {
+            next[shardIndex] = height;
+        }
+        return next;
+    }
+
+
+    public void print(PrintStream printStream) {
+        printStream.println("Utxo Set state");
+        printStream.println("Height: " + height);
+        printStream.println("Blockhash: " + blockhash);
+        printStream.println("Internal number of shards: " + shardNum);
+        printStream.println("Merkle tree root: " + getMerkleRoot());
+        printStream.println("Utx count: " + utxCount);
+        printStream.println("Utxo count: " + utxoCount);
+        printStream.println("Serialized size: " + serializedSize);
+        printStream.println("Utx serialized size: " + utxSerializedSize);
+    }
+}
@@ -0,0 +1,453 @@
+package Blockchainj.Util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AsyncLog
+ *
+ * Asynchronous appender for log and data files. Records are put in a fixed size in-memory ring
+ * buffer and a background writer thread appends them to their files in batches, keeping the
+ * files open between batches.
+ *
+ * log() never blocks. Messages below the log level are discarded. When the ring buffer is full
+ * messages are dropped, and the writer appends a summary line with the number of dropped
+ * messages to the file once it catches up.
+ *
+ * append() blocks while the ring buffer is full and never drops. For data files.
+ *
+ * Files larger than maxFileSize are rotated to <file>.1 ... <file>.<maxBackups>.
+ * A maxFileSize of 0 disables rotation.
+ *
+ * Write errors are kept and thrown by the next flush().
+ *
+ * Thread-safe.
+ *
+ */
+
+public class AsyncLog {
+    /* Log levels */
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_INFO = 1;
+    public static final int LEVEL_WARN = 2;
+    public static final int LEVEL_ERROR = 3;
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR"};
+    private volatile int level;
+
+    /* Ring buffer. Guarded by lock. */
+    public static final int DEFAULT_CAPACITY = 16*1024;
+    private final Path[] ringFiles;
+    private final byte[][] ringRecords;
+    private long head = 0; //next record to write
+    private long tail = 0; //next free slot
+    private long written = 0; //records written to files
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    /* Dropped messages per file since last summary. Guarded by lock. */
+    private final HashMap<Path, Long> dropped = new HashMap<>();
+    private long droppedTotal = 0;
+
+    /* Writer. Records written per batch, open files kept and wait period. */
+    private static final int BATCH_SIZE = 1024;
+    private static final int MAX_OPEN_FILES = 64;
+    private static final long FLUSH_PERIOD = 1000; //1 second
+    private static final int WRITE_BUFFER_SIZE = 64*1024; //64 KiB
+    private final Writer writer = new Writer();
+
+    /* Rotation */
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L*1024*1024; //64 MiB
+    public static final int DEFAULT_MAX_BACKUPS = 4;
+    private final long maxFileSize;
+    private final int maxBackups;
+
+    /* Last write error. Guarded by lock. */
+    private IOException writeError = null;
+
+    /* Closed marker */
+    private volatile boolean closed = false;
+
+    /* Line format */
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+
+
+    /* Main constructor */
+    public AsyncLog(int capacity, int level, long maxFileSize, int maxBackups, String name) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be >=1.");
+        }
+        validateLevel(level);
+        if(maxFileSize < 0 || maxBackups < 0) {
+            throw new IllegalArgumentException("Max file size and max backups must be >=0.");
+        }
+
+        ringFiles = new Path[capacity];
+        ringRecords = new byte[capacity][];
+        this.level = level;
+        this.maxFileSize = maxFileSize;
+        this.maxBackups = maxBackups;
+
+        writer.setName(name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    /* Constructor without rotation, for data files. */
+    public AsyncLog(String name) {
+        this(DEFAULT_CAPACITY, LEVEL_DEBUG, 0, 0, name);
+    }
+
+
+    public static void validateLevel(int level) throws IllegalArgumentException {
+        if(level < LEVEL_DEBUG || level > LEVEL_ERROR) {
+            throw new IllegalArgumentException("Log level must be in [" + LEVEL_DEBUG + "," +
+                    LEVEL_ERROR + "].");
+        }
+    }
+
+
+    /* Returns level for name, e.g. "INFO". */
+    public static int parseLevel(String name) throws IllegalArgumentException {
+        for(int i=0; i<LEVEL_NAMES.length; i++) {
+            if(LEVEL_NAMES[i].equalsIgnoreCase(name.trim())) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Log level '" + name + "' not found.");
+    }
+
+
+    public int getLevel() { return level; }
+
+    public void setLevel(int level) {
+        validateLevel(level);
+        this.level = level;
+    }
+
+    public boolean isLoggable(int level) { return level >= this.level; }
+
+
+    /* Logs message as a timestamped line. Drops it if the buffer is full. Never blocks. */
+    public void log(Path file, int level, String msg) {
+        if(!isLoggable(level) || closed) {
+            return;
+        }
+        String line = formatLine(level, msg);
+        byte[] record = line.getBytes(StandardCharsets.UTF_8);
+
+        lock.lock();
+        try {
+            if(tail - head >= ringRecords.length) {
+                dropped.merge(file, 1L, Long::sum);
+                droppedTotal++;
+                return;
+            }
+            enqueue(file, record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /* Appends record as is. Blocks while the buffer is full. */
+    public void append(Path file, byte[] record) throws IOException {
+        lock.lock();
+        try {
+            while(!closed && tail - head >= ringRecords.length) {
+                notFull.await();
+            }
+            if(closed) {
+                throw new IOException("Log closed.");
+            }
+            enqueue(file, record);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /* Lock must be held */
+    private void enqueue(Path file, byte[] record) {
+        int slot = (int)(tail % ringRecords.length);
+        ringFiles[slot] = file;
+        ringRecords[slot] = record;
+        tail++;
+        notEmpty.signal();
+    }
+
+
+    /* Waits until all records appended so far are written. Throws the last write error. */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            long target = tail;
+            while(written < target && writer.isAlive()) {
+                notEmpty.signal();
+                flushed.await(FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+            }
+            if(writeError != null) {
+                IOException e = writeError;
+                writeError = null;
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /* Writes pending records and closes files. */
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        flush();
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+
+    public boolean isClosed() { return closed; }
+
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedTotal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private static String formatLine(int level, String msg) {
+        return new SimpleDateFormat(DATE_FORMAT).format(new Date()) + " " +
+                LEVEL_NAMES[level] + " " + msg + "\n";
+    }
+
+
+    /* Writer thread. Takes batches from the ring buffer and appends them. */
+    private class Writer extends Thread {
+        /* Open files in access order */
+        private final LinkedHashMap<Path, OpenFile> openFiles =
+                new LinkedHashMap<>(16, 0.75f, true);
+
+        private final Path[] batchFiles = new Path[BATCH_SIZE];
+        private final byte[][] batchRecords = new byte[BATCH_SIZE][];
+
+        @Override
+        public void run() {
+            for(;;) {
+                int count;
+                HashMap<Path, Long> droppedSummary = null;
+
+                /* Take batch */
+                lock.lock();
+                try {
+                    while(tail == head && !closed) {
+                        notEmpty.await(FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+                    }
+                    if(tail == head) {
+                        /* closed and drained */
+                        break;
+                    }
+
+                    count = (int)Math.min(BATCH_SIZE, tail - head);
+                    for(int i=0; i<count; i++) {
+                        int slot = (int)((head + i) % ringRecords.length);
+                        batchFiles[i] = ringFiles[slot];
+                        batchRecords[i] = ringRecords[slot];
+                        ringFiles[slot] = null;
+                        ringRecords[slot] = null;
+                    }
+                    head += count;
+                    notFull.signalAll();
+
+                    if(!dropped.isEmpty()) {
+                        droppedSummary = new HashMap<>(dropped);
+                        dropped.clear();
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } finally {
+                    lock.unlock();
+                }
+
+                /* Write batch */
+                IOException error = null;
+                for(int i=0; i<count; i++) {
+                    try {
+                        write(batchFiles[i], batchRecords[i]);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    batchFiles[i] = null;
+                    batchRecords[i] = null;
+                }
+                if(droppedSummary != null) {
+                    for(Map.Entry<Path, Long> entry : droppedSummary.entrySet()) {
+                        try {
+                            write(entry.getKey(), formatLine(LEVEL_WARN, entry.getValue() +
+                                    " log messages dropped.").getBytes(StandardCharsets.UTF_8));
+                        } catch (IOException e) {
+                            error = e;
+                        }
+                    }
+                }
+
+                /* One flush per batch */
+                try {
+                    flushFiles();
+                } catch (IOException e) {
+                    error = e;
+                }
+
+                lock.lock();
+                try {
+                    written += count;
+                    if(error != null) {
+                        writeError = error;
+                    }
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /* Close files */
+            try {
+                for(OpenFile openFile : openFiles.values()) {
+                    openFile.outputStream.close();
+                }
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    writeError = e;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            openFiles.clear();
+            lock.lock();
+            try {
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        private void write(Path file, byte[] record) throws IOException {
+            OpenFile openFile = openFiles.get(file);
+            if(openFile == null) {
+                openFile = open(file);
+            }
+
+            /* Rotate */
+            if(maxFileSize > 0 && openFile.size > 0 &&
+                    openFile.size + record.length > maxFileSize) {
+                openFile.outputStream.close();
+                openFiles.remove(file);
+                rotate(file);
+                openFile = open(file);
+            }
+
+            openFile.outputStream.write(record);
+            openFile.size += record.length;
+        }
+
+
+        private OpenFile open(Path file) throws IOException {
+            /* Close least recently used file */
+            if(openFiles.size() >= MAX_OPEN_FILES) {
+                Iterator<OpenFile> it = openFiles.values().iterator();
+                OpenFile eldest = it.next();
+                it.remove();
+                eldest.outputStream.close();
+            }
+
+            File f = file.toFile();
+            OpenFile openFile = new OpenFile(new BufferedOutputStream(
+                    new FileOutputStream(f, true), WRITE_BUFFER_SIZE), f.length());
+            openFiles.put(file, openFile);
+            return openFile;
+        }
+
+
+        /* <file>.<n-1> to <file>.<n>, ..., <file> to <file>.1 */
+        private void rotate(Path file) throws IOException {
+            if(maxBackups == 0) {
+                Files.deleteIfExists(file);
+                return;
+            }
+            Files.deleteIfExists(backup(file, maxBackups));
+            for(int i=maxBackups-1; i>=1; i--) {
+                Path backup = backup(file, i);
+                if(Files.exists(backup)) {
+                    Files.move(backup, backup(file, i+1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, backup(file, 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+
+        private Path backup(Path file, int i) {
+            return Paths.get(file.toString() + "." + i);
+        }
+
+
+        private void flushFiles() throws IOException {
+            for(OpenFile openFile : openFiles.values()) {
+                openFile.outputStream.flush();
+            }
+        }
+    }
+
+
+    private static class OpenFile {
+        private final OutputStream outputStream;
+        private long size;
+
+        private OpenFile(OutputStream outputStream, long size) {
+            this.outputStream = outputStream;
+            this.size = size;
+        }
+    }
+
+
+    public void printParameters(PrintStream printStream) {
+        printStream.println(">AsyncLog");
+        printStream.println("AsyncLog name: " + writer.getName());
+        printStream.println("AsyncLog capacity: " + ringRecords.length);
+        printStream.println("AsyncLog level: " + LEVEL_NAMES[level]);
+        printStream.println("AsyncLog max file size: " + maxFileSize);
+        printStream.println("AsyncLog max backups: " + maxBackups);
+    }
+}
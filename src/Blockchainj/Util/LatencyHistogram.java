@@ -0,0 +1,160 @@
+package Blockchainj.Util;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram
+ *
+ * Counts latencies, in nanoseconds, in log-linear buckets: each power of two is divided into
+ * SUB_BUCKET_COUNT buckets, so a recorded value is known within 1/SUB_BUCKET_COUNT of itself.
+ * Percentiles are reported as the upper bound of their bucket. Min, max and sum are exact.
+ *
+ * Fixed memory, recording does not allocate.
+ *
+ * Thread-safe. Concurrent reads during recording see a consistent count only per bucket.
+ *
+ */
+
+public class LatencyHistogram {
+    /* Buckets per power of two, 2^SUB_BUCKET_BITS */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /* Values below SUB_BUCKET_COUNT have a bucket each, then SUB_BUCKET_COUNT buckets per power
+     * of two up to 2^63. */
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+
+
+    /* Constructor */
+    public LatencyHistogram() { }
+
+
+    /* Records a latency. Negative values are recorded as 0. */
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        min.accumulateAndGet(nanos, Math::min);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+
+    /* Adds the other histogram's counts to this one */
+    public void add(LatencyHistogram other) {
+        for(int i=0; i<BUCKET_COUNT; i++) {
+            long bucket = other.buckets.get(i);
+            if(bucket != 0) {
+                buckets.addAndGet(i, bucket);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        min.accumulateAndGet(other.min.get(), Math::min);
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+
+    /* Clears all counts */
+    public void reset() {
+        for(int i=0; i<BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+
+    /* Get methods */
+    public long getCount() { return count.get(); }
+
+    public long getSum() { return sum.get(); }
+
+    /* 0 if empty */
+    public long getMin() { return (count.get() == 0) ? 0 : min.get(); }
+
+    public long getMax() { return max.get(); }
+
+    /* 0 if empty */
+    public double getMean() {
+        long count = this.count.get();
+        return (count == 0) ? 0 : ((double) sum.get() / count);
+    }
+
+
+    /* Latency below which percentile percent of the values fall, percentile in [0, 100].
+     * Upper bound of the bucket, at most max. 0 if empty. */
+    public long getValueAtPercentile(double percentile) {
+        if(percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile not in [0, 100].");
+        }
+
+        long total = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for(int i=0; i<BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if(total == 0) {
+            return 0;
+        }
+
+        /* Rank of the value, at least 1 */
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for(int i=0; i<BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if(seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+
+    /* Bucket of value. Values below SUB_BUCKET_COUNT map to themselves. */
+    private static int bucketIndex(long value) {
+        if(value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+        return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+
+    /* Largest value of bucket */
+    private static long bucketUpperBound(int index) {
+        if(index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = (index & (SUB_BUCKET_COUNT - 1)) | SUB_BUCKET_COUNT;
+        long lowerBound = subBucket << shift;
+        return lowerBound + ((1L << shift) - 1);
+    }
+
+
+    /* Print count, mean and percentiles in milliseconds */
+    public void print(PrintStream printStream) {
+        printStream.println("Count: " + getCount());
+        printStream.println(String.format("Mean: %.3f ms", getMean() / 1e6));
+        printStream.println(String.format("Min: %.3f ms", getMin() / 1e6));
+        printStream.println(String.format("p50: %.3f ms", getValueAtPercentile(50) / 1e6));
+        printStream.println(String.format("p99: %.3f ms", getValueAtPercentile(99) / 1e6));
+        printStream.println(String.format("p99.9: %.3f ms", getValueAtPercentile(99.9) / 1e6));
+        printStream.println(String.format("Max: %.3f ms", getMax() / 1e6));
+    }
+}
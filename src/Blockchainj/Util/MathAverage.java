@@ -129,6 +129,37 @@ public class MathAverage {
     public void push(long head) { push((double)head); }
 
 
+    /* Push the same value count times. Without moving average only. */
+    public void push(double head, long count) throws IllegalStateException {
+        if(trail != null) {
+            throw new IllegalStateException("Cannot push many values to a moving average.");
+        }
+        if(count <= 0) {
+            return;
+        }
+
+        sum += head * count;
+        sumOfSquares += head * head * count;
+        pushCounter += count;
+    }
+
+
+    /* Add all values of other to this average. Without moving averages only. */
+    public void add(MathAverage other) throws IllegalStateException {
+        if(trail != null || other.trail != null) {
+            throw new IllegalStateException("Cannot add moving averages.");
+        }
+
+        sum += other.sum;
+        sumOfSquares += other.sumOfSquares;
+        pushCounter += other.pushCounter;
+    }
+
+
+    /* Returns number of values pushed */
+    public long getCount() { return pushCounter; }
+
+
     /* Returns average */
     public double getAvg() {
         return computeAvg(sum, pushCounter);
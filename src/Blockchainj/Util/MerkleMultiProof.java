@@ -0,0 +1,205 @@
+package Blockchainj.Util;
+
+import Blockchainj.Bitcoin.BitcoinParams;
+import Blockchainj.Blockchain.ProtocolParams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Merkle Multi Proof
+ *
+ * Links a set of leaves to the root of a MerkleTree. Holds only the sibling hashes that cannot
+ * be computed from the leaves themselves, each at most once.
+ *
+ * Hash order:
+ * Level by level from the leaves to the root. Within a level, known nodes in ascending index
+ * order. A hash is added for every known node whose sibling is not known.
+ * See MerkleTree.getMissingHashes(). The count matches MerkleTree.getCountForMissingHashes().
+ *
+ * Serialization:
+ * <number of leaves, int32>
+ * <leaf index count, uint32><leaf index, int32>...<leaf index, int32>
+ * <hash count, uint32><hash, 32bytes>...<hash, 32bytes>
+ *
+ * Leaf indices are sorted and unique.
+ */
+
+public class MerkleMultiProof {
+    /* number of leaves of the tree */
+    private final int numLeaves;
+
+    /* sorted, unique leaf indices */
+    private final int[] leafIndices;
+
+    /* missing hashes in proof order */
+    private final SHA256HASH[] hashes;
+
+
+    /* Constructor. Does not copy input. */
+    MerkleMultiProof(int numLeaves, int[] leafIndices, SHA256HASH[] hashes)
+            throws IllegalArgumentException {
+        ProtocolParams.validateNumOfLeaves(numLeaves);
+        for(int i=0; i<leafIndices.length; i++) {
+            if( (leafIndices[i] < 0) || (leafIndices[i] >= numLeaves) ||
+                    ((i > 0) && (leafIndices[i] <= leafIndices[i-1])) ) {
+                throw new IllegalArgumentException("Leaf indices must be sorted, unique and " +
+                        "within number of leaves.");
+            }
+        }
+        this.numLeaves = numLeaves;
+        this.leafIndices = leafIndices;
+        this.hashes = hashes;
+    }
+
+
+    /* Get methods */
+    public int getNumLeaves() { return numLeaves; }
+
+    public int getLeafCount() { return leafIndices.length; }
+
+    public int getLeafIndex(int i) { return leafIndices[i]; }
+
+    public int[] getLeafIndices() { return leafIndices.clone(); }
+
+    public int getHashCount() { return hashes.length; }
+
+    public SHA256HASH getHash(int i) { return hashes[i]; }
+
+
+    /* Returns sorted, unique copy of leaf indices */
+    public static int[] sortLeafIndices(int[] leafIndices) {
+        return Arrays.stream(leafIndices).sorted().distinct().toArray();
+    }
+
+
+    /* Computes the root from the hashes of the proof's leaves, given in leaf index order.
+     * Compare it with a trusted root to verify the leaves. */
+    public SHA256HASH calcRoot(SHA256HASH[] leafHashes) throws IllegalArgumentException {
+        if(leafHashes.length != leafIndices.length || leafIndices.length == 0) {
+            throw new IllegalArgumentException("Expected " + leafIndices.length +
+                    " leaf hashes.");
+        }
+
+        /* Known nodes of the current level, ascending. */
+        final int numNodes = 2*numLeaves - 1;
+        int[] nodes = new int[leafIndices.length];
+        SHA256HASH[] nodeHashes = leafHashes.clone();
+        for(int i=0; i<nodes.length; i++) {
+            nodes[i] = (numNodes - numLeaves) + leafIndices[i];
+        }
+        int count = nodes.length;
+        int hashIndex = 0;
+
+        /* Up to the root */
+        try {
+            while (nodes[0] != 0) {
+                int next = 0;
+                for (int i = 0; i < count; i++) {
+                    int node = nodes[i];
+                    SHA256HASH parentHash;
+                    if ((node % 2 == 1) && (i + 1 < count) && (nodes[i + 1] == node + 1)) {
+                        /* both children known */
+                        parentHash = SHA256HASH.concatAndDoubleSHA256(
+                                nodeHashes[i], nodeHashes[i + 1]);
+                        i++;
+                    } else if (node % 2 == 1) {
+                        /* left child known */
+                        parentHash = SHA256HASH.concatAndDoubleSHA256(
+                                nodeHashes[i], hashes[hashIndex++]);
+                    } else {
+                        /* right child known */
+                        parentHash = SHA256HASH.concatAndDoubleSHA256(
+                                hashes[hashIndex++], nodeHashes[i]);
+                    }
+                    nodes[next] = (node - 1) / 2;
+                    nodeHashes[next] = parentHash;
+                    next++;
+                }
+                count = next;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Not enough hashes in proof.");
+        }
+
+        if(hashIndex != hashes.length) {
+            throw new IllegalArgumentException("Too many hashes in proof.");
+        }
+
+        return nodeHashes[0];
+    }
+
+
+    /* Returns serialized size */
+    public long getSerializedSize() {
+        return getSerializedSize(leafIndices.length, hashes.length);
+    }
+
+    public static long getSerializedSize(int leafCount, int hashCount) {
+        return (long)ProtocolParams.LEAVES_NUM_SIZE
+                + (long)BitcoinParams.UINT32_SIZE + (long)leafCount * BitcoinParams.INT32_SIZE
+                + (long)BitcoinParams.UINT32_SIZE + (long)hashCount * SHA256HASH.HASH_SIZE;
+    }
+
+
+    /* Serialize */
+    public void serialize(OutputStream outputStream) throws IOException {
+        BitcoinParams.INT32ToOutputStream(numLeaves, outputStream);
+
+        BitcoinParams.UINT32ToOutputStream(leafIndices.length, outputStream);
+        for(int leafIndex : leafIndices) {
+            BitcoinParams.INT32ToOutputStream(leafIndex, outputStream);
+        }
+
+        BitcoinParams.UINT32ToOutputStream(hashes.length, outputStream);
+        for(SHA256HASH hash : hashes) {
+            hash.serialize(outputStream);
+        }
+    }
+
+
+    /* Deserialize. Counts are bounded by the number of leaves. */
+    public static MerkleMultiProof deserialize(InputStream inputStream)
+            throws IOException, IllegalArgumentException {
+        int numLeaves = BitcoinParams.readINT32(inputStream);
+        ProtocolParams.validateNumOfLeaves(numLeaves);
+
+        long leafCount = BitcoinParams.readUINT32(inputStream);
+        if(leafCount > numLeaves) {
+            throw new IllegalArgumentException("Leaf index count out of range.");
+        }
+        int[] leafIndices = new int[(int)leafCount];
+        for(int i=0; i<leafIndices.length; i++) {
+            leafIndices[i] = BitcoinParams.readINT32(inputStream);
+        }
+
+        long hashCount = BitcoinParams.readUINT32(inputStream);
+        if(hashCount > numLeaves) {
+            throw new IllegalArgumentException("Hash count out of range.");
+        }
+        SHA256HASH[] hashes = new SHA256HASH[(int)hashCount];
+        for(int i=0; i<hashes.length; i++) {
+            hashes[i] = SHA256HASH.deserialize(inputStream);
+        }
+
+        return new MerkleMultiProof(numLeaves, leafIndices, hashes);
+    }
+
+
+    /* Print */
+    public void print(PrintStream printStream, boolean headerOnly) {
+        printStream.println("Number of leaves: " + numLeaves);
+        printStream.println("Leaf indices: " + Arrays.toString(leafIndices));
+        printStream.println("Proof hash count: " + hashes.length);
+
+        if(!headerOnly) {
+            for(int i=0; i<hashes.length; i++) {
+                printStream.format("%1$4s. ", i);
+                printStream.println(hashes[i].getHashString());
+            }
+        }
+    }
+}
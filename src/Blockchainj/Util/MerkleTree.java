@@ -7,6 +7,7 @@ import Blockchainj.Blockchain.ProtocolParams;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 
@@ -84,12 +85,18 @@ public class MerkleTree {
 
     /* Shallow copy constructor */
     private MerkleTree(MerkleTree merkleTree) {
+        this(merkleTree, false);
+    }
+
+
+    /* Copy constructor. Deep copy does not share the hashes with the original. */
+    private MerkleTree(MerkleTree merkleTree, boolean deepCopy) {
         numLeaves = merkleTree.numLeaves;
         height = merkleTree.height;
         numNodes = merkleTree.numNodes;
         serializedSize = merkleTree.serializedSize;
-        tree = merkleTree.tree;
-        dirtyTable = merkleTree.dirtyTable;
+        tree = deepCopy ? merkleTree.tree.clone() : merkleTree.tree;
+        dirtyTable = deepCopy ? merkleTree.dirtyTable.clone() : merkleTree.dirtyTable;
         isReadOnly = merkleTree.isReadOnly;
     }
 
@@ -140,6 +147,10 @@ public class MerkleTree {
     }
 
 
+    /* Returns number of leaves */
+    public int getNumLeaves() { return numLeaves; }
+
+
     /* Returns leaf at index */
     public SHA256HASH getLeafHash(int leafIndex) throws ArrayIndexOutOfBoundsException {
         if((leafIndex < 0) || (leafIndex>=numLeaves)) {
@@ -158,6 +169,15 @@ public class MerkleTree {
     }
 
 
+    /* Returns deep copy of this object as read only. Later updates to this tree do not show
+     * in the copy. */
+    public MerkleTree getReadOnlyCopy() {
+        MerkleTree readonly = new MerkleTree(this, true);
+        readonly.isReadOnly = true;
+        return readonly;
+    }
+
+
     /* Returns serialization bytes */
     public long getSerializedSize() { return serializedSize; }
 
@@ -219,9 +239,60 @@ public class MerkleTree {
 
 
 
-    public SHA256HASH[] getMissingHashes(boolean[] availableHashesIndices) {
-        //TODO
-        return null;
+    /* Returns the hashes needed to link the available leaves to the root, in the order
+     * described by MerkleMultiProof. availableHashesIndices has one entry per leaf. */
+    public SHA256HASH[] getMissingHashes(boolean[] availableHashesIndices)
+            throws IllegalArgumentException {
+        if(availableHashesIndices.length != numLeaves) {
+            throw new IllegalArgumentException("Expected " + numLeaves + " leaves.");
+        }
+
+        /* Known nodes of the current level, ascending. */
+        int[] nodes = new int[numLeaves];
+        int count = 0;
+        for(int i=0; i<numLeaves; i++) {
+            if(availableHashesIndices[i]) {
+                nodes[count++] = (numNodes - numLeaves) + i;
+            }
+        }
+        if(count == 0) {
+            return new SHA256HASH[0];
+        }
+
+        /* Up to the root. Add the sibling of every node whose sibling is not known. */
+        ArrayList<SHA256HASH> missingHashes = new ArrayList<>();
+        while(nodes[0] != 0) {
+            int next = 0;
+            for(int i=0; i<count; i++) {
+                int node = nodes[i];
+                if( (node % 2 == 1) && (i + 1 < count) && (nodes[i + 1] == node + 1) ) {
+                    /* both children known */
+                    i++;
+                } else {
+                    missingHashes.add(tree[(node % 2 == 1) ? node + 1 : node - 1]);
+                }
+                nodes[next++] = (node - 1) / 2;
+            }
+            count = next;
+        }
+
+        return missingHashes.toArray(new SHA256HASH[0]);
+    }
+
+
+    /* Returns the multi proof for the given leaves. Duplicates are ignored. */
+    public MerkleMultiProof getMultiProof(int[] leafIndices) throws IllegalArgumentException {
+        int[] sortedLeafIndices = MerkleMultiProof.sortLeafIndices(leafIndices);
+        boolean[] availableHashesIndices = new boolean[numLeaves];
+        for(int leafIndex : sortedLeafIndices) {
+            if( (leafIndex < 0) || (leafIndex >= numLeaves) ) {
+                throw new IllegalArgumentException(new ArrayIndexOutOfBoundsException());
+            }
+            availableHashesIndices[leafIndex] = true;
+        }
+
+        return new MerkleMultiProof(numLeaves, sortedLeafIndices,
+                getMissingHashes(availableHashesIndices));
     }
 
 
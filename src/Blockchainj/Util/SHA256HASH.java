@@ -153,6 +153,11 @@ public class SHA256HASH implements Comparable<SHA256HASH> {
         byteBuffer.put(hash);
     }
 
+    /* Serialize at absolute index. Does not change the buffer's position. */
+    public void serialize(ByteBuffer byteBuffer, int index) {
+        byteBuffer.put(index, hash);
+    }
+
 
     /* Deserialize */
     public static SHA256HASH deserialize(InputStream inputStream) throws IOException {
@@ -164,6 +169,14 @@ public class SHA256HASH implements Comparable<SHA256HASH> {
     }
 
 
+    /* Deserialize from absolute index. Does not change the buffer's position. */
+    public static SHA256HASH deserialize(ByteBuffer byteBuffer, int index) {
+        byte[] hash = new byte[HASH_SIZE];
+        byteBuffer.get(index, hash);
+        return new SHA256HASH(hash);
+    }
+
+
     /* Deserialize */
     public static SHA256HASH deserialize(byte[] src, int offset)
             throws NullPointerException, IndexOutOfBoundsException {
@@ -209,6 +222,17 @@ public class SHA256HASH implements Comparable<SHA256HASH> {
     }
 
 
+    /* Compares with the serialized hash at absolute index. Does not allocate. */
+    public boolean equals(ByteBuffer byteBuffer, int index) {
+        for(int i=0; i<HASH_SIZE; i++) {
+            if(hash[i] != byteBuffer.get(index + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     @Override
     public String toString() {
         return getHashString();
@@ -227,6 +251,15 @@ public class SHA256HASH implements Comparable<SHA256HASH> {
     }
 
 
+    /* Same as hashCode() of the serialized hash at absolute index. Does not allocate. */
+    public static int hashCode(ByteBuffer byteBuffer, int index) {
+        return ((byteBuffer.get(index) ^ byteBuffer.get(index + 16)) & 0xFF) |
+                (((byteBuffer.get(index + 5) ^ byteBuffer.get(index + 21)) & 0xFF) << 8) |
+                (((byteBuffer.get(index + 10) ^ byteBuffer.get(index + 26)) & 0xFF) << 16) |
+                (((byteBuffer.get(index + 15) ^ byteBuffer.get(index + 31)) & 0xFF) << 24);
+    }
+
+
     /* Returns new SHA256HASH from input bytes in reverse order */
     public static SHA256HASH getReverseHash(byte[] hash) {
         return new SHA256HASH(Utils.reverseBytes(hash));
@@ -251,6 +284,16 @@ public class SHA256HASH implements Comparable<SHA256HASH> {
     }
 
 
+    /* Returns a new SHA256HASH of the double SHA256 hash of data[offset, offset+len). */
+    public static SHA256HASH doDoubleSHA256(byte[] data, int offset, int len) {
+        MessageDigest digest = getDigest();
+        digest.update(data, offset, len);
+        byte[] hashDigest1 = digest.digest();
+        byte[] hashDigest2 = digest.digest(hashDigest1);
+        return new SHA256HASH(hashDigest2);
+    }
+
+
     /* Returns a new SHA256 messageDigest */
     public static MessageDigest getDigest() {
         try {
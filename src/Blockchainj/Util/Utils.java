@@ -2,6 +2,7 @@ package Blockchainj.Util;
 
 import org.apache.commons.codec.binary.Hex;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -116,6 +117,22 @@ public class Utils {
     }
 
 
+    /* Read bytes from input stream. Blocks until all bytes are read. */
+    public static byte[] readBytesFromInputStreamFully(InputStream inputStream, int numBytes)
+            throws IOException {
+        byte[] output = new byte[numBytes];
+        int offset = 0;
+        while(offset < numBytes) {
+            int bytesRead = inputStream.read(output, offset, numBytes - offset);
+            if(bytesRead < 0) {
+                throw new EOFException("Expected " + numBytes + " but read " + offset + ".");
+            }
+            offset += bytesRead;
+        }
+        return output;
+    }
+
+
     /* Read bytes from byte array */
     public static byte[] readBytesFromByteArray(byte[] data, int offset, int numBytes) {
         byte[] outBytes = new byte[numBytes];